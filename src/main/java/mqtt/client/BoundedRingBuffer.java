@@ -0,0 +1,129 @@
+package mqtt.client;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer/multi-consumer queue over a power-of-two ring.
+ * Every slot carries a sequence number telling producers and consumers whose turn it is,
+ * so neither side takes a lock and a full or empty ring is detected without blocking.
+ */
+public class BoundedRingBuffer<E> {
+
+	private final int capacity;
+	private final int mask;
+
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	public BoundedRingBuffer(int requestedCapacity) {
+		if (requestedCapacity < 2) {
+			throw new IllegalArgumentException("capacity must be >= 2: " + requestedCapacity);
+		}
+		int size = Integer.highestOneBit(requestedCapacity - 1) << 1;
+
+		this.capacity = size;
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, capacity);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return false if the ring is full.
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException("element");
+		}
+		long position = tail.get();
+
+		while (true) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements.set(index, element);
+					// Publishing the sequence hands the slot over to consumers
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return false;
+			} else {
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest element or null if the ring is empty.
+	 */
+	public E poll() {
+		long position = head.get();
+
+		while (true) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - (position + 1);
+
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E element = elements.get(index);
+					elements.lazySet(index, null);
+					// Hand the slot back to producers for the next lap
+					sequences.lazySet(index, position + capacity);
+					return element;
+				}
+				position = head.get();
+			} else if (difference < 0) {
+				return null;
+			} else {
+				position = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Moves up to {@code max} elements into {@code target}, oldest first.
+	 *
+	 * @return the number of elements moved.
+	 */
+	public int drainTo(Collection<? super E> target, int max) {
+		int drained = 0;
+		while (drained < max) {
+			E element = poll();
+			if (element == null) {
+				break;
+			}
+			target.add(element);
+			drained++;
+		}
+		return drained;
+	}
+}
@@ -0,0 +1,75 @@
+package mqtt.client;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Latest-value-wins buffer for chattering topics. Only the newest pending value per
+ * topic is kept; {@link #flushTo(Predicate)} is called once per conflation window and
+ * moves whatever survived into the publish queues, in first-update order.
+ */
+public class Conflator {
+
+	private final ConcurrentHashMap<String, MqttOutboundMessage> pending =
+			new ConcurrentHashMap<String, MqttOutboundMessage>();
+
+	private final Queue<String> order = new ConcurrentLinkedQueue<String>();
+
+	private final LongAdder conflated = new LongAdder();
+
+	public void offer(MqttOutboundMessage message) {
+		MqttOutboundMessage previous = pending.put(message.getTopic(), message);
+
+		if (previous == null) {
+			order.offer(message.getTopic());
+		} else {
+			conflated.increment();
+		}
+	}
+
+	/**
+	 * @param sink offers a message to its publish queue, false if that queue is full.
+	 * @return the number of messages moved. Stops early, keeping the rest pending,
+	 * when a queue is full.
+	 */
+	public int flushTo(Predicate<MqttOutboundMessage> sink) {
+		int flushed = 0;
+		int size = order.size();
+
+		for (int i = 0; i < size; i++) {
+			String topic = order.poll();
+			if (topic == null) {
+				break;
+			}
+
+			// A put racing with this remove either lands in here or re-registers the topic
+			MqttOutboundMessage message = pending.remove(topic);
+			if (message == null) {
+				continue;
+			}
+
+			if (!sink.test(message)) {
+				if (pending.putIfAbsent(topic, message) == null) {
+					order.offer(topic);
+				} else {
+					conflated.increment();
+				}
+				break;
+			}
+			flushed++;
+		}
+
+		return flushed;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public long getConflatedCount() {
+		return conflated.sum();
+	}
+}
@@ -0,0 +1,117 @@
+package mqtt.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent log-linear latency histogram in the style of HdrHistogram. Values below
+ * 2^{@value #SUB_BUCKET_BITS} ns get their own bucket, above that every power of two is
+ * split into 2^({@value #SUB_BUCKET_BITS}-1) linear buckets, which keeps the relative
+ * error of a reported value under 1.6% over the whole range of a long.
+ * <p>
+ * {@link #record(long)} is two atomic increments and a max update on preallocated
+ * arrays, it never allocates. Percentiles are computed by scanning the buckets on read.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	public double getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the highest value equivalent to the bucket holding the percentile, 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public double getValueAtPercentile(double percentile, TimeUnit unit) {
+		return (double) getValueAtPercentile(percentile) / unit.toNanos(1);
+	}
+
+	/**
+	 * Clears all recorded values. Values recorded concurrently may or may not survive.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BUCKET_BITS + 1;
+		int subBucket = (int) (value >>> shift);
+
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+	}
+
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int k = index - SUB_BUCKET_COUNT;
+		int shift = k / SUB_BUCKET_HALF + 1;
+		long subBucket = k % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,420 @@
+package mqtt.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.eclipse.milo.opcua.sdk.server.DiagnosticsContext;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeManager.WriteContext;
+import org.eclipse.milo.opcua.sdk.server.api.Namespace;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+/**
+ * Applies values published under {@code <prefix>#} to the matching UaVariableNodes.
+ * <p>
+ * The MQTT callback only copies the message into a bounded ring. A single bridge thread
+ * drains it in batches, keeps the last value per node within a batch and applies the
+ * batch in one pass over the server's node map, so a burst of messages costs one
+ * wake-up per batch instead of one task per message.
+ * <p>
+ * A topic is mapped to a NodeId the first time it is seen, either through an explicit
+ * {@link MqttInboundConfig.Builder#addMapping(String, NodeId) mapping} or by looking up
+ * {@code <prefix><node identifier>} in the bridged namespaces, and the result is cached;
+ * topics without a variable aren't, so unknown topics can't grow the cache.
+ * <p>
+ * A batch is applied through the write() of each node's namespace, like a Write request
+ * without a session: the values are recorded in the history, journaled and queued for
+ * the broker like any other write. They are published under the node's identifier,
+ * outside the inbound prefix, so they don't come back. The next batch is only drained
+ * once the writes of the last one are done, so values of a node are applied in order.
+ */
+public class MqttInboundBridge {
+
+	private static final long MIN_IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final Map<NodeId, Function<String, Object>> TEXT_PARSERS =
+			new HashMap<NodeId, Function<String, Object>>();
+
+	static {
+		TEXT_PARSERS.put(Identifiers.Boolean, Boolean::valueOf);
+		TEXT_PARSERS.put(Identifiers.SByte, Byte::valueOf);
+		TEXT_PARSERS.put(Identifiers.Byte, s -> ubyte(Short.parseShort(s)));
+		TEXT_PARSERS.put(Identifiers.Int16, Short::valueOf);
+		TEXT_PARSERS.put(Identifiers.UInt16, s -> ushort(Integer.parseInt(s)));
+		TEXT_PARSERS.put(Identifiers.Int32, Integer::valueOf);
+		TEXT_PARSERS.put(Identifiers.UInt32, s -> uint(Long.parseLong(s)));
+		TEXT_PARSERS.put(Identifiers.Int64, Long::valueOf);
+		TEXT_PARSERS.put(Identifiers.UInt64, s -> ulong(Long.parseUnsignedLong(s)));
+		TEXT_PARSERS.put(Identifiers.Float, Float::valueOf);
+		TEXT_PARSERS.put(Identifiers.Double, Double::valueOf);
+		TEXT_PARSERS.put(Identifiers.String, s -> s);
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final OpcUaServer server;
+
+	private final MqttInboundConfig config;
+
+	private final List<UShort> namespaceIndexes;
+
+	private final BoundedRingBuffer<InboundMessage> queue;
+
+	// Only touched by the bridge thread
+	private final Map<String, NodeId> topicMappings = new HashMap<String, NodeId>();
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder applied = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder unmapped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private SimpleMqttClient client;
+
+	private ScheduledExecutorService reconnectExecutor;
+
+	private Thread bridgeThread;
+
+	private volatile boolean running = false;
+
+	private volatile boolean mappingsInvalidated = false;
+
+	public MqttInboundBridge(OpcUaServer server, MqttInboundConfig config, UShort... namespaceIndexes) {
+		this.server = server;
+		this.config = config;
+		this.namespaceIndexes = Arrays.asList(namespaceIndexes);
+		this.queue = new BoundedRingBuffer<InboundMessage>(config.getQueueCapacity());
+	}
+
+	public MqttInboundConfig getConfig() {
+		return config;
+	}
+
+	public synchronized void startup() {
+		if (running) {
+			return;
+		}
+
+		try {
+			client = new SimpleMqttClient(config.getBroker(), config.getClientId(), config.getQos());
+		} catch (MqttException e) {
+			logger.error("Unable to create MQTT client {} for {}", config.getClientId(), config.getBroker(), e);
+			return;
+		}
+		client.setCallback(new BridgeCallback());
+
+		running = true;
+
+		reconnectExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mqtt-inbound-reconnect");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reconnectExecutor.execute(() -> connect(config.getInitialBackoffMillis()));
+
+		bridgeThread = new Thread(this::drain, "mqtt-inbound");
+		bridgeThread.setDaemon(true);
+		bridgeThread.start();
+
+		logger.info("MQTT inbound bridge subscribing to {}# on {}", config.getTopicPrefix(), config.getBroker());
+	}
+
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+
+		reconnectExecutor.shutdownNow();
+		client.close();
+
+		try {
+			bridgeThread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		logger.info("MQTT inbound bridge stopped, {} message(s) applied, {} left unapplied",
+				applied.sum(), queue.size());
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Forgets the cached topic to NodeId mappings, e.g. after nodes have been added or removed.
+	 */
+	public void invalidateMappings() {
+		mappingsInvalidated = true;
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public long getReceivedCount() {
+		return received.sum();
+	}
+
+	public long getAppliedCount() {
+		return applied.sum();
+	}
+
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	public long getUnmappedCount() {
+		return unmapped.sum();
+	}
+
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	private void drain() {
+		List<InboundMessage> batch = new ArrayList<InboundMessage>(config.getBatchSize());
+		Map<NodeId, byte[]> latest = new LinkedHashMap<NodeId, byte[]>();
+		long idleNanos = MIN_IDLE_NANOS;
+
+		while (running) {
+			if (queue.drainTo(batch, config.getBatchSize()) == 0) {
+				LockSupport.parkNanos(idleNanos);
+				idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+				continue;
+			}
+			idleNanos = MIN_IDLE_NANOS;
+
+			if (mappingsInvalidated) {
+				mappingsInvalidated = false;
+				topicMappings.clear();
+			}
+
+			// Later messages for the same node overwrite earlier ones, only the last is decoded
+			for (InboundMessage message : batch) {
+				NodeId nodeId = topicMappings.get(message.topic);
+				if (nodeId == null && (nodeId = resolve(message.topic)) != null) {
+					topicMappings.put(message.topic, nodeId);
+				}
+				if (nodeId == null) {
+					unmapped.increment();
+				} else if (latest.put(nodeId, message.payload) != null) {
+					coalesced.increment();
+				}
+			}
+
+			applyBatch(latest);
+
+			latest.clear();
+			batch.clear();
+		}
+	}
+
+	private void applyBatch(Map<NodeId, byte[]> latest) {
+		Map<UShort, List<WriteValue>> writes = new LinkedHashMap<UShort, List<WriteValue>>();
+		DateTime now = DateTime.now();
+
+		for (Map.Entry<NodeId, byte[]> entry : latest.entrySet()) {
+			Optional<ServerNode> node = server.getNodeMap().getNode(entry.getKey());
+
+			if (!node.isPresent() || !(node.get() instanceof UaVariableNode)) {
+				// Removed since it was resolved
+				unmapped.increment();
+				mappingsInvalidated = true;
+				continue;
+			}
+
+			UaVariableNode variable = (UaVariableNode) node.get();
+			try {
+				DataValue value = decode(variable, entry.getValue(), now);
+				writes.computeIfAbsent(entry.getKey().getNamespaceIndex(), i -> new ArrayList<WriteValue>())
+						.add(new WriteValue(entry.getKey(), AttributeId.Value.uid(), null, value));
+			} catch (RuntimeException e) {
+				failed.increment();
+				logger.warn("Unable to apply MQTT value to {}: {}", entry.getKey(), e.getMessage());
+			}
+		}
+
+		for (Map.Entry<UShort, List<WriteValue>> entry : writes.entrySet()) {
+			write(entry.getKey(), entry.getValue());
+		}
+	}
+
+	// Through the namespace's write(), waiting for the results
+	private void write(UShort namespaceIndex, List<WriteValue> writeValues) {
+		Namespace namespace = server.getNamespaceManager().getNamespace(namespaceIndex);
+		if (namespace == null) {
+			unmapped.add(writeValues.size());
+			mappingsInvalidated = true;
+			return;
+		}
+
+		CompletableFuture<List<StatusCode>> future = new CompletableFuture<List<StatusCode>>();
+		namespace.write(new WriteContext(server, null, future, new DiagnosticsContext<WriteValue>()), writeValues);
+
+		List<StatusCode> results;
+		try {
+			results = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed.add(writeValues.size());
+			return;
+		} catch (ExecutionException e) {
+			failed.add(writeValues.size());
+			logger.warn("Unable to apply {} MQTT value(s) to namespace {}", writeValues.size(), namespaceIndex,
+					e.getCause());
+			return;
+		}
+
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i).isGood()) {
+				applied.increment();
+			} else {
+				failed.increment();
+				logger.warn("Unable to apply MQTT value to {}: {}", writeValues.get(i).getNodeId(), results.get(i));
+			}
+		}
+	}
+
+	private DataValue decode(UaVariableNode node, byte[] payload, DateTime now) {
+		if (config.getPayloadFormat() == PayloadFormat.BINARY) {
+			DataValue value = PayloadDecoder.decode(payload);
+			return new DataValue(
+					value.getValue(),
+					value.getStatusCode() != null ? value.getStatusCode() : StatusCode.GOOD,
+					value.getSourceTime() != null ? value.getSourceTime() : now,
+					now);
+		}
+
+		Function<String, Object> parser = TEXT_PARSERS.get(node.getDataType());
+		if (parser == null) {
+			throw new IllegalArgumentException("no text representation for data type " + node.getDataType());
+		}
+		Object value = parser.apply(new String(payload, StandardCharsets.UTF_8).trim());
+
+		return new DataValue(new Variant(value), StatusCode.GOOD, now, now);
+	}
+
+	private NodeId resolve(String topic) {
+		NodeId mapped = config.getMappings().get(topic);
+		if (mapped != null) {
+			return mapped;
+		}
+
+		if (topic.startsWith(config.getTopicPrefix())) {
+			String identifier = topic.substring(config.getTopicPrefix().length());
+
+			for (UShort namespaceIndex : namespaceIndexes) {
+				NodeId nodeId = new NodeId(namespaceIndex, identifier);
+				Optional<ServerNode> node = server.getNodeMap().getNode(nodeId);
+				if (node.isPresent() && node.get() instanceof UaVariableNode) {
+					return nodeId;
+				}
+			}
+		}
+
+		logger.debug("No variable node for MQTT topic {}", topic);
+		return null;
+	}
+
+	private void connect(long backoffMillis) {
+		if (!running) {
+			return;
+		}
+		try {
+			client.connect();
+			client.subscribe(config.getTopicPrefix() + "#");
+			logger.info("MQTT client {} connected to {}", client.getClientId(), config.getBroker());
+		} catch (MqttException e) {
+			logger.warn("MQTT client {} unable to connect to {}, retrying in {} ms: {}",
+					client.getClientId(), config.getBroker(), backoffMillis, e.getMessage());
+			scheduleReconnect(backoffMillis);
+		}
+	}
+
+	private void scheduleReconnect(long backoffMillis) {
+		if (!running) {
+			return;
+		}
+		long next = Math.min(backoffMillis * 2, config.getMaxBackoffMillis());
+		try {
+			reconnectExecutor.schedule(() -> connect(next), backoffMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	private class BridgeCallback implements MqttCallback {
+
+		@Override
+		public void connectionLost(Throwable cause) {
+			logger.warn("MQTT client {} lost its connection: {}", client.getClientId(), cause.getMessage());
+			scheduleReconnect(config.getInitialBackoffMillis());
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message) {
+			received.increment();
+			if (!queue.offer(new InboundMessage(topic, message.getPayload()))) {
+				dropped.increment();
+			}
+		}
+
+		@Override
+		public void deliveryComplete(IMqttDeliveryToken token) {
+		}
+	}
+
+	private static final class InboundMessage {
+		final String topic;
+		final byte[] payload;
+
+		InboundMessage(String topic, byte[] payload) {
+			this.topic = topic;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package mqtt.client;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+public class MqttInboundConfig {
+
+	private final String broker;
+	private final String clientId;
+	private final String topicPrefix;
+	private final int qos;
+	private final PayloadFormat payloadFormat;
+	private final int queueCapacity;
+	private final int batchSize;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final Map<String, NodeId> mappings;
+
+	private MqttInboundConfig(Builder builder) {
+		this.broker = builder.broker;
+		this.clientId = builder.clientId;
+		this.topicPrefix = builder.topicPrefix;
+		this.qos = builder.qos;
+		this.payloadFormat = builder.payloadFormat;
+		this.queueCapacity = builder.queueCapacity;
+		this.batchSize = builder.batchSize;
+		this.initialBackoffMillis = builder.initialBackoffMillis;
+		this.maxBackoffMillis = builder.maxBackoffMillis;
+		this.mappings = Collections.unmodifiableMap(new LinkedHashMap<String, NodeId>(builder.mappings));
+	}
+
+	public String getBroker() {
+		return broker;
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public String getTopicPrefix() {
+		return topicPrefix;
+	}
+
+	public int getQos() {
+		return qos;
+	}
+
+	public PayloadFormat getPayloadFormat() {
+		return payloadFormat;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	public Map<String, NodeId> getMappings() {
+		return mappings;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private String broker = SimpleMqttClient.DEFAULT_BROKER;
+		private String clientId = SimpleMqttClient.DEFAULT_CLIENT_ID + "-in";
+		private String topicPrefix = "opcua/set/";
+		private int qos = 1;
+		private PayloadFormat payloadFormat = PayloadFormat.TEXT;
+		private int queueCapacity = 65536;
+		private int batchSize = 1024;
+		private long initialBackoffMillis = 500;
+		private long maxBackoffMillis = 30000;
+		private final Map<String, NodeId> mappings = new LinkedHashMap<String, NodeId>();
+
+		public Builder setBroker(String broker) {
+			this.broker = broker;
+			return this;
+		}
+
+		public Builder setClientId(String clientId) {
+			this.clientId = clientId;
+			return this;
+		}
+
+		// Everything below "<prefix>#" is subscribed, "<prefix><node identifier>" maps by convention
+		public Builder setTopicPrefix(String topicPrefix) {
+			this.topicPrefix = topicPrefix.endsWith("/") ? topicPrefix : topicPrefix + "/";
+			return this;
+		}
+
+		public Builder setQos(int qos) {
+			if (qos < 0 || qos > 2) {
+				throw new IllegalArgumentException("qos must be 0, 1 or 2: " + qos);
+			}
+			this.qos = qos;
+			return this;
+		}
+
+		public Builder setPayloadFormat(PayloadFormat payloadFormat) {
+			if (payloadFormat == PayloadFormat.JSON) {
+				throw new IllegalArgumentException("inbound payloads must be TEXT or BINARY");
+			}
+			this.payloadFormat = payloadFormat;
+			return this;
+		}
+
+		public Builder setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		public Builder setBatchSize(int batchSize) {
+			if (batchSize < 1) {
+				throw new IllegalArgumentException("batchSize must be >= 1: " + batchSize);
+			}
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Builder setInitialBackoffMillis(long initialBackoffMillis) {
+			this.initialBackoffMillis = initialBackoffMillis;
+			return this;
+		}
+
+		public Builder setMaxBackoffMillis(long maxBackoffMillis) {
+			this.maxBackoffMillis = maxBackoffMillis;
+			return this;
+		}
+
+		// Explicit entries win over the "<prefix><node identifier>" convention
+		public Builder addMapping(String topic, NodeId nodeId) {
+			this.mappings.put(topic, nodeId);
+			return this;
+		}
+
+		public MqttInboundConfig build() {
+			return new MqttInboundConfig(this);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package mqtt.client;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+
+/**
+ * A value waiting in the publish queue. The payload is only rendered by the publisher
+ * threads (see {@link PayloadEncoder}), so the write path does no formatting.
+ */
+public class MqttOutboundMessage {
+
+	private final String topic;
+	private final DataValue value;
+	private final int qos;
+	private final long enqueuedNanos;
+
+	public MqttOutboundMessage(String topic, DataValue value, int qos) {
+		this.topic = topic;
+		this.value = value;
+		this.qos = qos;
+		this.enqueuedNanos = System.nanoTime();
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public DataValue getValue() {
+		return value;
+	}
+
+	public int getQos() {
+		return qos;
+	}
+
+	public long getEnqueuedNanos() {
+		return enqueuedNanos;
+	}
+}
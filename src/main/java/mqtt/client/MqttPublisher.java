@@ -0,0 +1,710 @@
+package mqtt.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-scoped MQTT publisher split into shards. Every shard owns one persistent broker
+ * connection with its own client id, its own bounded ring and its own publisher thread.
+ * A topic is always routed to the same shard by its hash, so values of one node are
+ * published in write order while different nodes are published in parallel. Connections
+ * are opened on {@link #startup()} and reconnected in the background with exponential
+ * backoff.
+ * <p>
+ * The write path only {@link #enqueue(String, DataValue) enqueues} into the shard's ring;
+ * the shard's thread drains it in batches, so a Write response never waits for the QoS
+ * handshake with the broker.
+ * <p>
+ * Topics matching a configured conflation filter skip the ring and go through a
+ * {@link Conflator}, which is flushed into the rings once per conflation window, so a
+ * chattering tag costs one publish per window instead of one per write.
+ * <p>
+ * With a store directory configured, messages that can't be published are appended to
+ * their shard's {@link SegmentedMessageLog} instead of being dropped. Once the shard is
+ * connected again its thread replays them in order between its live batches, the stored
+ * messages of all shards together no faster than the replay rate. A live message is only
+ * stored behind them while its own topic still has stored messages, so it never
+ * overtakes an older value of its topic, and the other topics are published at once
+ * whatever the size of the backlog.
+ */
+public class MqttPublisher {
+
+	private static final long MIN_IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// The log of shard n is in "shard-n" under the store directory
+	private static final String SHARD_DIRECTORY = "shard-";
+	private static final String MOVING_SUFFIX = ".moving";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final MqttPublisherConfig config;
+
+	private final List<Shard> shards = new ArrayList<Shard>();
+
+	private final Conflator conflator = new Conflator();
+
+	// Filters and the shard are resolved once per topic, not once per message
+	private final ConcurrentHashMap<String, TopicSettings> topicSettings =
+			new ConcurrentHashMap<String, TopicSettings>();
+
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder stored = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private final LongAdder connectionsLost = new LongAdder();
+
+	// Enqueue to broker acknowledgement, the synchronous publish returns once the QoS flow is done
+	private final LatencyHistogram publishLatency = new LatencyHistogram();
+
+	// Shared by the shards, only stored messages take permits
+	private RateLimiter replayLimiter;
+
+	private ScheduledExecutorService reconnectExecutor;
+
+	private ScheduledExecutorService conflationExecutor;
+
+	private volatile boolean running = false;
+	private volatile boolean accepting = false;
+
+	public MqttPublisher(MqttPublisherConfig config) {
+		this.config = config;
+
+		int capacity = Math.max(1, config.getQueueCapacity() / config.getShards());
+		for (int i = 0; i < config.getShards(); i++) {
+			shards.add(new Shard(i, capacity));
+		}
+	}
+
+	public MqttPublisherConfig getConfig() {
+		return config;
+	}
+
+	public synchronized void startup() {
+		if (running) {
+			return;
+		}
+		running = true;
+
+		reconnectExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mqtt-reconnect");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		if (config.getStoreDirectory() != null) {
+			openStores();
+			replayLimiter = RateLimiter.create(config.getReplayRatePerSecond());
+		}
+
+		for (Shard shard : shards) {
+			String clientId = config.getClientIdPrefix() + "-" + shard.index;
+			try {
+				shard.client = new SimpleMqttClient(config.getBroker(), clientId, config.getQos());
+				shard.client.setCallback(shard);
+				shard.reconnecting.set(true);
+				// Connect off the caller's thread so an unreachable broker doesn't stall server startup
+				reconnectExecutor.execute(() -> connect(shard, config.getInitialBackoffMillis()));
+			} catch (MqttException e) {
+				logger.error("Unable to create MQTT client {} for {}", clientId, config.getBroker(), e);
+			}
+		}
+
+		accepting = true;
+
+		if (!config.getConflatedTopics().isEmpty()) {
+			conflationExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "mqtt-conflator");
+				thread.setDaemon(true);
+				return thread;
+			});
+			conflationExecutor.scheduleAtFixedRate(
+					() -> conflator.flushTo(this::offerToShard),
+					config.getConflationWindowMillis(),
+					config.getConflationWindowMillis(),
+					TimeUnit.MILLISECONDS);
+		}
+
+		for (Shard shard : shards) {
+			shard.thread = new Thread(() -> drain(shard), "mqtt-publisher-" + shard.index);
+			shard.thread.setDaemon(true);
+			shard.thread.start();
+		}
+
+		logger.info("MQTT publisher started with {} shard(s) to {}", shards.size(), config.getBroker());
+	}
+
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		accepting = false;
+
+		if (conflationExecutor != null) {
+			conflationExecutor.shutdownNow();
+			conflationExecutor = null;
+			conflator.flushTo(this::offerToShard);
+		}
+
+		// Give the publisher threads a chance to flush what is already queued
+		for (Shard shard : shards) {
+			try {
+				shard.thread.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		running = false;
+
+		reconnectExecutor.shutdownNow();
+
+		for (Shard shard : shards) {
+			if (shard.client != null) {
+				shard.client.close();
+			}
+		}
+
+		if (config.getStoreDirectory() != null) {
+			logger.info("{} message(s) kept in the store-and-forward log for the next start", getStorePendingCount());
+		}
+		for (Shard shard : shards) {
+			if (shard.store != null) {
+				shard.store.close();
+				shard.store = null;
+			}
+		}
+
+		logger.info("MQTT publisher stopped, {} message(s) left unpublished", getQueueSize());
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Queues a value for publishing and returns without touching the network.
+	 *
+	 * @return false if the shard's queue is full and the overflow policy refused the message,
+	 * the caller should report Bad_ResourceUnavailable.
+	 */
+	public boolean enqueue(String topic, DataValue value) {
+		if (!accepting) {
+			rejected.increment();
+			return false;
+		}
+
+		TopicSettings settings = settings(topic);
+
+		MqttOutboundMessage message = new MqttOutboundMessage(topic, value, settings.qos);
+
+		if (settings.conflated) {
+			conflator.offer(message);
+			return true;
+		}
+
+		BoundedRingBuffer<MqttOutboundMessage> queue = settings.shard.queue;
+
+		if (queue.offer(message)) {
+			return true;
+		}
+
+		switch (config.getOverflowPolicy()) {
+			case DROP_OLDEST:
+				do {
+					if (queue.poll() != null) {
+						dropped.increment();
+					}
+				} while (!queue.offer(message));
+				return true;
+
+			case BLOCK:
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getOfferTimeoutMillis());
+				while (!queue.offer(message)) {
+					if (System.nanoTime() - deadline >= 0 || !accepting) {
+						rejected.increment();
+						return false;
+					}
+					LockSupport.parkNanos(MIN_IDLE_NANOS);
+				}
+				return true;
+
+			case REJECT:
+			default:
+				rejected.increment();
+				return false;
+		}
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	public int getQueueSize() {
+		int size = 0;
+		for (Shard shard : shards) {
+			size += shard.queue.size();
+		}
+		return size;
+	}
+
+	public int getShardQueueSize(int shard) {
+		return shards.get(shard).queue.size();
+	}
+
+	public long getShardPublishedCount(int shard) {
+		return shards.get(shard).published.sum();
+	}
+
+	public boolean isShardConnected(int shard) {
+		SimpleMqttClient client = shards.get(shard).client;
+		return client != null && client.isConnected();
+	}
+
+	public int getConflationPendingCount() {
+		return conflator.getPendingCount();
+	}
+
+	public long getConflatedCount() {
+		return conflator.getConflatedCount();
+	}
+
+	public long getPublishedCount() {
+		long published = 0;
+		for (Shard shard : shards) {
+			published += shard.published.sum();
+		}
+		return published;
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public long getStoredCount() {
+		return stored.sum();
+	}
+
+	public long getReplayedCount() {
+		return replayed.sum();
+	}
+
+	public long getStorePendingCount() {
+		long pending = 0;
+		for (Shard shard : shards) {
+			SegmentedMessageLog log = shard.store;
+			pending += log != null ? log.getPendingCount() : 0;
+		}
+		return pending;
+	}
+
+	public long getStoreEvictedCount() {
+		long evicted = 0;
+		for (Shard shard : shards) {
+			SegmentedMessageLog log = shard.store;
+			evicted += log != null ? log.getEvictedCount() : 0;
+		}
+		return evicted;
+	}
+
+	public int getConnectedShardCount() {
+		int connected = 0;
+		for (int i = 0; i < shards.size(); i++) {
+			if (isShardConnected(i)) {
+				connected++;
+			}
+		}
+		return connected;
+	}
+
+	/**
+	 * @return connections re-established after their first successful connect.
+	 */
+	public long getReconnectCount() {
+		return reconnects.sum();
+	}
+
+	public long getConnectionLostCount() {
+		return connectionsLost.sum();
+	}
+
+	public LatencyHistogram getPublishLatency() {
+		return publishLatency;
+	}
+
+	private TopicSettings settings(String topic) {
+		return topicSettings.computeIfAbsent(topic, TopicSettings::new);
+	}
+
+	private boolean offerToShard(MqttOutboundMessage message) {
+		return settings(message.getTopic()).shard.queue.offer(message);
+	}
+
+	private void drain(Shard shard) {
+		List<MqttOutboundMessage> batch = new ArrayList<MqttOutboundMessage>(config.getBatchSize());
+		PayloadEncoder encoder = new PayloadEncoder(config.getPayloadFormat());
+		long idleNanos = MIN_IDLE_NANOS;
+
+		try {
+			while (accepting || !shard.queue.isEmpty()) {
+				int drained = shard.queue.drainTo(batch, config.getBatchSize());
+				if (drained > 0) {
+					publishBatch(shard, batch, encoder);
+					batch.clear();
+				}
+
+				if (replay(shard) == 0 && drained == 0) {
+					LockSupport.parkNanos(idleNanos);
+					idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+					continue;
+				}
+				idleNanos = MIN_IDLE_NANOS;
+			}
+		} finally {
+			encoder.release();
+		}
+	}
+
+	private void publishBatch(Shard shard, List<MqttOutboundMessage> batch, PayloadEncoder encoder) {
+		boolean connected = awaitConnection(shard);
+		int unpublished = 0;
+
+		for (int i = 0; i < batch.size(); i++) {
+			MqttOutboundMessage message = batch.get(i);
+
+			byte[] payload;
+			try {
+				payload = encoder.encode(message.getValue());
+			} catch (RuntimeException e) {
+				logger.error("Unable to encode value for topic {}: {}", message.getTopic(), message.getValue(), e);
+				dropped.increment();
+				continue;
+			}
+
+			if (connected && !isHeldBack(shard, message.getTopic())) {
+				try {
+					shard.client.publish(message.getTopic(), payload, message.getQos());
+					shard.published.increment();
+					publishLatency.record(System.nanoTime() - message.getEnqueuedNanos());
+					continue;
+				} catch (MqttException e) {
+					logger.error("Unable to publish to topic {} on {}", message.getTopic(), shard.client.getClientId(), e);
+					// Keep the shard's order: the rest of the batch isn't published on this connection either
+					connected = false;
+					if (!shard.client.isConnected()) {
+						scheduleReconnect(shard, config.getInitialBackoffMillis());
+					}
+				}
+			}
+
+			storeOrDrop(shard, message, payload);
+			unpublished++;
+		}
+
+		if (connected && unpublished > 0) {
+			logger.debug("MQTT shard {} stored {} message(s) behind their topics' stored messages",
+					shard.index, unpublished);
+		} else if (unpublished > 0) {
+			logger.warn("MQTT shard {} not connected, {} {} message(s)",
+					shard.index, shard.store != null ? "stored" : "dropped", unpublished);
+		}
+	}
+
+	// With a store the batch goes to the log right away, otherwise waits up to connectionWaitMillis
+	private boolean awaitConnection(Shard shard) {
+		if (shard.client == null) {
+			return false;
+		}
+		if (shard.client.isConnected()) {
+			return true;
+		}
+		scheduleReconnect(shard, config.getInitialBackoffMillis());
+		if (shard.store != null) {
+			return false;
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getConnectionWaitMillis());
+		while (running && !shard.client.isConnected() && System.nanoTime() - deadline < 0) {
+			LockSupport.parkNanos(MAX_IDLE_NANOS);
+		}
+		return shard.client.isConnected();
+	}
+
+	// Whether older messages of the topic are still stored, the new one has to go behind them
+	private boolean isHeldBack(Shard shard, String topic) {
+		SegmentedMessageLog log = shard.store;
+		return log != null && log.hasPending(topic);
+	}
+
+	private void storeOrDrop(Shard shard, MqttOutboundMessage message, byte[] payload) {
+		SegmentedMessageLog log = shard.store;
+		if (log == null) {
+			dropped.increment();
+			return;
+		}
+		try {
+			if (log.append(message.getTopic(), payload, message.getQos())) {
+				stored.increment();
+			} else {
+				logger.warn("Message for topic {} is larger than a store segment, dropping it", message.getTopic());
+				dropped.increment();
+			}
+		} catch (IOException e) {
+			logger.error("Unable to store message for topic {}", message.getTopic(), e);
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Publishes up to a batch of the shard's stored messages, oldest first, as many as the
+	 * replay rate has permits for right now; never waits for one.
+	 *
+	 * @return the number of messages replayed.
+	 */
+	private int replay(Shard shard) {
+		SegmentedMessageLog log = shard.store;
+		if (log == null || log.isEmpty() || shard.client == null || !shard.client.isConnected()) {
+			return 0;
+		}
+
+		int count = 0;
+		while (count < config.getBatchSize() && !log.isEmpty() && replayLimiter.tryAcquire()) {
+			SegmentedMessageLog.Record record = log.peek();
+			try {
+				shard.client.publish(record.getTopic(), record.getPayload(), record.getQos());
+				log.commit(record);
+				replayed.increment();
+				count++;
+			} catch (MqttException e) {
+				logger.warn("Unable to replay stored message to topic {}: {}", record.getTopic(), e.getMessage());
+				if (!shard.client.isConnected()) {
+					scheduleReconnect(shard, config.getInitialBackoffMillis());
+				}
+				break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Opens every shard's log in its "shard-n" directory. Messages stored under another
+	 * layout, by the single log of all shards there was before, or with another number of
+	 * shards, are first moved in order to the log of the shard their topic goes to now, so
+	 * each topic's stored messages are again in its shard's log.
+	 */
+	private void openStores() {
+		File directory = config.getStoreDirectory();
+		long maxBytes = config.getStoreMaxBytes() / shards.size();
+
+		// The single log kept its segments in the directory itself, the others are left from a
+		// crash while moving or of shards there are no more of
+		List<File> sources = new ArrayList<File>();
+		sources.add(directory);
+
+		File[] directories = directory.listFiles(file ->
+				file.isDirectory() && file.getName().startsWith(SHARD_DIRECTORY));
+		if (directories != null) {
+			Arrays.sort(directories);
+			for (File other : directories) {
+				if (!isShardDirectory(other)) {
+					sources.add(other);
+				}
+			}
+		}
+
+		for (Shard shard : shards) {
+			File shardDirectory = new File(directory, SHARD_DIRECTORY + shard.index);
+			shard.store = openStore(shardDirectory, maxBytes);
+
+			if (shard.store != null && hasMisplacedTopics(shard)) {
+				// Moved as a whole, renamed so it can be read while the shard's new log is written
+				File moving = new File(directory, shardDirectory.getName() + MOVING_SUFFIX + System.currentTimeMillis());
+				shard.store.close();
+				if (shardDirectory.renameTo(moving)) {
+					sources.add(moving);
+				} else {
+					logger.error("Unable to rename {} to {}, its stored messages stay where they are",
+							shardDirectory, moving);
+				}
+				shard.store = openStore(shardDirectory, maxBytes);
+			}
+		}
+
+		for (File source : sources) {
+			SegmentedMessageLog log = openStore(source, config.getStoreMaxBytes());
+			if (log == null) {
+				continue;
+			}
+
+			long moved = move(log);
+			if (moved > 0) {
+				logger.info("Moved {} stored message(s) of {} to the logs of their shards", moved, source);
+			}
+			log.delete();
+			if (!source.equals(directory) && !source.delete()) {
+				logger.warn("Unable to delete {}", source);
+			}
+		}
+	}
+
+	private SegmentedMessageLog openStore(File directory, long maxBytes) {
+		try {
+			return SegmentedMessageLog.open(directory, config.getStoreSegmentBytes(), maxBytes);
+		} catch (IOException e) {
+			logger.error("Unable to open store-and-forward log in {}, messages will be dropped while disconnected",
+					directory, e);
+			return null;
+		}
+	}
+
+	// The log of one of the shards, "shard-n" with n below the number of shards
+	private boolean isShardDirectory(File file) {
+		String index = file.getName().substring(SHARD_DIRECTORY.length());
+		if (index.isEmpty() || index.length() > 9 || !index.chars().allMatch(Character::isDigit)) {
+			return false;
+		}
+		return Integer.parseInt(index) < shards.size();
+	}
+
+	// Whether a shard's log holds messages of topics that now go to another shard
+	private boolean hasMisplacedTopics(Shard shard) {
+		for (String topic : shard.store.getPendingTopics()) {
+			if (settings(topic).shard != shard) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Appends a log's messages, oldest first, to the logs of their topics' shards
+	private long move(SegmentedMessageLog source) {
+		long count = 0;
+		SegmentedMessageLog.Record record;
+		while ((record = source.peek()) != null) {
+			SegmentedMessageLog target = settings(record.getTopic()).shard.store;
+			try {
+				if (target != null && target.append(record.getTopic(), record.getPayload(), record.getQos())) {
+					count++;
+				} else {
+					dropped.increment();
+				}
+			} catch (IOException e) {
+				logger.error("Unable to move stored message for topic {}", record.getTopic(), e);
+				dropped.increment();
+			}
+			source.commit(record);
+		}
+		return count;
+	}
+
+	private void connect(Shard shard, long backoffMillis) {
+		if (!running) {
+			return;
+		}
+		try {
+			shard.client.connect();
+			shard.reconnecting.set(false);
+			if (shard.everConnected) {
+				reconnects.increment();
+			}
+			shard.everConnected = true;
+			logger.info("MQTT client {} connected to {}", shard.client.getClientId(), config.getBroker());
+		} catch (MqttException e) {
+			logger.warn("MQTT client {} unable to connect to {}, retrying in {} ms: {}",
+					shard.client.getClientId(), config.getBroker(), backoffMillis, e.getMessage());
+			long next = Math.min(backoffMillis * 2, config.getMaxBackoffMillis());
+			try {
+				reconnectExecutor.schedule(() -> connect(shard, next), backoffMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ex) {
+				// shutting down
+			}
+		}
+	}
+
+	// At most one reconnect loop per shard
+	private void scheduleReconnect(Shard shard, long backoffMillis) {
+		if (!running || !shard.reconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			reconnectExecutor.schedule(() -> connect(shard, backoffMillis), backoffMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+		}
+	}
+
+	private class TopicSettings {
+		final int qos;
+		final boolean conflated;
+		final Shard shard;
+
+		TopicSettings(String topic) {
+			this.qos = config.getQos(topic);
+			this.conflated = config.isConflated(topic);
+			// Spread the hash bits, topics of one folder tend to differ only at the end
+			int hash = topic.hashCode();
+			this.shard = shards.get(Math.floorMod(hash ^ (hash >>> 16), shards.size()));
+		}
+	}
+
+	private class Shard implements MqttCallback {
+		final int index;
+		final BoundedRingBuffer<MqttOutboundMessage> queue;
+		final LongAdder published = new LongAdder();
+		final AtomicBoolean reconnecting = new AtomicBoolean(false);
+
+		volatile SimpleMqttClient client;
+		Thread thread;
+		// Null without a store directory, only used on the shard's thread once started
+		volatile SegmentedMessageLog store;
+		// Only touched on the reconnect executor
+		boolean everConnected = false;
+
+		Shard(int index, int capacity) {
+			this.index = index;
+			this.queue = new BoundedRingBuffer<MqttOutboundMessage>(capacity);
+		}
+
+		@Override
+		public void connectionLost(Throwable cause) {
+			connectionsLost.increment();
+			logger.warn("MQTT client {} lost its connection: {}", client.getClientId(), cause.getMessage());
+			scheduleReconnect(this, config.getInitialBackoffMillis());
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message) {
+		}
+
+		@Override
+		public void deliveryComplete(IMqttDeliveryToken token) {
+		}
+	}
+}
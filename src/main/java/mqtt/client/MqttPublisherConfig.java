@@ -0,0 +1,311 @@
+package mqtt.client;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MqttPublisherConfig {
+
+	private final String broker;
+	private final String clientIdPrefix;
+	private final int shards;
+	private final int qos;
+	private final long connectionWaitMillis;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final int queueCapacity;
+	private final OverflowPolicy overflowPolicy;
+	private final long offerTimeoutMillis;
+	private final int batchSize;
+	private final long conflationWindowMillis;
+	private final List<String> conflatedTopics;
+	private final Map<String, Integer> qosOverrides;
+	private final PayloadFormat payloadFormat;
+	private final File storeDirectory;
+	private final int storeSegmentBytes;
+	private final long storeMaxBytes;
+	private final double replayRatePerSecond;
+
+	private MqttPublisherConfig(Builder builder) {
+		this.broker = builder.broker;
+		this.clientIdPrefix = builder.clientIdPrefix;
+		this.shards = builder.shards;
+		this.qos = builder.qos;
+		this.connectionWaitMillis = builder.connectionWaitMillis;
+		this.initialBackoffMillis = builder.initialBackoffMillis;
+		this.maxBackoffMillis = builder.maxBackoffMillis;
+		this.queueCapacity = builder.queueCapacity;
+		this.overflowPolicy = builder.overflowPolicy;
+		this.offerTimeoutMillis = builder.offerTimeoutMillis;
+		this.batchSize = builder.batchSize;
+		this.conflationWindowMillis = builder.conflationWindowMillis;
+		this.conflatedTopics = Collections.unmodifiableList(new ArrayList<String>(builder.conflatedTopics));
+		this.qosOverrides = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(builder.qosOverrides));
+		this.payloadFormat = builder.payloadFormat;
+		this.storeDirectory = builder.storeDirectory;
+		this.storeSegmentBytes = builder.storeSegmentBytes;
+		this.storeMaxBytes = builder.storeMaxBytes;
+		this.replayRatePerSecond = builder.replayRatePerSecond;
+	}
+
+	public String getBroker() {
+		return broker;
+	}
+
+	public String getClientIdPrefix() {
+		return clientIdPrefix;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public int getQos() {
+		return qos;
+	}
+
+	public long getConnectionWaitMillis() {
+		return connectionWaitMillis;
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public long getOfferTimeoutMillis() {
+		return offerTimeoutMillis;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getConflationWindowMillis() {
+		return conflationWindowMillis;
+	}
+
+	public List<String> getConflatedTopics() {
+		return conflatedTopics;
+	}
+
+	public Map<String, Integer> getQosOverrides() {
+		return qosOverrides;
+	}
+
+	public PayloadFormat getPayloadFormat() {
+		return payloadFormat;
+	}
+
+	/**
+	 * @return the store-and-forward directory, or null if messages are dropped while disconnected.
+	 */
+	public File getStoreDirectory() {
+		return storeDirectory;
+	}
+
+	public int getStoreSegmentBytes() {
+		return storeSegmentBytes;
+	}
+
+	public long getStoreMaxBytes() {
+		return storeMaxBytes;
+	}
+
+	public double getReplayRatePerSecond() {
+		return replayRatePerSecond;
+	}
+
+	/**
+	 * @return true if updates on this topic are collapsed to the latest value per window.
+	 */
+	public boolean isConflated(String topic) {
+		for (String filter : conflatedTopics) {
+			if (TopicFilter.matches(filter, topic)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the QoS of the first override whose filter matches, or the default QoS.
+	 */
+	public int getQos(String topic) {
+		for (Map.Entry<String, Integer> override : qosOverrides.entrySet()) {
+			if (TopicFilter.matches(override.getKey(), topic)) {
+				return override.getValue();
+			}
+		}
+		return qos;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+		private String broker = SimpleMqttClient.DEFAULT_BROKER;
+		private String clientIdPrefix = SimpleMqttClient.DEFAULT_CLIENT_ID;
+		private int shards = 4;
+		private int qos = 2;
+		private long connectionWaitMillis = 1000;
+		private long initialBackoffMillis = 500;
+		private long maxBackoffMillis = 30000;
+		private int queueCapacity = 65536;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		private long offerTimeoutMillis = 1000;
+		private int batchSize = 256;
+		private long conflationWindowMillis = 100;
+		private final List<String> conflatedTopics = new ArrayList<String>();
+		private final Map<String, Integer> qosOverrides = new LinkedHashMap<String, Integer>();
+		private PayloadFormat payloadFormat = PayloadFormat.TEXT;
+		private File storeDirectory = null;
+		private int storeSegmentBytes = 8 * 1024 * 1024;
+		private long storeMaxBytes = 256L * 1024 * 1024;
+		private double replayRatePerSecond = 500;
+
+		public Builder setBroker(String broker) {
+			this.broker = broker;
+			return this;
+		}
+
+		// Every shard's connection gets "<prefix>-<n>" so they don't kick each other off the broker
+		public Builder setClientIdPrefix(String clientIdPrefix) {
+			this.clientIdPrefix = clientIdPrefix;
+			return this;
+		}
+
+		// One connection, queue and publisher thread per shard, topics are routed by hash
+		public Builder setShards(int shards) {
+			if (shards < 1) {
+				throw new IllegalArgumentException("shards must be >= 1: " + shards);
+			}
+			this.shards = shards;
+			return this;
+		}
+
+		public Builder setQos(int qos) {
+			if (qos < 0 || qos > 2) {
+				throw new IllegalArgumentException("qos must be 0, 1 or 2: " + qos);
+			}
+			this.qos = qos;
+			return this;
+		}
+
+		// How long a batch waits for its shard to reconnect before it is dropped, unused with a store
+		public Builder setConnectionWaitMillis(long connectionWaitMillis) {
+			this.connectionWaitMillis = connectionWaitMillis;
+			return this;
+		}
+
+		public Builder setInitialBackoffMillis(long initialBackoffMillis) {
+			this.initialBackoffMillis = initialBackoffMillis;
+			return this;
+		}
+
+		public Builder setMaxBackoffMillis(long maxBackoffMillis) {
+			this.maxBackoffMillis = maxBackoffMillis;
+			return this;
+		}
+
+		// Split evenly between the shards
+		public Builder setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+
+		// Only used by OverflowPolicy.BLOCK, after that long the message is rejected
+		public Builder setOfferTimeoutMillis(long offerTimeoutMillis) {
+			this.offerTimeoutMillis = offerTimeoutMillis;
+			return this;
+		}
+
+		public Builder setBatchSize(int batchSize) {
+			if (batchSize < 1) {
+				throw new IllegalArgumentException("batchSize must be >= 1: " + batchSize);
+			}
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Builder setConflationWindowMillis(long conflationWindowMillis) {
+			if (conflationWindowMillis < 1) {
+				throw new IllegalArgumentException("conflationWindowMillis must be >= 1: " + conflationWindowMillis);
+			}
+			this.conflationWindowMillis = conflationWindowMillis;
+			return this;
+		}
+
+		// MQTT topic filter ('+' and '#' allowed) whose topics only publish their latest value per window
+		public Builder addConflatedTopic(String topicFilter) {
+			this.conflatedTopics.add(topicFilter);
+			return this;
+		}
+
+		// Overrides are checked in the order they were added, the first matching filter wins
+		public Builder addQosOverride(String topicFilter, int qos) {
+			if (qos < 0 || qos > 2) {
+				throw new IllegalArgumentException("qos must be 0, 1 or 2: " + qos);
+			}
+			this.qosOverrides.put(topicFilter, qos);
+			return this;
+		}
+
+		public Builder setPayloadFormat(PayloadFormat payloadFormat) {
+			this.payloadFormat = payloadFormat;
+			return this;
+		}
+
+		// Messages that can't be published are appended here, to one log per shard, and replayed on reconnect
+		public Builder setStoreDirectory(File storeDirectory) {
+			this.storeDirectory = storeDirectory;
+			return this;
+		}
+
+		public Builder setStoreSegmentBytes(int storeSegmentBytes) {
+			this.storeSegmentBytes = storeSegmentBytes;
+			return this;
+		}
+
+		// Split evenly between the shards' logs; once a log reaches its share its oldest segment is
+		// evicted, at least two segments per log are always kept
+		public Builder setStoreMaxBytes(long storeMaxBytes) {
+			this.storeMaxBytes = storeMaxBytes;
+			return this;
+		}
+
+		// Upper bound for replayed messages of all shards together; live messages never wait for it,
+		// only those of a topic with stored messages are stored behind them
+		public Builder setReplayRatePerSecond(double replayRatePerSecond) {
+			if (replayRatePerSecond <= 0) {
+				throw new IllegalArgumentException("replayRatePerSecond must be > 0: " + replayRatePerSecond);
+			}
+			this.replayRatePerSecond = replayRatePerSecond;
+			return this;
+		}
+
+		public MqttPublisherConfig build() {
+			return new MqttPublisherConfig(this);
+		}
+	}
+}
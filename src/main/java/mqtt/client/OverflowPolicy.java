@@ -0,0 +1,23 @@
+package mqtt.client;
+
+/**
+ * What the write path does when the outbound publish queue is full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Wait for space, up to the configured offer timeout, then reject.
+	 */
+	BLOCK,
+
+	/**
+	 * Evict the oldest queued message to make room, the write never waits.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Refuse the message immediately, the write is answered with Bad_ResourceUnavailable.
+	 */
+	REJECT
+
+}
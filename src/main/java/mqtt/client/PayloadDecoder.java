@@ -0,0 +1,25 @@
+package mqtt.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.eclipse.milo.opcua.stack.core.serialization.OpcUaBinaryStreamDecoder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+
+/**
+ * Turns a {@link PayloadFormat#BINARY} payload back into the exact DataValue that was written.
+ */
+public final class PayloadDecoder {
+
+	private PayloadDecoder() {
+	}
+
+	public static DataValue decode(byte[] payload) {
+		ByteBuf buffer = Unpooled.wrappedBuffer(payload);
+		try {
+			return new OpcUaBinaryStreamDecoder(buffer).readDataValue(null);
+		} finally {
+			buffer.release();
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package mqtt.client;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.eclipse.milo.opcua.stack.core.serialization.OpcUaBinaryStreamEncoder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExpandedNodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.XmlElement;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.ULong;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+
+/**
+ * Renders DataValues into MQTT payloads in the configured {@link PayloadFormat}.
+ * <p>
+ * Not thread-safe: every publisher thread owns one encoder, which keeps a pooled
+ * buffer (and builder for JSON) that is cleared and reused for every message. The only
+ * per-message allocation left is the exact-size byte[] handed to the MQTT client.
+ */
+public class PayloadEncoder {
+
+	private static final Map<Class<?>, String> TYPE_NAMES = new HashMap<Class<?>, String>();
+
+	static {
+		TYPE_NAMES.put(Boolean.class, "Boolean");
+		TYPE_NAMES.put(Byte.class, "SByte");
+		TYPE_NAMES.put(UByte.class, "Byte");
+		TYPE_NAMES.put(Short.class, "Int16");
+		TYPE_NAMES.put(UShort.class, "UInt16");
+		TYPE_NAMES.put(Integer.class, "Int32");
+		TYPE_NAMES.put(UInteger.class, "UInt32");
+		TYPE_NAMES.put(Long.class, "Int64");
+		TYPE_NAMES.put(ULong.class, "UInt64");
+		TYPE_NAMES.put(Float.class, "Float");
+		TYPE_NAMES.put(Double.class, "Double");
+		TYPE_NAMES.put(String.class, "String");
+		TYPE_NAMES.put(DateTime.class, "DateTime");
+		TYPE_NAMES.put(UUID.class, "Guid");
+		TYPE_NAMES.put(ByteString.class, "ByteString");
+		TYPE_NAMES.put(XmlElement.class, "XmlElement");
+		TYPE_NAMES.put(NodeId.class, "NodeId");
+		TYPE_NAMES.put(ExpandedNodeId.class, "ExpandedNodeId");
+		TYPE_NAMES.put(StatusCode.class, "StatusCode");
+		TYPE_NAMES.put(QualifiedName.class, "QualifiedName");
+		TYPE_NAMES.put(LocalizedText.class, "LocalizedText");
+		TYPE_NAMES.put(ExtensionObject.class, "ExtensionObject");
+	}
+
+	private final PayloadFormat format;
+
+	private final ByteBuf buffer;
+	private final OpcUaBinaryStreamEncoder binaryEncoder;
+
+	private final StringBuilder json = new StringBuilder(256);
+
+	public PayloadEncoder(PayloadFormat format) {
+		this.format = format;
+		this.buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(256);
+		this.binaryEncoder = new OpcUaBinaryStreamEncoder(buffer);
+	}
+
+	public PayloadFormat getFormat() {
+		return format;
+	}
+
+	public byte[] encode(DataValue value) {
+		switch (format) {
+			case BINARY:
+				return encodeBinary(value);
+			case JSON:
+				return encodeJson(value);
+			case TEXT:
+			default:
+				return String.valueOf(value.getValue().getValue()).getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Returns the pooled buffer to the allocator, the encoder can't be used afterwards.
+	 */
+	public void release() {
+		buffer.release();
+	}
+
+	private byte[] encodeBinary(DataValue value) {
+		buffer.clear();
+		binaryEncoder.writeDataValue(null, value);
+
+		byte[] payload = new byte[buffer.readableBytes()];
+		buffer.getBytes(buffer.readerIndex(), payload);
+		return payload;
+	}
+
+	private byte[] encodeJson(DataValue value) {
+		json.setLength(0);
+
+		Object v = value.getValue().getValue();
+
+		json.append("{\"type\":");
+		appendString(typeName(v));
+		json.append(",\"value\":");
+		appendValue(v);
+		json.append(",\"status\":");
+		long status = value.getStatusCode() != null ? value.getStatusCode().getValue() : 0L;
+		json.append(status);
+		if (value.getSourceTime() != null) {
+			json.append(",\"sourceTimestamp\":");
+			appendString(iso(value.getSourceTime()));
+		}
+		if (value.getServerTime() != null) {
+			json.append(",\"serverTimestamp\":");
+			appendString(iso(value.getServerTime()));
+		}
+		json.append('}');
+
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String typeName(Object value) {
+		if (value == null) {
+			return "Null";
+		}
+		Class<?> type = value.getClass().isArray() ? value.getClass().getComponentType() : value.getClass();
+		String name = TYPE_NAMES.get(type);
+		if (name == null) {
+			name = type.getSimpleName();
+		}
+		return value.getClass().isArray() ? name + "[]" : name;
+	}
+
+	private void appendValue(Object value) {
+		if (value == null) {
+			json.append("null");
+		} else if (value.getClass().isArray()) {
+			json.append('[');
+			int length = Array.getLength(value);
+			for (int i = 0; i < length; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				appendValue(Array.get(value, i));
+			}
+			json.append(']');
+		} else if (value instanceof Boolean) {
+			json.append(((Boolean) value).booleanValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				appendString(String.valueOf(d));
+			} else {
+				json.append(value);
+			}
+		} else if (value instanceof Number) {
+			// Covers the unsigned types as well, their toString() is the plain number
+			json.append(value);
+		} else if (value instanceof DateTime) {
+			appendString(iso((DateTime) value));
+		} else if (value instanceof ByteString) {
+			appendString(base64(((ByteString) value).bytesOrEmpty()));
+		} else if (value instanceof StatusCode) {
+			json.append(((StatusCode) value).getValue());
+		} else if (value instanceof NodeId) {
+			appendString(((NodeId) value).toParseableString());
+		} else if (value instanceof LocalizedText) {
+			appendString(((LocalizedText) value).getText());
+		} else if (value instanceof QualifiedName) {
+			appendString(((QualifiedName) value).getName());
+		} else if (value instanceof ExtensionObject) {
+			appendExtensionObject((ExtensionObject) value);
+		} else {
+			appendString(value.toString());
+		}
+	}
+
+	private void appendExtensionObject(ExtensionObject xo) {
+		json.append("{\"encodingId\":");
+		appendString(xo.getEncodingTypeId() != null ? xo.getEncodingTypeId().toParseableString() : null);
+
+		Object body = xo.getEncoded();
+		if (body instanceof ByteString) {
+			json.append(",\"body\":");
+			appendString(base64(((ByteString) body).bytesOrEmpty()));
+		} else if (body instanceof XmlElement) {
+			json.append(",\"xml\":");
+			appendString(((XmlElement) body).getFragment());
+		}
+		json.append('}');
+	}
+
+	private void appendString(String s) {
+		if (s == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					json.append("\\\"");
+					break;
+				case '\\':
+					json.append("\\\\");
+					break;
+				case '\n':
+					json.append("\\n");
+					break;
+				case '\r':
+					json.append("\\r");
+					break;
+				case '\t':
+					json.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int) c));
+					} else {
+						json.append(c);
+					}
+			}
+		}
+		json.append('"');
+	}
+
+	private static String iso(DateTime dateTime) {
+		return dateTime.getJavaDate().toInstant().toString();
+	}
+
+	private static String base64(byte[] bytes) {
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+}
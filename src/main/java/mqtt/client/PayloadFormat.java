@@ -0,0 +1,26 @@
+package mqtt.client;
+
+/**
+ * How a written value is rendered into an MQTT payload.
+ */
+public enum PayloadFormat {
+
+	/**
+	 * The value's toString(), no type, status or timestamps. Kept for existing consumers.
+	 */
+	TEXT,
+
+	/**
+	 * The OPC UA binary encoding of the complete DataValue (value with its type, status
+	 * code, source and server timestamps). Decode with {@link PayloadDecoder#decode(byte[])}
+	 * or any OPC UA binary decoder.
+	 */
+	BINARY,
+
+	/**
+	 * A JSON object with type, value, status and timestamps, for consumers without an
+	 * OPC UA stack. Structures are carried as their base64 binary body plus encoding id.
+	 */
+	JSON
+
+}
@@ -0,0 +1,418 @@
+package mqtt.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of encoded MQTT messages, split into fixed-size memory-mapped segment
+ * files, used to hold outbound messages while the broker can't be reached.
+ * <p>
+ * Segment layout: {@code int magic, int readOffset, long reserved} followed by records of
+ * {@code int length, byte qos, short topicLength, topic, payload}. A record's length is
+ * written after its body, so a zero length marks the end of the written part even after a
+ * crash. The read offset is kept in the segment header, so after a restart replay resumes
+ * with the first message that wasn't published yet.
+ * <p>
+ * Disk usage is bounded by {@code maxBytes}: when a new segment is needed and the limit
+ * is reached, the oldest segment is deleted together with any messages still in it.
+ * <p>
+ * The log knows which topics it still holds messages of, see {@link #hasPending(String)},
+ * so a newer message of such a topic can be stored behind them instead of overtaking them.
+ * <p>
+ * Thread-safe, all access is synchronized. Each log is used by one publisher thread, so
+ * contention isn't a concern.
+ */
+public class SegmentedMessageLog {
+
+	private static final int MAGIC = 0x4d514c47;
+	private static final int HEADER_SIZE = 16;
+	private static final int READ_OFFSET_POSITION = 4;
+	// length + qos + topic length
+	private static final int RECORD_OVERHEAD = 4 + 1 + 2;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+	// Per topic, the appended count after its last message, pending while above the removed count
+	private final Map<String, Long> lastAppended = new HashMap<String, Long>();
+
+	private long nextSegmentId = 0;
+	private long appended = 0;
+	private long pending = 0;
+	private long evicted = 0;
+
+	private SegmentedMessageLog(File directory, int segmentSize, long maxBytes) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+	}
+
+	/**
+	 * Opens the log in {@code directory}, recovering the messages of a previous run that were
+	 * never published.
+	 */
+	public static SegmentedMessageLog open(File directory, int segmentSize, long maxBytes) throws IOException {
+		if (segmentSize <= HEADER_SIZE + RECORD_OVERHEAD) {
+			throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("unable to create store directory: " + directory);
+		}
+
+		SegmentedMessageLog log = new SegmentedMessageLog(directory, segmentSize, maxBytes);
+		log.recover();
+		return log;
+	}
+
+	/**
+	 * @return false if the message doesn't fit into a single segment and was not stored.
+	 */
+	public synchronized boolean append(String topic, byte[] payload, int qos) throws IOException {
+		byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + 2 + topicBytes.length + payload.length;
+
+		if (topicBytes.length > Short.MAX_VALUE || HEADER_SIZE + 4 + length > segmentSize) {
+			return false;
+		}
+
+		Segment segment = segments.peekLast();
+		if (segment == null || segment.writePosition + 4 + length > segmentSize) {
+			segment = roll();
+		}
+
+		MappedByteBuffer buffer = segment.buffer;
+		int position = segment.writePosition;
+
+		buffer.put(position + 4, (byte) qos);
+		buffer.putShort(position + 5, (short) topicBytes.length);
+		ByteBuffer body = buffer.duplicate();
+		body.position(position + RECORD_OVERHEAD);
+		body.put(topicBytes);
+		body.put(payload);
+		// Last, so a half written record is never read back
+		buffer.putInt(position, length);
+
+		segment.writePosition = position + 4 + length;
+		segment.records++;
+		appended++;
+		pending++;
+		lastAppended.put(topic, appended);
+		return true;
+	}
+
+	/**
+	 * @return the oldest message not yet {@link #commit(Record) committed}, or null if there is none.
+	 */
+	public synchronized Record peek() {
+		Segment segment = head();
+		if (segment == null) {
+			return null;
+		}
+
+		MappedByteBuffer buffer = segment.buffer;
+		int position = segment.readPosition;
+		int length = buffer.getInt(position);
+
+		int qos = buffer.get(position + 4);
+		byte[] topic = new byte[buffer.getShort(position + 5)];
+		byte[] payload = new byte[length - 1 - 2 - topic.length];
+		ByteBuffer body = buffer.duplicate();
+		body.position(position + RECORD_OVERHEAD);
+		body.get(topic);
+		body.get(payload);
+
+		return new Record(new String(topic, StandardCharsets.UTF_8), payload, qos, segment, position);
+	}
+
+	/**
+	 * Marks a message returned by {@link #peek()} as published. Does nothing if its segment
+	 * has been evicted in the meantime.
+	 */
+	public synchronized void commit(Record record) {
+		Segment segment = head();
+		if (segment != record.segment || segment.readPosition != record.position) {
+			return;
+		}
+
+		int length = segment.buffer.getInt(segment.readPosition);
+		segment.readPosition += 4 + length;
+		segment.buffer.putInt(READ_OFFSET_POSITION, segment.readPosition);
+		segment.records--;
+		pending--;
+		if (pending == 0) {
+			lastAppended.clear();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return pending == 0;
+	}
+
+	/**
+	 * @return whether a message of the topic is still in the log, neither committed nor evicted.
+	 */
+	public synchronized boolean hasPending(String topic) {
+		Long last = lastAppended.get(topic);
+		return last != null && last > appended - pending;
+	}
+
+	/**
+	 * @return the topics with a message still in the log.
+	 */
+	public synchronized Set<String> getPendingTopics() {
+		Set<String> topics = new HashSet<String>();
+		for (Map.Entry<String, Long> entry : lastAppended.entrySet()) {
+			if (entry.getValue() > appended - pending) {
+				topics.add(entry.getKey());
+			}
+		}
+		return topics;
+	}
+
+	public synchronized long getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * @return the number of messages appended since the log was opened, counting those
+	 * recovered from a previous run.
+	 */
+	public synchronized long getAppendedCount() {
+		return appended;
+	}
+
+	/**
+	 * @return the number of messages committed or evicted since the log was opened. Messages
+	 * leave the log in the order they were appended, so the n-th appended is gone once this
+	 * reaches n.
+	 */
+	public synchronized long getRemovedCount() {
+		return appended - pending;
+	}
+
+	/**
+	 * @return the number of messages lost because their segment was evicted to stay under the size limit.
+	 */
+	public synchronized long getEvictedCount() {
+		return evicted;
+	}
+
+	public synchronized long getSizeBytes() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	public synchronized void close() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			segment.close();
+		}
+		segments.clear();
+	}
+
+	/**
+	 * Closes the log and deletes its segment files, with the messages still in them.
+	 */
+	public synchronized void delete() {
+		for (Segment segment : segments) {
+			segment.delete();
+		}
+		segments.clear();
+		evicted += pending;
+		pending = 0;
+		lastAppended.clear();
+	}
+
+	// First segment with an unread record, fully read segments other than the active one are deleted
+	private Segment head() {
+		Iterator<Segment> iterator = segments.iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (segment.readPosition < segment.writePosition) {
+				return segment;
+			}
+			if (segment == segments.peekLast()) {
+				return null;
+			}
+			iterator.remove();
+			segment.delete();
+		}
+		return null;
+	}
+
+	private Segment roll() throws IOException {
+		// Drop segments that have been replayed completely before counting against the limit
+		head();
+
+		while (segments.size() >= maxSegments) {
+			Segment oldest = segments.pollFirst();
+			evicted += oldest.records;
+			pending -= oldest.records;
+			if (pending == 0) {
+				lastAppended.clear();
+			}
+			oldest.delete();
+			logger.warn("Store-and-forward log full, evicted segment {} with {} message(s)",
+					oldest.file.getName(), oldest.records);
+		}
+
+		File file = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+		Segment segment = new Segment(file, segmentSize);
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.putInt(READ_OFFSET_POSITION, HEADER_SIZE);
+		segment.readPosition = HEADER_SIZE;
+		segment.writePosition = HEADER_SIZE;
+
+		segments.addLast(segment);
+		return segment;
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles((dir, name) ->
+				name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return;
+		}
+		// Zero padded ids, so name order is creation order
+		Arrays.sort(files);
+
+		for (File file : files) {
+			String name = file.getName();
+			long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+			if (file.length() != segmentSize) {
+				logger.warn("Ignoring store-and-forward segment {} with unexpected size {}", name, file.length());
+				continue;
+			}
+
+			Segment segment = new Segment(file, segmentSize);
+			if (segment.buffer.getInt(0) != MAGIC) {
+				logger.warn("Deleting corrupt store-and-forward segment {}", name);
+				segment.delete();
+				continue;
+			}
+
+			segment.readPosition = segment.buffer.getInt(READ_OFFSET_POSITION);
+			if (segment.readPosition < HEADER_SIZE || segment.readPosition > segmentSize) {
+				logger.warn("Deleting corrupt store-and-forward segment {}", name);
+				segment.delete();
+				continue;
+			}
+			segment.writePosition = segment.readPosition;
+			while (segment.writePosition + 4 <= segmentSize) {
+				int length = segment.buffer.getInt(segment.writePosition);
+				if (length <= 0 || segment.writePosition + 4 + length > segmentSize) {
+					break;
+				}
+				lastAppended.put(topic(segment, segment.writePosition), pending + segment.records + 1);
+				segment.writePosition += 4 + length;
+				segment.records++;
+			}
+
+			if (segment.records == 0) {
+				segment.delete();
+			} else {
+				pending += segment.records;
+				segments.addLast(segment);
+			}
+		}
+
+		appended = pending;
+
+		if (pending > 0) {
+			logger.info("Recovered {} unpublished message(s) from {}", pending, directory);
+		}
+	}
+
+	private static String topic(Segment segment, int position) {
+		byte[] topic = new byte[segment.buffer.getShort(position + 5)];
+		ByteBuffer body = segment.buffer.duplicate();
+		body.position(position + RECORD_OVERHEAD);
+		body.get(topic);
+		return new String(topic, StandardCharsets.UTF_8);
+	}
+
+	public static final class Record {
+		private final String topic;
+		private final byte[] payload;
+		private final int qos;
+
+		// Where the record was read from, so commit() can tell whether it is still the head
+		private final Segment segment;
+		private final int position;
+
+		Record(String topic, byte[] payload, int qos, Segment segment, int position) {
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.segment = segment;
+			this.position = position;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public int getQos() {
+			return qos;
+		}
+	}
+
+	private static final class Segment {
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		int readPosition;
+		int writePosition;
+		long records;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LoggerFactory.getLogger(SegmentedMessageLog.class).warn("Unable to close {}", file, e);
+			}
+		}
+
+		// The mapping itself is released when the buffer is collected, the file is gone right away
+		void delete() {
+			close();
+			if (!file.delete()) {
+				LoggerFactory.getLogger(SegmentedMessageLog.class).warn("Unable to delete {}", file);
+			}
+		}
+	}
+}
@@ -1,18 +1,23 @@
 package mqtt.client;
 
+import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 public class SimpleMqttClient {
+	public static final String DEFAULT_BROKER = "tcp://0.0.0.0:1883";
+	public static final String DEFAULT_CLIENT_ID = "opc-ua-linker";
+
 	int qos = 2;
-	String broker = "tcp://0.0.0.0:1883";
-	String clientId = "opc-ua-linker";
+	String broker = DEFAULT_BROKER;
+	String clientId = DEFAULT_CLIENT_ID;
 	MqttClient client;
 	
 	public SimpleMqttClient() {
 		try {
-			client = new MqttClient(broker, clientId);
+			client = new MqttClient(broker, clientId, new MemoryPersistence());
 			client.connect();
 		} catch (MqttException me) {
 			me.printStackTrace();
@@ -21,19 +26,59 @@ public class SimpleMqttClient {
 		
 	}
 
+	// Creates the client without connecting, connect() has to be called by the owner
+	public SimpleMqttClient(String broker, String clientId, int qos) throws MqttException {
+		this.broker = broker;
+		this.clientId = clientId;
+		this.qos = qos;
+		// In-flight state doesn't need to survive a restart, unpublished messages go to the store-and-forward log
+		client = new MqttClient(broker, clientId, new MemoryPersistence());
+	}
+
+	public void connect() throws MqttException {
+		client.connect();
+	}
+
+	public boolean isConnected() {
+		return client != null && client.isConnected();
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	// Must be set before connect() so no message arrives without a handler
+	public void setCallback(MqttCallback callback) {
+		client.setCallback(callback);
+	}
+
+	public void subscribe(String topicFilter) throws MqttException {
+		client.subscribe(topicFilter, qos);
+	}
+
 	public void publish(String topic, String content) {
 		try {
-			MqttMessage message = new MqttMessage(content.getBytes());
-			message.setQos(qos);
-			client.publish(topic, message);
+			publish(topic, content.getBytes());
 		} catch (MqttException me) {
 			me.printStackTrace();
 		}
 	}
 	
+	public void publish(String topic, byte[] payload) throws MqttException {
+		publish(topic, payload, qos);
+	}
+	
+	public void publish(String topic, byte[] payload, int qos) throws MqttException {
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		client.publish(topic, message);
+	}
+	
 	public void close() {
 		try {
-			client.disconnect();
+			if (client.isConnected()) {
+				client.disconnect();
+			}
 			client.close();
 		} catch (MqttException e) {
 			e.printStackTrace();
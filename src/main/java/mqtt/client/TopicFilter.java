@@ -0,0 +1,42 @@
+package mqtt.client;
+
+/**
+ * MQTT topic filter matching: '+' matches exactly one level, a trailing '#' matches
+ * the parent level and everything below it.
+ */
+public final class TopicFilter {
+
+	private TopicFilter() {
+	}
+
+	public static boolean matches(String filter, String topic) {
+		int f = 0;
+		int t = 0;
+
+		while (f < filter.length()) {
+			char c = filter.charAt(f);
+
+			if (c == '#') {
+				return true;
+			} else if (c == '+') {
+				// Skip one level of the topic
+				while (t < topic.length() && topic.charAt(t) != '/') {
+					t++;
+				}
+				f++;
+			} else {
+				if (t >= topic.length()) {
+					// "a/#" also matches "a"
+					return filter.regionMatches(f, "/#", 0, 2) && f + 2 == filter.length();
+				}
+				if (c != topic.charAt(t)) {
+					return false;
+				}
+				f++;
+				t++;
+			}
+		}
+
+		return t == topic.length();
+	}
+}
@@ -0,0 +1,136 @@
+package opcuaTest.benchmark;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opcuaTest.namespaces.NodeProvisioner;
+import opcuaTest.namespaces.ReferenceIndex;
+import opcuaTest.namespaces.ScalarValueStore;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.ValueRank;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.VariableAttributes;
+
+/**
+ * Time to provision 100,000 Int32 variables, 1000 to a folder, through the
+ * {@link NodeProvisioner} the way TestNamespace adds them, their values kept in a
+ * {@link ScalarValueStore}, against the number of items per AddNodes request: each folder
+ * is sent ahead of its variables, so a request may add a folder and the variables in it.
+ * The "1" row adds node by node, as the namespaces did before. Each run starts from an
+ * empty node map, is timed on the second of two passes and reports the heap the new
+ * address space takes per variable.
+ * <p>
+ * Usage: AddNodesBenchmark [variables] [variablesPerFolder]
+ */
+public class AddNodesBenchmark {
+
+	private static final int[] BATCH_SIZES = {1, 100, 1000, 10_000, 100_000};
+
+	private static final NodeId ROOT = new NodeId(2, "bench");
+
+	public static void main(String[] args) throws Exception {
+		int variables = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int variablesPerFolder = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		List<AddNodesItem> items = items(variables, variablesPerFolder);
+
+		System.out.println(String.format("variables=%d variablesPerFolder=%d items=%d",
+				variables, variablesPerFolder, items.size()));
+
+		for (int batchSize : BATCH_SIZES) {
+			double seconds = 0;
+			long bytes = 0;
+
+			for (int pass = 0; pass < 2; pass++) {
+				NodeMap nodeMap = new NodeMap();
+				ScalarValueStore store = new ScalarValueStore();
+				nodeMap.addNode(new UaFolderNode(nodeMap, ROOT, new QualifiedName(2, "bench"),
+						LocalizedText.english("bench")));
+
+				NodeProvisioner provisioner = new NodeProvisioner(nodeMap, ushort(2), new ReferenceIndex(),
+						(node, value) -> {
+					store.register(node.getNodeId(), node.getDataType(), value);
+					node.setAttributeDelegate(store.getDelegate());
+				});
+
+				long heap = usedHeap();
+				long t0 = System.nanoTime();
+
+				int added = 0;
+				for (int from = 0; from < items.size(); from += batchSize) {
+					for (AddNodesResult result : provisioner.addNodes(
+							items.subList(from, Math.min(items.size(), from + batchSize)))) {
+						if (result.getStatusCode().isGood()) {
+							added++;
+						}
+					}
+				}
+
+				seconds = (System.nanoTime() - t0) / 1e9;
+				bytes = usedHeap() - heap;
+
+				if (added != items.size() || nodeMap.size() != items.size() + 1 || store.size() != variables) {
+					throw new IllegalStateException("added " + added + " of " + items.size() + " nodes");
+				}
+			}
+
+			System.out.println(String.format("batch %6d %,12.0f nodes/s %10.1f ms %8.0f bytes/variable",
+					batchSize, items.size() / seconds, seconds * 1e3, (double) bytes / variables));
+		}
+	}
+
+	private static List<AddNodesItem> items(int variables, int variablesPerFolder) {
+		UByte accessLevel = ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE));
+		List<AddNodesItem> items = new ArrayList<AddNodesItem>(variables + variables / variablesPerFolder + 1);
+
+		NodeId folderId = null;
+		for (int i = 0; i < variables; i++) {
+			if (i % variablesPerFolder == 0) {
+				String folder = "Folder_" + (i / variablesPerFolder);
+				folderId = new NodeId(2, ROOT.getIdentifier() + "/" + folder);
+				items.add(new AddNodesItem(ROOT.expanded(), Identifiers.Organizes, folderId.expanded(),
+						new QualifiedName(2, folder), NodeClass.Object, null, Identifiers.FolderType.expanded()));
+			}
+
+			String name = "TestVariable_" + i;
+			ExtensionObject attributes = ExtensionObject.encode(new VariableAttributes(uint(0),
+					LocalizedText.english(name), null, uint(0), uint(0), new Variant(i), Identifiers.Int32,
+					ValueRank.Scalar.getValue(), null, accessLevel, accessLevel, 0.0, false));
+
+			items.add(new AddNodesItem(folderId.expanded(), Identifiers.Organizes,
+					new NodeId(2, folderId.getIdentifier() + "/" + name).expanded(), new QualifiedName(2, name),
+					NodeClass.Variable, attributes, Identifiers.BaseDataVariableType.expanded()));
+		}
+		return items;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static class NodeMap extends ConcurrentHashMap<NodeId, ServerNode> implements ServerNodeMap {
+		private static final long serialVersionUID = 1L;
+	}
+}
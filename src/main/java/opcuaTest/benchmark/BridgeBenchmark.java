@@ -0,0 +1,204 @@
+package opcuaTest.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import mqtt.client.LatencyHistogram;
+import mqtt.client.MqttInboundConfig;
+import mqtt.client.MqttPublisher;
+import mqtt.client.MqttPublisherConfig;
+import opcuaTest.client.ClientRunner;
+import opcuaTest.namespaces.TestNamespace;
+import opcuaTest.server.ServerTest;
+
+import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
+import org.eclipse.milo.opcua.sdk.client.api.identity.AnonymousProvider;
+import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+
+/**
+ * End-to-end benchmark of the OPC UA -> MQTT bridge on a single machine: starts
+ * {@link ServerTest} against a {@link LocalMqttBroker} on the loopback interface and
+ * drives Write requests through an OpcUaClient. Every written value is a sequence number,
+ * so the broker can match each PUBLISH to the Write that caused it.
+ * <p>
+ * Reports write throughput, delivered messages per second and write-to-delivery latency
+ * (Write request sent until the PUBLISH arrives at the broker).
+ * <p>
+ * Usage: BridgeBenchmark [writesPerSecond (0 = unthrottled)] [writesPerRequest] [seconds] [concurrentRequests] [shards]
+ */
+public class BridgeBenchmark {
+
+	private static final int NODE_COUNT = 5;
+
+	// Send times by sequence number, a power of two so the index is a mask
+	private static final int IN_FLIGHT = 1 << 20;
+
+	public static void main(String[] args) throws Exception {
+		double writesPerSecond = args.length > 0 ? Double.parseDouble(args[0]) : 10000;
+		int writesPerRequest = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int concurrentRequests = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		int shards = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+		System.out.println(String.format("writes/s=%s writes/request=%d seconds=%d concurrent=%d shards=%d",
+				writesPerSecond > 0 ? String.valueOf(writesPerSecond) : "unthrottled",
+				writesPerRequest, seconds, concurrentRequests, shards));
+
+		AtomicLongArray sentNanos = new AtomicLongArray(IN_FLIGHT);
+		LatencyHistogram deliveryLatency = new LatencyHistogram();
+		LongAdder delivered = new LongAdder();
+
+		try (LocalMqttBroker broker = new LocalMqttBroker(0)) {
+			broker.setPublishListener((topic, payload) -> {
+				long now = System.nanoTime();
+				try {
+					int sequence = Integer.parseInt(new String(payload, StandardCharsets.UTF_8));
+					deliveryLatency.record(now - sentNanos.get(sequence & (IN_FLIGHT - 1)));
+					delivered.increment();
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			});
+
+			// No conflation and no store, every write has to show up at the broker
+			ServerTest server = new ServerTest(
+					MqttPublisherConfig.builder()
+							.setBroker(broker.getUri())
+							.setClientIdPrefix("bench-bridge")
+							.setShards(shards)
+							.build(),
+					MqttInboundConfig.builder()
+							.setBroker(broker.getUri())
+							.setClientId("bench-bridge-in")
+							.build());
+			server.startup().get();
+
+			MqttPublisher publisher = server.getMqttPublisher();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (publisher.getConnectedShardCount() < publisher.getShardCount() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+
+			UShort namespaceIndex = server.getServer().getNamespaceManager().getNamespaceTable()
+					.getIndex(TestNamespace.NAMESPACE_URI);
+
+			List<NodeId> nodeIds = new ArrayList<NodeId>();
+			for (int i = 0; i < writesPerRequest; i++) {
+				nodeIds.add(new NodeId(namespaceIndex, "TestFolder/TestSubfolder1/TestVariable_1_" + (i % NODE_COUNT)));
+			}
+
+			OpcUaClient client = new ClientRunner(
+					SecurityPolicy.None, "opc.tcp://localhost:12686/example", new AnonymousProvider(), 0)
+					.createOpcUaClient();
+			client.connect().get();
+
+			// Warm up the session, codecs and JIT before measuring
+			int warmupRequests = 2000 / writesPerRequest + 1;
+			run(client, nodeIds, 0, warmupRequests, concurrentRequests, sentNanos, new LongAdder());
+			waitForDelivery(delivered, (long) warmupRequests * writesPerRequest);
+			deliveryLatency.reset();
+			delivered.reset();
+
+			RateLimiter rateLimiter = writesPerSecond > 0 ? RateLimiter.create(writesPerSecond) : null;
+			LongAdder badWrites = new LongAdder();
+
+			long start = System.nanoTime();
+			long end = start + TimeUnit.SECONDS.toNanos(seconds);
+			Semaphore inFlight = new Semaphore(concurrentRequests);
+			int sequence = warmupRequests * writesPerRequest;
+			long requests = 0;
+
+			while (System.nanoTime() < end) {
+				if (rateLimiter != null) {
+					rateLimiter.acquire(writesPerRequest);
+				}
+				inFlight.acquire();
+				write(client, nodeIds, sequence, sentNanos, badWrites).whenComplete((r, ex) -> inFlight.release());
+				sequence += writesPerRequest;
+				requests++;
+			}
+			inFlight.acquire(concurrentRequests);
+			long written = System.nanoTime() - start;
+
+			long total = requests * writesPerRequest;
+			waitForDelivery(delivered, total);
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println(String.format(
+					"written %d in %d request(s) at %.0f writes/s, %d bad | delivered %d at %.0f msg/s",
+					total, requests, total / (written / 1e9), badWrites.sum(),
+					delivered.sum(), delivered.sum() / (elapsed / 1e9)));
+			System.out.println(String.format(
+					"write-to-delivery p50=%.1f us p99=%.1f us p999=%.1f us max=%.1f us",
+					deliveryLatency.getValueAtPercentile(50.0, TimeUnit.MICROSECONDS),
+					deliveryLatency.getValueAtPercentile(99.0, TimeUnit.MICROSECONDS),
+					deliveryLatency.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS),
+					deliveryLatency.getMaxNanos() / 1000.0));
+			System.out.println(String.format(
+					"bridge dropped=%d rejected=%d queue=%d",
+					publisher.getDroppedCount(), publisher.getRejectedCount(), publisher.getQueueSize()));
+
+			ClientRunner.closeOpcUaClient(client);
+			server.shutdown().get();
+		}
+	}
+
+	private static void run(OpcUaClient client, List<NodeId> nodeIds, int sequence, int requests,
+			int concurrentRequests, AtomicLongArray sentNanos, LongAdder badWrites) throws Exception {
+
+		Semaphore inFlight = new Semaphore(concurrentRequests);
+		for (int r = 0; r < requests; r++) {
+			inFlight.acquire();
+			write(client, nodeIds, sequence, sentNanos, badWrites).whenComplete((s, ex) -> inFlight.release());
+			sequence += nodeIds.size();
+		}
+		inFlight.acquire(concurrentRequests);
+	}
+
+	private static CompletableFuture<List<StatusCode>> write(OpcUaClient client,
+			List<NodeId> nodeIds, int sequence, AtomicLongArray sentNanos, LongAdder badWrites) {
+
+		List<DataValue> values = new ArrayList<DataValue>(nodeIds.size());
+		for (int i = 0; i < nodeIds.size(); i++) {
+			values.add(new DataValue(new Variant(sequence + i)));
+		}
+
+		long now = System.nanoTime();
+		for (int i = 0; i < nodeIds.size(); i++) {
+			sentNanos.set((sequence + i) & (IN_FLIGHT - 1), now);
+		}
+
+		return client.writeValues(nodeIds, values).whenComplete((results, ex) -> {
+			if (ex != null) {
+				badWrites.add(nodeIds.size());
+			} else {
+				for (StatusCode status : results) {
+					if (!status.isGood()) {
+						badWrites.increment();
+					}
+				}
+			}
+		});
+	}
+
+	private static void waitForDelivery(LongAdder delivered, long expected) throws InterruptedException {
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (delivered.sum() < expected && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package opcuaTest.benchmark;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opcuaTest.methods.SqrtMethod;
+import opcuaTest.namespaces.NamespaceLoader;
+import opcuaTest.namespaces.ReferenceIndex;
+import opcuaTest.namespaces.ScalarValueStore;
+
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaReferenceTypeNode;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.BrowseDirection;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+
+/**
+ * Browses of a tree of about 100,000 nodes loaded by the {@link NamespaceLoader}: areas
+ * of lines of cells, 10 of each, every cell with 98 variables and a method. Each kind of
+ * browse a client makes goes over every node it applies to, the server filtering the
+ * references a namespace returns: first a copy of all the node's references, then the
+ * array a {@link ReferenceIndex} keeps:
+ * <ul>
+ * <li>walk: every node, forward hierarchical references and subtypes, like
+ * ClientTest.browseNode walking the tree</li>
+ * <li>organizes: the folders, forward Organizes only</li>
+ * <li>component: the cells, forward HasComponent, i.e. the method</li>
+ * <li>objects: the folders, hierarchical references to Objects only, the subfolders</li>
+ * <li>parent: the variables, inverse hierarchical references</li>
+ * </ul>
+ * Only the references are found, the ReferenceDescriptions of their targets cost the
+ * same either way. The heap the index takes once every node is indexed is reported.
+ * <p>
+ * Usage: BrowseBenchmark [cellsPerLine] [passes]
+ */
+public class BrowseBenchmark {
+
+	private static final int AREAS = 10;
+	private static final int LINES_PER_AREA = 10;
+	private static final int VARIABLES_PER_CELL = 98;
+
+	private static final int OBJECT = NodeClass.Object.getValue();
+
+	public static void main(String[] args) throws Exception {
+		int cellsPerLine = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		File config = File.createTempFile("browse", ".xml");
+		config.deleteOnExit();
+		writeConfig(config, cellsPerLine);
+
+		NodeMap nodeMap = newNodeMap();
+		NamespaceLoader loader = new NamespaceLoader(nodeMap, ushort(2), new ScalarValueStore(), null,
+				Collections.singletonMap("sqrt", NamespaceLoader.annotated(SqrtMethod::new)),
+				NamespaceLoader.DEFAULT_CHUNK_SIZE);
+		int nodes = loader.load(config, Runtime.getRuntime().availableProcessors());
+
+		List<ServerNode> all = new ArrayList<ServerNode>(nodes);
+		List<ServerNode> folders = new ArrayList<ServerNode>();
+		List<ServerNode> cells = new ArrayList<ServerNode>();
+		List<ServerNode> variables = new ArrayList<ServerNode>();
+		for (ServerNode node : nodeMap.values()) {
+			if (!ushort(2).equals(node.getNodeId().getNamespaceIndex())) {
+				continue;
+			}
+			all.add(node);
+			if (node.getNodeClass() == NodeClass.Object) {
+				folders.add(node);
+				if (String.valueOf(node.getNodeId().getIdentifier()).contains("/Cell_")) {
+					cells.add(node);
+				}
+			} else if (node.getNodeClass() == NodeClass.Variable) {
+				variables.add(node);
+			}
+		}
+
+		System.out.println(String.format("nodes=%d folders=%d cells=%d variables=%d passes=%d",
+				nodes, folders.size(), cells.size(), variables.size(), passes));
+
+		ReferenceIndex index = new ReferenceIndex();
+		Set<NodeId> hierarchical = subtypes(nodeMap, Identifiers.HierarchicalReferences);
+
+		run("walk", all, BrowseDirection.Forward, hierarchical, 0, index, passes);
+		run("organizes", folders, BrowseDirection.Forward, Collections.singleton(Identifiers.Organizes), 0, index,
+				passes);
+		run("component", cells, BrowseDirection.Forward, Collections.singleton(Identifiers.HasComponent), 0, index,
+				passes);
+		run("objects", folders, BrowseDirection.Forward, hierarchical, OBJECT, index, passes);
+		run("parent", variables, BrowseDirection.Inverse, hierarchical, 0, index, passes);
+
+		long heap = NamespaceLoadBenchmark.usedHeap();
+		ReferenceIndex indexed = new ReferenceIndex();
+		for (ServerNode node : all) {
+			indexed.getReferences(node);
+		}
+		long bytes = NamespaceLoadBenchmark.usedHeap() - heap;
+		System.out.println(String.format("index %,d nodes %8.0f bytes/node", indexed.size(), (double) bytes / nodes));
+	}
+
+	private static void run(String name, List<ServerNode> nodes, BrowseDirection direction, Set<NodeId> types,
+			int nodeClassMask, ReferenceIndex index, int passes) {
+
+		// Timed on the second half of the passes, both ways must find the same references
+		long scanned = 0;
+		long indexed = 0;
+		double scanSeconds = 0;
+		double indexSeconds = 0;
+
+		for (int pass = 0; pass < passes; pass++) {
+			long found = 0;
+			long t0 = System.nanoTime();
+			for (ServerNode node : nodes) {
+				found += scan(node.getReferences(), direction, types, nodeClassMask).size();
+			}
+			if (pass >= passes / 2) {
+				scanSeconds += (System.nanoTime() - t0) / 1e9;
+			}
+			scanned = found;
+
+			found = 0;
+			t0 = System.nanoTime();
+			for (ServerNode node : nodes) {
+				found += scan(index.getReferences(node), direction, types, nodeClassMask).size();
+			}
+			if (pass >= passes / 2) {
+				indexSeconds += (System.nanoTime() - t0) / 1e9;
+			}
+			indexed = found;
+		}
+
+		if (scanned != indexed || scanned == 0) {
+			throw new IllegalStateException(name + ": scanned " + scanned + " references, indexed " + indexed);
+		}
+
+		long browses = (long) nodes.size() * (passes - passes / 2);
+		System.out.println(String.format("%-10s %,9d refs   copy %,12.0f browses/s   index %,12.0f browses/s  %5.1fx",
+				name, indexed, browses / scanSeconds, browses / indexSeconds, scanSeconds / indexSeconds));
+	}
+
+	// What the server's browse does with the references a namespace returns
+	private static List<Reference> scan(List<Reference> all, BrowseDirection direction, Set<NodeId> types,
+			int nodeClassMask) {
+
+		List<Reference> references = new ArrayList<Reference>();
+		for (Reference reference : all) {
+			if (direction != BrowseDirection.Both && reference.isForward() != (direction == BrowseDirection.Forward)) {
+				continue;
+			}
+			if (!types.contains(reference.getReferenceTypeId())) {
+				continue;
+			}
+			NodeClass nodeClass = reference.getTargetNodeClass();
+			if (nodeClassMask != 0 && (nodeClass == null || (nodeClass.getValue() & nodeClassMask) == 0)) {
+				continue;
+			}
+			references.add(reference);
+		}
+		return references;
+	}
+
+	// The reference type and its subtypes, by HasSubtype, as the server matches them
+	private static Set<NodeId> subtypes(NodeMap nodeMap, NodeId referenceTypeId) {
+		Set<NodeId> found = new HashSet<NodeId>();
+		List<NodeId> pending = new ArrayList<NodeId>();
+		found.add(referenceTypeId);
+		pending.add(referenceTypeId);
+
+		while (!pending.isEmpty()) {
+			for (Reference reference : nodeMap.get(pending.remove(pending.size() - 1)).getReferences()) {
+				if (reference.isForward() && Identifiers.HasSubtype.equals(reference.getReferenceTypeId())) {
+					NodeId subtype = reference.getTargetNodeId().local().orElse(null);
+					if (subtype != null && found.add(subtype)) {
+						pending.add(subtype);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	// Areas of lines of cells, Area_a/Line_l/Cell_c/Variable_v
+	private static void writeConfig(File config, int cellsPerLine) throws Exception {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(config),
+				StandardCharsets.UTF_8), 64 * 1024)) {
+
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<namespace uri=\"urn:ca:uwo:browse\">\n");
+
+			for (int area = 0; area < AREAS; area++) {
+				out.write("\t<folder name=\"Area_" + area + "\">\n");
+				for (int line = 0; line < LINES_PER_AREA; line++) {
+					out.write("\t\t<folder name=\"Line_" + line + "\">\n");
+					for (int cell = 0; cell < cellsPerLine; cell++) {
+						out.write("\t\t\t<folder name=\"Cell_" + cell + "\">\n");
+						for (int i = 0; i < VARIABLES_PER_CELL; i++) {
+							out.write("\t\t\t\t<variable name=\"Variable_" + i + "\" dataType=\"Double\"/>\n");
+						}
+						out.write("\t\t\t\t<method name=\"sqrt(x)\" handler=\"sqrt\"/>\n");
+						out.write("\t\t\t</folder>\n");
+					}
+					out.write("\t\t</folder>\n");
+				}
+				out.write("\t</folder>\n");
+			}
+			out.write("</namespace>\n");
+		}
+	}
+
+	// The Objects folder and the reference types browses name, with their HasSubtype references
+	private static NodeMap newNodeMap() {
+		NodeMap nodeMap = new NodeMap();
+		nodeMap.addNode(new UaFolderNode(nodeMap, Identifiers.ObjectsFolder, new QualifiedName(0, "Objects"),
+				LocalizedText.english("Objects")));
+
+		referenceType(nodeMap, Identifiers.References, null);
+		referenceType(nodeMap, Identifiers.HierarchicalReferences, Identifiers.References);
+		referenceType(nodeMap, Identifiers.NonHierarchicalReferences, Identifiers.References);
+		referenceType(nodeMap, Identifiers.HasChild, Identifiers.HierarchicalReferences);
+		referenceType(nodeMap, Identifiers.Organizes, Identifiers.HierarchicalReferences);
+		referenceType(nodeMap, Identifiers.Aggregates, Identifiers.HasChild);
+		referenceType(nodeMap, Identifiers.HasSubtype, Identifiers.HasChild);
+		referenceType(nodeMap, Identifiers.HasComponent, Identifiers.Aggregates);
+		referenceType(nodeMap, Identifiers.HasProperty, Identifiers.Aggregates);
+		referenceType(nodeMap, Identifiers.HasTypeDefinition, Identifiers.NonHierarchicalReferences);
+		return nodeMap;
+	}
+
+	private static void referenceType(NodeMap nodeMap, NodeId nodeId, NodeId supertype) {
+		String name = String.valueOf(nodeId.getIdentifier());
+		nodeMap.addNode(new UaReferenceTypeNode(nodeMap, nodeId, new QualifiedName(0, name),
+				LocalizedText.english(name), LocalizedText.english(name), uint(0), uint(0), false, false,
+				LocalizedText.english(name)));
+
+		if (supertype != null) {
+			nodeMap.get(supertype).addReference(new Reference(supertype, Identifiers.HasSubtype, nodeId.expanded(),
+					NodeClass.ReferenceType, true));
+			nodeMap.get(nodeId).addReference(new Reference(nodeId, Identifiers.HasSubtype, supertype.expanded(),
+					NodeClass.ReferenceType, false));
+		}
+	}
+
+	private static class NodeMap extends ConcurrentHashMap<NodeId, ServerNode> implements ServerNodeMap {
+		private static final long serialVersionUID = 1L;
+	}
+}
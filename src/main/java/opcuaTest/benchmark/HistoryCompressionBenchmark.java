@@ -0,0 +1,101 @@
+package opcuaTest.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import opcuaTest.history.HistoryStore;
+import opcuaTest.history.HistoryValueType;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+/**
+ * Compression ratio and decode throughput of the {@link HistoryStore} block format for an
+ * Int32 and a Double series. Samples are 100 ms apart with up to 2 ms of jitter at the
+ * millisecond resolution of {@link DateTime#now()}; the Int32 value is a slowly moving
+ * integer reading, the Double a random walk rounded to two decimals, like a sensor value.
+ * <p>
+ * The ratio is against the 24 bytes of an uncompressed {@code time, value, status} record.
+ * <p>
+ * Usage: HistoryCompressionBenchmark [samples]
+ */
+public class HistoryCompressionBenchmark {
+
+	private static final int RAW_BYTES_PER_SAMPLE = 8 + 8 + 4 + 4;
+
+	public static void main(String[] args) throws Exception {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+		run("Int32", HistoryValueType.INT32, samples);
+		run("Double", HistoryValueType.DOUBLE, samples);
+	}
+
+	private static void run(String name, HistoryValueType type, int samples) throws Exception {
+		File directory = Files.createTempDirectory("history-compression").toFile();
+		HistoryStore store = HistoryStore.open(directory, HistoryStore.DEFAULT_SEGMENT_BYTES,
+				HistoryStore.DEFAULT_FLUSH_INTERVAL_MILLIS);
+		try {
+			int series = store.register(new NodeId(2, name), type);
+
+			Random random = new Random(42);
+			long time = DateTime.now().getUtcTime();
+			long start = time;
+			int intValue = 500;
+			double doubleValue = 20.0;
+
+			long t0 = System.nanoTime();
+			for (int i = 0; i < samples; i++) {
+				// 100 ms plus 0-2 ms of jitter, in 100 ns ticks
+				time += 1_000_000 + random.nextInt(3) * 10_000;
+
+				long bits;
+				if (type == HistoryValueType.INT32) {
+					if (random.nextInt(10) == 0) {
+						intValue += random.nextInt(3) - 1;
+					}
+					bits = type.toBits(intValue);
+				} else {
+					doubleValue = Math.round((doubleValue + random.nextGaussian() * 0.05) * 100) / 100.0;
+					bits = type.toBits(doubleValue);
+				}
+				store.append(series, time, bits, 0);
+			}
+			long appendNanos = System.nanoTime() - t0;
+
+			long compressed = store.getCompressedBytes();
+			long used = store.getUsedBytes();
+
+			System.out.println(String.format("%s: %d samples appended at %.1f M/s", name, samples,
+					samples / (appendNanos / 1e3)));
+			System.out.println(String.format(
+					"  compressed %.2f bytes/sample (ratio %.1fx), with block headers and free space %.2f bytes/sample (ratio %.1fx)",
+					(double) compressed / samples, (double) RAW_BYTES_PER_SAMPLE * samples / compressed,
+					(double) used / samples, (double) RAW_BYTES_PER_SAMPLE * samples / used));
+
+			long end = time + 1;
+			long[] checksum = new long[1];
+			for (int round = 0; round < 5; round++) {
+				long t1 = System.nanoTime();
+				store.read(series, start, end, false, false, (t, v, s) -> {
+					checksum[0] += v;
+					return true;
+				});
+				long readNanos = System.nanoTime() - t1;
+				if (round == 4) {
+					System.out.println(String.format("  full forward decode %.1f M samples/s (%d)",
+							samples / (readNanos / 1e3), checksum[0] & 1));
+				}
+			}
+		} finally {
+			store.close();
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package opcuaTest.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import opcuaTest.history.HistoryManager;
+import opcuaTest.history.HistoryStore;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.PerformUpdateType;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.UpdateDataDetails;
+
+/**
+ * Backfill throughput of one persisted Double node through {@link HistoryManager#historyUpdate}:
+ * batches of UpdateDataDetails inserts, one second apart, written oldest first and ending a
+ * day before the live values recorded at the start, like history taken over from an older
+ * system. The batches are built before the clock starts, so the rate is the one of the
+ * sort, merge and block writes.
+ * <p>
+ * Usage: HistoryIngestBenchmark [batches] [valuesPerBatch]
+ */
+public class HistoryIngestBenchmark {
+
+	private static final long SECOND = 10_000_000L;
+
+	public static void main(String[] args) throws Exception {
+		int batches = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int valuesPerBatch = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+
+		File directory = Files.createTempDirectory("history-ingest").toFile();
+		HistoryStore store = HistoryStore.open(directory, HistoryStore.DEFAULT_SEGMENT_BYTES,
+				HistoryStore.DEFAULT_FLUSH_INTERVAL_MILLIS);
+		HistoryManager historyManager = new HistoryManager(HistoryManager.DEFAULT_SAMPLES_PER_NODE, store);
+		try {
+			NodeId nodeId = new NodeId(2, "bench/Ingest");
+			historyManager.register(nodeId, Identifiers.Double);
+
+			long now = DateTime.now().getUtcTime();
+			for (int i = 0; i < 1000; i++) {
+				DateTime time = new DateTime(now + i * SECOND);
+				historyManager.record(nodeId, new DataValue(new Variant(i / 10.0), StatusCode.GOOD, time, time));
+			}
+
+			long total = (long) batches * valuesPerBatch;
+			long start = now - 24 * 3600 * SECOND - total * SECOND;
+
+			UpdateDataDetails[] updates = new UpdateDataDetails[batches];
+			for (int b = 0; b < batches; b++) {
+				DataValue[] values = new DataValue[valuesPerBatch];
+				for (int i = 0; i < valuesPerBatch; i++) {
+					long n = (long) b * valuesPerBatch + i;
+					DateTime time = new DateTime(start + n * SECOND);
+					values[i] = new DataValue(new Variant(20.0 + (n % 600) / 100.0), StatusCode.GOOD, time, time);
+				}
+				updates[b] = new UpdateDataDetails(nodeId, PerformUpdateType.Insert, values);
+			}
+
+			long t0 = System.nanoTime();
+			for (UpdateDataDetails update : updates) {
+				HistoryUpdateResult result = historyManager.historyUpdate(update);
+				if (!result.getStatusCode().isGood()
+						|| result.getOperationResults()[0].getValue() != StatusCodes.Good_EntryInserted) {
+					throw new IllegalStateException("insert failed: " + result.getStatusCode());
+				}
+			}
+			double seconds = (System.nanoTime() - t0) / 1e9;
+
+			System.out.println(String.format("batches=%d valuesPerBatch=%d", batches, valuesPerBatch));
+			System.out.println(String.format("  %,.0f values/s, %,.0f values/minute, %.2f ms/batch",
+					total / seconds, total / seconds * 60, seconds * 1000 / batches));
+			System.out.println(String.format("  store %.2f bytes/value", (double) store.getUsedBytes() / (total + 1000)));
+		} finally {
+			historyManager.close();
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
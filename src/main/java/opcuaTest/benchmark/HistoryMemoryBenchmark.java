@@ -0,0 +1,81 @@
+package opcuaTest.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import opcuaTest.history.HistoryBuffer;
+import opcuaTest.history.HistoryValueType;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+/**
+ * Measures the heap used per history sample by a {@link HistoryBuffer} and, for
+ * comparison, by a list of DataValues holding the same Int32 samples. Also times a
+ * range lookup on the full buffer.
+ * <p>
+ * Usage: HistoryMemoryBenchmark [samples]
+ */
+public class HistoryMemoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+
+		long start = DateTime.now().getUtcTime();
+
+		long before = usedMemory();
+		HistoryBuffer buffer = new HistoryBuffer(HistoryValueType.INT32, samples);
+		for (int i = 0; i < samples; i++) {
+			buffer.append(start + i * 10000L, HistoryValueType.INT32.toBits(i), 0);
+		}
+		long bufferBytes = usedMemory() - before;
+
+		before = usedMemory();
+		List<DataValue> list = new ArrayList<DataValue>();
+		for (int i = 0; i < samples; i++) {
+			DateTime time = new DateTime(start + i * 10000L);
+			list.add(new DataValue(new Variant(i), StatusCode.GOOD, time, time));
+		}
+		long listBytes = usedMemory() - before;
+
+		System.out.println(String.format("samples=%d", samples));
+		System.out.println(String.format("HistoryBuffer   %,d bytes, %.1f bytes/sample (%d by construction)",
+				bufferBytes, (double) bufferBytes / samples, HistoryBuffer.BYTES_PER_SAMPLE));
+		System.out.println(String.format("List<DataValue> %,d bytes, %.1f bytes/sample",
+				listBytes, (double) listBytes / samples));
+
+		// 1000 values from the middle of the history
+		long low = start + (samples / 2) * 10000L;
+		long high = low + 1000 * 10000L;
+		long[] visited = new long[1];
+		int rounds = 10000;
+
+		for (int warmup = 0; warmup < 2; warmup++) {
+			long t0 = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				buffer.read(low, high, false, false, (time, bits, status) -> {
+					visited[0] += bits;
+					return true;
+				});
+			}
+			long elapsed = System.nanoTime() - t0;
+			if (warmup == 1) {
+				System.out.println(String.format("range read of 1000 samples %.1f us", elapsed / 1000.0 / rounds));
+			}
+		}
+
+		// Keep both alive until measured
+		System.out.println(String.format("(%d %d %d)", buffer.size(), list.size(), visited[0] & 1));
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
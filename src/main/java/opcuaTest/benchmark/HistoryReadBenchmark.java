@@ -0,0 +1,119 @@
+package opcuaTest.benchmark;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import opcuaTest.history.HistoryManager;
+import opcuaTest.server.HistoryReadDispatcher;
+
+import org.eclipse.milo.opcua.sdk.server.DiagnosticsContext;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+
+/**
+ * Throughput of a HistoryRead of many nodes of one namespace through the
+ * {@link HistoryReadDispatcher}, with 1, 2, 4... workers up to the number of cores, against
+ * reading the nodes one after the other on the calling thread like a single namespace task
+ * did. Each node holds its history in memory and every read returns 1000 raw values per
+ * node, so the work is building the DataValues, which scales with the cores.
+ * <p>
+ * Usage: HistoryReadBenchmark [nodes] [valuesPerNode]
+ */
+public class HistoryReadBenchmark {
+
+	private static final int ROUNDS = 20;
+
+	public static void main(String[] args) throws Exception {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int valuesPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		HistoryManager historyManager = new HistoryManager(valuesPerNode * 2, null);
+		List<HistoryReadValueId> nodesToRead = new ArrayList<HistoryReadValueId>(nodes);
+
+		long start = DateTime.now().getUtcTime();
+		for (int n = 0; n < nodes; n++) {
+			NodeId nodeId = new NodeId(2, "bench/History_" + n);
+			historyManager.register(nodeId, Identifiers.Double);
+			for (int i = 0; i < valuesPerNode * 2; i++) {
+				DateTime time = new DateTime(start + i * 1_000_000L);
+				historyManager.record(nodeId, new DataValue(new Variant(n + i / 100.0), StatusCode.GOOD, time, time));
+			}
+			nodesToRead.add(new HistoryReadValueId(nodeId, null, null, null));
+		}
+
+		HistoryReadDetails details = new ReadRawModifiedDetails(false,
+				new DateTime(start), new DateTime(start + valuesPerNode * 1_000_000L), uint(valuesPerNode), false);
+
+		System.out.println(String.format("nodes=%d valuesPerNode=%d cores=%d",
+				nodes, valuesPerNode, Runtime.getRuntime().availableProcessors()));
+
+		double serial = measure("serial", nodes, valuesPerNode, () -> {
+			List<HistoryReadResult> results = new ArrayList<HistoryReadResult>(nodes);
+			for (HistoryReadValueId valueToRead : nodesToRead) {
+				results.add(historyManager.historyRead(details, TimestampsToReturn.Both, valueToRead));
+			}
+			return results.size();
+		});
+
+		for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, cores())) {
+			ForkJoinPool pool = HistoryReadDispatcher.newPool(parallelism);
+			HistoryReadDispatcher dispatcher = new HistoryReadDispatcher(null, index -> (context, d, t, ids) -> {
+				List<HistoryReadResult> results = new ArrayList<HistoryReadResult>(ids.size());
+				for (HistoryReadValueId valueToRead : ids) {
+					results.add(historyManager.historyRead(d, t, valueToRead));
+				}
+				context.complete(results);
+			}, pool, HistoryReadDispatcher.DEFAULT_CHUNK_SIZE);
+
+			double rate = measure("workers=" + parallelism, nodes, valuesPerNode, () -> dispatcher.dispatch(
+					null, details, TimestampsToReturn.Both, nodesToRead, new DiagnosticsContext<HistoryReadValueId>())
+					.get().size());
+			System.out.println(String.format("  speedup %.2fx", rate / serial));
+
+			pool.shutdown();
+			if (parallelism == cores()) {
+				break;
+			}
+		}
+	}
+
+	private interface Request {
+		int run() throws Exception;
+	}
+
+	// Requests per second, after as many rounds of warm up
+	private static double measure(String name, int nodes, int valuesPerNode, Request request) throws Exception {
+		for (int i = 0; i < ROUNDS; i++) {
+			request.run();
+		}
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			if (request.run() != nodes) {
+				throw new IllegalStateException("missing results");
+			}
+		}
+		double seconds = (System.nanoTime() - t0) / 1e9;
+
+		double rate = ROUNDS / seconds;
+		System.out.println(String.format("%-10s %8.1f requests/s %,12.0f values/s %8.2f ms/request",
+				name, rate, rate * nodes * valuesPerNode, 1000 / rate));
+		return rate;
+	}
+
+	private static int cores() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+}
@@ -0,0 +1,155 @@
+package opcuaTest.benchmark;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opcuaTest.namespaces.NamespaceLoader;
+import opcuaTest.namespaces.NodeDescriptorTable;
+import opcuaTest.namespaces.ReferenceIndex;
+import opcuaTest.namespaces.ScalarValueStore;
+
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+
+/**
+ * Startup time and heap of a namespace of 1,000,000 nodes, the file of
+ * {@link NamespaceLoadBenchmark}, with every node built up front by the
+ * {@link NamespaceLoader}, and with every node kept as a descriptor in a
+ * {@link NodeDescriptorTable}, at most 100,000 built at a time. Then the cost of reaching nodes in lazy mode:
+ * uniformly at random over the whole namespace, mostly built and evicting another, and
+ * over a hot set half the size of the limit, already built. Heap is measured after each.
+ * <p>
+ * Usage: LazyNamespaceBenchmark [nodes] [maxMaterialized] [lookups]
+ */
+public class LazyNamespaceBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		int maxMaterialized = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+
+		File config = File.createTempFile("namespace", ".xml");
+		config.deleteOnExit();
+		NamespaceLoadBenchmark.writeConfig(config, nodes);
+
+		System.out.println(String.format("nodes=%d maxMaterialized=%d lookups=%d", nodes, maxMaterialized, lookups));
+
+		// Eager, timed on the second of two passes
+		for (int pass = 0; pass < 2; pass++) {
+			NodeMap nodeMap = newNodeMap();
+			NamespaceLoader loader = newLoader(nodeMap);
+
+			long heap = NamespaceLoadBenchmark.usedHeap();
+			long t0 = System.nanoTime();
+			int added = loader.load(config, Runtime.getRuntime().availableProcessors());
+			double seconds = (System.nanoTime() - t0) / 1e9;
+			long bytes = NamespaceLoadBenchmark.usedHeap() - heap;
+
+			if (added != nodes || nodeMap.size() != nodes + 1) {
+				throw new IllegalStateException("loaded " + added + " of " + nodes + " nodes");
+			}
+			if (pass == 1) {
+				report("eager", nodes, seconds, bytes, nodeMap.size() - 1);
+			}
+		}
+
+		NodeMap nodeMap = null;
+		NodeDescriptorTable table = null;
+		long heap = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			nodeMap = null;
+			table = null;
+			heap = NamespaceLoadBenchmark.usedHeap();
+
+			nodeMap = newNodeMap();
+			table = new NodeDescriptorTable(nodeMap, ushort(2), newLoader(nodeMap), new ReferenceIndex(),
+					maxMaterialized);
+
+			long t0 = System.nanoTime();
+			int added = table.load(config);
+			double seconds = (System.nanoTime() - t0) / 1e9;
+
+			if (added != nodes || nodeMap.size() != 1) {
+				throw new IllegalStateException("loaded " + added + " of " + nodes + " nodes");
+			}
+			if (pass == 1) {
+				report("lazy", nodes, seconds, NamespaceLoadBenchmark.usedHeap() - heap, nodeMap.size() - 1);
+			}
+		}
+
+		NodeId[] nodeIds = new NodeId[nodes];
+		int count = 0;
+		for (int folder = 0; count < nodes; folder++) {
+			nodeIds[count++] = new NodeId(2, "Folder_" + folder);
+			for (int i = 0; i < NamespaceLoadBenchmark.VARIABLES_PER_FOLDER && count < nodes; i++) {
+				nodeIds[count++] = new NodeId(2, "Folder_" + folder + "/Variable_" + i);
+			}
+		}
+
+		Random random = new Random(0);
+		long t0 = System.nanoTime();
+		long built = table.getMaterializations();
+		for (int i = 0; i < lookups; i++) {
+			if (table.get(nodeIds[random.nextInt(nodes)]) == null) {
+				throw new IllegalStateException("lost a node");
+			}
+		}
+		lookups("random", table, lookups, (System.nanoTime() - t0) / 1e9, table.getMaterializations() - built,
+				NamespaceLoadBenchmark.usedHeap() - heap, nodeMap.size() - 1);
+
+		int hot = Math.max(1, maxMaterialized / 2);
+		for (int i = 0; i < hot; i++) {
+			table.get(nodeIds[i]);
+		}
+		t0 = System.nanoTime();
+		built = table.getMaterializations();
+		for (int i = 0; i < lookups; i++) {
+			table.get(nodeIds[random.nextInt(hot)]);
+		}
+		lookups("hot", table, lookups, (System.nanoTime() - t0) / 1e9, table.getMaterializations() - built,
+				NamespaceLoadBenchmark.usedHeap() - heap, nodeMap.size() - 1);
+
+		// A folder built again still has all its children
+		ServerNode folder = table.get(nodeIds[0]);
+		if (NamespaceLoadBenchmark.organized(folder) != Math.min(nodes - 1, NamespaceLoadBenchmark.VARIABLES_PER_FOLDER)) {
+			throw new IllegalStateException("folder built without its children");
+		}
+	}
+
+	private static void report(String mode, int nodes, double seconds, long bytes, int built) {
+		System.out.println(String.format("%-7s startup %8.1f ms %,12.0f nodes/s %8.0f bytes/node %,9d built",
+				mode, seconds * 1e3, nodes / seconds, (double) bytes / nodes, built));
+	}
+
+	private static void lookups(String name, NodeDescriptorTable table, int lookups, double seconds, long built,
+			long bytes, int materialized) {
+
+		System.out.println(String.format("%-7s %,12.0f lookups/s %5.1f%% built %,9d evicted %8.0f MB %,9d built",
+				name, lookups / seconds, 100.0 * built / lookups, table.getEvictions(), bytes / 1e6, materialized));
+	}
+
+	private static NodeMap newNodeMap() {
+		NodeMap nodeMap = new NodeMap();
+		nodeMap.addNode(new UaFolderNode(nodeMap, Identifiers.ObjectsFolder, new QualifiedName(0, "Objects"),
+				LocalizedText.english("Objects")));
+		return nodeMap;
+	}
+
+	private static NamespaceLoader newLoader(NodeMap nodeMap) {
+		return new NamespaceLoader(nodeMap, ushort(2), new ScalarValueStore(), null, Collections.emptyMap(),
+				NamespaceLoader.DEFAULT_CHUNK_SIZE);
+	}
+
+	private static class NodeMap extends ConcurrentHashMap<NodeId, ServerNode> implements ServerNodeMap {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,300 @@
+package opcuaTest.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import mqtt.client.TopicFilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Just enough of an MQTT 3.1.1 broker to benchmark the bridge without an external
+ * Mosquitto: CONNECT, PUBLISH with QoS 0, 1 and 2, SUBSCRIBE (forwarded at QoS 0),
+ * UNSUBSCRIBE, PINGREQ and DISCONNECT over plain TCP on the loopback interface.
+ * No sessions, retained messages or wills; one reader thread per connection.
+ */
+public class LocalMqttBroker implements AutoCloseable {
+
+	public interface PublishListener {
+		void onPublish(String topic, byte[] payload);
+	}
+
+	private static final int CONNECT = 1;
+	private static final int PUBLISH = 3;
+	private static final int PUBREL = 6;
+	private static final int SUBSCRIBE = 8;
+	private static final int UNSUBSCRIBE = 10;
+	private static final int PINGREQ = 12;
+	private static final int DISCONNECT = 14;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ServerSocket serverSocket;
+
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+
+	private final LongAdder received = new LongAdder();
+
+	private volatile PublishListener listener = (topic, payload) -> {
+	};
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param port 0 picks a free port, see {@link #getPort()}
+	 */
+	public LocalMqttBroker(int port) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		Thread acceptor = new Thread(this::accept, "local-mqtt-broker");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public String getUri() {
+		return "tcp://127.0.0.1:" + getPort();
+	}
+
+	/**
+	 * Called on the connection's reader thread for every PUBLISH the broker receives.
+	 */
+	public void setPublishListener(PublishListener listener) {
+		this.listener = listener;
+	}
+
+	public long getReceivedCount() {
+		return received.sum();
+	}
+
+	/**
+	 * Forwards a message to every matching subscriber, as if a client had published it.
+	 */
+	public void publish(String topic, byte[] payload) {
+		for (Connection connection : connections) {
+			connection.forward(topic, payload);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+		for (Connection connection : connections) {
+			connection.close();
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+
+				Connection connection = new Connection(socket);
+				connections.add(connection);
+
+				Thread reader = new Thread(connection, "local-mqtt-broker-" + socket.getPort());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (running) {
+					logger.warn("Local MQTT broker unable to accept: {}", e.getMessage());
+				}
+			}
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+		private final List<String> subscriptions = new CopyOnWriteArrayList<String>();
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					int header = in.read();
+					if (header < 0) {
+						break;
+					}
+					byte[] body = new byte[readRemainingLength()];
+					in.readFully(body);
+
+					if (!handle(header >>> 4, header & 0x0f, body)) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// connection closed by the client
+			} finally {
+				close();
+			}
+		}
+
+		private boolean handle(int type, int flags, byte[] body) throws IOException {
+			switch (type) {
+				case CONNECT:
+					send(0x20, new byte[] {0, 0});
+					return true;
+
+				case PUBLISH: {
+					int qos = (flags >>> 1) & 0x03;
+					int topicLength = readShort(body, 0);
+					String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+					int position = 2 + topicLength;
+					int packetId = 0;
+					if (qos > 0) {
+						packetId = readShort(body, position);
+						position += 2;
+					}
+					byte[] payload = new byte[body.length - position];
+					System.arraycopy(body, position, payload, 0, payload.length);
+
+					received.increment();
+					listener.onPublish(topic, payload);
+					publish(topic, payload);
+
+					if (qos == 1) {
+						send(0x40, packetId(packetId));
+					} else if (qos == 2) {
+						send(0x50, packetId(packetId));
+					}
+					return true;
+				}
+
+				case PUBREL:
+					send(0x70, packetId(readShort(body, 0)));
+					return true;
+
+				case SUBSCRIBE: {
+					int packetId = readShort(body, 0);
+					ByteArrayOutputStream granted = new ByteArrayOutputStream();
+					granted.write(packetId >>> 8);
+					granted.write(packetId);
+
+					int position = 2;
+					while (position < body.length) {
+						int length = readShort(body, position);
+						subscriptions.add(new String(body, position + 2, length, StandardCharsets.UTF_8));
+						position += 2 + length + 1;
+						// Forwarded messages are always sent with QoS 0
+						granted.write(0);
+					}
+					send(0x90, granted.toByteArray());
+					return true;
+				}
+
+				case UNSUBSCRIBE: {
+					int position = 2;
+					while (position < body.length) {
+						int length = readShort(body, position);
+						subscriptions.remove(new String(body, position + 2, length, StandardCharsets.UTF_8));
+						position += 2 + length;
+					}
+					send(0xb0, packetId(readShort(body, 0)));
+					return true;
+				}
+
+				case PINGREQ:
+					send(0xd0, new byte[0]);
+					return true;
+
+				case DISCONNECT:
+					return false;
+
+				default:
+					// PUBACK, PUBREC and PUBCOMP can't arrive, everything is forwarded with QoS 0
+					return true;
+			}
+		}
+
+		void forward(String topic, byte[] payload) {
+			for (String filter : subscriptions) {
+				if (TopicFilter.matches(filter, topic)) {
+					byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+					byte[] body = new byte[2 + topicBytes.length + payload.length];
+					body[0] = (byte) (topicBytes.length >>> 8);
+					body[1] = (byte) topicBytes.length;
+					System.arraycopy(topicBytes, 0, body, 2, topicBytes.length);
+					System.arraycopy(payload, 0, body, 2 + topicBytes.length, payload.length);
+					try {
+						send(0x30, body);
+					} catch (IOException e) {
+						close();
+					}
+					return;
+				}
+			}
+		}
+
+		private synchronized void send(int header, byte[] body) throws IOException {
+			out.write(header);
+			int length = body.length;
+			do {
+				int digit = length % 128;
+				length /= 128;
+				out.write(length > 0 ? digit | 0x80 : digit);
+			} while (length > 0);
+			out.write(body);
+			out.flush();
+		}
+
+		private int readRemainingLength() throws IOException {
+			int length = 0;
+			int multiplier = 1;
+			int digit;
+			do {
+				digit = in.read();
+				if (digit < 0) {
+					throw new EOFException();
+				}
+				length += (digit & 0x7f) * multiplier;
+				multiplier *= 128;
+			} while ((digit & 0x80) != 0);
+			return length;
+		}
+
+		void close() {
+			connections.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	private static int readShort(byte[] bytes, int position) {
+		return ((bytes[position] & 0xff) << 8) | (bytes[position + 1] & 0xff);
+	}
+
+	private static byte[] packetId(int packetId) {
+		return new byte[] {(byte) (packetId >>> 8), (byte) packetId};
+	}
+}
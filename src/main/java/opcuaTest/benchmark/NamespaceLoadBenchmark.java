@@ -0,0 +1,146 @@
+package opcuaTest.benchmark;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opcuaTest.namespaces.NamespaceConfigReader;
+import opcuaTest.namespaces.NamespaceLoader;
+import opcuaTest.namespaces.ScalarValueStore;
+
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+
+/**
+ * Startup time of a namespace of 1,000,000 nodes loaded by the {@link NamespaceLoader}: a
+ * generated configuration file of folders of 999 variables, Int32 and Double in turn,
+ * read, built and linked on 1 core up to all of them, against a target time. The "read"
+ * row is the {@link NamespaceConfigReader} alone, the part no number of cores shortens.
+ * Each run starts from an empty node map, is timed on the second of two passes and
+ * reports the heap the address space takes per node; give the JVM a few GB.
+ * <p>
+ * Usage: NamespaceLoadBenchmark [nodes] [targetSeconds] [maxCores]
+ */
+public class NamespaceLoadBenchmark {
+
+	static final int VARIABLES_PER_FOLDER = 999;
+
+	public static void main(String[] args) throws Exception {
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		double targetSeconds = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+		int maxCores = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		File config = File.createTempFile("namespace", ".xml");
+		config.deleteOnExit();
+		writeConfig(config, nodes);
+
+		System.out.println(String.format("nodes=%d targetSeconds=%.1f file=%,d bytes",
+				nodes, targetSeconds, config.length()));
+
+		double read = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long t0 = System.nanoTime();
+			if (NamespaceConfigReader.read(config, node -> {
+			}) != nodes) {
+				throw new IllegalStateException("read the wrong number of nodes");
+			}
+			read = (System.nanoTime() - t0) / 1e9;
+		}
+		System.out.println(String.format("%-8s %,12.0f nodes/s %10.1f ms", "read", nodes / read, read * 1e3));
+
+		double best = Double.MAX_VALUE;
+		for (int cores = 1; cores <= maxCores; cores *= 2) {
+			double seconds = 0;
+			long bytes = 0;
+
+			for (int pass = 0; pass < 2; pass++) {
+				NodeMap nodeMap = new NodeMap();
+				nodeMap.addNode(new UaFolderNode(nodeMap, Identifiers.ObjectsFolder, new QualifiedName(0, "Objects"),
+						LocalizedText.english("Objects")));
+				NamespaceLoader loader = new NamespaceLoader(nodeMap, ushort(2), new ScalarValueStore(), null,
+						Collections.emptyMap(), NamespaceLoader.DEFAULT_CHUNK_SIZE);
+
+				long heap = usedHeap();
+				long t0 = System.nanoTime();
+
+				int added = loader.load(config, cores);
+
+				seconds = (System.nanoTime() - t0) / 1e9;
+				bytes = usedHeap() - heap;
+
+				if (added != nodes || nodeMap.size() != nodes + 1
+						|| organized(nodeMap.get(new NodeId(2, "Folder_0"))) != Math.min(nodes - 1, VARIABLES_PER_FOLDER)) {
+					throw new IllegalStateException("loaded " + added + " of " + nodes + " nodes");
+				}
+			}
+			best = Math.min(best, seconds);
+
+			System.out.println(String.format("%-8s %,12.0f nodes/s %10.1f ms %8.0f bytes/node",
+					cores + (cores == 1 ? " core" : " cores"), nodes / seconds, seconds * 1e3, (double) bytes / nodes));
+		}
+
+		System.out.println(String.format("best %.2f s, target %.1f s: %s",
+				best, targetSeconds, best <= targetSeconds ? "met" : "MISSED"));
+		if (best > targetSeconds) {
+			System.exit(1);
+		}
+	}
+
+	static int organized(ServerNode folder) {
+		int count = 0;
+		for (Reference reference : folder.getReferences()) {
+			if (reference.isForward() && reference.getReferenceTypeId().equals(Identifiers.Organizes)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Folders of VARIABLES_PER_FOLDER variables, Folder_f/Variable_v
+	static void writeConfig(File config, int nodes) throws Exception {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(config),
+				StandardCharsets.UTF_8), 64 * 1024)) {
+
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<namespace uri=\"urn:ca:uwo:benchmark\">\n");
+
+			int written = 0;
+			for (int folder = 0; written < nodes; folder++) {
+				out.write("\t<folder name=\"Folder_" + folder + "\">\n");
+				written++;
+
+				for (int i = 0; i < VARIABLES_PER_FOLDER && written < nodes; i++, written++) {
+					out.write(i % 2 == 0
+							? "\t\t<variable name=\"Variable_" + i + "\" dataType=\"Int32\" value=\"" + i + "\"/>\n"
+							: "\t\t<variable name=\"Variable_" + i + "\" dataType=\"Double\" value=\"" + i + ".5\"/>\n");
+				}
+				out.write("\t</folder>\n");
+			}
+			out.write("</namespace>\n");
+		}
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static class NodeMap extends ConcurrentHashMap<NodeId, ServerNode> implements ServerNodeMap {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,129 @@
+package opcuaTest.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import mqtt.client.MqttPublisher;
+import mqtt.client.MqttPublisherConfig;
+import mqtt.client.OverflowPolicy;
+import mqtt.client.SimpleMqttClient;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+
+/**
+ * Measures what the OPC UA Write path pays for the MQTT bridge with 1, 100 and 10,000
+ * values per request: the queued pipeline against the old synchronous publish that
+ * opened a client per request.
+ * <p>
+ * Usage: PublishPipelineBenchmark [broker] [requests] [sync] [shards]
+ */
+public class PublishPipelineBenchmark {
+
+	private static final int[] WRITES_PER_REQUEST = {1, 100, 10000};
+
+	public static void main(String[] args) throws Exception {
+		String broker = args.length > 0 ? args[0] : "tcp://localhost:1883";
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		boolean sync = args.length > 2 && Boolean.parseBoolean(args[2]);
+		int shards = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+		System.out.println("broker=" + broker + " requests=" + requests + " shards=" + shards);
+
+		for (int writes : WRITES_PER_REQUEST) {
+			runQueued(broker, requests, writes, shards);
+			if (sync) {
+				runSynchronous(broker, Math.min(requests, 20), writes);
+			}
+		}
+	}
+
+	private static void runQueued(String broker, int requests, int writes, int shards) throws Exception {
+		MqttPublisher publisher = new MqttPublisher(MqttPublisherConfig.builder()
+				.setBroker(broker)
+				.setClientIdPrefix("bench-queued")
+				.setShards(shards)
+				.setQueueCapacity(Math.max(65536, writes * 2))
+				.setOverflowPolicy(OverflowPolicy.BLOCK)
+				.setOfferTimeoutMillis(TimeUnit.SECONDS.toMillis(30))
+				.build());
+		publisher.startup();
+
+		long[] latencies = new long[requests];
+		long start = System.nanoTime();
+
+		for (int r = 0; r < requests; r++) {
+			long requestStart = System.nanoTime();
+			for (int i = 0; i < writes; i++) {
+				publisher.enqueue("bench/TestVariable_" + (i % 50), new DataValue(new Variant(i)));
+			}
+			latencies[r] = System.nanoTime() - requestStart;
+		}
+
+		long enqueued = System.nanoTime() - start;
+
+		// Wait for the publisher threads to catch up
+		long total = (long) requests * writes;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+		while (publisher.getPublishedCount() + publisher.getDroppedCount() < total && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		long drained = System.nanoTime() - start;
+
+		report("queued", writes, latencies, total, enqueued, drained, publisher.getPublishedCount());
+
+		StringBuilder perShard = new StringBuilder("       published per shard:");
+		for (int i = 0; i < publisher.getShardCount(); i++) {
+			perShard.append(' ').append(publisher.getShardPublishedCount(i));
+		}
+		System.out.println(perShard);
+
+		publisher.shutdown();
+	}
+
+	private static void runSynchronous(String broker, int requests, int writes) throws Exception {
+		long[] latencies = new long[requests];
+		long start = System.nanoTime();
+
+		for (int r = 0; r < requests; r++) {
+			long requestStart = System.nanoTime();
+
+			// What TestNamespace.write used to do for every request
+			SimpleMqttClient client = new SimpleMqttClient(broker, "bench-sync", 2);
+			client.connect();
+			for (int i = 0; i < writes; i++) {
+				client.publish("bench/TestVariable_" + (i % 5), String.valueOf(i).getBytes());
+			}
+			client.close();
+
+			latencies[r] = System.nanoTime() - requestStart;
+		}
+
+		long elapsed = System.nanoTime() - start;
+		long total = (long) requests * writes;
+
+		report("sync", writes, latencies, total, elapsed, elapsed, total);
+	}
+
+	private static void report(String mode, int writes, long[] latencies, long total,
+			long enqueuedNanos, long drainedNanos, long published) {
+
+		Arrays.sort(latencies);
+
+		System.out.println(String.format(
+				"%-6s writes/request=%-6d request p50=%8.1f us p99=%8.1f us max=%8.1f us | "
+						+ "write path %10.0f writes/s | delivered %d/%d at %10.0f msg/s",
+				mode, writes,
+				percentile(latencies, 0.50) / 1000.0,
+				percentile(latencies, 0.99) / 1000.0,
+				latencies[latencies.length - 1] / 1000.0,
+				total / (enqueuedNanos / 1e9),
+				published, total,
+				published / (drainedNanos / 1e9)));
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
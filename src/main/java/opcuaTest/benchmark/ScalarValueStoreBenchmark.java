@@ -0,0 +1,173 @@
+package opcuaTest.benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import opcuaTest.history.HistoryValueType;
+import opcuaTest.namespaces.ScalarValueStore;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+
+/**
+ * Heap used by the current values of Int32 tags and the rate they are written and read at,
+ * held the way a variable node holds them, a DataValue per tag as the namespaces' writes
+ * stamp it, against a {@link ScalarValueStore}. The node objects themselves, the same in
+ * both, aren't counted.
+ * <p>
+ * Writes and reads are spread over the threads, each on its own share of the tags, like
+ * Write and Read requests for different tags. A node write builds the DataValue it keeps,
+ * a store write takes the value's bits and times, or a client's DataValue apart. A node
+ * read returns the DataValue held, as the value cache serves it, or one reduced to the
+ * timestamps asked for, as the node's read path does; a store read always builds one.
+ * <p>
+ * Usage: ScalarValueStoreBenchmark [tags] [rounds] [threads]
+ */
+public class ScalarValueStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int tags = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		long now = DateTime.now().getUtcTime();
+
+		NodeId[] nodeIds = new NodeId[tags];
+		for (int i = 0; i < tags; i++) {
+			nodeIds[i] = new NodeId(2, "bench/TestVariable_" + i);
+		}
+
+		long before = usedMemory();
+		DataValue[] values = new DataValue[tags];
+		for (int i = 0; i < tags; i++) {
+			DateTime time = new DateTime(now + i);
+			values[i] = new DataValue(new Variant(i), StatusCode.GOOD, time, time);
+		}
+		long nodeBytes = usedMemory() - before;
+
+		before = usedMemory();
+		ScalarValueStore store = new ScalarValueStore();
+		for (int i = 0; i < tags; i++) {
+			DateTime time = new DateTime(now + i);
+			store.register(nodeIds[i], Identifiers.Int32, new DataValue(new Variant(i), StatusCode.GOOD, time, time));
+		}
+		long storeBytes = usedMemory() - before;
+
+		System.out.println(String.format("tags=%d rounds=%d threads=%d", tags, rounds, threads));
+		System.out.println(String.format("DataValue per node %,d bytes, %.1f bytes/tag",
+				nodeBytes, (double) nodeBytes / tags));
+		System.out.println(String.format("ScalarValueStore   %,d bytes, %.1f bytes/tag, of which columns and index %.1f bytes/tag",
+				storeBytes, (double) storeBytes / tags, (double) store.getMemoryBytes() / tags));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				boolean report = pass == 1;
+
+				run(executor, "node write", tags, rounds, threads, report, (i, round) -> {
+					DateTime time = new DateTime(now + round);
+					values[i] = new DataValue(new Variant(i + round), StatusCode.GOOD, time, time);
+					return 1;
+				});
+				run(executor, "store write", tags, rounds, threads, report, (i, round) -> {
+					store.write(i, HistoryValueType.INT32.toBits(i + round), StatusCode.GOOD.getValue(),
+							now + round, now + round);
+					return 1;
+				});
+				run(executor, "store write DataValue", tags, rounds, threads, report, (i, round) -> {
+					DateTime time = new DateTime(now + round);
+					store.write(i, new DataValue(new Variant(i + round), StatusCode.GOOD, time, time));
+					return 1;
+				});
+
+				run(executor, "node read", tags, rounds, threads, report,
+						(i, round) -> values[i].getStatusCode() == StatusCode.GOOD ? 1 : 0);
+				run(executor, "node read Source", tags, rounds, threads, report,
+						(i, round) -> DataValue.derivedValue(values[i], TimestampsToReturn.Source)
+								.getStatusCode() == StatusCode.GOOD ? 1 : 0);
+				run(executor, "store read Both", tags, rounds, threads, report,
+						(i, round) -> store.read(i, TimestampsToReturn.Both).getStatusCode() == StatusCode.GOOD ? 1 : 0);
+				run(executor, "store read Source", tags, rounds, threads, report,
+						(i, round) -> store.read(i, TimestampsToReturn.Source).getStatusCode() == StatusCode.GOOD ? 1 : 0);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// Keep both alive until measured
+		System.out.println(String.format("(%d %d)", values.length, store.size()));
+	}
+
+	private interface Operation {
+		int apply(int tag, int round);
+	}
+
+	private static void run(ExecutorService executor, String name, int tags, int rounds, int threads,
+			boolean report, Operation operation) throws Exception {
+
+		long collections = collectionCount();
+		long collectionMillis = collectionMillis();
+		long t0 = System.nanoTime();
+
+		List<Future<Long>> futures = new ArrayList<Future<Long>>(threads);
+		for (int t = 0; t < threads; t++) {
+			int from = (int) ((long) tags * t / threads);
+			int to = (int) ((long) tags * (t + 1) / threads);
+			futures.add(executor.submit(() -> {
+				long checksum = 0;
+				for (int round = 0; round < rounds; round++) {
+					for (int i = from; i < to; i++) {
+						checksum += operation.apply(i, round);
+					}
+				}
+				return checksum;
+			}));
+		}
+		long checksum = 0;
+		for (Future<Long> future : futures) {
+			checksum += future.get();
+		}
+
+		double seconds = (System.nanoTime() - t0) / 1e9;
+		if (report) {
+			System.out.println(String.format("%-22s %,14.0f ops/s  %4d GCs %6d ms GC (%d)", name,
+					(double) tags * rounds / seconds, collectionCount() - collections,
+					collectionMillis() - collectionMillis, checksum & 1));
+		}
+	}
+
+	private static long collectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long collectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,132 @@
+package opcuaTest.benchmark;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opcuaTest.namespaces.VariableValueCache;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.AttributeContext;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+
+/**
+ * Bytes allocated and time per Read request of 1000 Value attributes of Int32 variables,
+ * as the namespaces serve it: through {@link ServerNode#readAttribute} with an
+ * AttributeContext per item like they did, against the {@link VariableValueCache}. Both
+ * build the same result list, of about 4 KB for 1000 items, which is what is left with
+ * the cache. The values don't change between reads, like most tags between two polls.
+ * <p>
+ * Allocation is measured on the calling thread with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <p>
+ * Usage: ValueReadBenchmark [itemsPerRequest] [requests]
+ */
+public class ValueReadBenchmark {
+
+	private static final TimestampsToReturn[] TIMESTAMPS = {TimestampsToReturn.Both, TimestampsToReturn.Source};
+
+	public static void main(String[] args) throws Exception {
+		int items = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+		NodeMap nodeMap = new NodeMap();
+		VariableValueCache valueCache = new VariableValueCache();
+		List<ReadValueId> readValueIds = new ArrayList<ReadValueId>(items);
+
+		DateTime now = DateTime.now();
+		for (int i = 0; i < items; i++) {
+			NodeId nodeId = new NodeId(2, "bench/TestVariable_" + i);
+			UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(nodeMap)
+					.setNodeId(nodeId)
+					.setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
+					.setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
+					.setBrowseName(new QualifiedName(2, "TestVariable_" + i))
+					.setDisplayName(LocalizedText.english("TestVariable_" + i))
+					.setDataType(Identifiers.Int32)
+					.setTypeDefinition(Identifiers.BaseDataVariableType)
+					.build();
+			node.setValue(new DataValue(new Variant(i), StatusCode.GOOD, now, now));
+
+			nodeMap.addNode(node);
+			valueCache.register(node);
+			readValueIds.add(new ReadValueId(nodeId, AttributeId.Value.uid(), null, QualifiedName.NULL_VALUE));
+		}
+
+		System.out.println(String.format("itemsPerRequest=%d requests=%d", items, requests));
+
+		for (TimestampsToReturn timestamps : TIMESTAMPS) {
+			Request generic = () -> {
+				List<DataValue> results = new ArrayList<DataValue>(readValueIds.size());
+				for (ReadValueId readValueId : readValueIds) {
+					ServerNode node = nodeMap.get(readValueId.getNodeId());
+					results.add(node.readAttribute(new AttributeContext((OpcUaServer) null),
+							readValueId.getAttributeId(), timestamps, readValueId.getIndexRange(),
+							readValueId.getDataEncoding()));
+				}
+				return results;
+			};
+			Request cached = () -> {
+				List<DataValue> results = new ArrayList<DataValue>(readValueIds.size());
+				for (ReadValueId readValueId : readValueIds) {
+					ServerNode node = nodeMap.get(readValueId.getNodeId());
+					results.add(valueCache.read(node, readValueId, timestamps));
+				}
+				return results;
+			};
+
+			double before = measure("readAttribute " + timestamps, items, requests, generic);
+			double after = measure("cache " + timestamps, items, requests, cached);
+			System.out.println(String.format("  %.1fx fewer bytes per request", before / Math.max(after, 1)));
+		}
+	}
+
+	private interface Request {
+		List<DataValue> run();
+	}
+
+	// Bytes allocated per request, after as many requests of warm up
+	private static double measure(String name, int items, int requests, Request request) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		long checksum = 0;
+		for (int i = 0; i < requests; i++) {
+			checksum += request.run().size();
+		}
+
+		long bytes0 = threads.getThreadAllocatedBytes(thread);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			checksum += request.run().size();
+		}
+		double seconds = (System.nanoTime() - t0) / 1e9;
+		double bytes = (double) (threads.getThreadAllocatedBytes(thread) - bytes0) / requests;
+
+		System.out.println(String.format("%-24s %,10.0f bytes/request %6.1f bytes/item %8.1f us/request (%d)",
+				name, bytes, bytes / items, seconds * 1e6 / requests, checksum & 1));
+		return bytes;
+	}
+
+	// What the server's node map is to the namespaces, without a server
+	private static class NodeMap extends ConcurrentHashMap<NodeId, ServerNode> implements ServerNodeMap {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,118 @@
+package opcuaTest.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import opcuaTest.history.HistoryManager;
+import opcuaTest.namespaces.ScalarValueStore;
+import opcuaTest.namespaces.WriteDispatcher;
+
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+
+/**
+ * Write throughput through the {@link WriteDispatcher} against batch size and number of
+ * cores: Write requests of 1 to 100,000 Int32 values over 10,000 tags, each value written
+ * the way TestNamespace writes its TestSubfolder1 variables, less the node and the MQTT
+ * bridge, i.e. to a {@link ScalarValueStore} and stamped into an in-memory history. The
+ * "sequential" rows write each request in a loop on the calling thread, as the namespaces
+ * did before.
+ * <p>
+ * Usage: WriteDispatchBenchmark [valuesPerRun] [maxCores]
+ */
+public class WriteDispatchBenchmark {
+
+	private static final int TAGS = 10_000;
+	private static final int[] BATCH_SIZES = {1, 100, 1000, 10_000, 100_000};
+
+	public static void main(String[] args) throws Exception {
+		int valuesPerRun = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		int maxCores = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		ScalarValueStore store = new ScalarValueStore();
+		HistoryManager historyManager = new HistoryManager();
+		NodeId[] nodeIds = new NodeId[TAGS];
+		for (int i = 0; i < TAGS; i++) {
+			nodeIds[i] = new NodeId(2, "bench/TestVariable_" + i);
+			store.register(nodeIds[i], Identifiers.Int32, new DataValue(new Variant(0)));
+			historyManager.register(nodeIds[i], Identifiers.Int32);
+		}
+
+		WriteDispatcher.Writer writer = writeValue -> {
+			store.write(store.getSlot(writeValue.getNodeId()), writeValue.getValue());
+			DateTime now = DateTime.now();
+			historyManager.record(writeValue.getNodeId(),
+					new DataValue(writeValue.getValue().getValue(), StatusCode.GOOD, now, now));
+			return StatusCode.GOOD;
+		};
+
+		System.out.println(String.format("valuesPerRun=%d tags=%d", valuesPerRun, TAGS));
+
+		for (int batchSize : BATCH_SIZES) {
+			List<List<WriteValue>> requests = requests(nodeIds, batchSize, Math.max(1, valuesPerRun / batchSize));
+
+			run("sequential", batchSize, requests, writeValues -> {
+				for (WriteValue writeValue : writeValues) {
+					writer.write(writeValue);
+				}
+			});
+
+			for (int cores = 1; cores <= maxCores; cores *= 2) {
+				ForkJoinPool pool = WriteDispatcher.newPool(cores);
+				WriteDispatcher dispatcher = new WriteDispatcher(pool, WriteDispatcher.DEFAULT_CHUNK_SIZE);
+				try {
+					run(cores + " cores", batchSize, requests,
+							writeValues -> dispatcher.dispatch(writeValues, writer).get());
+				} finally {
+					pool.shutdown();
+				}
+			}
+		}
+
+		historyManager.close();
+	}
+
+	private interface Request {
+		void write(List<WriteValue> writeValues) throws Exception;
+	}
+
+	private static List<List<WriteValue>> requests(NodeId[] nodeIds, int batchSize, int count) {
+		List<List<WriteValue>> requests = new ArrayList<List<WriteValue>>(count);
+		int tag = 0;
+		for (int r = 0; r < count; r++) {
+			List<WriteValue> writeValues = new ArrayList<WriteValue>(batchSize);
+			for (int i = 0; i < batchSize; i++) {
+				writeValues.add(new WriteValue(nodeIds[tag], AttributeId.Value.uid(), null,
+						new DataValue(new Variant(r + i))));
+				tag = (tag + 1) % nodeIds.length;
+			}
+			requests.add(writeValues);
+		}
+		return requests;
+	}
+
+	// Timed on the second of two passes
+	private static void run(String name, int batchSize, List<List<WriteValue>> requests, Request request)
+			throws Exception {
+
+		double seconds = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long t0 = System.nanoTime();
+			for (List<WriteValue> writeValues : requests) {
+				request.write(writeValues);
+			}
+			seconds = (System.nanoTime() - t0) / 1e9;
+		}
+
+		long values = (long) batchSize * requests.size();
+		System.out.println(String.format("batch %6d %-12s %,12.0f values/s %10.1f us/request",
+				batchSize, name, values / seconds, seconds * 1e6 / requests.size()));
+	}
+}
@@ -0,0 +1,142 @@
+package opcuaTest.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import opcuaTest.journal.WriteJournal;
+import opcuaTest.journal.WriteJournalReader;
+import opcuaTest.namespaces.ScalarValueStore;
+import opcuaTest.namespaces.WriteDispatcher;
+
+import org.eclipse.milo.opcua.sdk.server.api.AttributeManager.WriteContext;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+
+/**
+ * Writes/second through {@link WriteDispatcher#write} with the {@link WriteJournal} off, on
+ * without syncing and on with a sync per group commit, for 1, 4 and 16 clients sending
+ * Write requests of 1, 100 and 10,000 Int32 values as fast as they are answered. The
+ * values go to a {@link ScalarValueStore}, so the journal is most of the cost. The
+ * "records/commit" column is how many writes shared a group.
+ * <p>
+ * Usage: WriteJournalBenchmark [secondsPerRun]
+ */
+public class WriteJournalBenchmark {
+
+	private static final int TAGS = 10_000;
+	private static final int[] CLIENTS = {1, 4, 16};
+	private static final int[] BATCH_SIZES = {1, 100, 10_000};
+
+	private enum Mode {
+		OFF, ON, SYNC
+	}
+
+	public static void main(String[] args) throws Exception {
+		double secondsPerRun = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+
+		ScalarValueStore store = new ScalarValueStore();
+		NodeId[] nodeIds = new NodeId[TAGS];
+		for (int i = 0; i < TAGS; i++) {
+			nodeIds[i] = new NodeId(2, "bench/TestVariable_" + i);
+			store.register(nodeIds[i], Identifiers.Int32, new DataValue(new Variant(0)));
+		}
+		WriteDispatcher.Writer writer = writeValue -> {
+			store.write(store.getSlot(writeValue.getNodeId()), writeValue.getValue());
+			return StatusCode.GOOD;
+		};
+
+		ForkJoinPool pool = WriteDispatcher.newPool(Runtime.getRuntime().availableProcessors());
+		System.out.println(String.format("secondsPerRun=%.1f cores=%d", secondsPerRun, pool.getParallelism()));
+
+		try {
+			for (int batchSize : BATCH_SIZES) {
+				for (int clients : CLIENTS) {
+					for (Mode mode : Mode.values()) {
+						run(pool, writer, nodeIds, batchSize, clients, mode, secondsPerRun);
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void run(ForkJoinPool pool, WriteDispatcher.Writer writer, NodeId[] nodeIds, int batchSize,
+			int clients, Mode mode, double seconds) throws Exception {
+
+		File directory = Files.createTempDirectory("write-journal").toFile();
+		WriteJournal journal = mode == Mode.OFF ? null
+				: WriteJournal.open(directory, WriteJournal.DEFAULT_SEGMENT_BYTES, mode == Mode.SYNC,
+						WriteJournal.DEFAULT_QUEUE_CAPACITY);
+		WriteDispatcher dispatcher = new WriteDispatcher(pool, WriteDispatcher.DEFAULT_CHUNK_SIZE, journal);
+
+		AtomicLong requests = new AtomicLong();
+		long deadline = System.nanoTime() + (long) (seconds * 1e9);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int c = 0; c < clients; c++) {
+			List<WriteValue> writeValues = new ArrayList<WriteValue>(batchSize);
+			for (int i = 0; i < batchSize; i++) {
+				NodeId nodeId = nodeIds[(c * batchSize + i) % nodeIds.length];
+				writeValues.add(new WriteValue(nodeId, AttributeId.Value.uid(), null, new DataValue(new Variant(i))));
+			}
+
+			Thread thread = new Thread(() -> {
+				try {
+					while (System.nanoTime() < deadline) {
+						CompletableFuture<List<StatusCode>> future = new CompletableFuture<>();
+						dispatcher.write(new WriteContext(null, null, future, null), writeValues, writer);
+						future.get();
+						requests.incrementAndGet();
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+			threads.add(thread);
+		}
+
+		long t0 = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double elapsed = (System.nanoTime() - t0) / 1e9;
+
+		long values = requests.get() * batchSize;
+		String commits = "";
+		if (journal != null) {
+			journal.close();
+			long records = WriteJournalReader.read(directory, record -> true);
+			if (records != values) {
+				throw new IllegalStateException("journaled " + records + " of " + values + " writes");
+			}
+			commits = String.format(" %8.1f records/commit %6.1f bytes/record",
+					(double) journal.getRecordCount() / Math.max(1, journal.getCommitCount()),
+					(double) journal.getWrittenBytes() / Math.max(1, journal.getRecordCount()));
+		}
+
+		System.out.println(String.format("batch %5d clients %2d journal %-4s %,12.0f writes/s %,9.0f requests/s%s",
+				batchSize, clients, mode, values / elapsed, requests.get() / elapsed, commits));
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
@@ -9,6 +9,8 @@ import org.eclipse.milo.examples.server.types.CustomDataType;
 import org.eclipse.milo.opcua.sdk.client.OpcUaClient;
 import org.eclipse.milo.opcua.sdk.client.api.nodes.Node;
 import org.eclipse.milo.opcua.sdk.client.api.nodes.VariableNode;
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.ValueRank;
 import org.eclipse.milo.opcua.stack.core.Identifiers;
 import org.eclipse.milo.opcua.stack.core.types.OpcUaBinaryDataTypeDictionary;
 import org.eclipse.milo.opcua.stack.core.types.OpcUaDataTypeManager;
@@ -16,6 +18,7 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
 import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
 import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
 import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
 import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
@@ -23,6 +26,8 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
 import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.CallMethodRequest;
 import org.eclipse.milo.opcua.stack.core.types.structured.CallMethodResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryData;
@@ -31,12 +36,14 @@ import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResponse;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
 import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.VariableAttributes;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
 
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
 import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.l;
 
@@ -255,7 +262,7 @@ public class ClientTest implements Client {
 		}
 	}
 	
-	private void addNodes() {
+	private void addNodes() throws Exception {
 		List<AddNodesItem> nodesToAdd = new ArrayList<AddNodesItem>();
 		
 		//Add a folder node
@@ -265,24 +272,42 @@ public class ClientTest implements Client {
 				Identifiers.Organizes, 
 				nodeId.expanded(), 
 				new QualifiedName(3, "TestSubfolder2"), 
-				NodeClass.ObjectType, 
+				NodeClass.Object, 
 				null, 
-				Identifiers.BaseObjectType.expanded());
+				Identifiers.FolderType.expanded());
 		nodesToAdd.add(nodeToAdd);
 		
-		//Add a variable to it
+		//Add an Int32 variable to it
+		ExtensionObject attributes = ExtensionObject.encode(new VariableAttributes(
+				uint(0), 
+				LocalizedText.english("TestVariable_2_0"), 
+				null, 
+				uint(0), 
+				uint(0), 
+				new Variant(0), 
+				Identifiers.Int32, 
+				ValueRank.Scalar.getValue(), 
+				null, 
+				ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)), 
+				ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)), 
+				0.0, 
+				false));
+		
 		NodeId nodeId2 = new NodeId(3, "TestVariable_2_0");
 		AddNodesItem nodeToAdd2 = new AddNodesItem(
 				new NodeId(3, "TestSubfolder2").expanded(), 
 				Identifiers.Organizes, 
 				nodeId2.expanded(), 
 				new QualifiedName(3, "TestVariable_2_0"), 
-				NodeClass.VariableType, 
-				null, 
+				NodeClass.Variable, 
+				attributes, 
 				Identifiers.BaseDataVariableType.expanded());
 		nodesToAdd.add(nodeToAdd2);
 		
-		opcUaClient.addNodes(nodesToAdd);
+		AddNodesResponse response = opcUaClient.addNodes(nodesToAdd).get();
+		for (AddNodesResult result : response.getResults()) {
+			logger.info("Added node={} status={}", result.getAddedNodeId(), result.getStatusCode());
+		}
 	}
 
 	private void browseNode(String indent, NodeId browseRoot) {
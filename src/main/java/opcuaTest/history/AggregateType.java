@@ -0,0 +1,44 @@
+package opcuaTest.history;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+/**
+ * The standard aggregates a ReadProcessedDetails HistoryRead can ask for. All but
+ * {@link #INTERPOLATIVE} are computed from the good samples of each interval and can be
+ * answered from {@link Rollup}s.
+ */
+public enum AggregateType {
+
+	AVERAGE(Identifiers.AggregateFunction_Average),
+	MINIMUM(Identifiers.AggregateFunction_Minimum),
+	MAXIMUM(Identifiers.AggregateFunction_Maximum),
+	COUNT(Identifiers.AggregateFunction_Count),
+	INTERPOLATIVE(Identifiers.AggregateFunction_Interpolative);
+
+	private final NodeId nodeId;
+
+	AggregateType(NodeId nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public NodeId getNodeId() {
+		return nodeId;
+	}
+
+	public boolean isRollupable() {
+		return this != INTERPOLATIVE;
+	}
+
+	/**
+	 * @return the aggregate function with the given node id, null if not supported.
+	 */
+	public static AggregateType of(NodeId nodeId) {
+		for (AggregateType type : values()) {
+			if (type.nodeId.equals(nodeId)) {
+				return type;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,127 @@
+package opcuaTest.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the samples of a block written by {@link BlockEncoder}, one {@link #next()} at
+ * a time and without allocating.
+ */
+class BlockDecoder {
+
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final boolean floatingPoint;
+	private final int count;
+
+	private long bitPosition = 0;
+	private int index = 0;
+
+	private long time;
+	private long delta;
+	private long bits;
+	private int status;
+	private int leading = -1;
+	private int trailing;
+
+	/**
+	 * @param count samples to decode, at most as many as were appended
+	 */
+	BlockDecoder(ByteBuffer buffer, int offset, boolean floatingPoint, int count) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.floatingPoint = floatingPoint;
+		this.count = count;
+	}
+
+	/**
+	 * Decodes the next sample.
+	 *
+	 * @return false if all samples have been decoded.
+	 */
+	boolean next() {
+		if (index == count) {
+			return false;
+		}
+
+		if (index == 0) {
+			time = readBits(64);
+			bits = readBits(64);
+			status = (int) readBits(32);
+		} else {
+			delta += readSigned();
+			time += delta;
+
+			if (floatingPoint) {
+				bits ^= readXor();
+			} else {
+				bits += readSigned();
+			}
+
+			if (readBits(1) != 0) {
+				status = (int) readBits(32);
+			}
+		}
+
+		index++;
+		return true;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	long getBits() {
+		return bits;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
+	void copyStateTo(BlockEncoder encoder) {
+		encoder.restore(bitPosition, index, time, delta, bits, status, leading, trailing);
+	}
+
+	private long readXor() {
+		if (readBits(1) == 0) {
+			return 0;
+		}
+		if (readBits(1) != 0) {
+			leading = (int) readBits(6);
+			int length = (int) readBits(6) + 1;
+			trailing = 64 - leading - length;
+		}
+		return readBits(64 - leading - trailing) << trailing;
+	}
+
+	private long readSigned() {
+		int ones = 0;
+		while (ones < BlockEncoder.BUCKET_PREFIX_MAX && readBits(1) != 0) {
+			ones++;
+		}
+		if (ones == 0) {
+			return 0;
+		}
+		if (ones == BlockEncoder.BUCKET_PREFIX_MAX) {
+			return readBits(64);
+		}
+		int n = BlockEncoder.BUCKET_BITS[ones - 1];
+		// Sign extend
+		return (readBits(n) << (64 - n)) >> (64 - n);
+	}
+
+	private long readBits(int n) {
+		long value = 0;
+		while (n > 0) {
+			int available = 8 - (int) (bitPosition & 7);
+			int take = Math.min(available, n);
+			int current = buffer.get(offset + (int) (bitPosition >>> 3)) & 0xff;
+
+			value = (value << take) | ((current >>> (available - take)) & ((1 << take) - 1));
+
+			bitPosition += take;
+			n -= take;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,188 @@
+package opcuaTest.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses samples into a fixed-size region of a buffer, in the style of Facebook's
+ * Gorilla: the first sample is stored as is, after that
+ * <ul>
+ * <li>timestamps as the difference between consecutive deltas, 1 bit when the spacing
+ * is regular,</li>
+ * <li>floating point values as the XOR with the previous value, storing only the
+ * meaningful bits and reusing the previous leading/trailing zero window when it fits,</li>
+ * <li>integer values as the delta to the previous value, 1 bit when unchanged,</li>
+ * <li>status codes as 1 bit when unchanged.</li>
+ * </ul>
+ * Deltas use variable-length buckets sized for 100 ns ticks, see {@link #writeSigned(long)}.
+ * Bits are written straight into the buffer, so a sample is readable by a
+ * {@link BlockDecoder} as soon as {@link #append} returns.
+ */
+class BlockEncoder {
+
+	// Payload sizes of the signed buckets, prefixed by 10, 110, 1110 and 11110; 11111 is a full long
+	static final int[] BUCKET_BITS = {7, 12, 20, 32};
+	static final int BUCKET_PREFIX_MAX = BUCKET_BITS.length + 1;
+
+	// Largest encoding of one sample: time 5+64, value 1+1+6+6+64, status 1+32
+	private static final int MAX_SAMPLE_BITS = 69 + 78 + 33;
+
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final long capacityBits;
+	private final boolean floatingPoint;
+
+	private long bitPosition = 0;
+	private int count = 0;
+
+	private long previousTime;
+	private long previousDelta;
+	private long previousBits;
+	private int previousStatus;
+	private int previousLeading = -1;
+	private int previousTrailing;
+
+	BlockEncoder(ByteBuffer buffer, int offset, int capacityBytes, boolean floatingPoint) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.capacityBits = (long) capacityBytes * 8;
+		this.floatingPoint = floatingPoint;
+	}
+
+	/**
+	 * Continues a block holding {@code count} samples, e.g. the last block of a series
+	 * after a restart. Anything written after those samples is overwritten.
+	 */
+	static BlockEncoder resume(ByteBuffer buffer, int offset, int capacityBytes, boolean floatingPoint, int count) {
+		BlockEncoder encoder = new BlockEncoder(buffer, offset, capacityBytes, floatingPoint);
+		if (count == 0) {
+			return encoder;
+		}
+
+		BlockDecoder decoder = new BlockDecoder(buffer, offset, floatingPoint, count);
+		while (decoder.next()) {
+			// decode to the end for the state
+		}
+		decoder.copyStateTo(encoder);
+		return encoder;
+	}
+
+	/**
+	 * @return false if the block is full, nothing was written then.
+	 */
+	boolean append(long time, long bits, int status) {
+		if (bitPosition + MAX_SAMPLE_BITS > capacityBits) {
+			return false;
+		}
+
+		if (count == 0) {
+			writeBits(time, 64);
+			writeBits(bits, 64);
+			writeBits(status, 32);
+		} else {
+			long delta = time - previousTime;
+			writeSigned(delta - previousDelta);
+			previousDelta = delta;
+
+			if (floatingPoint) {
+				writeXor(bits ^ previousBits);
+			} else {
+				writeSigned(bits - previousBits);
+			}
+
+			if (status == previousStatus) {
+				writeBits(0, 1);
+			} else {
+				writeBits(1, 1);
+				writeBits(status, 32);
+			}
+		}
+
+		previousTime = time;
+		previousBits = bits;
+		previousStatus = status;
+		count++;
+		return true;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	int getSizeBytes() {
+		return (int) ((bitPosition + 7) >>> 3);
+	}
+
+	void restore(long bitPosition, int count, long time, long delta, long bits, int status, int leading, int trailing) {
+		this.bitPosition = bitPosition;
+		this.count = count;
+		this.previousTime = time;
+		this.previousDelta = delta;
+		this.previousBits = bits;
+		this.previousStatus = status;
+		this.previousLeading = leading;
+		this.previousTrailing = trailing;
+	}
+
+	private void writeXor(long xor) {
+		if (xor == 0) {
+			writeBits(0, 1);
+			return;
+		}
+		writeBits(1, 1);
+
+		int leading = Math.min(63, Long.numberOfLeadingZeros(xor));
+		int trailing = Long.numberOfTrailingZeros(xor);
+
+		if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+			writeBits(0, 1);
+			writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+		} else {
+			int length = 64 - leading - trailing;
+			writeBits(1, 1);
+			writeBits(leading, 6);
+			writeBits(length - 1, 6);
+			writeBits(xor >>> trailing, length);
+			previousLeading = leading;
+			previousTrailing = trailing;
+		}
+	}
+
+	/**
+	 * 0 as a single 0 bit, otherwise the smallest bucket that holds the value: 10 + 7 bits,
+	 * 110 + 12, 1110 + 20, 11110 + 32 or 11111 + 64.
+	 */
+	private void writeSigned(long value) {
+		if (value == 0) {
+			writeBits(0, 1);
+			return;
+		}
+		for (int i = 0; i < BUCKET_BITS.length; i++) {
+			int bits = BUCKET_BITS[i];
+			if (value >= -(1L << (bits - 1)) && value < (1L << (bits - 1))) {
+				writeBits(((1L << (i + 1)) - 1) << 1, i + 2);
+				writeBits(value, bits);
+				return;
+			}
+		}
+		writeBits((1L << BUCKET_PREFIX_MAX) - 1, BUCKET_PREFIX_MAX);
+		writeBits(value, 64);
+	}
+
+	// The low n bits of value, most significant first
+	private void writeBits(long value, int n) {
+		while (n > 0) {
+			int index = offset + (int) (bitPosition >>> 3);
+			int used = (int) (bitPosition & 7);
+			int free = 8 - used;
+			int take = Math.min(free, n);
+
+			int bits = (int) (value >>> (n - take)) & ((1 << take) - 1);
+			// Keep what this block wrote before, the rest of the byte may be left over from a crash
+			int current = used == 0 ? 0 : buffer.get(index) & (0xff << free) & 0xff;
+			buffer.put(index, (byte) (current | (bits << (free - take))));
+
+			bitPosition += take;
+			n -= take;
+		}
+	}
+}
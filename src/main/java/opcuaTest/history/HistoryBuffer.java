@@ -0,0 +1,363 @@
+package opcuaTest.history;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory history of one variable: a time-ordered ring of samples kept in three
+ * primitive arrays (timestamp, raw value bits, status code), 20 bytes per sample and no
+ * object per sample. The ring grows by doubling up to its capacity, after that the
+ * oldest sample is overwritten.
+ * <p>
+ * Samples normally arrive in time order and are appended; a late sample is inserted at
+ * its place so reads can always binary search on the timestamp. Edits of a range rebuild
+ * the arrays in one pass.
+ */
+public class HistoryBuffer {
+
+	public static final int BYTES_PER_SAMPLE = 8 + 8 + 4;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final HistoryValueType type;
+	private final int capacity;
+
+	private long[] times;
+	private long[] values;
+	private int[] statuses;
+
+	// Physical index of the oldest sample
+	private int head = 0;
+	private int size = 0;
+	private long overwritten = 0;
+
+	// Every sample appended with a time from here on is still in the buffer
+	private long coveredFrom = Long.MAX_VALUE;
+
+	/**
+	 * @param capacity maximum number of samples kept, rounded up to a power of two
+	 */
+	public HistoryBuffer(HistoryValueType type, int capacity) {
+		this.type = type;
+		this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+
+		int initial = Math.min(INITIAL_CAPACITY, this.capacity);
+		this.times = new long[initial];
+		this.values = new long[initial];
+		this.statuses = new int[initial];
+	}
+
+	public HistoryValueType getType() {
+		return type;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void append(long time, long bits, int status) {
+		lock.writeLock().lock();
+		try {
+			insert(time, bits, status);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a sample unless it is older than what the buffer covers, for a buffer used
+	 * as a cache of the recent part of a longer history.
+	 *
+	 * @return false if the sample was not added.
+	 */
+	public boolean appendIfCovered(long time, long bits, int status) {
+		lock.writeLock().lock();
+		try {
+			// Unset until the first sample, it is never lowered again after that
+			if (coveredFrom != Long.MAX_VALUE && time < coveredFrom) {
+				return false;
+			}
+			insert(time, bits, status);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if a {@link #read} from {@code low} finds everything that was appended
+	 * for that range, including the bound before it if asked for.
+	 */
+	public boolean covers(long low, boolean returnBounds) {
+		lock.readLock().lock();
+		try {
+			if (size == 0) {
+				return false;
+			}
+			return returnBounds ? times[head] < low : low >= coveredFrom;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Edits the samples with {@code low <= time <= high}, for a buffer holding the whole
+	 * history of its variable. What the edit adds beyond the capacity overwrites the oldest
+	 * samples.
+	 */
+	public void edit(long low, long high, SampleEditor editor) {
+		lock.writeLock().lock();
+		try {
+			int from = lowerBound(low);
+			int to = upperBound(high);
+
+			Samples samples = new Samples(size + 16);
+			for (int i = 0; i < from; i++) {
+				int index = physical(i);
+				samples.visit(times[index], values[index], statuses[index]);
+			}
+			for (int i = from; i < to; i++) {
+				int index = physical(i);
+				editor.visit(times[index], values[index], statuses[index], samples);
+			}
+			editor.finish(samples);
+			for (int i = to; i < size; i++) {
+				int index = physical(i);
+				samples.visit(times[index], values[index], statuses[index]);
+			}
+
+			int dropped = Math.max(0, samples.count - capacity);
+			if (dropped > 0) {
+				coveredFrom = Math.max(coveredFrom, samples.times[dropped - 1] + 1);
+				overwritten += dropped;
+			}
+			size = samples.count - dropped;
+
+			int length = Math.min(INITIAL_CAPACITY, capacity);
+			while (length < size) {
+				length *= 2;
+			}
+			times = Arrays.copyOfRange(samples.times, dropped, dropped + length);
+			values = Arrays.copyOfRange(samples.bits, dropped, dropped + length);
+			statuses = Arrays.copyOfRange(samples.statuses, dropped, dropped + length);
+			head = 0;
+
+			if (size > 0) {
+				coveredFrom = Math.min(coveredFrom, times[0]);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops the samples up to {@code time}, for a buffer caching a history that was edited
+	 * there: reads from before the time on go to the history instead, and later samples
+	 * older than the time are not added.
+	 */
+	public void dropThrough(long time) {
+		lock.writeLock().lock();
+		try {
+			if (time < coveredFrom) {
+				return;
+			}
+			int dropped = upperBound(time);
+			head = physical(dropped);
+			size -= dropped;
+			coveredFrom = time + 1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void insert(long time, long bits, int status) {
+		if (size == times.length) {
+			if (times.length < capacity) {
+				grow();
+			} else {
+				coveredFrom = Math.max(coveredFrom, times[head] + 1);
+				head = (head + 1) & (times.length - 1);
+				size--;
+				overwritten++;
+			}
+		}
+		if (size == 0) {
+			coveredFrom = Math.min(coveredFrom, time);
+		}
+
+		int position = size;
+		if (size > 0 && time < times[physical(size - 1)]) {
+			// Late sample, shift the newer ones up by one
+			position = upperBound(time);
+			for (int i = size; i > position; i--) {
+				int to = physical(i);
+				int from = physical(i - 1);
+				times[to] = times[from];
+				values[to] = values[from];
+				statuses[to] = statuses[from];
+			}
+		}
+
+		int index = physical(position);
+		times[index] = time;
+		values[index] = bits;
+		statuses[index] = status;
+		size++;
+	}
+
+	/**
+	 * Visits the samples with {@code low <= time < high}, oldest first or, if
+	 * {@code reverse}, newest first. With {@code returnBounds} the nearest sample outside
+	 * each end of the range is visited as well, unless a sample sits exactly on {@code low}.
+	 */
+	public void read(long low, long high, boolean reverse, boolean returnBounds, SampleVisitor visitor) {
+		lock.readLock().lock();
+		try {
+			int from = lowerBound(low);
+			int to = lowerBound(high);
+
+			if (returnBounds) {
+				if (from > 0 && (from == size || times[physical(from)] != low)) {
+					from--;
+				}
+				if (to < size) {
+					to++;
+				}
+			}
+
+			if (reverse) {
+				for (int i = to - 1; i >= from; i--) {
+					int index = physical(i);
+					if (!visitor.visit(times[index], values[index], statuses[index])) {
+						return;
+					}
+				}
+			} else {
+				for (int i = from; i < to; i++) {
+					int index = physical(i);
+					if (!visitor.visit(times[index], values[index], statuses[index])) {
+						return;
+					}
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return samples lost because the buffer was full.
+	 */
+	public long getOverwrittenCount() {
+		lock.readLock().lock();
+		try {
+			return overwritten;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes held by the sample arrays, at most {@code capacity * BYTES_PER_SAMPLE}.
+	 */
+	public long getMemoryBytes() {
+		lock.readLock().lock();
+		try {
+			return (long) times.length * BYTES_PER_SAMPLE;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private int physical(int logical) {
+		return (head + logical) & (times.length - 1);
+	}
+
+	// First logical index with a time >= the given one
+	private int lowerBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[physical(mid)] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// First logical index with a time > the given one
+	private int upperBound(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[physical(mid)] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// The samples of an edit, before they replace the arrays
+	private static final class Samples implements SampleVisitor {
+		long[] times;
+		long[] bits;
+		int[] statuses;
+		int count = 0;
+
+		Samples(int capacity) {
+			times = new long[capacity];
+			bits = new long[capacity];
+			statuses = new int[capacity];
+		}
+
+		@Override
+		public boolean visit(long time, long bits, int status) {
+			if (count == times.length) {
+				times = Arrays.copyOf(times, count * 2);
+				this.bits = Arrays.copyOf(this.bits, count * 2);
+				statuses = Arrays.copyOf(statuses, count * 2);
+			}
+			times[count] = time;
+			this.bits[count] = bits;
+			statuses[count] = status;
+			count++;
+			return true;
+		}
+	}
+
+	private void grow() {
+		int length = times.length * 2;
+		long[] newTimes = new long[length];
+		long[] newValues = new long[length];
+		int[] newStatuses = new int[length];
+
+		for (int i = 0; i < size; i++) {
+			int index = physical(i);
+			newTimes[i] = times[index];
+			newValues[i] = values[index];
+			newStatuses[i] = statuses[index];
+		}
+
+		times = newTimes;
+		values = newValues;
+		statuses = newStatuses;
+		head = 0;
+	}
+}
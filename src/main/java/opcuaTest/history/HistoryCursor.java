@@ -0,0 +1,103 @@
+package opcuaTest.history;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+/**
+ * Where a paged raw HistoryRead stopped. Holds no lock and no reference into the history:
+ * the next page reads again from {@link #getTime()}, skipping the samples at that time
+ * already returned, so appends between pages don't invalidate it. The store finds that
+ * time by a binary search over its blocks, so a page decodes none of the blocks before it.
+ */
+final class HistoryCursor {
+
+	private final NodeId nodeId;
+	private final long low;
+	private final long high;
+	private final boolean reverse;
+	private final boolean returnBounds;
+	private final int pageSize;
+
+	// Time of the last sample returned, and how many were returned with that time
+	private final boolean resumed;
+	private final long time;
+	private final int returnedAtTime;
+
+	private final long issuedNanos = System.nanoTime();
+
+	HistoryCursor(NodeId nodeId, long low, long high, boolean reverse, boolean returnBounds, int pageSize) {
+		this(nodeId, low, high, reverse, returnBounds, pageSize, false, 0, 0);
+	}
+
+	private HistoryCursor(NodeId nodeId, long low, long high, boolean reverse, boolean returnBounds, int pageSize,
+			boolean resumed, long time, int returnedAtTime) {
+
+		this.nodeId = nodeId;
+		this.low = low;
+		this.high = high;
+		this.reverse = reverse;
+		this.returnBounds = returnBounds;
+		this.pageSize = pageSize;
+		this.resumed = resumed;
+		this.time = time;
+		this.returnedAtTime = returnedAtTime;
+	}
+
+	/**
+	 * @return a cursor continuing after the given sample of this one's page.
+	 */
+	HistoryCursor next(long time, int returnedAtTime) {
+		return new HistoryCursor(nodeId, low, high, reverse, returnBounds, pageSize, true, time, returnedAtTime);
+	}
+
+	NodeId getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return the low end of what is left to read, the page continues at a sample already
+	 * returned when resumed going forward.
+	 */
+	long getLow() {
+		return resumed && !reverse ? time : low;
+	}
+
+	long getHigh() {
+		return resumed && reverse ? time + 1 : high;
+	}
+
+	/**
+	 * @return true if what a read finds at this time was returned by previous pages: it is
+	 * before where the last page stopped or past the end the read started from, whose
+	 * bound is the first value returned.
+	 */
+	boolean isBehind(long time) {
+		if (!resumed) {
+			return false;
+		}
+		return reverse ? time > this.time || time >= high : time < this.time || time < low;
+	}
+
+	boolean isReverse() {
+		return reverse;
+	}
+
+	boolean isReturnBounds() {
+		return returnBounds;
+	}
+
+	int getPageSize() {
+		return pageSize;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	int getReturnedAtTime() {
+		return returnedAtTime;
+	}
+
+	long getIdleNanos() {
+		return System.nanoTime() - issuedNanos;
+	}
+}
@@ -0,0 +1,93 @@
+package opcuaTest.history;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+
+/**
+ * The continuation points handed out for paged HistoryReads. A continuation point is a
+ * random id for a {@link HistoryCursor} and can be used once; at most {@code capacity}
+ * are open at a time and one that isn't used within the idle timeout is dropped.
+ */
+class HistoryCursors {
+
+	private static final int ID_BYTES = 16;
+
+	private final ConcurrentMap<UUID, HistoryCursor> cursors = new ConcurrentHashMap<UUID, HistoryCursor>();
+
+	private final int capacity;
+	private final long idleTimeoutNanos;
+
+	HistoryCursors(int capacity, long idleTimeoutMillis) {
+		this.capacity = capacity;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+	}
+
+	/**
+	 * @return the continuation point of the cursor, null if all are in use.
+	 */
+	ByteString open(HistoryCursor cursor) {
+		if (cursors.size() >= capacity) {
+			expire();
+			if (cursors.size() >= capacity) {
+				return null;
+			}
+		}
+
+		UUID id = UUID.randomUUID();
+		cursors.put(id, cursor);
+
+		ByteBuffer bytes = ByteBuffer.allocate(ID_BYTES);
+		bytes.putLong(id.getMostSignificantBits());
+		bytes.putLong(id.getLeastSignificantBits());
+		return ByteString.of(bytes.array());
+	}
+
+	/**
+	 * Removes the cursor of a continuation point.
+	 *
+	 * @return null if the continuation point is unknown or has expired.
+	 */
+	HistoryCursor take(ByteString continuationPoint) {
+		UUID id = id(continuationPoint);
+		HistoryCursor cursor = id != null ? cursors.remove(id) : null;
+
+		if (cursor == null || cursor.getIdleNanos() > idleTimeoutNanos) {
+			return null;
+		}
+		return cursor;
+	}
+
+	void release(ByteString continuationPoint) {
+		UUID id = id(continuationPoint);
+		if (id != null) {
+			cursors.remove(id);
+		}
+	}
+
+	int size() {
+		return cursors.size();
+	}
+
+	void expire() {
+		Iterator<HistoryCursor> iterator = cursors.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getIdleNanos() > idleTimeoutNanos) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static UUID id(ByteString continuationPoint) {
+		if (continuationPoint == null || continuationPoint.length() != ID_BYTES) {
+			return null;
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(continuationPoint.bytes());
+		return new UUID(bytes.getLong(), bytes.getLong());
+	}
+}
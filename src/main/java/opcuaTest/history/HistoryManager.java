@@ -0,0 +1,729 @@
+package opcuaTest.history;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.PerformUpdateType;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.DeleteRawModifiedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryData;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadProcessedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.UpdateDataDetails;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a {@link HistoryBuffer} for every historizing variable and serves raw HistoryRead
+ * requests from them. Samples are recorded with their source time; the same time is
+ * returned as server time when a client asks for it.
+ * <p>
+ * With a {@link HistoryStore} every sample is also persisted, and the buffers become a
+ * cache of the recent history: a read that starts before what a buffer holds goes to the
+ * store instead.
+ * <p>
+ * Raw reads return at most {@link #MAX_VALUES_PER_PAGE} values per node, or fewer if the
+ * client asks for fewer, with a continuation point for the rest.
+ * <p>
+ * Persisted history is trimmed by the store's compactor following the
+ * {@link RetentionPolicy} of each variable; reads of a downsampled range return the
+ * interval averages in place of the raw samples.
+ * <p>
+ * Processed reads are answered from per-minute and per-hour {@link Rollup}s kept next to
+ * each buffer when their intervals line up with the buckets, and from the raw samples
+ * otherwise. Rebuilt from the store on startup, the rollups start after the downsampled
+ * history, whose intervals are read from the averages.
+ * <p>
+ * HistoryUpdate inserts, replaces and deletes raw values a batch at a time: the batch is
+ * sorted and merged into the history in one pass and written to the store as whole
+ * blocks, beside the path of live values, then the rollups of the range are rebuilt.
+ */
+public class HistoryManager {
+
+	public static final int DEFAULT_SAMPLES_PER_NODE = 65536;
+
+	// A month of minutes and five years of hours, each growing with the history up to
+	// about 1.7 MB per variable
+	public static final int MINUTE_ROLLUP_BUCKETS = 31 * 24 * 60;
+	public static final int HOUR_ROLLUP_BUCKETS = 5 * 366 * 24;
+
+	// Bounds the memory of a single processed read
+	public static final int MAX_PROCESSED_INTERVALS = 100_000;
+
+	public static final int MAX_VALUES_PER_PAGE = 10_000;
+	public static final int MAX_CONTINUATION_POINTS = 1000;
+	public static final long CONTINUATION_POINT_TIMEOUT_MILLIS = 60_000;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ConcurrentMap<NodeId, Historized> nodes = new ConcurrentHashMap<NodeId, Historized>();
+
+	private final HistoryCursors cursors = new HistoryCursors(MAX_CONTINUATION_POINTS,
+			CONTINUATION_POINT_TIMEOUT_MILLIS);
+
+	private final int samplesPerNode;
+	private final HistoryStore store;
+
+	private final LongAdder updatedValues = new LongAdder();
+
+	public HistoryManager() {
+		this(DEFAULT_SAMPLES_PER_NODE, null);
+	}
+
+	/**
+	 * @param samplesPerNode history kept in memory per variable, which bounds the memory of
+	 *                       each one to {@code samplesPerNode * HistoryBuffer.BYTES_PER_SAMPLE}
+	 * @param store          where the history is persisted, or null to keep it in memory only
+	 */
+	public HistoryManager(int samplesPerNode, HistoryStore store) {
+		this.samplesPerNode = samplesPerNode;
+		this.store = store;
+	}
+
+	/**
+	 * Starts keeping history for a variable.
+	 *
+	 * @return false if values of the data type can't be historized.
+	 */
+	public boolean register(NodeId nodeId, NodeId dataType) {
+		HistoryValueType type = HistoryValueType.of(dataType);
+		if (type == null) {
+			logger.warn("Unable to historize {}, unsupported data type {}", nodeId, dataType);
+			return false;
+		}
+
+		int series = -1;
+		if (store != null) {
+			try {
+				series = store.register(nodeId, type);
+			} catch (IOException e) {
+				logger.error("Unable to persist the history of {}, keeping it in memory only", nodeId, e);
+			}
+		}
+		Historized historized = new Historized(new HistoryBuffer(type, samplesPerNode), series);
+		if (historized.isPersisted()) {
+			// Rollups aren't persisted, rebuild them from the raw samples the store still holds:
+			// an interval average would count as one sample, its buckets are left to raw reads
+			long downsampledEnd = store.getDownsampledEnd(series);
+			if (downsampledEnd != Long.MIN_VALUE) {
+				historized.minutes.drop(downsampledEnd);
+				historized.hours.drop(downsampledEnd);
+			}
+			long rawStart = downsampledEnd != Long.MIN_VALUE ? downsampledEnd + 1 : Long.MIN_VALUE;
+			store.read(series, rawStart, Long.MAX_VALUE, false, false, (time, bits, status) -> {
+				historized.roll(time, bits, status);
+				return true;
+			});
+		}
+		nodes.putIfAbsent(nodeId, historized);
+		return true;
+	}
+
+	/**
+	 * Sets how long the persisted history of a variable is kept, null keeps all of it.
+	 * History kept in memory only is bounded by its buffer already.
+	 *
+	 * @return false if the variable's history isn't persisted.
+	 */
+	public boolean setRetentionPolicy(NodeId nodeId, RetentionPolicy policy) {
+		Historized historized = nodes.get(nodeId);
+		if (historized == null || !historized.isPersisted()) {
+			return false;
+		}
+		store.setRetentionPolicy(historized.series, policy);
+		return true;
+	}
+
+	public boolean isHistorized(NodeId nodeId) {
+		return nodes.containsKey(nodeId);
+	}
+
+	/**
+	 * Adds a value to the history of a variable, values of variables that aren't
+	 * historized are ignored.
+	 */
+	public void record(NodeId nodeId, DataValue value) {
+		Historized historized = nodes.get(nodeId);
+		if (historized == null) {
+			return;
+		}
+		HistoryBuffer buffer = historized.buffer;
+
+		Object v = value.getValue() != null ? value.getValue().getValue() : null;
+		long time = ticks(value.getSourceTime() != null ? value.getSourceTime() : value.getServerTime());
+		int status = value.getStatusCode() != null ? (int) value.getStatusCode().getValue() : 0;
+
+		long bits;
+		try {
+			bits = v != null ? buffer.getType().toBits(v) : 0L;
+		} catch (ClassCastException e) {
+			logger.warn("Not historizing value={} of {}, expected {}", v, nodeId, buffer.getType());
+			return;
+		}
+
+		// An edit rebuilding the rollups of its range reads the samples back, in or out of them
+		synchronized (historized.rolling) {
+			historized.roll(time, bits, status);
+
+			if (!historized.isPersisted()) {
+				buffer.append(time, bits, status);
+				return;
+			}
+
+			// Older than the cached part, only the store has its neighbours
+			buffer.appendIfCovered(time, bits, status);
+			try {
+				store.append(historized.series, time, bits, status);
+			} catch (IOException e) {
+				logger.error("Unable to persist history of {}", nodeId, e);
+			}
+		}
+	}
+
+	/**
+	 * Reads a page of raw values, the first one or, if the value to read carries a
+	 * continuation point, the next one.
+	 */
+	public HistoryReadResult historyRead(HistoryReadDetails details, TimestampsToReturn timestamps,
+			HistoryReadValueId valueToRead) {
+
+		Historized historized = nodes.get(valueToRead.getNodeId());
+
+		if (historized == null || !(details instanceof ReadRawModifiedDetails)) {
+			return failed(StatusCodes.Bad_HistoryOperationUnsupported);
+		}
+
+		ByteString continuationPoint = valueToRead.getContinuationPoint();
+		if (continuationPoint != null && !continuationPoint.isNull()) {
+			HistoryCursor cursor = cursors.take(continuationPoint);
+			if (cursor == null || !cursor.getNodeId().equals(valueToRead.getNodeId())) {
+				return failed(StatusCodes.Bad_ContinuationPointInvalid);
+			}
+			return readPage(historized, cursor, timestamps);
+		}
+
+		ReadRawModifiedDetails raw = (ReadRawModifiedDetails) details;
+		if (Boolean.TRUE.equals(raw.getIsReadModified())) {
+			// Values are never modified, there is no modified history to read
+			return failed(StatusCodes.Bad_HistoryOperationUnsupported);
+		}
+
+		long start = ticks(raw.getStartTime());
+		long end = ticks(raw.getEndTime());
+		long maxValues = raw.getNumValuesPerNode() != null ? raw.getNumValuesPerNode().longValue() : 0;
+		boolean returnBounds = Boolean.TRUE.equals(raw.getReturnBounds());
+
+		// Two of start, end and the number of values are needed to know where to stop, but
+		// an end alone, e.g. after a start of DateTime.MIN_VALUE, reads all the values before it
+		int specified = (start != 0 ? 1 : 0) + (end != 0 ? 1 : 0) + (maxValues != 0 ? 1 : 0);
+		if (specified < 2 && end == 0) {
+			return failed(StatusCodes.Bad_InvalidTimestampArgument);
+		}
+
+		// Start is inclusive and end exclusive, going backwards when start is after end, or
+		// from end, inclusive, when only end and the number of values are given
+		boolean reverse = start == 0 ? maxValues != 0 : end != 0 && start > end;
+		long low;
+		long high;
+		if (reverse) {
+			low = start != 0 ? end + 1 : Long.MIN_VALUE;
+			high = start != 0 ? start + 1 : end + 1;
+		} else {
+			low = start;
+			high = end != 0 ? end : Long.MAX_VALUE;
+		}
+
+		int pageSize = (int) Math.min(maxValues == 0 ? MAX_VALUES_PER_PAGE : maxValues, MAX_VALUES_PER_PAGE);
+
+		return readPage(historized,
+				new HistoryCursor(valueToRead.getNodeId(), low, high, reverse, returnBounds, pageSize), timestamps);
+	}
+
+	/**
+	 * Applies one operation of a HistoryUpdate: inserts, replaces or updates the values of
+	 * an {@link UpdateDataDetails}, with a status code per value, or deletes the raw values
+	 * of a {@link DeleteRawModifiedDetails} range.
+	 */
+	public HistoryUpdateResult historyUpdate(HistoryUpdateDetails details) {
+		Historized historized = nodes.get(details.getNodeId());
+		if (historized == null) {
+			return updateFailed(StatusCodes.Bad_HistoryOperationUnsupported);
+		}
+
+		// Edits of a variable run one at a time, each rebuilding the rollups of its range
+		synchronized (historized) {
+			if (details instanceof UpdateDataDetails) {
+				return updateData(details.getNodeId(), historized, (UpdateDataDetails) details);
+			}
+			if (details instanceof DeleteRawModifiedDetails) {
+				return deleteRaw(details.getNodeId(), historized, (DeleteRawModifiedDetails) details);
+			}
+		}
+		return updateFailed(StatusCodes.Bad_HistoryOperationUnsupported);
+	}
+
+	/**
+	 * Frees the cursor of a continuation point the client doesn't need anymore.
+	 */
+	public void releaseContinuationPoint(ByteString continuationPoint) {
+		if (continuationPoint != null && !continuationPoint.isNull()) {
+			cursors.release(continuationPoint);
+		}
+	}
+
+	/**
+	 * @return continuation points currently open.
+	 */
+	public int getContinuationPointCount() {
+		return cursors.size();
+	}
+
+	/**
+	 * Computes an aggregate per processing interval between the start and end time of the
+	 * details, the intervals being laid out from the earlier of the two.
+	 *
+	 * @param aggregateType the aggregate function asked for this variable
+	 */
+	public HistoryReadResult historyReadProcessed(ReadProcessedDetails details, NodeId aggregateType,
+			TimestampsToReturn timestamps, HistoryReadValueId valueToRead) {
+
+		Historized historized = nodes.get(valueToRead.getNodeId());
+		if (historized == null) {
+			return failed(StatusCodes.Bad_HistoryOperationUnsupported);
+		}
+
+		AggregateType aggregate = AggregateType.of(aggregateType);
+		if (aggregate == null) {
+			return failed(StatusCodes.Bad_AggregateNotSupported);
+		}
+
+		long start = ticks(details.getStartTime());
+		long end = ticks(details.getEndTime());
+		if (start == 0 || end == 0 || start == end) {
+			return failed(StatusCodes.Bad_InvalidTimestampArgument);
+		}
+
+		boolean reverse = start > end;
+		long low = Math.min(start, end);
+		long high = Math.max(start, end);
+
+		// Milliseconds, 0 for a single interval over the whole range
+		double processingInterval = details.getProcessingInterval() != null ? details.getProcessingInterval() : 0;
+		long interval = processingInterval > 0 ? Math.max(1, Math.round(processingInterval * 10_000)) : high - low;
+
+		if (IntervalAccumulator.intervalCount(low, high, interval) > MAX_PROCESSED_INTERVALS) {
+			return failed(StatusCodes.Bad_TooManyOperations);
+		}
+
+		IntervalAccumulator accumulator = new IntervalAccumulator(aggregate, historized.buffer.getType(), low, high,
+				interval);
+
+		SampleVisitor adder = (time, bits, status) -> {
+			accumulator.add(time, bits, status);
+			return true;
+		};
+
+		Rollup rollup = aggregate.isRollupable() ? historized.rollupFor(low, interval) : null;
+		if (rollup != null) {
+			long aligned = high - high % rollup.getResolution();
+			rollup.fold(low, aligned, accumulator);
+			// An end time like "now" leaves part of the last interval in a bucket still filling
+			if (aligned < high) {
+				read(historized, aligned, high, false, false, adder);
+			}
+		} else {
+			// Interpolation needs the samples on either side of the range
+			read(historized, low, high, false, aggregate == AggregateType.INTERPOLATIVE, adder);
+		}
+
+		List<DataValue> values = accumulator.getResults(timestamps);
+		if (reverse) {
+			Collections.reverse(values);
+		}
+		return result(StatusCode.GOOD, values);
+	}
+
+	public int getHistorizedCount() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return samples held in memory, see {@link #getStore()} for the persisted ones.
+	 */
+	public long getSampleCount() {
+		long count = 0;
+		for (Historized historized : nodes.values()) {
+			count += historized.buffer.size();
+		}
+		return count;
+	}
+
+	public long getOverwrittenCount() {
+		long count = 0;
+		for (Historized historized : nodes.values()) {
+			count += historized.buffer.getOverwrittenCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return values inserted, replaced or deleted by HistoryUpdates.
+	 */
+	public long getUpdatedValueCount() {
+		return updatedValues.sum();
+	}
+
+	public long getMemoryBytes() {
+		long bytes = 0;
+		for (Historized historized : nodes.values()) {
+			bytes += historized.buffer.getMemoryBytes();
+			bytes += historized.minutes.getMemoryBytes() + historized.hours.getMemoryBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the store the history is persisted in, null if it is kept in memory only.
+	 */
+	public HistoryStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Flushes and closes the store, if any.
+	 */
+	public void close() {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	private HistoryUpdateResult updateData(NodeId nodeId, Historized historized, UpdateDataDetails details) {
+		SampleUpdate.Mode mode = mode(details.getPerformInsertReplace());
+		if (mode == null) {
+			return updateFailed(StatusCodes.Bad_HistoryOperationInvalid);
+		}
+		DataValue[] values = details.getUpdateValues();
+		if (values == null || values.length == 0) {
+			return updateFailed(StatusCodes.Bad_NothingToDo);
+		}
+
+		HistoryValueType type = historized.buffer.getType();
+		long[] results = new long[values.length];
+
+		// The values that can be historized, and where each one is in the request
+		long[] times = new long[values.length];
+		long[] bits = new long[values.length];
+		int[] statuses = new int[values.length];
+		int[] positions = new int[values.length];
+		int count = 0;
+
+		for (int i = 0; i < values.length; i++) {
+			DataValue value = values[i];
+			long time = ticks(value.getSourceTime() != null ? value.getSourceTime() : value.getServerTime());
+			if (time == 0) {
+				results[i] = StatusCodes.Bad_InvalidTimestamp;
+				continue;
+			}
+			Object v = value.getValue() != null ? value.getValue().getValue() : null;
+			try {
+				bits[count] = v != null ? type.toBits(v) : 0L;
+			} catch (ClassCastException e) {
+				results[i] = StatusCodes.Bad_TypeMismatch;
+				continue;
+			}
+			times[count] = time;
+			statuses[count] = value.getStatusCode() != null ? (int) value.getStatusCode().getValue() : 0;
+			positions[count] = i;
+			count++;
+		}
+
+		if (count > 0) {
+			SampleUpdate update = new SampleUpdate(mode, times, bits, statuses, count);
+			long statusCode = edit(nodeId, historized, update.getLow(), update.getHigh(), update);
+			for (int i = 0; i < count; i++) {
+				results[positions[i]] = statusCode != 0 ? statusCode : update.getResults()[i];
+				if (statusCode == 0 && new StatusCode(results[positions[i]]).isGood()) {
+					updatedValues.increment();
+				}
+			}
+		}
+
+		StatusCode[] operationResults = new StatusCode[results.length];
+		for (int i = 0; i < results.length; i++) {
+			operationResults[i] = new StatusCode(results[i]);
+		}
+		return new HistoryUpdateResult(StatusCode.GOOD, operationResults, null);
+	}
+
+	private HistoryUpdateResult deleteRaw(NodeId nodeId, Historized historized, DeleteRawModifiedDetails details) {
+		if (Boolean.TRUE.equals(details.getIsDeleteModified())) {
+			// Values are never modified, there is no modified history to delete
+			return updateFailed(StatusCodes.Bad_HistoryOperationUnsupported);
+		}
+
+		long start = ticks(details.getStartTime());
+		long end = ticks(details.getEndTime());
+		if (start == 0 || end == 0 || start == end) {
+			return updateFailed(StatusCodes.Bad_InvalidTimestampArgument);
+		}
+
+		// Start is inclusive and end exclusive, whichever comes first
+		long low = Math.min(start, end);
+		long high = Math.max(start, end);
+		SampleDelete delete = new SampleDelete(low, high);
+		long statusCode = edit(nodeId, historized, low, high - 1, delete);
+		if (statusCode != 0) {
+			return updateFailed(statusCode);
+		}
+
+		updatedValues.add(delete.getDeletedCount());
+		return new HistoryUpdateResult(delete.isChanged() ? StatusCode.GOOD : new StatusCode(StatusCodes.Good_NoData),
+				null, null);
+	}
+
+	/**
+	 * Applies an edit of {@code low <= time <= high} to the history of a variable and to
+	 * what is derived from it: the samples its buffer caches and its rollups.
+	 *
+	 * @return 0, or the status code of the failure.
+	 */
+	private long edit(NodeId nodeId, Historized historized, long low, long high, SampleEditor editor) {
+		if (!historized.isPersisted()) {
+			historized.buffer.edit(low, high, editor);
+		} else {
+			try {
+				if (!store.rewrite(historized.series, low, high, editor)) {
+					// Only raw history is edited, the compactor owns the averages
+					return StatusCodes.Bad_HistoryOperationInvalid;
+				}
+			} catch (IOException e) {
+				logger.error("Unable to edit the persisted history of {}", nodeId, e);
+				return StatusCodes.Bad_InternalError;
+			}
+			if (editor.isChanged()) {
+				historized.buffer.dropThrough(high);
+			}
+		}
+
+		if (editor.isChanged()) {
+			reroll(historized, low, high);
+		}
+		return 0;
+	}
+
+	// Refills the rollup buckets an edit of low <= time <= high touched
+	private void reroll(Historized historized, long low, long high) {
+		long minuteStart = Math.floorDiv(low, Rollup.MINUTE) * Rollup.MINUTE;
+		long minuteEnd = Math.floorDiv(high, Rollup.MINUTE) * Rollup.MINUTE + Rollup.MINUTE;
+		long hourStart = Math.floorDiv(low, Rollup.HOUR) * Rollup.HOUR;
+		long hourEnd = Math.floorDiv(high, Rollup.HOUR) * Rollup.HOUR + Rollup.HOUR;
+
+		synchronized (historized.rolling) {
+			historized.minutes.reset(minuteStart, minuteEnd);
+			historized.hours.reset(hourStart, hourEnd);
+
+			read(historized, hourStart, hourEnd, false, false, (time, bits, status) -> {
+				if (IntervalAccumulator.isGood(status)) {
+					historized.hours.add(time, bits);
+					if (time >= minuteStart && time < minuteEnd) {
+						historized.minutes.add(time, bits);
+					}
+				}
+				return true;
+			});
+		}
+	}
+
+	private static SampleUpdate.Mode mode(PerformUpdateType performUpdateType) {
+		if (performUpdateType == null) {
+			return null;
+		}
+		switch (performUpdateType) {
+			case Insert:
+				return SampleUpdate.Mode.INSERT;
+			case Replace:
+				return SampleUpdate.Mode.REPLACE;
+			case Update:
+				return SampleUpdate.Mode.UPDATE;
+			default:
+				// Remove is for annotations, not for values
+				return null;
+		}
+	}
+
+	private HistoryReadResult readPage(Historized historized, HistoryCursor cursor, TimestampsToReturn timestamps) {
+		Page page = new Page(historized.buffer.getType(), cursor, timestamps);
+
+		read(historized, cursor.getLow(), cursor.getHigh(), cursor.isReverse(), cursor.isReturnBounds(), page);
+
+		ByteString continuationPoint = null;
+		if (page.more) {
+			continuationPoint = cursors.open(cursor.next(page.lastTime, page.returnedAtLastTime));
+			if (continuationPoint == null) {
+				return failed(StatusCodes.Bad_NoContinuationPoints);
+			}
+		}
+
+		StatusCode statusCode = page.values.isEmpty() ? new StatusCode(StatusCodes.Good_NoData) : StatusCode.GOOD;
+		HistoryData historyData = new HistoryData(page.values.toArray(new DataValue[page.values.size()]));
+
+		return new HistoryReadResult(statusCode, continuationPoint, ExtensionObject.encode(historyData));
+	}
+
+	// Raw samples come from the buffer when it has them, otherwise from the store
+	private void read(Historized historized, long low, long high, boolean reverse, boolean returnBounds,
+			SampleVisitor visitor) {
+
+		if (!historized.isPersisted() || historized.buffer.covers(low, returnBounds)) {
+			historized.buffer.read(low, high, reverse, returnBounds, visitor);
+		} else {
+			store.read(historized.series, low, high, reverse, returnBounds, visitor);
+		}
+	}
+
+	static DataValue toDataValue(Variant value, StatusCode statusCode, long time, TimestampsToReturn timestamps) {
+		DateTime dateTime = new DateTime(time);
+
+		switch (timestamps) {
+			case Source:
+				return new DataValue(value, statusCode, dateTime, null);
+			case Server:
+				return new DataValue(value, statusCode, null, dateTime);
+			case Neither:
+				return new DataValue(value, statusCode, null, null);
+			default:
+				return new DataValue(value, statusCode, dateTime, dateTime);
+		}
+	}
+
+	private static HistoryReadResult result(StatusCode statusCode, List<DataValue> values) {
+		HistoryData historyData = new HistoryData(values.toArray(new DataValue[values.size()]));
+
+		return new HistoryReadResult(statusCode, null, ExtensionObject.encode(historyData));
+	}
+
+	private static HistoryReadResult failed(long statusCode) {
+		return new HistoryReadResult(new StatusCode(statusCode), null, null);
+	}
+
+	private static HistoryUpdateResult updateFailed(long statusCode) {
+		return new HistoryUpdateResult(new StatusCode(statusCode), null, null);
+	}
+
+	// DateTime.MIN_VALUE, a null DateTime and no DateTime at all all mean "unspecified"
+	private static long ticks(DateTime dateTime) {
+		return dateTime != null ? dateTime.getUtcTime() : 0;
+	}
+
+	/**
+	 * Collects one page of samples, stopping at the first one that doesn't fit.
+	 */
+	private static final class Page implements SampleVisitor {
+		final List<DataValue> values = new ArrayList<DataValue>();
+		final HistoryValueType type;
+		final HistoryCursor cursor;
+		final TimestampsToReturn timestamps;
+
+		// Samples at the cursor time returned by previous pages, still to be skipped
+		int toSkip;
+		long lastTime;
+		int returnedAtLastTime;
+		boolean more = false;
+
+		Page(HistoryValueType type, HistoryCursor cursor, TimestampsToReturn timestamps) {
+			this.type = type;
+			this.cursor = cursor;
+			this.timestamps = timestamps;
+			this.toSkip = cursor.getReturnedAtTime();
+			this.lastTime = cursor.getTime();
+			this.returnedAtLastTime = cursor.getReturnedAtTime();
+		}
+
+		@Override
+		public boolean visit(long time, long bits, int status) {
+			if (cursor.isBehind(time)) {
+				return true;
+			}
+			if (time == cursor.getTime() && toSkip > 0) {
+				toSkip--;
+				return true;
+			}
+
+			if (values.size() == cursor.getPageSize()) {
+				more = true;
+				return false;
+			}
+
+			values.add(toDataValue(new Variant(type.fromBits(bits)), new StatusCode(status & 0xffffffffL), time,
+					timestamps));
+			if (time == lastTime) {
+				returnedAtLastTime++;
+			} else {
+				lastTime = time;
+				returnedAtLastTime = 1;
+			}
+			return true;
+		}
+	}
+
+	private static final class Historized {
+		final HistoryBuffer buffer;
+		// Series in the store, -1 if not persisted
+		final int series;
+		final Rollup minutes;
+		final Rollup hours;
+		// Held to add a value to both the rollups and the history, and to rebuild rollups
+		final Object rolling = new Object();
+
+		Historized(HistoryBuffer buffer, int series) {
+			this.buffer = buffer;
+			this.series = series;
+			this.minutes = new Rollup(buffer.getType(), Rollup.MINUTE, MINUTE_ROLLUP_BUCKETS);
+			this.hours = new Rollup(buffer.getType(), Rollup.HOUR, HOUR_ROLLUP_BUCKETS);
+		}
+
+		boolean isPersisted() {
+			return series >= 0;
+		}
+
+		void roll(long time, long bits, int status) {
+			if (IntervalAccumulator.isGood(status)) {
+				minutes.add(time, bits);
+				hours.add(time, bits);
+			}
+		}
+
+		/**
+		 * @return the coarsest rollup whose buckets fit the intervals and that still holds
+		 * the range from {@code low}, null if the raw samples have to be read.
+		 */
+		Rollup rollupFor(long low, long interval) {
+			for (Rollup rollup : new Rollup[] {hours, minutes}) {
+				long resolution = rollup.getResolution();
+				if (low % resolution == 0 && interval % resolution == 0 && rollup.covers(low)) {
+					return rollup;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,2141 @@
+package opcuaTest.history;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent history of the variables of one namespace: an append-only sequence of
+ * fixed-size memory-mapped segment files shared by all of its series (one series per
+ * historized variable).
+ * <p>
+ * Segments are cut into blocks of {@value #BLOCK_SIZE} bytes, each holding samples of one
+ * series compressed by a {@link BlockEncoder}. Segment layout:
+ * {@code int magic, int committedPosition, long reserved} followed by blocks of
+ * {@code int series, int count, long minTime, long maxTime, int flags, int bytes} and
+ * the compressed samples. A series appends to its open block until it is full, then
+ * takes the next free block of the newest segment.
+ * <p>
+ * Appends only write to the mapping. A flusher forces the dirty segments once per flush
+ * interval and then writes the sample counts of the changed blocks and the committed
+ * position into the headers, so any number of appends share one sync and a crash loses at
+ * most the last interval. On reopen anything not committed is ignored, and each series
+ * continues its last block where the committed samples end.
+ * <p>
+ * The blocks of a series, with their time range, form its sparse time index: a read
+ * binary searches for the first block it needs and decodes sequentially from there,
+ * streaming samples as they are decoded. Blocks whose time ranges overlap, because of late
+ * samples, form a run that is merged by time as it is read, only the samples of a block
+ * that isn't in time order itself are sorted first; the rest of the series is streamed as
+ * it is, so a page of a paged read costs the same wherever it starts.
+ * <p>
+ * Series with a {@link RetentionPolicy} are trimmed by a low-priority compactor. It
+ * replaces raw blocks past the raw retention by blocks of interval averages, late samples
+ * averaged with the others of their interval, drops blocks past the retention and copies the live blocks of segments left mostly empty to the newest
+ * segment, deleting segments that hold nothing anymore. Rewritten blocks are encoded off the
+ * lock and committed before the blocks they replace are retired, so readers keep the blocks
+ * they started with and appends only wait for the swap of a series' block list. A crash
+ * between the two leaves both, recovery keeps the rewritten ones.
+ * <p>
+ * History is edited, e.g. for a HistoryUpdate, by {@link #rewrite}ing the blocks holding
+ * the edited range to new ones the same way, bypassing the open block: a backfill is
+ * written a whole block at a time, anywhere after the downsampled history. An appended
+ * sample no later than the downsampled history is past the raw retention and dropped.
+ * <p>
+ * The series catalog, series id to NodeId and value type, is kept in {@code series.txt}.
+ */
+public class HistoryStore {
+
+	public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+	public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 10 * 60 * 1000;
+	public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+	private static final int MAGIC = 0x48495354;
+	private static final int HEADER_SIZE = 16;
+	private static final int COMMITTED_POSITION = 4;
+
+	static final int BLOCK_SIZE = 4096;
+	private static final int BLOCK_HEADER_SIZE = 32;
+	private static final int BLOCK_COUNT = 4;
+	private static final int BLOCK_MIN_TIME = 8;
+	private static final int BLOCK_MAX_TIME = 16;
+	private static final int BLOCK_FLAGS = 24;
+	private static final int BLOCK_BYTES = 28;
+	private static final int FLAG_UNORDERED = 1;
+	private static final int FLAG_DOWNSAMPLED = 2;
+	private static final int FLAG_EDITED = 4;
+
+	// Good, with the historian Calculated bit, like the averages of a processed read
+	static final int CALCULATED = 0x0401;
+
+	// Segments whose live blocks fill less than this are copied forward and deleted
+	private static final double MIN_LIVE_FRACTION = 0.5;
+
+	private static final String SEGMENT_PREFIX = "history-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CATALOG = "series.txt";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final File directory;
+	private final int segmentSize;
+	private final long flushIntervalMillis;
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final Map<Integer, Series> seriesById = new HashMap<Integer, Series>();
+	private final Map<NodeId, Series> seriesByNodeId = new HashMap<NodeId, Series>();
+
+	// Blocks with samples or a header the flusher hasn't committed yet
+	private List<Block> dirty = new ArrayList<Block>();
+
+	private ScheduledExecutorService flusher;
+
+	// Held by a compaction run, there is only one at a time
+	private final Object compaction = new Object();
+	private ScheduledExecutorService compactor;
+	private volatile long maxCompactionBytesPerSecond = 0;
+
+	// Segments still mapped by a reader when they were deleted, tried again on the next run
+	private final List<File> pendingDeletes = new ArrayList<File>();
+
+	private long nextSegmentId = 0;
+	private int nextSeriesId = 1;
+	private long records = 0;
+
+	// Written by the compaction run only
+	private volatile long compactionReadBytes = 0;
+	private volatile long compactionWrittenBytes = 0;
+	private volatile long downsampledCount = 0;
+	private volatile long expiredBlockCount = 0;
+	private volatile long deletedSegmentCount = 0;
+	private volatile long lastCompactionMillis = 0;
+	private volatile double lastCompactionBytesPerSecond = 0;
+	private long runStartNanos;
+	private long runBytes;
+
+	private HistoryStore(File directory, int segmentSize, long flushIntervalMillis) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Opens the store in {@code directory}, recovering the committed history of a previous run.
+	 *
+	 * @param flushIntervalMillis the most history a crash can lose, 0 syncs every append
+	 */
+	public static HistoryStore open(File directory, int segmentSize, long flushIntervalMillis) throws IOException {
+		if (segmentSize < HEADER_SIZE + BLOCK_SIZE) {
+			throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("unable to create history directory: " + directory);
+		}
+
+		HistoryStore store = new HistoryStore(directory, segmentSize, flushIntervalMillis);
+		store.recoverCatalog();
+		store.recoverSegments();
+
+		if (flushIntervalMillis > 0) {
+			store.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "history-flush");
+				thread.setDaemon(true);
+				return thread;
+			});
+			store.flusher.scheduleWithFixedDelay(store::flush, flushIntervalMillis, flushIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		return store;
+	}
+
+	/**
+	 * Returns the series of a variable, creating it if the variable has no history yet or
+	 * had one of another type.
+	 */
+	public int register(NodeId nodeId, HistoryValueType type) throws IOException {
+		lock.writeLock().lock();
+		try {
+			Series series = seriesByNodeId.get(nodeId);
+			if (series != null && series.type == type) {
+				return series.id;
+			}
+			if (series != null) {
+				logger.warn("History of {} was kept as {}, starting a new one as {}", nodeId, series.type, type);
+			}
+
+			series = new Series(nextSeriesId++, nodeId, type);
+			try (FileOutputStream out = new FileOutputStream(new File(directory, CATALOG), true)) {
+				String line = series.id + " " + type.name() + " " + nodeId.toParseableString() + "\n";
+				out.write(line.getBytes(StandardCharsets.UTF_8));
+				out.getFD().sync();
+			}
+			seriesById.put(series.id, series);
+			seriesByNodeId.put(nodeId, series);
+			return series.id;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void append(int seriesId, long time, long bits, int status) throws IOException {
+		lock.writeLock().lock();
+		try {
+			Series series = seriesById.get(seriesId);
+			if (series == null) {
+				throw new IllegalArgumentException("unknown series: " + seriesId);
+			}
+			// Its interval is averaged, and recovery would take its block for one left by compaction
+			if (time <= series.averagedMax) {
+				return;
+			}
+
+			Block block = series.open;
+			if (block == null || !block.encoder.append(time, bits, status)) {
+				block = allocate(series);
+				block.encoder.append(time, bits, status);
+			}
+
+			block.add(time);
+			if (!block.dirty) {
+				block.dirty = true;
+				dirty.add(block);
+			}
+			series.add(time);
+			records++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if (flushIntervalMillis <= 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Visits the samples of a series with {@code low <= time < high}, with the same order
+	 * and bounds as {@link HistoryBuffer#read(long, long, boolean, boolean, SampleVisitor)}.
+	 */
+	public void read(int seriesId, long low, long high, boolean reverse, boolean returnBounds, SampleVisitor visitor) {
+		View view;
+
+		// Samples below a block's count are never written again, so decoding needs no lock
+		lock.readLock().lock();
+		try {
+			Series series = seriesById.get(seriesId);
+			if (series == null || series.blockCount == 0) {
+				return;
+			}
+			view = new View(series);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (reverse) {
+			readReverse(view, low, high, returnBounds, visitor);
+		} else {
+			readForward(view, low, high, returnBounds, visitor);
+		}
+	}
+
+	/**
+	 * Edits the history of a series around {@code low <= time <= high}: every block with
+	 * samples in the range, and the partly filled raw block before them so that edits in a
+	 * row fill whole blocks, is decoded in time order through the editor and replaced by
+	 * blocks of what it passes on, written to the newest segment and committed before the
+	 * old ones are retired.
+	 * <p>
+	 * An empty edited block spanning the edited range is written first: recovery leaves out
+	 * the blocks written before it that it overlaps, so a crash before the old blocks are
+	 * retired doesn't bring them back. The open block is sealed too, a late sample appended
+	 * to it after the edit could reach into that range.
+	 * <p>
+	 * Edits of one series run one at a time and wait for a compaction run working on it.
+	 *
+	 * @return false, editing nothing, if the range starts before the end of the downsampled
+	 * history, which only the compactor rewrites.
+	 */
+	public boolean rewrite(int seriesId, long low, long high, SampleEditor editor) throws IOException {
+		Series series;
+		lock.readLock().lock();
+		try {
+			series = seriesById.get(seriesId);
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (series == null) {
+			throw new IllegalArgumentException("unknown series: " + seriesId);
+		}
+
+		synchronized (series) {
+			List<Block> affected = new ArrayList<Block>();
+			long from = low;
+			long to = high;
+
+			lock.writeLock().lock();
+			try {
+				boolean[] taken = new boolean[series.blockCount];
+
+				// The range grows with each block taken, until it overlaps none that isn't
+				for (boolean grown = true; grown; ) {
+					grown = false;
+					for (int i = 0; i < series.blockCount; i++) {
+						Block block = series.blocks[i];
+						if (!taken[i] && block.maxTime >= from && block.minTime <= to) {
+							taken[i] = true;
+							from = Math.min(from, block.minTime);
+							to = Math.max(to, block.maxTime);
+							grown = true;
+						}
+					}
+				}
+
+				int first = 0;
+				while (first < series.blockCount && !taken[first] && series.blocks[first].minTime <= to) {
+					first++;
+				}
+				Block previous = first > 0 ? series.blocks[first - 1] : null;
+				if (previous != null && !taken[first - 1] && !previous.downsampled
+						&& previous.getSizeBytes() < (BLOCK_SIZE - BLOCK_HEADER_SIZE) / 2
+						&& !overlapsOthers(series, taken, first - 1, previous.minTime, to)) {
+					taken[first - 1] = true;
+					from = previous.minTime;
+				}
+
+				if (from <= series.averagedMax) {
+					return false;
+				}
+
+				for (int i = 0; i < series.blockCount; i++) {
+					if (taken[i]) {
+						affected.add(series.blocks[i]);
+					}
+				}
+				// Its samples are final once it is sealed, appends go to a new block
+				if (series.open != null) {
+					series.open.seal();
+					series.open = null;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			List<Output> outputs = edit(series, affected, editor);
+			if (!editor.isChanged()) {
+				return true;
+			}
+
+			// Outputs of one edit can share a time at their boundary, only the range marks what it replaced
+			Output tombstone = new Output(series, ByteBuffer.allocate(BLOCK_SIZE), 0, null);
+			tombstone.minTime = from;
+			tombstone.maxTime = to;
+			tombstone.edited = true;
+			outputs.add(0, tombstone);
+
+			List<Block> blocks = write(outputs, false);
+			replace(series, affected, blocks, to, blocks.remove(0));
+			retire(affected);
+			return true;
+		}
+	}
+
+	/**
+	 * Syncs everything appended so far and marks it committed. Called by the flusher once
+	 * per flush interval.
+	 */
+	public void flush() {
+		Map<Segment, List<long[]>> headers = new LinkedHashMap<Segment, List<long[]>>();
+		Map<Segment, Integer> positions = new HashMap<Segment, Integer>();
+
+		lock.writeLock().lock();
+		try {
+			for (Block block : dirty) {
+				block.dirty = false;
+				List<long[]> list = headers.get(block.segment);
+				if (list == null) {
+					list = new ArrayList<long[]>();
+					headers.put(block.segment, list);
+				}
+				list.add(header(block));
+			}
+			dirty = new ArrayList<Block>();
+
+			for (Segment segment : headers.keySet()) {
+				positions.put(segment, segment.writePosition);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		for (Map.Entry<Segment, List<long[]>> entry : headers.entrySet()) {
+			Segment segment = entry.getKey();
+			try {
+				segment.commit(positions.get(segment), entry.getValue());
+			} catch (RuntimeException e) {
+				logger.error("Unable to flush history segment {}", segment.file.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Sets how long the history of a series is kept, null keeps all of it. Applied by the
+	 * next compaction run.
+	 */
+	public void setRetentionPolicy(int seriesId, RetentionPolicy policy) {
+		lock.readLock().lock();
+		try {
+			Series series = seriesById.get(seriesId);
+			if (series == null) {
+				throw new IllegalArgumentException("unknown series: " + seriesId);
+			}
+			series.retention = policy;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Runs {@link #compact(long)} every {@code intervalMillis} on a background thread of
+	 * minimum priority.
+	 *
+	 * @param maxBytesPerSecond most bytes a run reads and writes per second, 0 for no limit
+	 */
+	public synchronized void startCompaction(long intervalMillis, long maxBytesPerSecond) {
+		if (compactor != null) {
+			throw new IllegalStateException("compaction already started");
+		}
+		maxCompactionBytesPerSecond = maxBytesPerSecond;
+
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "history-compact");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				compact(DateTime.now().getUtcTime());
+			} catch (IOException | RuntimeException e) {
+				// The next run starts over from what is committed
+				logger.error("History compaction failed", e);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Applies the retention policies as of {@code now}, in 100 ns ticks like the sample
+	 * times: raw blocks past the raw retention are downsampled, blocks past the retention
+	 * are dropped, then the live blocks of mostly empty segments are moved and empty
+	 * segments deleted.
+	 * <p>
+	 * Late samples are averaged with the others of their interval. A raw sample left in an
+	 * interval averaged by an earlier run is dropped, the interval keeps its average.
+	 */
+	public void compact(long now) throws IOException {
+		synchronized (compaction) {
+			runStartNanos = System.nanoTime();
+			runBytes = 0;
+
+			List<Series> retained = new ArrayList<Series>();
+			lock.readLock().lock();
+			try {
+				for (Series series : seriesById.values()) {
+					if (series.retention != null) {
+						retained.add(series);
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			for (Series series : retained) {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				// An edit of the series waits for its blocks to be rewritten
+				synchronized (series) {
+					compact(series, series.retention, now);
+				}
+			}
+			relocateSparseSegments();
+			deleteEmptySegments();
+
+			long nanos = System.nanoTime() - runStartNanos;
+			lastCompactionMillis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			lastCompactionBytesPerSecond = nanos > 0 ? runBytes * 1e9 / nanos : 0;
+		}
+	}
+
+	/**
+	 * @return the latest time the downsampled history of a series covers, its raw samples
+	 * come after it; Long.MIN_VALUE if none of it is downsampled.
+	 */
+	public long getDownsampledEnd(int seriesId) {
+		lock.readLock().lock();
+		try {
+			Series series = seriesById.get(seriesId);
+			if (series == null) {
+				throw new IllegalArgumentException("unknown series: " + seriesId);
+			}
+			return series.averagedMax;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getSeriesCount() {
+		lock.readLock().lock();
+		try {
+			return seriesById.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getSegmentCount() {
+		lock.readLock().lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getSizeBytes() {
+		return (long) getSegmentCount() * segmentSize;
+	}
+
+	/**
+	 * @return bytes of the blocks in use, headers included.
+	 */
+	public long getUsedBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (Segment segment : segments) {
+				bytes += segment.writePosition - HEADER_SIZE;
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes taken by the compressed samples alone.
+	 */
+	public long getCompressedBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (Series series : seriesById.values()) {
+				for (int i = 0; i < series.blockCount; i++) {
+					bytes += series.blocks[i].getSizeBytes();
+				}
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getRecordCount() {
+		lock.readLock().lock();
+		try {
+			return records;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getCompactionReadBytes() {
+		return compactionReadBytes;
+	}
+
+	public long getCompactionWrittenBytes() {
+		return compactionWrittenBytes;
+	}
+
+	/**
+	 * @return bytes read and written per second by the last compaction run.
+	 */
+	public double getCompactionBytesPerSecond() {
+		return lastCompactionBytesPerSecond;
+	}
+
+	/**
+	 * @return raw samples replaced by averages so far.
+	 */
+	public long getDownsampledCount() {
+		return downsampledCount;
+	}
+
+	public long getExpiredBlockCount() {
+		return expiredBlockCount;
+	}
+
+	public long getDeletedSegmentCount() {
+		return deletedSegmentCount;
+	}
+
+	/**
+	 * @return duration of the last compaction run.
+	 */
+	public long getLastCompactionMillis() {
+		return lastCompactionMillis;
+	}
+
+	public void close() {
+		if (compactor != null) {
+			compactor.shutdownNow();
+			compactor = null;
+		}
+		if (flusher != null) {
+			flusher.shutdownNow();
+			flusher = null;
+		}
+		flush();
+
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void compact(Series series, RetentionPolicy policy, long now) throws IOException {
+		long interval = policy.getDownsampleIntervalMillis() * 10_000;
+		long horizon = now - policy.getDownsampledRetentionMillis() * 10_000;
+		long rawHorizon = now - policy.getRawRetentionMillis() * 10_000;
+		if (policy.isDownsampling()) {
+			rawHorizon = Math.floorDiv(rawHorizon, interval) * interval;
+		}
+
+		List<Block> expired = new ArrayList<Block>();
+		// The block of averages the new ones are added to, if any
+		Block averages = null;
+		List<Block> raw = new ArrayList<Block>();
+		// Samples from here on stay raw, the interval a block left raw starts in is averaged later
+		long cut = rawHorizon;
+
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < series.blockCount; i++) {
+				Block block = series.blocks[i];
+				if (block != series.open && !block.dirty && block.maxTime < horizon) {
+					expired.add(block);
+				}
+			}
+
+			if (policy.isDownsampling()) {
+				// Late samples leave raw blocks anywhere in the series, each one is looked at
+				for (int i = 0; i < series.blockCount; i++) {
+					Block block = series.blocks[i];
+					if (isSealed(series, block) && block.maxTime < horizon) {
+						continue;
+					}
+					if (block.downsampled) {
+						if (averages == null || block.maxTime > averages.maxTime) {
+							averages = block;
+						}
+					} else if (isSealed(series, block) && block.maxTime < rawHorizon) {
+						raw.add(block);
+					} else {
+						// An interval is averaged once, with all of its samples
+						cut = Math.min(cut, Math.floorDiv(block.minTime, interval) * interval);
+					}
+				}
+				long end = cut;
+				raw.removeIf(block -> block.minTime >= end);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (expired.isEmpty() && raw.isEmpty()) {
+			return;
+		}
+
+		Map<Block, List<Block>> replacements = new IdentityHashMap<Block, List<Block>>();
+		for (Block block : expired) {
+			replacements.put(block, new ArrayList<Block>());
+		}
+		if (!raw.isEmpty()) {
+			List<Block> blocks = write(downsample(series, averages, raw, interval, cut), true);
+			replacements.put(averages != null ? averages : raw.get(0), blocks);
+			for (Block block : raw) {
+				replacements.putIfAbsent(block, new ArrayList<Block>());
+			}
+		}
+
+		swap(series, replacements);
+		retire(replacements.keySet());
+		expiredBlockCount += expired.size();
+	}
+
+	private static boolean isSealed(Series series, Block block) {
+		return block != series.open && !block.dirty;
+	}
+
+	// Encodes what the editor makes of the samples of sealed blocks into raw blocks on the heap
+	private List<Output> edit(Series series, List<Block> blocks, SampleEditor editor) {
+		List<Output> outputs = new ArrayList<Output>();
+		SampleVisitor out = (time, bits, status) -> {
+			Output.append(outputs, series, false, time, bits, status);
+			return true;
+		};
+
+		visitInTimeOrder(series, blocks, false, (time, bits, status) -> {
+			editor.visit(time, bits, status, out);
+			return true;
+		});
+		editor.finish(out);
+
+		for (Output output : outputs) {
+			output.seal();
+			output.edited = true;
+		}
+		return outputs;
+	}
+
+	// The range of an edit supersedes every block it overlaps, all of them have to be edited
+	private static boolean overlapsOthers(Series series, boolean[] taken, int except, long from, long to) {
+		for (int i = 0; i < series.blockCount; i++) {
+			Block block = series.blocks[i];
+			if (i != except && !taken[i] && block.maxTime >= from && block.minTime <= to) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Visits the samples of sealed blocks in time order, those with the same time in the
+	 * order of the list: a block in time order that overlaps no other is streamed, blocks
+	 * that overlap are decoded together and sorted.
+	 *
+	 * @param compacting to count the bytes read and keep to the compaction rate limit
+	 */
+	private void visitInTimeOrder(Series series, List<Block> blocks, boolean compacting, SampleVisitor visitor) {
+		Integer[] order = new Integer[blocks.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(blocks.get(a).minTime, blocks.get(b).minTime));
+
+		for (int from = 0; from < order.length; ) {
+			// Blocks sharing a time are sorted together, so that time keeps the order of the list
+			int to = from + 1;
+			long maxTime = blocks.get(order[from]).maxTime;
+			while (to < order.length && blocks.get(order[to]).minTime <= maxTime) {
+				maxTime = Math.max(maxTime, blocks.get(order[to]).maxTime);
+				to++;
+			}
+			Arrays.sort(order, from, to);
+
+			Block first = blocks.get(order[from]);
+			if (to - from == 1 && first.ordered) {
+				BlockDecoder decoder = new BlockDecoder(first.segment.buffer, first.position + BLOCK_HEADER_SIZE,
+						series.type.isFloatingPoint(), first.count);
+				while (decoder.next()) {
+					visitor.visit(decoder.getTime(), decoder.getBits(), decoder.getStatus());
+				}
+			} else {
+				int count = 0;
+				for (int i = from; i < to; i++) {
+					count += blocks.get(order[i]).count;
+				}
+				long[] times = new long[count];
+				long[] bits = new long[count];
+				int[] statuses = new int[count];
+				int n = 0;
+				for (int i = from; i < to; i++) {
+					Block block = blocks.get(order[i]);
+					BlockDecoder decoder = new BlockDecoder(block.segment.buffer, block.position + BLOCK_HEADER_SIZE,
+							series.type.isFloatingPoint(), block.count);
+					for (; decoder.next(); n++) {
+						times[n] = decoder.getTime();
+						bits[n] = decoder.getBits();
+						statuses[n] = decoder.getStatus();
+					}
+				}
+				for (int i : SampleUpdate.sort(times, count)) {
+					visitor.visit(times[i], bits[i], statuses[i]);
+				}
+			}
+
+			if (compacting) {
+				compactionReadBytes += (long) (to - from) * BLOCK_SIZE;
+				throttle((long) (to - from) * BLOCK_SIZE);
+			}
+			from = to;
+		}
+	}
+
+	/**
+	 * Puts the blocks of an edit in place of the ones it replaces or, if there are none,
+	 * before the first block after the edited range.
+	 */
+	private void replace(Series series, List<Block> replaced, List<Block> blocks, long to, Block tombstone) {
+		lock.writeLock().lock();
+		try {
+			if (replaced.isEmpty()) {
+				insert(series, blocks, to);
+			} else {
+				Map<Block, List<Block>> replacements = new IdentityHashMap<Block, List<Block>>();
+				replacements.put(replaced.get(0), blocks);
+				for (int i = 1; i < replaced.size(); i++) {
+					replacements.put(replaced.get(i), new ArrayList<Block>());
+				}
+				swap(series, replacements);
+			}
+
+			if (tombstone != null) {
+				tombstone.segment.liveBlocks--;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Re-encodes blocks of a series in time order: the averages of earlier runs copied as
+	 * they are, the raw samples before {@code cut} folded into one sample per interval after
+	 * them, and the raw samples from {@code cut} on into raw blocks after those.
+	 *
+	 * @param averages the block of averages the new ones are added to, or null
+	 */
+	private List<Output> downsample(Series series, Block averages, List<Block> raw, long interval, long cut) {
+		Downsampler downsampler = new Downsampler(series, interval);
+
+		if (averages != null) {
+			BlockDecoder decoder = new BlockDecoder(averages.segment.buffer, averages.position + BLOCK_HEADER_SIZE,
+					series.type.isFloatingPoint(), averages.count);
+			while (decoder.next()) {
+				downsampler.copy(decoder.getTime(), decoder.getBits(), decoder.getStatus());
+			}
+			downsampler.maxTime = Math.max(downsampler.maxTime, averages.maxTime);
+			compactionReadBytes += BLOCK_SIZE;
+			throttle(BLOCK_SIZE);
+		}
+
+		visitInTimeOrder(series, raw, true, (time, bits, status) -> {
+			if (time < cut) {
+				downsampler.add(time, bits, status);
+			} else {
+				downsampler.keep(time, bits, status);
+			}
+			return true;
+		});
+
+		downsampledCount += downsampler.averaged;
+		return downsampler.finish();
+	}
+
+	/**
+	 * Copies blocks to the newest segment and commits them. They aren't part of their
+	 * series until {@link #swap}ped in.
+	 *
+	 * @param compacting to count the bytes and keep to the compaction rate limit
+	 */
+	private List<Block> write(List<Output> outputs, boolean compacting) throws IOException {
+		List<Block> blocks = new ArrayList<Block>(outputs.size());
+
+		lock.writeLock().lock();
+		try {
+			for (Output output : outputs) {
+				Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+				if (segment == null || segment.writePosition + BLOCK_SIZE > segmentSize) {
+					segment = roll();
+				}
+				Block block = reserve(segment, output.series);
+				block.count = output.count;
+				block.minTime = output.minTime;
+				block.maxTime = output.maxTime;
+				block.ordered = output.ordered;
+				block.downsampled = output.downsampled;
+				block.edited = output.edited;
+				block.sizeBytes = output.sizeBytes;
+				blocks.add(block);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		// Nothing else writes to reserved blocks, they are filled without the lock
+		Map<Segment, List<long[]>> headers = new LinkedHashMap<Segment, List<long[]>>();
+		Map<Segment, Integer> positions = new HashMap<Segment, Integer>();
+		for (int i = 0; i < blocks.size(); i++) {
+			Block block = blocks.get(i);
+			Output output = outputs.get(i);
+
+			ByteBuffer from = output.source.duplicate();
+			from.limit(output.sourcePosition + BLOCK_SIZE);
+			from.position(output.sourcePosition + BLOCK_HEADER_SIZE);
+			ByteBuffer to = block.segment.buffer.duplicate();
+			to.position(block.position + BLOCK_HEADER_SIZE);
+			to.put(from);
+
+			headers.computeIfAbsent(block.segment, s -> new ArrayList<long[]>()).add(header(block));
+			positions.merge(block.segment, block.position + BLOCK_SIZE, Math::max);
+			if (compacting) {
+				compactionWrittenBytes += BLOCK_SIZE;
+				throttle(BLOCK_SIZE);
+			}
+		}
+
+		for (Map.Entry<Segment, List<long[]>> entry : headers.entrySet()) {
+			entry.getKey().commit(positions.get(entry.getKey()), entry.getValue());
+		}
+		return blocks;
+	}
+
+	/**
+	 * Puts the replacements of blocks of a series in their place, in a new list so reads
+	 * in progress keep theirs.
+	 */
+	private void swap(Series series, Map<Block, List<Block>> replacements) {
+		lock.writeLock().lock();
+		try {
+			int size = series.blockCount;
+			for (List<Block> replacement : replacements.values()) {
+				size += replacement.size() - 1;
+			}
+			Block[] blocks = new Block[Math.max(series.blocks.length, size)];
+			int count = 0;
+
+			for (int i = 0; i < series.blockCount; i++) {
+				Block block = series.blocks[i];
+				List<Block> replacement = replacements.get(block);
+				if (replacement == null) {
+					blocks[count++] = block;
+					continue;
+				}
+				for (Block added : replacement) {
+					blocks[count++] = added;
+					records += added.count;
+				}
+				block.segment.liveBlocks--;
+				records -= block.count;
+			}
+
+			series.setBlocks(blocks, count);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void insert(Series series, List<Block> blocks, long to) {
+		int at = 0;
+		while (at < series.blockCount && series.blocks[at].minTime <= to) {
+			at++;
+		}
+		// The open block has to stay the last one
+		if (at == series.blockCount && series.open != null) {
+			series.open.seal();
+			series.open = null;
+		}
+
+		Block[] array = new Block[Math.max(series.blocks.length, series.blockCount + blocks.size())];
+		System.arraycopy(series.blocks, 0, array, 0, at);
+		for (int i = 0; i < blocks.size(); i++) {
+			array[at + i] = blocks.get(i);
+			records += blocks.get(i).count;
+		}
+		System.arraycopy(series.blocks, at, array, at + blocks.size(), series.blockCount - at);
+
+		series.setBlocks(array, series.blockCount + blocks.size());
+	}
+
+	// Once their replacements are committed, so recovery doesn't bring replaced blocks back
+	private void retire(Collection<Block> blocks) {
+		Map<Segment, List<Block>> bySegment = new LinkedHashMap<Segment, List<Block>>();
+		for (Block block : blocks) {
+			bySegment.computeIfAbsent(block.segment, s -> new ArrayList<Block>()).add(block);
+		}
+		for (Map.Entry<Segment, List<Block>> entry : bySegment.entrySet()) {
+			entry.getKey().retire(entry.getValue());
+		}
+	}
+
+	/**
+	 * Moves the live blocks of segments that are mostly retired blocks to the newest
+	 * segment, leaving them empty.
+	 */
+	private void relocateSparseSegments() throws IOException {
+		Map<Segment, Boolean> sparse = new IdentityHashMap<Segment, Boolean>();
+		List<Series> all;
+
+		lock.readLock().lock();
+		try {
+			// Not the newest, it takes the moved blocks
+			for (int i = 0; i < segments.size() - 1; i++) {
+				Segment segment = segments.get(i);
+				if (segment.liveBlocks > 0 && segment.liveBlocks < segment.getAllocatedBlocks() * MIN_LIVE_FRACTION) {
+					sparse.put(segment, Boolean.TRUE);
+				}
+			}
+			if (sparse.isEmpty()) {
+				return;
+			}
+			all = new ArrayList<Series>(seriesById.values());
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// A series at a time, an edit of it would replace the blocks being moved
+		for (Series series : all) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			synchronized (series) {
+				List<Output> outputs = new ArrayList<Output>();
+				lock.readLock().lock();
+				try {
+					for (int i = 0; i < series.blockCount; i++) {
+						Block block = series.blocks[i];
+						if (sparse.containsKey(block.segment)) {
+							outputs.add(Output.moved(series, block));
+						}
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+				if (outputs.isEmpty()) {
+					continue;
+				}
+
+				compactionReadBytes += (long) outputs.size() * BLOCK_SIZE;
+				throttle((long) outputs.size() * BLOCK_SIZE);
+				List<Block> blocks = write(outputs, true);
+
+				Map<Block, List<Block>> replacements = new IdentityHashMap<Block, List<Block>>();
+				for (int i = 0; i < outputs.size(); i++) {
+					List<Block> replacement = new ArrayList<Block>();
+					replacement.add(blocks.get(i));
+					replacements.put(outputs.get(i).moved, replacement);
+				}
+				// The segment is deleted as a whole, its blocks are left as they are
+				swap(series, replacements);
+			}
+		}
+	}
+
+	private void deleteEmptySegments() {
+		List<Segment> empty = new ArrayList<Segment>();
+
+		lock.writeLock().lock();
+		try {
+			// Not the newest, it takes the next blocks
+			for (int i = segments.size() - 2; i >= 0; i--) {
+				if (segments.get(i).liveBlocks == 0) {
+					empty.add(segments.remove(i));
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		for (Segment segment : empty) {
+			segment.close();
+			pendingDeletes.add(segment.file);
+			deletedSegmentCount++;
+		}
+		// Some file systems refuse to delete a file that is still mapped
+		pendingDeletes.removeIf(file -> file.delete() || !file.exists());
+		if (!pendingDeletes.isEmpty()) {
+			logger.debug("{} history segment(s) still to be deleted", pendingDeletes.size());
+		}
+	}
+
+	// Sleeps for as long as the run is ahead of the compaction rate limit
+	private void throttle(long bytes) {
+		runBytes += bytes;
+		long limit = maxCompactionBytesPerSecond;
+		if (limit <= 0 || Thread.currentThread().isInterrupted()) {
+			return;
+		}
+
+		long aheadNanos = (long) (runBytes * 1e9 / limit) - (System.nanoTime() - runStartNanos);
+		if (aheadNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(aheadNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// position, count, minTime, maxTime, flags and bytes, as Segment.commit writes them
+	private static long[] header(Block block) {
+		return new long[] {block.position, block.count, block.minTime, block.maxTime, block.getFlags(),
+				block.getSizeBytes()};
+	}
+
+	private void readForward(View view, long low, long high, boolean returnBounds, SampleVisitor visitor) {
+		// First run that can hold a sample at or after low
+		int first = view.firstRunEndingAtOrAfter(low);
+
+		Sample previous = null;
+		if (returnBounds && first > 0) {
+			previous = view.last(first - 1);
+		}
+		boolean started = false;
+
+		for (int k = first; k < view.runCount; k++) {
+			if (!returnBounds && view.runMinTime(k) >= high) {
+				break;
+			}
+			Source source = view.run(k, low, high, returnBounds);
+			while (source.next()) {
+				long time = source.time;
+
+				if (time < low) {
+					if (returnBounds) {
+						previous = new Sample(time, source.bits, source.status);
+					}
+					continue;
+				}
+				if (!started) {
+					started = true;
+					if (returnBounds && previous != null && time != low && !previous.visit(visitor)) {
+						return;
+					}
+				}
+				if (time >= high) {
+					if (returnBounds) {
+						visitor.visit(time, source.bits, source.status);
+					}
+					return;
+				}
+				if (!visitor.visit(time, source.bits, source.status)) {
+					return;
+				}
+			}
+		}
+
+		if (!started && returnBounds && previous != null) {
+			previous.visit(visitor);
+		}
+	}
+
+	private void readReverse(View view, long low, long high, boolean returnBounds, SampleVisitor visitor) {
+		// Last run that can hold a sample before high
+		int last = view.lastRunStartingBefore(high);
+
+		Sample next = null;
+		if (returnBounds && last + 1 < view.runCount) {
+			next = view.first(last + 1);
+		}
+		boolean started = false;
+		boolean onLow = false;
+
+		// Blocks can't be decoded backwards, each run is unpacked before it is walked
+		long[] times = new long[0];
+		long[] bits = new long[0];
+		int[] statuses = new int[0];
+
+		for (int k = last; k >= 0; k--) {
+			if (!returnBounds && view.runMaxTime(k) < low) {
+				break;
+			}
+			Source source = view.run(k, low, high, returnBounds);
+			int count = 0;
+			while (source.next()) {
+				if (count == times.length) {
+					int length = Math.max(2 * count, view.count(view.runStart(k)));
+					times = Arrays.copyOf(times, length);
+					bits = Arrays.copyOf(bits, length);
+					statuses = Arrays.copyOf(statuses, length);
+				}
+				times[count] = source.time;
+				bits[count] = source.bits;
+				statuses[count++] = source.status;
+			}
+
+			for (int j = count - 1; j >= 0; j--) {
+				long time = times[j];
+
+				if (time >= high) {
+					next = new Sample(time, bits[j], statuses[j]);
+					continue;
+				}
+				if (!started) {
+					started = true;
+					if (returnBounds && next != null && !next.visit(visitor)) {
+						return;
+					}
+				}
+				if (time < low) {
+					if (returnBounds && !onLow) {
+						visitor.visit(time, bits[j], statuses[j]);
+					}
+					return;
+				}
+				onLow |= time == low;
+				if (!visitor.visit(time, bits[j], statuses[j])) {
+					return;
+				}
+			}
+		}
+
+		if (!started && returnBounds && next != null) {
+			next.visit(visitor);
+		}
+	}
+
+	private Block allocate(Series series) throws IOException {
+		if (series.open != null) {
+			series.open.seal();
+			series.open = null;
+		}
+
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.writePosition + BLOCK_SIZE > segmentSize) {
+			segment = roll();
+		}
+
+		Block block = reserve(segment, series);
+		block.encoder = new BlockEncoder(segment.buffer, block.position + BLOCK_HEADER_SIZE,
+				BLOCK_SIZE - BLOCK_HEADER_SIZE, series.type.isFloatingPoint());
+		series.addBlock(block);
+		series.open = block;
+		return block;
+	}
+
+	// Takes the next free block of the segment for the series
+	private Block reserve(Segment segment, Series series) {
+		int position = segment.writePosition;
+		segment.buffer.putInt(position, series.id);
+		segment.buffer.putInt(position + BLOCK_COUNT, 0);
+		segment.writePosition = position + BLOCK_SIZE;
+		segment.liveBlocks++;
+
+		return new Block(segment, position, series.id);
+	}
+
+	private Segment roll() throws IOException {
+		// Open blocks stay in the segment they started in, the next sample of their series takes a new one
+		for (Series series : seriesById.values()) {
+			if (series.open != null) {
+				series.open.seal();
+				series.open = null;
+			}
+		}
+
+		long id = nextSegmentId++;
+		File file = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		Segment segment = new Segment(file, id, segmentSize);
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.putInt(COMMITTED_POSITION, HEADER_SIZE);
+		segment.buffer.force();
+		segment.writePosition = HEADER_SIZE;
+		segment.committedPosition = HEADER_SIZE;
+
+		segments.add(segment);
+		return segment;
+	}
+
+	private void recoverCatalog() throws IOException {
+		File file = new File(directory, CATALOG);
+		if (!file.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ", 3);
+				if (fields.length < 3) {
+					continue;
+				}
+				try {
+					Series series = new Series(Integer.parseInt(fields[0]), NodeId.parse(fields[2]),
+							HistoryValueType.valueOf(fields[1]));
+					seriesById.put(series.id, series);
+					// Later lines replace a variable's earlier series
+					seriesByNodeId.put(series.nodeId, series);
+					nextSeriesId = Math.max(nextSeriesId, series.id + 1);
+				} catch (RuntimeException e) {
+					logger.warn("Ignoring history series entry '{}': {}", line, e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void recoverSegments() throws IOException {
+		File[] files = directory.listFiles((dir, name) ->
+				name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return;
+		}
+		// Zero padded ids, so name order is creation order
+		Arrays.sort(files);
+
+		// Compaction moves blocks forward, so file order isn't time order anymore
+		Map<Series, List<Block>> recovered = new HashMap<Series, List<Block>>();
+
+		for (File file : files) {
+			String name = file.getName();
+			long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+			if (file.length() != segmentSize) {
+				logger.warn("Ignoring history segment {} with unexpected size {}", name, file.length());
+				continue;
+			}
+
+			Segment segment = new Segment(file, id, segmentSize);
+			MappedByteBuffer buffer = segment.buffer;
+			int committed = buffer.getInt(COMMITTED_POSITION);
+			if (buffer.getInt(0) != MAGIC || committed < HEADER_SIZE || committed > segmentSize
+					|| (committed - HEADER_SIZE) % BLOCK_SIZE != 0) {
+				logger.warn("Ignoring corrupt history segment {}", name);
+				segment.close();
+				continue;
+			}
+
+			for (int position = HEADER_SIZE; position < committed; position += BLOCK_SIZE) {
+				Series series = seriesById.get(buffer.getInt(position));
+				int count = buffer.getInt(position + BLOCK_COUNT);
+				int flags = buffer.getInt(position + BLOCK_FLAGS);
+				// Empty edited blocks only stand for the range of an edit
+				if (series == null || count < 0 || (count == 0 && (flags & FLAG_EDITED) == 0)) {
+					continue;
+				}
+
+				Block block = new Block(segment, position, series.id);
+				block.count = count;
+				block.sizeBytes = buffer.getInt(position + BLOCK_BYTES);
+				block.minTime = buffer.getLong(position + BLOCK_MIN_TIME);
+				block.maxTime = buffer.getLong(position + BLOCK_MAX_TIME);
+				block.ordered = (flags & FLAG_UNORDERED) == 0;
+				block.downsampled = (flags & FLAG_DOWNSAMPLED) != 0;
+				block.edited = (flags & FLAG_EDITED) != 0;
+				recovered.computeIfAbsent(series, s -> new ArrayList<Block>()).add(block);
+			}
+			// Blocks allocated after the committed position are handed out again
+			segment.writePosition = committed;
+			segment.committedPosition = committed;
+			segments.add(segment);
+		}
+
+		for (Map.Entry<Series, List<Block>> entry : recovered.entrySet()) {
+			recoverBlocks(entry.getKey(), entry.getValue());
+		}
+
+		// The last block of a series in the newest segment takes the next samples, older ones are full
+		Segment newest = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		for (Series series : seriesById.values()) {
+			Block block = series.blockCount > 0 ? series.blocks[series.blockCount - 1] : null;
+			if (block == null || block.segment != newest || block.downsampled || block.edited) {
+				continue;
+			}
+			block.encoder = BlockEncoder.resume(newest.buffer, block.position + BLOCK_HEADER_SIZE,
+					BLOCK_SIZE - BLOCK_HEADER_SIZE, series.type.isFloatingPoint(), block.count);
+			series.open = block;
+		}
+
+		if (records > 0) {
+			logger.info("Recovered {} history sample(s) of {} series from {}", records, seriesById.size(), directory);
+		}
+	}
+
+	/**
+	 * Adds the committed blocks of a series in the order they were written, so samples
+	 * with the same time are read in the order they were appended, leaving out the ones a
+	 * compaction run or an edit had rewritten but not retired yet when the store was closed:
+	 * copies of a moved block, averages that were added to, raw blocks starting before the
+	 * last average and blocks overlapping the range of an edit written after them.
+	 */
+	private void recoverBlocks(Series series, List<Block> blocks) {
+		Map<Block, Boolean> superseded = new IdentityHashMap<Block, Boolean>();
+
+		// Newest first, collecting what was rewritten after each block
+		List<Block> written = new ArrayList<Block>(blocks);
+		written.sort((a, b) -> a.segment.id != b.segment.id ? Long.compare(b.segment.id, a.segment.id)
+				: Integer.compare(b.position, a.position));
+		long averagedMax = Long.MIN_VALUE;
+		for (Block block : blocks) {
+			if (block.downsampled) {
+				averagedMax = Math.max(averagedMax, block.maxTime);
+			}
+		}
+		// Start to end of the ranges of the edits, merged
+		TreeMap<Long, Long> edited = new TreeMap<Long, Long>();
+		for (Block block : written) {
+			// Edits never reach back into downsampled history, raw blocks there are left by compaction
+			if (!block.downsampled && (block.minTime <= averagedMax || overlaps(edited, block.minTime, block.maxTime))) {
+				superseded.put(block, Boolean.TRUE);
+			}
+			if (block.edited && block.count == 0) {
+				merge(edited, block.minTime, block.maxTime);
+			}
+		}
+
+		// Stable, blocks with the same range stay in file order
+		blocks.sort((a, b) -> a.minTime != b.minTime ? Long.compare(a.minTime, b.minTime)
+				: Long.compare(a.maxTime, b.maxTime));
+
+		// Averages are rewritten from the same first one on, the longest rewrite is the last
+		Map<Long, Block> averages = new HashMap<Long, Block>();
+		for (Block block : blocks) {
+			if (block.downsampled) {
+				averages.merge(block.minTime, block, (a, b) -> b.count > a.count ? b : a);
+			}
+		}
+
+		List<Block> live = new ArrayList<Block>();
+		Block previous = null;
+		for (Block block : blocks) {
+			if (block.count == 0) {
+				continue;
+			}
+			boolean moved = previous != null && previous.minTime == block.minTime && previous.maxTime == block.maxTime
+					&& previous.count == block.count && previous.downsampled == block.downsampled;
+			boolean replaced = block.downsampled ? averages.get(block.minTime) != block : superseded.containsKey(block);
+			if (moved || replaced) {
+				logger.debug("Skipping history block {} of series {} left by compaction", block.position, series.id);
+				continue;
+			}
+			previous = block;
+			live.add(block);
+		}
+
+		live.sort((a, b) -> a.segment.id != b.segment.id ? Long.compare(a.segment.id, b.segment.id)
+				: Integer.compare(a.position, b.position));
+		for (Block block : live) {
+			series.addBlock(block);
+			block.segment.liveBlocks++;
+			records += block.count;
+		}
+	}
+
+	private static boolean overlaps(TreeMap<Long, Long> ranges, long start, long end) {
+		Map.Entry<Long, Long> range = ranges.floorEntry(end);
+		return range != null && range.getValue() >= start;
+	}
+
+	private static void merge(TreeMap<Long, Long> ranges, long start, long end) {
+		Map.Entry<Long, Long> before = ranges.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		for (Map.Entry<Long, Long> after = ranges.ceilingEntry(start); after != null && after.getKey() <= end;
+				after = ranges.ceilingEntry(start)) {
+			end = Math.max(end, after.getValue());
+			ranges.remove(after.getKey());
+		}
+		ranges.put(start, end);
+	}
+
+	private static final class Series {
+		final int id;
+		final NodeId nodeId;
+		final HistoryValueType type;
+
+		// In the order they were written, or by first sample time after an edit;
+		// only the last one can be open; the array is only appended to or replaced
+		Block[] blocks = new Block[16];
+		int blockCount = 0;
+		Block open;
+
+		// Consecutive blocks whose samples overlap in time, each run after the ones before
+		// it: the first block and time range of each. In time order every block is a run of
+		// its own, a late sample merges the run of its block with those it reaches back into.
+		int[] runStarts = new int[16];
+		long[] runMinTimes = new long[16];
+		long[] runMaxTimes = new long[16];
+		int runCount = 0;
+		// Set by readers that captured the runs, which are then copied before they are merged
+		boolean runsShared = false;
+
+		// Latest time the downsampled blocks cover, raw samples up to it were averaged
+		long averagedMax = Long.MIN_VALUE;
+
+		// Null to keep the history for good
+		volatile RetentionPolicy retention;
+
+		Series(int id, NodeId nodeId, HistoryValueType type) {
+			this.id = id;
+			this.nodeId = nodeId;
+			this.type = type;
+		}
+
+		// The last block's range grew to include a sample at this time
+		void add(long time) {
+			int last = runCount - 1;
+			runMaxTimes[last] = Math.max(runMaxTimes[last], time);
+			if (time < runMinTimes[last]) {
+				runMinTimes[last] = time;
+				mergeRuns();
+			}
+		}
+
+		void addBlock(Block block) {
+			if (blockCount == blocks.length) {
+				blocks = Arrays.copyOf(blocks, blockCount * 2);
+			}
+			blocks[blockCount++] = block;
+			addRun(blockCount - 1, block);
+			if (block.downsampled) {
+				averagedMax = Math.max(averagedMax, block.maxTime);
+			}
+		}
+
+		// After the blocks were replaced, by an edit or the compactor
+		void setBlocks(Block[] blocks, int blockCount) {
+			this.blocks = blocks;
+			this.blockCount = blockCount;
+
+			runStarts = new int[blocks.length];
+			runMinTimes = new long[blocks.length];
+			runMaxTimes = new long[blocks.length];
+			runCount = 0;
+			runsShared = false;
+			averagedMax = Long.MIN_VALUE;
+			for (int i = 0; i < blockCount; i++) {
+				addRun(i, blocks[i]);
+				if (blocks[i].downsampled) {
+					averagedMax = Math.max(averagedMax, blocks[i].maxTime);
+				}
+			}
+		}
+
+		private void addRun(int start, Block block) {
+			if (runCount == runStarts.length) {
+				copyRuns(runCount * 2);
+			}
+			runStarts[runCount] = start;
+			runMinTimes[runCount] = block.minTime;
+			runMaxTimes[runCount] = block.maxTime;
+			runCount++;
+			mergeRuns();
+		}
+
+		// Merges the last run with the ones before it that it overlaps
+		private void mergeRuns() {
+			int last = runCount - 1;
+			long min = runMinTimes[last];
+			if (last == 0 || runMaxTimes[last - 1] <= min) {
+				return;
+			}
+			if (runsShared) {
+				copyRuns(runStarts.length);
+			}
+
+			long max = runMaxTimes[last];
+			while (last > 0 && runMaxTimes[last - 1] > min) {
+				last--;
+				min = Math.min(min, runMinTimes[last]);
+				max = Math.max(max, runMaxTimes[last]);
+			}
+			runMinTimes[last] = min;
+			runMaxTimes[last] = max;
+			runCount = last + 1;
+		}
+
+		private void copyRuns(int length) {
+			runStarts = Arrays.copyOf(runStarts, length);
+			runMinTimes = Arrays.copyOf(runMinTimes, length);
+			runMaxTimes = Arrays.copyOf(runMaxTimes, length);
+			runsShared = false;
+		}
+	}
+
+	private static final class Block {
+		final Segment segment;
+		final int position;
+		final int series;
+
+		// Changed under the store's write lock while the block is open
+		int count = 0;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		boolean ordered = true;
+		boolean dirty = false;
+
+		// Holds interval averages written by the compactor rather than raw samples
+		boolean downsampled = false;
+		// Written by an edit, supersedes the raw blocks written before it that it overlaps
+		boolean edited = false;
+
+		// Null once sealed
+		BlockEncoder encoder;
+		int sizeBytes;
+
+		Block(Segment segment, int position, int series) {
+			this.segment = segment;
+			this.position = position;
+			this.series = series;
+		}
+
+		void add(long time) {
+			if (time < maxTime) {
+				ordered = false;
+			}
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			count++;
+		}
+
+		int getSizeBytes() {
+			return encoder != null ? encoder.getSizeBytes() : sizeBytes;
+		}
+
+		int getFlags() {
+			return (ordered ? 0 : FLAG_UNORDERED) | (downsampled ? FLAG_DOWNSAMPLED : 0) | (edited ? FLAG_EDITED : 0);
+		}
+
+		void seal() {
+			if (encoder != null) {
+				sizeBytes = encoder.getSizeBytes();
+				encoder = null;
+			}
+		}
+	}
+
+	// What a read sees of a series, the open block and the run it ends are captured as they were
+	private static final class View {
+		final Block[] blocks;
+		final int blockCount;
+		final boolean floatingPoint;
+		final int lastCount;
+		final long lastMinTime;
+		final long lastMaxTime;
+		final boolean lastOrdered;
+
+		final int[] runStarts;
+		final long[] runMinTimes;
+		final long[] runMaxTimes;
+		final int runCount;
+		final long lastRunMinTime;
+		final long lastRunMaxTime;
+
+		View(Series series) {
+			this.blocks = series.blocks;
+			this.blockCount = series.blockCount;
+			this.floatingPoint = series.type.isFloatingPoint();
+
+			Block last = blocks[blockCount - 1];
+			this.lastCount = last.count;
+			this.lastMinTime = last.minTime;
+			this.lastMaxTime = last.maxTime;
+			this.lastOrdered = last.ordered;
+
+			this.runStarts = series.runStarts;
+			this.runMinTimes = series.runMinTimes;
+			this.runMaxTimes = series.runMaxTimes;
+			this.runCount = series.runCount;
+			this.lastRunMinTime = runMinTimes[runCount - 1];
+			this.lastRunMaxTime = runMaxTimes[runCount - 1];
+			// Readers only ever set it, under the read lock
+			series.runsShared = true;
+		}
+
+		int count(int i) {
+			return i == blockCount - 1 ? lastCount : blocks[i].count;
+		}
+
+		long minTime(int i) {
+			return i == blockCount - 1 ? lastMinTime : blocks[i].minTime;
+		}
+
+		long maxTime(int i) {
+			return i == blockCount - 1 ? lastMaxTime : blocks[i].maxTime;
+		}
+
+		int runStart(int k) {
+			return runStarts[k];
+		}
+
+		int runEnd(int k) {
+			return k == runCount - 1 ? blockCount : runStarts[k + 1];
+		}
+
+		long runMinTime(int k) {
+			return k == runCount - 1 ? lastRunMinTime : runMinTimes[k];
+		}
+
+		long runMaxTime(int k) {
+			return k == runCount - 1 ? lastRunMaxTime : runMaxTimes[k];
+		}
+
+		BlockDecoder decoder(int i) {
+			Block block = blocks[i];
+			return new BlockDecoder(block.segment.buffer, block.position + BLOCK_HEADER_SIZE, floatingPoint, count(i));
+		}
+
+		/**
+		 * The samples of a run in time order, of the blocks with samples in
+		 * {@code from <= time < to} and, for the bounds, of those holding the last sample
+		 * before and the first sample after.
+		 */
+		Source run(int k, long from, long to, boolean bounds) {
+			int start = runStart(k);
+			int end = runEnd(k);
+			if (end - start == 1) {
+				return block(start);
+			}
+
+			long before = Long.MIN_VALUE;
+			long after = Long.MAX_VALUE;
+			if (bounds) {
+				for (int i = start; i < end; i++) {
+					if (maxTime(i) < from) {
+						before = Math.max(before, maxTime(i));
+					} else if (minTime(i) >= to) {
+						after = Math.min(after, minTime(i));
+					}
+				}
+			}
+
+			Merged merged = new Merged();
+			for (int i = start; i < end; i++) {
+				long min = minTime(i);
+				long max = maxTime(i);
+				if ((max >= from && min < to) || (bounds && (max == before || min == after))) {
+					merged.add(block(i), i);
+				}
+			}
+			return merged;
+		}
+
+		Sample first(int k) {
+			Source source = run(k, Long.MIN_VALUE, runMinTime(k) + 1, false);
+			source.next();
+			return new Sample(source.time, source.bits, source.status);
+		}
+
+		Sample last(int k) {
+			Source source = run(k, runMaxTime(k), Long.MAX_VALUE, false);
+			while (source.next()) {
+				// the last one is what's left
+			}
+			return new Sample(source.time, source.bits, source.status);
+		}
+
+		// Runs follow each other in time, so both searches are binary
+		int firstRunEndingAtOrAfter(long time) {
+			int low = 0;
+			int high = runCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (runMaxTime(mid) < time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		int lastRunStartingBefore(long time) {
+			int low = 0;
+			int high = runCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (runMinTime(mid) < time) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low - 1;
+		}
+
+		private Source block(int i) {
+			boolean ordered = i == blockCount - 1 ? lastOrdered : blocks[i].ordered;
+			return ordered ? new Decoded(decoder(i)) : new Sorted(decoder(i), count(i));
+		}
+	}
+
+	/**
+	 * Samples in time order, those with the same time in the order they were written, one
+	 * {@link #next()} at a time.
+	 */
+	private abstract static class Source {
+		long time;
+		long bits;
+		int status;
+		// Of the block in the series, to merge samples with the same time in block order
+		int order;
+
+		abstract boolean next();
+	}
+
+	// A block in time order, streamed as it is decoded
+	private static final class Decoded extends Source {
+		final BlockDecoder decoder;
+
+		Decoded(BlockDecoder decoder) {
+			this.decoder = decoder;
+		}
+
+		@Override
+		boolean next() {
+			if (!decoder.next()) {
+				return false;
+			}
+			time = decoder.getTime();
+			bits = decoder.getBits();
+			status = decoder.getStatus();
+			return true;
+		}
+	}
+
+	// A block with late samples, decoded and sorted at once
+	private static final class Sorted extends Source {
+		final long[] times;
+		final long[] values;
+		final int[] statuses;
+		final int[] sorted;
+		int index = 0;
+
+		Sorted(BlockDecoder decoder, int count) {
+			times = new long[count];
+			values = new long[count];
+			statuses = new int[count];
+			for (int i = 0; decoder.next(); i++) {
+				times[i] = decoder.getTime();
+				values[i] = decoder.getBits();
+				statuses[i] = decoder.getStatus();
+			}
+			sorted = SampleUpdate.sort(times, count);
+		}
+
+		@Override
+		boolean next() {
+			if (index == sorted.length) {
+				return false;
+			}
+			int i = sorted[index++];
+			time = times[i];
+			bits = values[i];
+			status = statuses[i];
+			return true;
+		}
+	}
+
+	// The blocks of a run, merged by time
+	private static final class Merged extends Source {
+		final PriorityQueue<Source> sources = new PriorityQueue<Source>((a, b) ->
+				a.time != b.time ? Long.compare(a.time, b.time) : Integer.compare(a.order, b.order));
+		Source current;
+
+		void add(Source source, int order) {
+			source.order = order;
+			if (source.next()) {
+				sources.add(source);
+			}
+		}
+
+		@Override
+		boolean next() {
+			if (current != null && current.next()) {
+				sources.add(current);
+			}
+			current = sources.poll();
+			if (current == null) {
+				return false;
+			}
+			time = current.time;
+			bits = current.bits;
+			status = current.status;
+			return true;
+		}
+	}
+
+	private static final class Sample {
+		final long time;
+		final long bits;
+		final int status;
+
+		Sample(long time, long bits, int status) {
+			this.time = time;
+			this.bits = bits;
+			this.status = status;
+		}
+
+		boolean visit(SampleVisitor visitor) {
+			return visitor.visit(time, bits, status);
+		}
+	}
+
+	/**
+	 * A block for {@link #write} to copy to the newest segment, from where a block already
+	 * is or from a heap buffer the compactor encoded it in.
+	 */
+	private static final class Output {
+		final Series series;
+		final ByteBuffer source;
+		final int sourcePosition;
+		// The block it is a copy of, if moved
+		final Block moved;
+
+		int count = 0;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		boolean ordered = true;
+		boolean downsampled = false;
+		boolean edited = false;
+		int sizeBytes;
+
+		// While the compactor or an edit encodes it
+		BlockEncoder encoder;
+
+		Output(Series series, ByteBuffer source, int sourcePosition, Block moved) {
+			this.series = series;
+			this.source = source;
+			this.sourcePosition = sourcePosition;
+			this.moved = moved;
+		}
+
+		// A copy isn't an edit, it must not supersede blocks written since the original
+		static Output moved(Series series, Block block) {
+			Output output = new Output(series, block.segment.buffer, block.position, block);
+			output.count = block.count;
+			output.minTime = block.minTime;
+			output.maxTime = block.maxTime;
+			output.ordered = block.ordered;
+			output.downsampled = block.downsampled;
+			output.sizeBytes = block.getSizeBytes();
+			return output;
+		}
+
+		// False if the block is full
+		boolean append(long time, long bits, int status) {
+			if (!encoder.append(time, bits, status)) {
+				return false;
+			}
+			count++;
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			return true;
+		}
+
+		void seal() {
+			sizeBytes = encoder.getSizeBytes();
+			encoder = null;
+		}
+
+		// To the last output of the list, starting a new one on the heap when it is full
+		static void append(List<Output> outputs, Series series, boolean downsampled, long time, long bits,
+				int status) {
+
+			Output output = outputs.isEmpty() ? null : outputs.get(outputs.size() - 1);
+			if (output == null || !output.append(time, bits, status)) {
+				output = new Output(series, ByteBuffer.allocate(BLOCK_SIZE), 0, null);
+				output.downsampled = downsampled;
+				output.encoder = new BlockEncoder(output.source, BLOCK_HEADER_SIZE, BLOCK_SIZE - BLOCK_HEADER_SIZE,
+						series.type.isFloatingPoint());
+				outputs.add(output);
+				output.append(time, bits, status);
+			}
+		}
+	}
+
+	/**
+	 * Folds the raw samples of a series, in time order, into one sample per interval
+	 * stamped with the interval's start: the average of its good samples with
+	 * {@link #CALCULATED} status, or its last sample if none is good. Encodes them into
+	 * blocks of averages on the heap, followed by blocks of the samples kept raw.
+	 */
+	private static final class Downsampler {
+		final Series series;
+		final long interval;
+		final List<Output> averages = new ArrayList<Output>();
+		final List<Output> kept = new ArrayList<Output>();
+		long averaged = 0;
+		// Of the samples averaged, the range of the averages covers them for recovery
+		long maxTime = Long.MIN_VALUE;
+		// End of the intervals averaged by earlier runs
+		long copiedUntil = Long.MIN_VALUE;
+
+		long bucket;
+		int samples = 0;
+		int good = 0;
+		double sum = 0;
+		long lastBits;
+		int lastStatus;
+
+		Downsampler(Series series, long interval) {
+			this.series = series;
+			this.interval = interval;
+		}
+
+		void add(long time, long bits, int status) {
+			if (time < copiedUntil) {
+				// Late for an interval that has its average already, still covered for recovery
+				maxTime = Math.max(maxTime, time);
+				return;
+			}
+			long b = Math.floorDiv(time, interval);
+			if (samples > 0 && b != bucket) {
+				flushInterval();
+			}
+			bucket = b;
+			samples++;
+			lastBits = bits;
+			lastStatus = status;
+			if (IntervalAccumulator.isGood(status)) {
+				good++;
+				sum += series.type.toDouble(bits);
+			}
+			averaged++;
+			maxTime = Math.max(maxTime, time);
+		}
+
+		// An average of an earlier run
+		void copy(long time, long bits, int status) {
+			Output.append(averages, series, true, time, bits, status);
+			copiedUntil = Math.max(copiedUntil, (Math.floorDiv(time, interval) + 1) * interval);
+		}
+
+		void keep(long time, long bits, int status) {
+			Output.append(kept, series, false, time, bits, status);
+		}
+
+		List<Output> finish() {
+			if (samples > 0) {
+				flushInterval();
+			}
+			if (!averages.isEmpty()) {
+				Output last = averages.get(averages.size() - 1);
+				last.maxTime = Math.max(last.maxTime, maxTime);
+			}
+			List<Output> outputs = new ArrayList<Output>(averages);
+			outputs.addAll(kept);
+			for (Output output : outputs) {
+				output.seal();
+			}
+			return outputs;
+		}
+
+		private void flushInterval() {
+			if (good > 0) {
+				Output.append(averages, series, true, bucket * interval, series.type.fromDouble(sum / good), CALCULATED);
+			} else {
+				Output.append(averages, series, true, bucket * interval, lastBits, lastStatus);
+			}
+			samples = 0;
+			good = 0;
+			sum = 0;
+		}
+	}
+
+	private static final class Segment {
+		final File file;
+		// Segments are created in id order, blocks of one in position order
+		final long id;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		volatile int writePosition;
+		volatile int committedPosition;
+
+		// Blocks of the segment some series still reads, changed under the store's write lock
+		int liveBlocks = 0;
+		private boolean closed = false;
+
+		Segment(File file, long id, int size) throws IOException {
+			this.file = file;
+			this.id = id;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		/**
+		 * Syncs the samples, then writes the block headers and committed position that make
+		 * them count and syncs again.
+		 *
+		 * @param headers {@code position, count, minTime, maxTime, flags, bytes} of each changed block
+		 */
+		synchronized void commit(int position, List<long[]> headers) {
+			if (closed) {
+				return;
+			}
+			buffer.force();
+			for (long[] header : headers) {
+				int block = (int) header[0];
+				if (buffer.getInt(block) == 0) {
+					// Retired since the header was taken
+					continue;
+				}
+				buffer.putInt(block + BLOCK_COUNT, (int) header[1]);
+				buffer.putLong(block + BLOCK_MIN_TIME, header[2]);
+				buffer.putLong(block + BLOCK_MAX_TIME, header[3]);
+				buffer.putInt(block + BLOCK_FLAGS, (int) header[4]);
+				buffer.putInt(block + BLOCK_BYTES, (int) header[5]);
+			}
+			if (position > committedPosition) {
+				buffer.putInt(COMMITTED_POSITION, position);
+				committedPosition = position;
+			}
+			buffer.force();
+		}
+
+		/**
+		 * Zeroes the series and sample count of blocks rewritten elsewhere, so recovery skips
+		 * them and a header taken before isn't committed over it.
+		 */
+		synchronized void retire(List<Block> blocks) {
+			if (closed) {
+				return;
+			}
+			for (Block block : blocks) {
+				buffer.putInt(block.position, 0);
+				buffer.putInt(block.position + BLOCK_COUNT, 0);
+			}
+			buffer.force();
+		}
+
+		int getAllocatedBlocks() {
+			return (writePosition - HEADER_SIZE) / BLOCK_SIZE;
+		}
+
+		// The mapping stays readable until it is collected, a reader may still hold blocks of it
+		synchronized void close() {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LoggerFactory.getLogger(HistoryStore.class).warn("Unable to close {}", file, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package opcuaTest.history;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.ULong;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+/**
+ * The scalar data types that can be historized. Every value is kept as the 64 raw bits
+ * of its primitive, so a history never holds boxed values or DataValues.
+ */
+public enum HistoryValueType {
+
+	BOOLEAN(Identifiers.Boolean) {
+		@Override
+		public long toBits(Object value) {
+			return ((Boolean) value) ? 1L : 0L;
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return bits != 0;
+		}
+	},
+
+	SBYTE(Identifiers.SByte) {
+		@Override
+		public long toBits(Object value) {
+			return ((Byte) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return (byte) bits;
+		}
+	},
+
+	BYTE(Identifiers.Byte) {
+		@Override
+		public long toBits(Object value) {
+			return ((UByte) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return ubyte(bits);
+		}
+	},
+
+	INT16(Identifiers.Int16) {
+		@Override
+		public long toBits(Object value) {
+			return ((Short) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return (short) bits;
+		}
+	},
+
+	UINT16(Identifiers.UInt16) {
+		@Override
+		public long toBits(Object value) {
+			return ((UShort) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return ushort((int) bits);
+		}
+	},
+
+	INT32(Identifiers.Int32) {
+		@Override
+		public long toBits(Object value) {
+			return ((Integer) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return (int) bits;
+		}
+	},
+
+	UINT32(Identifiers.UInt32) {
+		@Override
+		public long toBits(Object value) {
+			return ((UInteger) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return uint(bits);
+		}
+	},
+
+	INT64(Identifiers.Int64) {
+		@Override
+		public long toBits(Object value) {
+			return (Long) value;
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return bits;
+		}
+	},
+
+	UINT64(Identifiers.UInt64) {
+		@Override
+		public long toBits(Object value) {
+			return ((ULong) value).longValue();
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return ulong(bits);
+		}
+
+		@Override
+		public double toDouble(long bits) {
+			double value = (double) (bits & Long.MAX_VALUE);
+			return bits < 0 ? value + 0x1.0p63 : value;
+		}
+	},
+
+	FLOAT(Identifiers.Float) {
+		@Override
+		public long toBits(Object value) {
+			return Float.floatToRawIntBits((Float) value);
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return Float.intBitsToFloat((int) bits);
+		}
+
+		@Override
+		public double toDouble(long bits) {
+			return Float.intBitsToFloat((int) bits);
+		}
+
+		@Override
+		public long fromDouble(double value) {
+			return Float.floatToRawIntBits((float) value);
+		}
+
+		@Override
+		public boolean isFloatingPoint() {
+			return true;
+		}
+	},
+
+	DOUBLE(Identifiers.Double) {
+		@Override
+		public long toBits(Object value) {
+			return Double.doubleToRawLongBits((Double) value);
+		}
+
+		@Override
+		public Object fromBits(long bits) {
+			return Double.longBitsToDouble(bits);
+		}
+
+		@Override
+		public double toDouble(long bits) {
+			return Double.longBitsToDouble(bits);
+		}
+
+		@Override
+		public long fromDouble(double value) {
+			return Double.doubleToRawLongBits(value);
+		}
+
+		@Override
+		public boolean isFloatingPoint() {
+			return true;
+		}
+	};
+
+	private static final Map<NodeId, HistoryValueType> BY_DATA_TYPE = new HashMap<NodeId, HistoryValueType>();
+
+	static {
+		for (HistoryValueType type : values()) {
+			BY_DATA_TYPE.put(type.dataType, type);
+		}
+	}
+
+	private final NodeId dataType;
+
+	HistoryValueType(NodeId dataType) {
+		this.dataType = dataType;
+	}
+
+	public NodeId getDataType() {
+		return dataType;
+	}
+
+	/**
+	 * @throws ClassCastException if the value isn't of this type
+	 */
+	public abstract long toBits(Object value);
+
+	public abstract Object fromBits(long bits);
+
+	// Integer types keep the plain value in their bits
+	public double toDouble(long bits) {
+		return bits;
+	}
+
+	public long fromDouble(double value) {
+		return Math.round(value);
+	}
+
+	public boolean isFloatingPoint() {
+		return false;
+	}
+
+	/**
+	 * @return the type for a variable's DataType, or null if it can't be historized.
+	 */
+	public static HistoryValueType of(NodeId dataType) {
+		return BY_DATA_TYPE.get(dataType);
+	}
+
+	public static HistoryValueType fromOrdinal(int ordinal) {
+		return values()[ordinal];
+	}
+}
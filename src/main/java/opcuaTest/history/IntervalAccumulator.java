@@ -0,0 +1,183 @@
+package opcuaTest.history;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+
+/**
+ * Computes one aggregate over the processing intervals of {@code start <= time < end},
+ * the last interval being cut short at {@code end}. Samples are fed with {@link #add},
+ * oldest first, and rollup buckets with {@link #merge}; each result is stamped with the
+ * start of its interval.
+ */
+public class IntervalAccumulator {
+
+	// Good, with the DataValue info bits set to HistorianCalculated or HistorianInterpolated
+	private static final StatusCode CALCULATED = new StatusCode(0x0401L);
+	private static final StatusCode INTERPOLATED = new StatusCode(0x0402L);
+
+	private static final StatusCode NO_DATA = new StatusCode(StatusCodes.Bad_NoData);
+
+	private static final byte POINT_MISSING = 0;
+	private static final byte POINT_RAW = 1;
+	private static final byte POINT_INTERPOLATED = 2;
+
+	private final AggregateType aggregate;
+	private final HistoryValueType type;
+	private final long start;
+	private final long end;
+	private final long interval;
+	private final int intervals;
+
+	private final long[] counts;
+	private final double[] sums;
+	private final long[] minimums;
+	private final long[] maximums;
+
+	// Interpolative: value and how it was found per interval start
+	private final double[] points;
+	private final byte[] pointStates;
+	private int nextPoint = 0;
+	private boolean hasPrevious = false;
+	private long previousTime;
+	private double previousValue;
+
+	/**
+	 * @param interval length of the intervals in 100 ns ticks
+	 */
+	public IntervalAccumulator(AggregateType aggregate, HistoryValueType type, long start, long end, long interval) {
+		this.aggregate = aggregate;
+		this.type = type;
+		this.start = start;
+		this.end = end;
+		this.interval = interval;
+		this.intervals = intervalCount(start, end, interval);
+
+		boolean interpolative = aggregate == AggregateType.INTERPOLATIVE;
+		this.counts = interpolative ? null : new long[intervals];
+		this.sums = interpolative ? null : new double[intervals];
+		this.minimums = interpolative ? null : new long[intervals];
+		this.maximums = interpolative ? null : new long[intervals];
+		this.points = interpolative ? new double[intervals] : null;
+		this.pointStates = interpolative ? new byte[intervals] : null;
+	}
+
+	public static int intervalCount(long start, long end, long interval) {
+		return (int) Math.min(Integer.MAX_VALUE, (end - start + interval - 1) / interval);
+	}
+
+	public static boolean isGood(int status) {
+		return (status & 0xC0000000) == 0;
+	}
+
+	/**
+	 * Adds a raw sample, samples with a bad or uncertain status are left out. The
+	 * interpolative aggregate also uses the samples just outside the range.
+	 */
+	public void add(long time, long bits, int status) {
+		if (!isGood(status)) {
+			return;
+		}
+
+		if (points != null) {
+			interpolate(time, type.toDouble(bits));
+			return;
+		}
+
+		if (time >= start && time < end) {
+			merge(time, 1, type.toDouble(bits), bits, bits);
+		}
+	}
+
+	/**
+	 * Adds the samples of a rollup bucket starting at {@code time}.
+	 */
+	public void merge(long time, long count, double sum, long minimum, long maximum) {
+		int index = (int) ((time - start) / interval);
+
+		if (counts[index] == 0) {
+			minimums[index] = minimum;
+			maximums[index] = maximum;
+		} else {
+			if (type.toDouble(minimum) < type.toDouble(minimums[index])) {
+				minimums[index] = minimum;
+			}
+			if (type.toDouble(maximum) > type.toDouble(maximums[index])) {
+				maximums[index] = maximum;
+			}
+		}
+		counts[index] += count;
+		sums[index] += sum;
+	}
+
+	public List<DataValue> getResults(TimestampsToReturn timestamps) {
+		List<DataValue> results = new ArrayList<DataValue>(intervals);
+
+		for (int i = 0; i < intervals; i++) {
+			long time = start + i * interval;
+			StatusCode status = status(i);
+			Variant value = status == NO_DATA ? Variant.NULL_VALUE : value(i);
+			results.add(HistoryManager.toDataValue(value, status, time, timestamps));
+		}
+		return results;
+	}
+
+	private StatusCode status(int i) {
+		switch (aggregate) {
+			case INTERPOLATIVE:
+				if (pointStates[i] == POINT_MISSING) {
+					return NO_DATA;
+				}
+				return pointStates[i] == POINT_RAW ? StatusCode.GOOD : INTERPOLATED;
+			case COUNT:
+				return CALCULATED;
+			case AVERAGE:
+				return counts[i] == 0 ? NO_DATA : CALCULATED;
+			default:
+				// The minimum and maximum are raw values
+				return counts[i] == 0 ? NO_DATA : StatusCode.GOOD;
+		}
+	}
+
+	private Variant value(int i) {
+		switch (aggregate) {
+			case INTERPOLATIVE:
+				return new Variant(points[i]);
+			case COUNT:
+				return new Variant((int) counts[i]);
+			case AVERAGE:
+				return new Variant(sums[i] / counts[i]);
+			case MINIMUM:
+				return new Variant(type.fromBits(minimums[i]));
+			default:
+				return new Variant(type.fromBits(maximums[i]));
+		}
+	}
+
+	// Resolves the interval starts up to this sample, from it and the good sample before it
+	private void interpolate(long time, double value) {
+		while (nextPoint < intervals) {
+			long point = start + nextPoint * interval;
+			if (point > time) {
+				break;
+			}
+			if (point == time) {
+				points[nextPoint] = value;
+				pointStates[nextPoint] = POINT_RAW;
+			} else if (hasPrevious) {
+				double fraction = (double) (point - previousTime) / (time - previousTime);
+				points[nextPoint] = previousValue + (value - previousValue) * fraction;
+				pointStates[nextPoint] = POINT_INTERPOLATED;
+			}
+			nextPoint++;
+		}
+		hasPrevious = true;
+		previousTime = time;
+		previousValue = value;
+	}
+}
@@ -0,0 +1,71 @@
+package opcuaTest.history;
+
+/**
+ * How long the {@link HistoryStore} keeps the history of a variable: raw samples for
+ * {@code rawRetention}, then, if downsampling, one average per downsample interval until
+ * the history is {@code downsampledRetention} old, after which it is dropped.
+ * <p>
+ * Durations are in milliseconds and counted back from the time the compactor runs.
+ */
+public final class RetentionPolicy {
+
+	public static final long MINUTE_MILLIS = 60L * 1000;
+	public static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+
+	private final long rawRetentionMillis;
+	private final long downsampleIntervalMillis;
+	private final long downsampledRetentionMillis;
+
+	/**
+	 * @param downsampleIntervalMillis width of the averaged intervals, 0 to drop the raw
+	 *                                 samples without downsampling them
+	 */
+	public RetentionPolicy(long rawRetentionMillis, long downsampleIntervalMillis, long downsampledRetentionMillis) {
+		if (rawRetentionMillis <= 0 || downsampleIntervalMillis < 0) {
+			throw new IllegalArgumentException("retention and interval must be positive");
+		}
+		if (downsampleIntervalMillis > 0 && downsampledRetentionMillis < rawRetentionMillis) {
+			throw new IllegalArgumentException("downsampled history can't be kept shorter than the raw one: "
+					+ downsampledRetentionMillis + " < " + rawRetentionMillis);
+		}
+		this.rawRetentionMillis = rawRetentionMillis;
+		this.downsampleIntervalMillis = downsampleIntervalMillis;
+		this.downsampledRetentionMillis = downsampleIntervalMillis > 0 ? downsampledRetentionMillis : rawRetentionMillis;
+	}
+
+	/**
+	 * Keeps raw samples for {@code rawDays}, then 1-minute averages up to {@code downsampledDays}.
+	 */
+	public static RetentionPolicy minuteAverages(int rawDays, int downsampledDays) {
+		return new RetentionPolicy(rawDays * DAY_MILLIS, MINUTE_MILLIS, downsampledDays * DAY_MILLIS);
+	}
+
+	/**
+	 * Keeps raw samples for {@code rawDays}, then drops them.
+	 */
+	public static RetentionPolicy rawOnly(int rawDays) {
+		return new RetentionPolicy(rawDays * DAY_MILLIS, 0, 0);
+	}
+
+	public long getRawRetentionMillis() {
+		return rawRetentionMillis;
+	}
+
+	public long getDownsampleIntervalMillis() {
+		return downsampleIntervalMillis;
+	}
+
+	public long getDownsampledRetentionMillis() {
+		return downsampledRetentionMillis;
+	}
+
+	public boolean isDownsampling() {
+		return downsampleIntervalMillis > 0;
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy[raw=" + rawRetentionMillis + "ms, interval=" + downsampleIntervalMillis
+				+ "ms, downsampled=" + downsampledRetentionMillis + "ms]";
+	}
+}
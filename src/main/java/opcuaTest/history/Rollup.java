@@ -0,0 +1,200 @@
+package opcuaTest.history;
+
+import java.util.Arrays;
+
+/**
+ * Count, sum, minimum and maximum of the good samples of one variable per fixed-size time
+ * bucket, e.g. per minute, updated as samples arrive. Buckets live in a direct-mapped ring:
+ * bucket {@code n} is kept in slot {@code n % capacity}, so adding a sample is O(1)
+ * whatever its time. The ring starts small and doubles when two buckets it still has to
+ * keep meet in a slot; at its maximum capacity the older bucket is dropped.
+ */
+public class Rollup {
+
+	public static final long MINUTE = 60L * 10_000_000L;
+	public static final long HOUR = 60L * MINUTE;
+
+	// Bucket number, count, sum, min and max bits
+	public static final int BYTES_PER_BUCKET = 5 * 8;
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final HistoryValueType type;
+	private final long resolution;
+	private final int maxCapacity;
+
+	// Allocated with the first sample, most variables of a big namespace never get one
+	private int capacity = 0;
+	private long[] buckets;
+	private long[] counts;
+	private double[] sums;
+	private long[] minimums;
+	private long[] maximums;
+
+	// Newest bucket that lost samples, only the buckets after it are complete
+	private long dropped = Long.MIN_VALUE;
+
+	/**
+	 * @param resolution  bucket size in 100 ns ticks
+	 * @param maxCapacity number of buckets kept at most
+	 */
+	public Rollup(HistoryValueType type, long resolution, int maxCapacity) {
+		this.type = type;
+		this.resolution = resolution;
+		this.maxCapacity = maxCapacity;
+	}
+
+	public long getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Adds a sample unless its bucket was dropped already.
+	 */
+	public synchronized void add(long time, long bits) {
+		long bucket = Math.floorDiv(time, resolution);
+		if (bucket <= dropped) {
+			return;
+		}
+		if (buckets == null) {
+			allocate(Math.min(INITIAL_CAPACITY, maxCapacity));
+		}
+
+		int slot = slot(bucket);
+		while (buckets[slot] != bucket && buckets[slot] != EMPTY && capacity < maxCapacity) {
+			grow();
+			slot = slot(bucket);
+		}
+
+		if (buckets[slot] != bucket) {
+			if (buckets[slot] > bucket) {
+				// Older than all the ring can hold
+				dropped = bucket;
+				return;
+			}
+			if (buckets[slot] != EMPTY) {
+				dropped = Math.max(dropped, buckets[slot]);
+			}
+			buckets[slot] = bucket;
+			counts[slot] = 1;
+			sums[slot] = type.toDouble(bits);
+			minimums[slot] = bits;
+			maximums[slot] = bits;
+			return;
+		}
+
+		double value = type.toDouble(bits);
+		counts[slot]++;
+		sums[slot] += value;
+		if (value < type.toDouble(minimums[slot])) {
+			minimums[slot] = bits;
+		}
+		if (value > type.toDouble(maximums[slot])) {
+			maximums[slot] = bits;
+		}
+	}
+
+	/**
+	 * Empties the buckets of {@code start <= time < end}, whose boundaries must be bucket
+	 * boundaries, for their samples to be added again after an edit of the history.
+	 */
+	public synchronized void reset(long start, long end) {
+		if (buckets == null) {
+			return;
+		}
+		long first = Math.floorDiv(start, resolution);
+		long last = Math.floorDiv(end - 1, resolution);
+		for (int slot = 0; slot < capacity; slot++) {
+			if (buckets[slot] >= first && buckets[slot] <= last) {
+				buckets[slot] = EMPTY;
+			}
+		}
+	}
+
+	/**
+	 * Marks the buckets up to the one of {@code time} as incomplete, e.g. when their raw
+	 * samples aren't there anymore to add.
+	 */
+	public synchronized void drop(long time) {
+		dropped = Math.max(dropped, Math.floorDiv(time, resolution));
+	}
+
+	/**
+	 * @return true if the buckets from {@code time} on are all complete, {@code time} being
+	 * on a bucket boundary.
+	 */
+	public synchronized boolean covers(long time) {
+		return buckets != null && Math.floorDiv(time, resolution) > dropped;
+	}
+
+	/**
+	 * Merges the buckets of {@code start <= time < end} into the intervals of the
+	 * accumulator, whose boundaries must all be bucket boundaries.
+	 */
+	public synchronized void fold(long start, long end, IntervalAccumulator accumulator) {
+		if (buckets == null) {
+			return;
+		}
+		long last = Math.floorDiv(end - 1, resolution);
+		for (long bucket = Math.floorDiv(start, resolution); bucket <= last; bucket++) {
+			int slot = slot(bucket);
+			if (buckets[slot] == bucket) {
+				accumulator.merge(bucket * resolution, counts[slot], sums[slot], minimums[slot], maximums[slot]);
+			}
+		}
+	}
+
+	/**
+	 * @return bytes held by the bucket arrays, 0 until the first sample and at most
+	 * {@code maxCapacity * BYTES_PER_BUCKET}.
+	 */
+	public synchronized long getMemoryBytes() {
+		return (long) capacity * BYTES_PER_BUCKET;
+	}
+
+	private int slot(long bucket) {
+		return (int) Math.floorMod(bucket, (long) capacity);
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		buckets = new long[capacity];
+		counts = new long[capacity];
+		sums = new double[capacity];
+		minimums = new long[capacity];
+		maximums = new long[capacity];
+		Arrays.fill(buckets, EMPTY);
+	}
+
+	private void grow() {
+		long[] oldBuckets = buckets;
+		long[] oldCounts = counts;
+		double[] oldSums = sums;
+		long[] oldMinimums = minimums;
+		long[] oldMaximums = maximums;
+
+		allocate((int) Math.min((long) capacity * 2, maxCapacity));
+
+		for (int i = 0; i < oldBuckets.length; i++) {
+			long bucket = oldBuckets[i];
+			if (bucket == EMPTY) {
+				continue;
+			}
+			int slot = slot(bucket);
+			if (buckets[slot] != EMPTY) {
+				// Only at the maximum capacity, which isn't a multiple of the previous one
+				if (buckets[slot] > bucket) {
+					dropped = Math.max(dropped, bucket);
+					continue;
+				}
+				dropped = Math.max(dropped, buckets[slot]);
+			}
+			buckets[slot] = bucket;
+			counts[slot] = oldCounts[i];
+			sums[slot] = oldSums[i];
+			minimums[slot] = oldMinimums[i];
+			maximums[slot] = oldMaximums[i];
+		}
+	}
+}
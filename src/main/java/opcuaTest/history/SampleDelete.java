@@ -0,0 +1,40 @@
+package opcuaTest.history;
+
+/**
+ * Deletes the samples with {@code low <= time < high}, as HistoryUpdate's
+ * DeleteRawModifiedDetails do.
+ */
+final class SampleDelete implements SampleEditor {
+
+	private final long low;
+	private final long high;
+	private long deleted = 0;
+
+	SampleDelete(long low, long high) {
+		this.low = low;
+		this.high = high;
+	}
+
+	long getDeletedCount() {
+		return deleted;
+	}
+
+	@Override
+	public void visit(long time, long bits, int status, SampleVisitor out) {
+		if (time >= low && time < high) {
+			deleted++;
+		} else {
+			out.visit(time, bits, status);
+		}
+	}
+
+	@Override
+	public void finish(SampleVisitor out) {
+		// Adds nothing
+	}
+
+	@Override
+	public boolean isChanged() {
+		return deleted > 0;
+	}
+}
@@ -0,0 +1,23 @@
+package opcuaTest.history;
+
+/**
+ * Edits a stretch of history as it streams by: gets the samples already there in time
+ * order and passes on, also in time order, what the stretch holds after the edit.
+ */
+public interface SampleEditor {
+
+	/**
+	 * An existing sample, passed on to {@code out} unless the edit drops or replaces it.
+	 */
+	void visit(long time, long bits, int status, SampleVisitor out);
+
+	/**
+	 * Passes on what the edit adds after the last existing sample.
+	 */
+	void finish(SampleVisitor out);
+
+	/**
+	 * @return false if the edit left every sample as it was, so nothing has to be written.
+	 */
+	boolean isChanged();
+}
@@ -0,0 +1,184 @@
+package opcuaTest.history;
+
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+
+/**
+ * Inserts and/or replaces a batch of samples, as HistoryUpdate's UpdateDataDetails do:
+ * the batch is sorted by time once and merged into the existing samples in one pass,
+ * with a status code per value of the batch.
+ * <p>
+ * Several values of the batch with the same time make one sample, the last of them.
+ * Replacing a time that holds several samples replaces all of them.
+ */
+final class SampleUpdate implements SampleEditor {
+
+	enum Mode {
+		// Only where there is no sample yet
+		INSERT,
+		// Only where there is one already
+		REPLACE,
+		// Either
+		UPDATE
+	}
+
+	private final Mode mode;
+	private final long[] times;
+	private final long[] bits;
+	private final int[] statuses;
+	private final int count;
+
+	// Indexes of the batch in time order, and the status code of each value in batch order
+	private final int[] order;
+	private final long[] results;
+
+	// Next value of the batch to merge, in time order
+	private int next = 0;
+	// Time the batch replaced, the other existing samples at this time are dropped
+	private boolean replacing = false;
+	private long replaced;
+	private boolean changed = false;
+
+	/**
+	 * Takes over the arrays, whose first {@code count} values are the batch in any order.
+	 */
+	SampleUpdate(Mode mode, long[] times, long[] bits, int[] statuses, int count) {
+		this.mode = mode;
+		this.times = times;
+		this.bits = bits;
+		this.statuses = statuses;
+		this.count = count;
+		this.order = sort(times, count);
+		this.results = new long[count];
+	}
+
+	/**
+	 * @return the earliest time of the batch, which must not be empty.
+	 */
+	long getLow() {
+		return times[order[0]];
+	}
+
+	long getHigh() {
+		return times[order[count - 1]];
+	}
+
+	/**
+	 * @return the status code of each value, in batch order, once the edit is done.
+	 */
+	long[] getResults() {
+		return results;
+	}
+
+	@Override
+	public void visit(long time, long bits, int status, SampleVisitor out) {
+		mergeBefore(time, false, out);
+
+		if (next < count && times[order[next]] == time) {
+			int end = groupEnd(next);
+			if (mode == Mode.INSERT) {
+				fill(next, end, StatusCodes.Bad_EntryExists);
+				out.visit(time, bits, status);
+			} else {
+				fill(next, end, StatusCodes.Good_EntryReplaced);
+				int last = order[end - 1];
+				out.visit(time, this.bits[last], statuses[last]);
+				replacing = true;
+				replaced = time;
+				changed = true;
+			}
+			next = end;
+			return;
+		}
+
+		if (replacing && time == replaced) {
+			return;
+		}
+		out.visit(time, bits, status);
+	}
+
+	@Override
+	public void finish(SampleVisitor out) {
+		mergeBefore(Long.MAX_VALUE, true, out);
+	}
+
+	@Override
+	public boolean isChanged() {
+		return changed;
+	}
+
+	// The values before the given time have no existing sample at their time
+	private void mergeBefore(long time, boolean all, SampleVisitor out) {
+		while (next < count && (all || times[order[next]] < time)) {
+			int end = groupEnd(next);
+			int first = order[next];
+			int last = order[end - 1];
+
+			switch (mode) {
+				case INSERT:
+					fill(next, end, StatusCodes.Bad_EntryExists);
+					results[first] = StatusCodes.Good_EntryInserted;
+					out.visit(times[first], bits[first], statuses[first]);
+					changed = true;
+					break;
+				case REPLACE:
+					fill(next, end, StatusCodes.Bad_NoEntryExists);
+					break;
+				default:
+					fill(next, end, StatusCodes.Good_EntryReplaced);
+					results[first] = StatusCodes.Good_EntryInserted;
+					out.visit(times[last], bits[last], statuses[last]);
+					changed = true;
+			}
+			next = end;
+		}
+	}
+
+	// End of the run of values with the same time as the one at the given sorted position
+	private int groupEnd(int from) {
+		long time = times[order[from]];
+		int end = from + 1;
+		while (end < count && times[order[end]] == time) {
+			end++;
+		}
+		return end;
+	}
+
+	private void fill(int from, int to, long statusCode) {
+		for (int i = from; i < to; i++) {
+			results[order[i]] = statusCode;
+		}
+	}
+
+	// Stable, so values with the same time keep their batch order; a batch in time order,
+	// as a backfill usually is, is only checked
+	static int[] sort(long[] times, int count) {
+		int[] order = new int[count];
+		boolean sorted = true;
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+			sorted &= i == 0 || times[i - 1] <= times[i];
+		}
+		if (sorted) {
+			return order;
+		}
+
+		int[] buffer = new int[count];
+		for (int width = 1; width < count; width *= 2) {
+			for (int low = 0; low < count - width; low += 2 * width) {
+				int middle = low + width;
+				int high = Math.min(low + 2 * width, count);
+				int left = low;
+				int right = middle;
+				for (int i = low; i < high; i++) {
+					if (left < middle && (right == high || times[order[left]] <= times[order[right]])) {
+						buffer[i] = order[left++];
+					} else {
+						buffer[i] = order[right++];
+					}
+				}
+				System.arraycopy(buffer, low, order, low, high - low);
+			}
+		}
+		return order;
+	}
+}
@@ -0,0 +1,16 @@
+package opcuaTest.history;
+
+/**
+ * Receives history samples one at a time, without an object per sample.
+ */
+@FunctionalInterface
+public interface SampleVisitor {
+
+	/**
+	 * @param time UTC time in 100 ns ticks, as in {@link org.eclipse.milo.opcua.stack.core.types.builtin.DateTime}
+	 * @param bits the value, see {@link HistoryValueType#fromBits(long)}
+	 * @param status the raw status code
+	 * @return false to stop visiting
+	 */
+	boolean visit(long time, long bits, int status);
+}
@@ -0,0 +1,355 @@
+package opcuaTest.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.eclipse.milo.opcua.stack.core.serialization.OpcUaBinaryStreamEncoder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only audit trail of the Write service: one record per value written, with the
+ * time, the session, the node, the attribute, the index range, the result and the value.
+ * <p>
+ * A Write request's values are appended as one batch, which the journal thread encodes
+ * and writes together with whatever other batches are waiting, syncing once for all of
+ * them: a group commit. The future of a batch completes once its group is on disk, so
+ * a Write is answered only once its audit records are durable, and a storm of writes
+ * costs one sync per group rather than per request.
+ * <p>
+ * The journal is a directory of segment files of about {@code segmentBytes}, numbered in
+ * write order, each starting with {@code int magic, int version}, then records of
+ * {@code int length, int crc32} and a body of length bytes in the OPC UA binary encoding:
+ * {@code DateTime time, NodeId session, NodeId node, UInt32 attribute, String indexRange,
+ * StatusCode result, DataValue value}, all little-endian. A new run starts a new segment,
+ * so a record torn by a crash is only ever at the end of a segment, where
+ * {@link WriteJournalReader} stops.
+ */
+public class WriteJournal {
+
+	public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+	static final int MAGIC = 0x574A4E4C;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_HEADER_SIZE = 8;
+
+	static final String SEGMENT_PREFIX = "journal-";
+	static final String SEGMENT_SUFFIX = ".wj";
+
+	// Batches written and synced together at most
+	private static final int MAX_GROUP = 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File directory;
+	private final long segmentBytes;
+	private final boolean sync;
+
+	private final BlockingQueue<Batch> queue;
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	// Owned by the journal thread
+	private final ByteBuf buffer = PooledByteBufAllocator.DEFAULT.heapBuffer(64 * 1024);
+	private final OpcUaBinaryStreamEncoder encoder = new OpcUaBinaryStreamEncoder(buffer);
+	private final CRC32 crc = new CRC32();
+	private long nextSegmentId;
+	private FileChannel channel;
+
+	// Written by the journal thread only
+	private volatile long recordCount = 0;
+	private volatile long writtenBytes = 0;
+	private volatile long commitCount = 0;
+
+	private WriteJournal(File directory, long segmentBytes, boolean sync, int queueCapacity, long nextSegmentId) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.sync = sync;
+		this.queue = new LinkedBlockingQueue<Batch>(queueCapacity);
+		this.nextSegmentId = nextSegmentId;
+		this.thread = new Thread(this::run, "write-journal");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Opens the journal in {@code directory}, after the segments of previous runs.
+	 *
+	 * @param sync          whether a group is synced to disk before its batches complete, or
+	 *                      only handed to the operating system
+	 * @param queueCapacity batches waiting for the journal thread before appends block
+	 */
+	public static WriteJournal open(File directory, long segmentBytes, boolean sync, int queueCapacity)
+			throws IOException {
+
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("unable to create journal directory: " + directory);
+		}
+
+		long nextSegmentId = 0;
+		for (File file : segmentFiles(directory)) {
+			nextSegmentId = Math.max(nextSegmentId, segmentId(file) + 1);
+		}
+
+		WriteJournal journal = new WriteJournal(directory, segmentBytes, sync, queueCapacity, nextSegmentId);
+		journal.openSegment();
+		journal.thread.start();
+		return journal;
+	}
+
+	/**
+	 * Appends a record for each value of a Write request, waiting for room if the journal
+	 * thread is behind.
+	 *
+	 * @param sessionId the session that wrote, or null
+	 * @param results   the result of each value, in the order of {@code writeValues}
+	 * @return completed once the records are written, exceptionally if they can't be.
+	 */
+	public CompletableFuture<Void> append(NodeId sessionId, List<WriteValue> writeValues, List<StatusCode> results) {
+		Batch batch = new Batch(DateTime.now(), sessionId, writeValues, results);
+		if (closed) {
+			batch.future.completeExceptionally(new IllegalStateException("journal closed"));
+			return batch.future;
+		}
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			batch.future.completeExceptionally(e);
+		}
+		return batch.future;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return the number of groups written, each with one sync if the journal syncs.
+	 */
+	public long getCommitCount() {
+		return commitCount;
+	}
+
+	/**
+	 * Writes the batches appended so far and stops the journal thread.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Appends that raced the close
+		List<Batch> left = new ArrayList<Batch>();
+		queue.drainTo(left);
+		for (Batch batch : left) {
+			batch.future.completeExceptionally(new IllegalStateException("journal closed"));
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close write journal", e);
+		}
+		buffer.release();
+	}
+
+	private void run() {
+		List<Batch> group = new ArrayList<Batch>();
+
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Batch first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				group.add(first);
+				queue.drainTo(group, MAX_GROUP - 1);
+			} catch (InterruptedException e) {
+				// Only close stops the journal, and only once everything appended is written
+				continue;
+			}
+
+			try {
+				commit(group);
+				for (Batch batch : group) {
+					batch.future.complete(null);
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.error("Unable to write {} batches to the write journal", group.size(), e);
+				for (Batch batch : group) {
+					batch.future.completeExceptionally(e);
+				}
+			}
+			group.clear();
+		}
+	}
+
+	private void commit(List<Batch> group) throws IOException {
+		buffer.clear();
+		long records = 0;
+		for (Batch batch : group) {
+			for (int i = 0; i < batch.writeValues.size(); i++) {
+				encode(batch, i);
+			}
+			records += batch.writeValues.size();
+		}
+
+		ByteBuffer bytes = buffer.nioBuffer();
+		int length = bytes.remaining();
+		long position = channel.position();
+		try {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			if (sync) {
+				channel.force(false);
+			}
+		} catch (IOException e) {
+			discardFrom(position);
+			throw e;
+		}
+
+		recordCount += records;
+		writtenBytes += length;
+		commitCount++;
+
+		if (channel.position() >= segmentBytes) {
+			channel.close();
+			openSegment();
+		}
+	}
+
+	// A group written in part would hide the groups after it from the reader
+	private void discardFrom(long position) {
+		try {
+			channel.truncate(position);
+			channel.position(position);
+		} catch (IOException e) {
+			try {
+				channel.close();
+				openSegment();
+			} catch (IOException reopen) {
+				logger.error("Unable to open a new write journal segment", reopen);
+			}
+		}
+	}
+
+	private void encode(Batch batch, int index) {
+		WriteValue writeValue = batch.writeValues.get(index);
+		StatusCode result = index < batch.results.size() ? batch.results.get(index) : null;
+		int start = buffer.writerIndex();
+
+		buffer.writeIntLE(0);
+		buffer.writeIntLE(0);
+		try {
+			encodeBody(batch, writeValue, result, writeValue.getValue());
+		} catch (RuntimeException e) {
+			// Still an audit record, without the value the encoder refused
+			logger.warn("Unable to journal value={} of {}", writeValue.getValue(), writeValue.getNodeId(), e);
+			buffer.writerIndex(start + RECORD_HEADER_SIZE);
+			DataValue value = writeValue.getValue();
+			encodeBody(batch, writeValue, result, value != null
+					? new DataValue(Variant.NULL_VALUE, value.getStatusCode(), value.getSourceTime(), value.getServerTime())
+					: null);
+		}
+
+		int length = buffer.writerIndex() - start - RECORD_HEADER_SIZE;
+		crc.reset();
+		crc.update(buffer.nioBuffer(start + RECORD_HEADER_SIZE, length));
+		buffer.setIntLE(start, length);
+		buffer.setIntLE(start + 4, (int) crc.getValue());
+	}
+
+	private void encodeBody(Batch batch, WriteValue writeValue, StatusCode result, DataValue value) {
+		encoder.writeDateTime(null, batch.time);
+		encoder.writeNodeId(null, batch.sessionId != null ? batch.sessionId : NodeId.NULL_VALUE);
+		encoder.writeNodeId(null, writeValue.getNodeId() != null ? writeValue.getNodeId() : NodeId.NULL_VALUE);
+		encoder.writeUInt32(null, writeValue.getAttributeId());
+		encoder.writeString(null, writeValue.getIndexRange());
+		encoder.writeStatusCode(null, result);
+		encoder.writeDataValue(null, value != null ? value : new DataValue(Variant.NULL_VALUE));
+	}
+
+	private void openSegment() throws IOException {
+		File file = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+
+		@SuppressWarnings("resource")
+		FileChannel created = new RandomAccessFile(file, "rw").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while (header.hasRemaining()) {
+			created.write(header);
+		}
+		channel = created;
+	}
+
+	/**
+	 * @return the segment files of a journal, in write order.
+	 */
+	static List<File> segmentFiles(File directory) {
+		List<File> files = new ArrayList<File>();
+		File[] listed = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (listed != null) {
+			for (File file : listed) {
+				if (segmentId(file) >= 0) {
+					files.add(file);
+				}
+			}
+		}
+		files.sort((a, b) -> Long.compare(segmentId(a), segmentId(b)));
+		return files;
+	}
+
+	private static long segmentId(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static final class Batch {
+		final DateTime time;
+		final NodeId sessionId;
+		final List<WriteValue> writeValues;
+		final List<StatusCode> results;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		Batch(DateTime time, NodeId sessionId, List<WriteValue> writeValues, List<StatusCode> results) {
+			this.time = time;
+			this.sessionId = sessionId;
+			this.writeValues = writeValues;
+			this.results = results;
+		}
+	}
+}
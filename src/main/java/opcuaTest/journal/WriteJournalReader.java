@@ -0,0 +1,198 @@
+package opcuaTest.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.serialization.OpcUaBinaryStreamDecoder;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+
+/**
+ * Reads the records of a {@link WriteJournal} back, oldest first, and as a tool dumps
+ * them, one line per value written, optionally filtered:
+ * <p>
+ * Usage: WriteJournalReader directory [--node nodeId] [--session nodeId] [--from instant]
+ * [--to instant] [--bad]
+ * <p>
+ * NodeIds are given as {@code ns=2;s=TestFolder/TestSubfolder1/TestVariable_1_0}, instants
+ * as {@code 2020-01-31T12:00:00Z}, {@code --bad} only dumps the writes that failed. A
+ * record that doesn't check out ends its segment, as a crash leaves the last one.
+ */
+public final class WriteJournalReader {
+
+	private WriteJournalReader() {
+	}
+
+	@FunctionalInterface
+	public interface Visitor {
+		/**
+		 * @return false to stop reading.
+		 */
+		boolean visit(WriteJournalRecord record);
+	}
+
+	/**
+	 * Reads all the records of the journal in {@code directory}, in write order.
+	 *
+	 * @return the number of records read.
+	 */
+	public static long read(File directory, Visitor visitor) throws IOException {
+		long count = 0;
+		for (File file : WriteJournal.segmentFiles(directory)) {
+			long read = readSegment(file, visitor);
+			if (read < 0) {
+				return count - read - 1;
+			}
+			count += read;
+		}
+		return count;
+	}
+
+	// Records read, or -1 - records read if the visitor stopped
+	private static long readSegment(File file, Visitor visitor) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (segment.remaining() < WriteJournal.HEADER_SIZE || segment.getInt() != WriteJournal.MAGIC
+					|| segment.getInt() != WriteJournal.VERSION) {
+				return 0;
+			}
+
+			CRC32 crc = new CRC32();
+			long count = 0;
+			while (segment.remaining() >= WriteJournal.RECORD_HEADER_SIZE) {
+				int length = segment.getInt();
+				int checksum = segment.getInt();
+				if (length <= 0 || length > segment.remaining()) {
+					break;
+				}
+
+				ByteBuffer body = segment.slice();
+				body.limit(length);
+				crc.reset();
+				crc.update(body.duplicate());
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				segment.position(segment.position() + length);
+
+				if (!visitor.visit(decode(body))) {
+					return -1 - (count + 1);
+				}
+				count++;
+			}
+			return count;
+		}
+	}
+
+	private static WriteJournalRecord decode(ByteBuffer body) {
+		ByteBuf buffer = Unpooled.wrappedBuffer(body);
+		try {
+			OpcUaBinaryStreamDecoder decoder = new OpcUaBinaryStreamDecoder(buffer);
+			return new WriteJournalRecord(
+					decoder.readDateTime(null),
+					decoder.readNodeId(null),
+					decoder.readNodeId(null),
+					decoder.readUInt32(null),
+					decoder.readString(null),
+					decoder.readStatusCode(null),
+					decoder.readDataValue(null));
+		} finally {
+			buffer.release();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: WriteJournalReader directory [--node nodeId] [--session nodeId]"
+					+ " [--from instant] [--to instant] [--bad]");
+			System.exit(2);
+		}
+
+		File directory = new File(args[0]);
+		NodeId node = null;
+		NodeId session = null;
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+		boolean bad = false;
+
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "--node":
+					node = NodeId.parse(args[++i]);
+					break;
+				case "--session":
+					session = NodeId.parse(args[++i]);
+					break;
+				case "--from":
+					from = Instant.parse(args[++i]).toEpochMilli();
+					break;
+				case "--to":
+					to = Instant.parse(args[++i]).toEpochMilli();
+					break;
+				case "--bad":
+					bad = true;
+					break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(2);
+			}
+		}
+
+		NodeId nodeFilter = node;
+		NodeId sessionFilter = session;
+		long fromMillis = from;
+		long toMillis = to;
+		boolean badOnly = bad;
+
+		long[] matched = new long[1];
+		long read = read(directory, record -> {
+			long millis = record.getTime().getJavaTime();
+			if ((nodeFilter == null || nodeFilter.equals(record.getNodeId()))
+					&& (sessionFilter == null || sessionFilter.equals(record.getSessionId()))
+					&& millis >= fromMillis && millis <= toMillis
+					&& (!badOnly || (record.getStatusCode() != null && record.getStatusCode().isBad()))) {
+				System.out.println(format(record));
+				matched[0]++;
+			}
+			return true;
+		});
+
+		System.err.println(String.format("%d of %d records", matched[0], read));
+	}
+
+	private static String format(WriteJournalRecord record) {
+		DateTime time = record.getTime();
+		StatusCode status = record.getStatusCode();
+		DataValue value = record.getValue();
+		Object v = value != null && value.getValue() != null ? value.getValue().getValue() : null;
+
+		StringBuilder line = new StringBuilder(128);
+		line.append(Instant.ofEpochMilli(time.getJavaTime()));
+		line.append(" session=").append(record.getSessionId() != null ? record.getSessionId().toParseableString() : "");
+		line.append(" node=").append(record.getNodeId() != null ? record.getNodeId().toParseableString() : "");
+		line.append(" attribute=").append(record.getAttributeId() != null
+				? AttributeId.from(record.getAttributeId()).map(Object::toString).orElse(record.getAttributeId().toString())
+				: "");
+		if (record.getIndexRange() != null) {
+			line.append(" indexRange=").append(record.getIndexRange());
+		}
+		line.append(" result=").append(String.format("0x%08X", status != null ? status.getValue() : 0L));
+		line.append(" value=").append(v != null && v.getClass().isArray()
+				? Arrays.deepToString(new Object[] {v}).replaceAll("^\\[|\\]$", "") : String.valueOf(v));
+		return line.toString();
+	}
+}
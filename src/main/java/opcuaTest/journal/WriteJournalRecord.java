@@ -0,0 +1,73 @@
+package opcuaTest.journal;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+
+/**
+ * One value written, as the {@link WriteJournal} recorded it.
+ */
+public final class WriteJournalRecord {
+
+	private final DateTime time;
+	private final NodeId sessionId;
+	private final NodeId nodeId;
+	private final UInteger attributeId;
+	private final String indexRange;
+	private final StatusCode statusCode;
+	private final DataValue value;
+
+	WriteJournalRecord(DateTime time, NodeId sessionId, NodeId nodeId, UInteger attributeId, String indexRange,
+			StatusCode statusCode, DataValue value) {
+
+		this.time = time;
+		this.sessionId = sessionId;
+		this.nodeId = nodeId;
+		this.attributeId = attributeId;
+		this.indexRange = indexRange;
+		this.statusCode = statusCode;
+		this.value = value;
+	}
+
+	/**
+	 * @return when the Write was journaled.
+	 */
+	public DateTime getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the session that wrote, a null NodeId if there was none.
+	 */
+	public NodeId getSessionId() {
+		return sessionId;
+	}
+
+	public NodeId getNodeId() {
+		return nodeId;
+	}
+
+	public UInteger getAttributeId() {
+		return attributeId;
+	}
+
+	public String getIndexRange() {
+		return indexRange;
+	}
+
+	/**
+	 * @return the result the Write returned for the value.
+	 */
+	public StatusCode getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the value as the client wrote it.
+	 */
+	public DataValue getValue() {
+		return value;
+	}
+}
@@ -0,0 +1,352 @@
+package opcuaTest.namespaces;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.collect.Lists;
+
+import opcuaTest.history.HistoryManager;
+import opcuaTest.history.HistoryValueType;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.core.ValueRank;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.AccessContext;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeHistoryManager.HistoryReadContext;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeHistoryManager.HistoryUpdateContext;
+import org.eclipse.milo.opcua.sdk.server.api.DataItem;
+import org.eclipse.milo.opcua.sdk.server.api.MethodInvocationHandler;
+import org.eclipse.milo.opcua.sdk.server.api.MonitoredItem;
+import org.eclipse.milo.opcua.sdk.server.api.Namespace;
+import org.eclipse.milo.opcua.sdk.server.api.nodes.VariableNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.AttributeContext;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaMethodNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.sdk.server.util.SubscriptionModel;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadProcessedDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.eclipse.milo.opcua.stack.core.util.FutureUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The services the namespaces share, whoever builds their nodes: browsing out of a
+ * {@link ReferenceIndex}, reads served from a {@link ScalarValueStore} or a
+ * {@link VariableValueCache} before the node's read path, writes through the
+ * {@link WriteDispatcher} and recorded as history, subscriptions, methods, AddNodes and
+ * history reads and updates.
+ * <p>
+ * A subclass builds its nodes, keeping scalar values in {@link #scalarValues} and those
+ * held by the node in {@link #valueCache}, and changes what it needs through
+ * {@link #node}, {@link #exists}, {@link #nodeToWrite} and {@link #written}.
+ */
+public abstract class AbstractNamespace implements Namespace {
+
+	private static final int HISTORY_WRITE = AccessLevel.HistoryWrite.getValue();
+
+	protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+	protected final OpcUaServer server;
+	protected final UShort namespaceIndex;
+	protected final HistoryManager historyManager;
+
+	protected final ScalarValueStore scalarValues = new ScalarValueStore();
+	protected final VariableValueCache valueCache = new VariableValueCache();
+
+	protected final ReferenceIndex referenceIndex;
+
+	private final String namespaceUri;
+	private final WriteDispatcher writeDispatcher;
+
+	private final SubscriptionModel subscriptionModel;
+	private final NodeProvisioner nodeProvisioner;
+
+	/**
+	 * @param historyManager where written values are recorded and history is read, or null
+	 *                       for a namespace without history
+	 */
+	protected AbstractNamespace(OpcUaServer server, UShort namespaceIndex, String namespaceUri,
+			HistoryManager historyManager, WriteDispatcher writeDispatcher) {
+
+		this.server = server;
+		this.namespaceIndex = namespaceIndex;
+		this.namespaceUri = namespaceUri;
+		this.historyManager = historyManager;
+		this.writeDispatcher = writeDispatcher;
+
+		subscriptionModel = new SubscriptionModel(server, this);
+
+		referenceIndex = new ReferenceIndex();
+		nodeProvisioner = new NodeProvisioner(server.getNodeMap(), namespaceIndex, referenceIndex, this::bindVariable);
+	}
+
+	/**
+	 * @return the node, or null if there's none.
+	 */
+	protected ServerNode node(NodeId nodeId) {
+		return server.getNodeMap().get(nodeId);
+	}
+
+	protected boolean exists(NodeId nodeId) {
+		return server.getNodeMap().containsKey(nodeId);
+	}
+
+	/**
+	 * @return the node a value is written to, or null if there's none.
+	 */
+	protected ServerNode nodeToWrite(WriteValue writeValue) {
+		return node(writeValue.getNodeId());
+	}
+
+	/**
+	 * Called once a value is written to its node and recorded.
+	 *
+	 * @param value the value written, with its status and timestamps filled in
+	 * @return the result of the write.
+	 */
+	protected StatusCode written(ServerNode node, DataValue value) {
+		return StatusCode.GOOD;
+	}
+
+	// A scalar variable added by AddNodes keeps its value in the store, any other on the node
+	private void bindVariable(UaVariableNode node, DataValue value) {
+		NodeId dataType = node.getDataType();
+
+		if (HistoryValueType.of(dataType) != null && node.getValueRank() != null
+				&& node.getValueRank() == ValueRank.Scalar.getValue()) {
+			scalarValues.register(node.getNodeId(), dataType, value);
+			node.setAttributeDelegate(scalarValues.getDelegate());
+		} else {
+			node.setValue(value);
+			valueCache.register(node);
+		}
+
+		if (historyManager != null && Boolean.TRUE.equals(node.getHistorizing())) {
+			historyManager.register(node.getNodeId(), dataType);
+		}
+	}
+
+	@Override
+	public UShort getNamespaceIndex() {
+		return namespaceIndex;
+	}
+
+	@Override
+	public String getNamespaceUri() {
+		return namespaceUri;
+	}
+
+	@Override
+	public CompletableFuture<List<Reference>> browse(AccessContext context, NodeId nodeId) {
+		ServerNode node = node(nodeId);
+
+		if (node != null) {
+			return CompletableFuture.completedFuture(referenceIndex.getReferences(node));
+		} else {
+			return FutureUtils.failedFuture(new UaException(StatusCodes.Bad_NodeIdUnknown));
+		}
+	}
+
+	@Override
+	public void read(ReadContext context, Double maxAge, TimestampsToReturn timestamps,
+			List<ReadValueId> readValueIds) {
+
+		List<DataValue> results = Lists.newArrayListWithCapacity(readValueIds.size());
+		AttributeContext attributeContext = null;
+
+		for (ReadValueId readValueId : readValueIds) {
+			ServerNode node = node(readValueId.getNodeId());
+
+			if (node != null) {
+				// Plain Value reads of stored or cached values need neither the context nor the node's read path
+				DataValue value = scalarValues.read(node, readValueId, timestamps);
+
+				if (value == null) {
+					value = valueCache.read(node, readValueId, timestamps);
+				}
+				if (value == null) {
+					if (attributeContext == null) {
+						attributeContext = new AttributeContext(context);
+					}
+					value = node.readAttribute(attributeContext, readValueId.getAttributeId(),
+							timestamps, readValueId.getIndexRange(), readValueId.getDataEncoding());
+				}
+
+				results.add(value);
+			} else {
+				results.add(new DataValue(StatusCodes.Bad_NodeIdUnknown));
+			}
+		}
+
+		context.complete(results);
+	}
+
+	@Override
+	public void write(WriteContext context, List<WriteValue> writeValues) {
+		// Large requests are written in parallel, the values of a node still in request order
+		AttributeContext attributeContext = new AttributeContext(context);
+
+		writeDispatcher.write(context, writeValues, writeValue -> write(attributeContext, writeValue));
+	}
+
+	private StatusCode write(AttributeContext context, WriteValue writeValue) {
+		ServerNode node = nodeToWrite(writeValue);
+
+		if (node == null) {
+			return new StatusCode(StatusCodes.Bad_NodeIdUnknown);
+		}
+
+		try {
+			node.writeAttribute(context, writeValue.getAttributeId(), writeValue.getValue(),
+					writeValue.getIndexRange());
+
+			DataValue value = stamped(writeValue.getValue());
+
+			if (historyManager != null && AttributeId.Value.uid().equals(writeValue.getAttributeId())) {
+				historyManager.record(node.getNodeId(), value);
+			}
+
+			return written(node, value);
+		} catch (UaException e) {
+			logger.error("Unable to write value={}", writeValue.getValue(), e);
+			return e.getStatusCode();
+		}
+	}
+
+	// Clients usually write bare values, fill in status and timestamps the way the server records them
+	private static DataValue stamped(DataValue value) {
+		DateTime now = DateTime.now();
+
+		return new DataValue(
+				value.getValue(),
+				value.getStatusCode() != null ? value.getStatusCode() : StatusCode.GOOD,
+				value.getSourceTime() != null ? value.getSourceTime() : now,
+				now
+		);
+	}
+
+	@Override
+	public void onDataItemsCreated(List<DataItem> dataItems) {
+		subscriptionModel.onDataItemsCreated(dataItems);
+	}
+
+	@Override
+	public void onDataItemsModified(List<DataItem> dataItems) {
+		subscriptionModel.onDataItemsModified(dataItems);
+	}
+
+	@Override
+	public void onDataItemsDeleted(List<DataItem> dataItems) {
+		subscriptionModel.onDataItemsDeleted(dataItems);
+	}
+
+	@Override
+	public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
+		subscriptionModel.onMonitoringModeChanged(monitoredItems);
+	}
+
+	@Override
+	public Optional<MethodInvocationHandler> getInvocationHandler(NodeId methodId) {
+		Optional<ServerNode> node = Optional.ofNullable(node(methodId));
+
+		return node.flatMap(n -> {
+			if (n instanceof UaMethodNode) {
+				return ((UaMethodNode) n).getInvocationHandler();
+			} else {
+				return Optional.empty();
+			}
+		});
+	}
+
+	@Override
+	public void addNode(AddNodesContext context, List<AddNodesItem> nodesToAdd) {
+		// Checked and built first, then added to the node map as one batch
+		context.complete(nodeProvisioner.addNodes(nodesToAdd));
+	}
+
+	@Override
+	public void historyRead(HistoryReadContext context, HistoryReadDetails details, TimestampsToReturn timestamps,
+			List<HistoryReadValueId> valuesToRead) {
+
+		if (historyManager == null) {
+			context.complete(Collections.nCopies(valuesToRead.size(),
+					new HistoryReadResult(new StatusCode(StatusCodes.Bad_HistoryOperationUnsupported), null, null)));
+			return;
+		}
+
+		List<HistoryReadResult> results = new ArrayList<HistoryReadResult>(valuesToRead.size());
+
+		// One aggregate per node to read, in the same order
+		NodeId[] aggregateTypes = details instanceof ReadProcessedDetails
+				? ((ReadProcessedDetails) details).getAggregateType() : null;
+
+		for (int i = 0; i < valuesToRead.size(); i++) {
+			HistoryReadValueId valueToRead = valuesToRead.get(i);
+
+			if (!exists(valueToRead.getNodeId())) {
+				results.add(new HistoryReadResult(new StatusCode(StatusCodes.Bad_NodeIdUnknown), null, null));
+			} else if (aggregateTypes != null) {
+				NodeId aggregateType = i < aggregateTypes.length ? aggregateTypes[i] : null;
+				results.add(historyManager.historyReadProcessed(
+						(ReadProcessedDetails) details, aggregateType, timestamps, valueToRead));
+			} else {
+				results.add(historyManager.historyRead(details, timestamps, valueToRead));
+			}
+		}
+
+		context.complete(results);
+	}
+
+	@Override
+	public void historyUpdate(HistoryUpdateContext context, List<HistoryUpdateDetails> updateDetails) {
+		if (historyManager == null) {
+			context.complete(Collections.nCopies(updateDetails.size(),
+					new HistoryUpdateResult(new StatusCode(StatusCodes.Bad_HistoryOperationUnsupported), null, null)));
+			return;
+		}
+
+		List<HistoryUpdateResult> results = new ArrayList<HistoryUpdateResult>(updateDetails.size());
+
+		for (HistoryUpdateDetails details : updateDetails) {
+			ServerNode node = node(details.getNodeId());
+
+			if (node == null) {
+				results.add(new HistoryUpdateResult(new StatusCode(StatusCodes.Bad_NodeIdUnknown), null, null));
+			} else if (!(node instanceof VariableNode) || !isHistoryWritable(((VariableNode) node).getAccessLevel())) {
+				results.add(new HistoryUpdateResult(new StatusCode(StatusCodes.Bad_NotWritable), null, null));
+			} else if (!isHistoryWritable(((VariableNode) node).getUserAccessLevel())) {
+				results.add(new HistoryUpdateResult(new StatusCode(StatusCodes.Bad_UserAccessDenied), null, null));
+			} else {
+				results.add(historyManager.historyUpdate(details));
+			}
+		}
+
+		context.complete(results);
+	}
+
+	private static boolean isHistoryWritable(UByte accessLevel) {
+		return accessLevel != null && (accessLevel.intValue() & HISTORY_WRITE) != 0;
+	}
+}
@@ -0,0 +1,146 @@
+package opcuaTest.namespaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import opcuaTest.history.HistoryManager;
+
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.api.DataItem;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+
+/**
+ * A namespace whose folders, variables, data types and methods come from configuration
+ * files, see {@link NamespaceConfigReader}, rather than from Java, served like the other
+ * namespaces by {@link AbstractNamespace}. Its writes aren't bridged to MQTT.
+ * <p>
+ * The nodes are either all built at startup or, for an address space too big for that,
+ * kept as descriptors in a {@link NodeDescriptorTable} and built when a service first
+ * reaches them, the coldest evicted past a limit.
+ */
+public class ConfiguredNamespace extends AbstractNamespace {
+
+	private final NamespaceLoader loader;
+
+	// Null when every node is built at startup
+	private final NodeDescriptorTable descriptors;
+
+	/**
+	 * A namespace whose nodes are all built at startup.
+	 *
+	 * @param methods the invocation handlers the files' methods can name, by name
+	 */
+	public ConfiguredNamespace(OpcUaServer server, UShort namespaceIndex, String namespaceUri,
+			HistoryManager historyManager, WriteDispatcher writeDispatcher,
+			Map<String, NamespaceLoader.MethodFactory> methods) {
+
+		this(server, namespaceIndex, namespaceUri, historyManager, writeDispatcher, methods, 0);
+	}
+
+	/**
+	 * @param methods         the invocation handlers the files' methods can name, by name
+	 * @param maxMaterialized nodes built at most, or 0 to build every node at startup
+	 */
+	public ConfiguredNamespace(OpcUaServer server, UShort namespaceIndex, String namespaceUri,
+			HistoryManager historyManager, WriteDispatcher writeDispatcher,
+			Map<String, NamespaceLoader.MethodFactory> methods, int maxMaterialized) {
+
+		super(server, namespaceIndex, namespaceUri, historyManager, writeDispatcher);
+
+		loader = new NamespaceLoader(server.getNodeMap(), namespaceIndex, scalarValues, historyManager, methods,
+				NamespaceLoader.DEFAULT_CHUNK_SIZE);
+
+		descriptors = maxMaterialized > 0 ? new NodeDescriptorTable(server.getNodeMap(), namespaceIndex, loader,
+				referenceIndex, maxMaterialized) : null;
+	}
+
+	/**
+	 * Adds the nodes of a configuration file, built on every core, or as descriptors.
+	 *
+	 * @return the number of nodes added.
+	 */
+	public int load(File config) throws IOException, XMLStreamException {
+		long t0 = System.nanoTime();
+
+		int added = descriptors != null
+				? descriptors.load(config)
+				: loader.load(config, Runtime.getRuntime().availableProcessors());
+
+		logger.info("Loaded {} nodes of {} into {} in {} ms{}", added, config, getNamespaceUri(),
+				(System.nanoTime() - t0) / 1000000, descriptors != null ? ", built when reached" : "");
+		return added;
+	}
+
+	/**
+	 * @return the descriptors of the nodes built when reached, or null if every node is built.
+	 */
+	public NodeDescriptorTable getDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	protected ServerNode node(NodeId nodeId) {
+		return descriptors != null ? descriptors.get(nodeId) : server.getNodeMap().get(nodeId);
+	}
+
+	@Override
+	protected boolean exists(NodeId nodeId) {
+		return descriptors != null ? descriptors.contains(nodeId) : server.getNodeMap().containsKey(nodeId);
+	}
+
+	// What isn't a value the store keeps is written to the node, which then can't be evicted
+	@Override
+	protected ServerNode nodeToWrite(WriteValue writeValue) {
+		NodeId nodeId = writeValue.getNodeId();
+		boolean value = AttributeId.Value.uid().equals(writeValue.getAttributeId());
+
+		return descriptors != null && !(value && descriptors.isStored(nodeId))
+				? descriptors.pin(nodeId) : node(nodeId);
+	}
+
+	@Override
+	public void onDataItemsCreated(List<DataItem> dataItems) {
+		if (descriptors != null) {
+			for (DataItem dataItem : dataItems) {
+				descriptors.monitor(dataItem.getReadValueId().getNodeId());
+			}
+		}
+		super.onDataItemsCreated(dataItems);
+	}
+
+	@Override
+	public void onDataItemsDeleted(List<DataItem> dataItems) {
+		super.onDataItemsDeleted(dataItems);
+		if (descriptors != null) {
+			for (DataItem dataItem : dataItems) {
+				descriptors.unmonitor(dataItem.getReadValueId().getNodeId());
+			}
+		}
+	}
+
+	@Override
+	public void addNode(AddNodesContext context, List<AddNodesItem> nodesToAdd) {
+		if (descriptors != null) {
+			// The provisioner only sees built nodes: the parents it adds references to, and the
+			// NodeIds it checks aren't taken, are built and kept
+			for (AddNodesItem item : nodesToAdd) {
+				if (item.getParentNodeId() != null) {
+					item.getParentNodeId().local().ifPresent(descriptors::pin);
+				}
+				if (item.getRequestedNewNodeId() != null) {
+					item.getRequestedNewNodeId().local().ifPresent(descriptors::pin);
+				}
+			}
+		}
+		super.addNode(context, nodesToAdd);
+	}
+}
@@ -0,0 +1,359 @@
+package opcuaTest.namespaces;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
+
+/**
+ * Streams the nodes of a namespace configuration file, in document order, without
+ * holding the document: a file of millions of nodes is read in constant memory.
+ * <pre>
+ * &lt;namespace uri="urn:ca:uwo:plant-module"&gt;
+ *   &lt;dataType name="Recipe" supertype="Structure"/&gt;
+ *   &lt;folder name="Line1" description="..."&gt;
+ *     &lt;variable name="Temperature" dataType="Double" value="20.5" historizing="true"/&gt;
+ *     &lt;variable name="Setpoint" dataType="Int32" value="0" access="r"/&gt;
+ *     &lt;method name="sqrt(x)" handler="sqrt"/&gt;
+ *   &lt;/folder&gt;
+ * &lt;/namespace&gt;
+ * </pre>
+ * Folders nest, the top ones go in the server's Objects folder; variables and methods are
+ * in a folder, data types at the top. A node's NodeId is its folder's followed by
+ * "/name", like those of TestNamespace, "DataType.name" for a data type, unless it has an
+ * {@code id}. A variable is of a built-in scalar type, Int32 by default, starts with
+ * {@code value} or the type's zero, and is {@code access="rw"} unless "r". A data type's
+ * supertype is a built-in DataType name or a NodeId, Structure by default. A method's
+ * {@code handler} names the invocation handler the namespace registered for it.
+ */
+public final class NamespaceConfigReader {
+
+	/**
+	 * Receives each node read, on the thread reading.
+	 */
+	@FunctionalInterface
+	public interface Visitor {
+		/**
+		 * @throws IllegalArgumentException if the node can't be loaded, reported with its line
+		 */
+		void visit(NodeConfig node);
+	}
+
+	private static final String NAMESPACE = "namespace";
+	private static final String FOLDER = "folder";
+	private static final String VARIABLE = "variable";
+	private static final String METHOD = "method";
+	private static final String DATA_TYPE = "dataType";
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private NamespaceConfigReader() {
+	}
+
+	/**
+	 * @return the URI of the namespace a file configures, reading no further than its root.
+	 */
+	public static String readNamespaceUri(File file) throws IOException, XMLStreamException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+			try {
+				reader.nextTag();
+				return namespaceUri(reader);
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the nodes of a file, a folder before the nodes in it.
+	 *
+	 * @return the number of nodes read.
+	 * @throws XMLStreamException if the file isn't a namespace configuration, or the visitor
+	 *                            refused a node, with the line at fault
+	 */
+	public static long read(File file, Visitor visitor) throws IOException, XMLStreamException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+			try {
+				return read(reader, visitor);
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	private static long read(XMLStreamReader reader, Visitor visitor) throws XMLStreamException {
+		reader.nextTag();
+		namespaceUri(reader);
+
+		// The elements open below the root, the innermost first
+		Deque<NodeConfig> open = new ArrayDeque<NodeConfig>();
+		long count = 0;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				if (open.isEmpty()) {
+					break;
+				}
+				open.pop();
+			} else if (event == XMLStreamConstants.START_ELEMENT) {
+				NodeConfig node = node(reader, open.peek());
+				try {
+					visitor.visit(node);
+				} catch (IllegalArgumentException e) {
+					throw new XMLStreamException(e.getMessage(), reader.getLocation(), e);
+				}
+				open.push(node);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String namespaceUri(XMLStreamReader reader) throws XMLStreamException {
+		if (!NAMESPACE.equals(reader.getLocalName())) {
+			throw new XMLStreamException("expected <" + NAMESPACE + ">, not <" + reader.getLocalName() + ">",
+					reader.getLocation());
+		}
+		return required(reader, "uri");
+	}
+
+	private static NodeConfig node(XMLStreamReader reader, NodeConfig parent) throws XMLStreamException {
+		String element = reader.getLocalName();
+		int line = reader.getLocation().getLineNumber();
+
+		if (parent != null && parent.getKind() != NodeConfig.Kind.FOLDER) {
+			throw new XMLStreamException("<" + element + "> can't be inside a " + parent.getKind().name().toLowerCase(),
+					reader.getLocation());
+		}
+
+		String name = required(reader, "name");
+		String id = reader.getAttributeValue(null, "id");
+		String description = reader.getAttributeValue(null, "description");
+		String parentId = parent != null ? parent.getId() : null;
+
+		switch (element) {
+			case FOLDER:
+				return new NodeConfig(NodeConfig.Kind.FOLDER, id != null ? id : path(parentId, name), name,
+						description, parentId, null, null, false, false, null, null, line);
+
+			case VARIABLE: {
+				if (parent == null) {
+					throw new XMLStreamException("<" + element + "> has to be in a folder", reader.getLocation());
+				}
+				String typeName = reader.getAttributeValue(null, "dataType");
+				BuiltinType type = BuiltinType.byName(typeName != null ? typeName : "Int32");
+				if (type == null) {
+					throw new XMLStreamException("unknown dataType: " + typeName, reader.getLocation());
+				}
+				String text = reader.getAttributeValue(null, "value");
+				Object value;
+				try {
+					value = type.parse(text != null ? text : type.zero);
+				} catch (RuntimeException e) {
+					throw new XMLStreamException("not a valid " + type.typeName + ": " + text, reader.getLocation(), e);
+				}
+				String access = reader.getAttributeValue(null, "access");
+				if (access != null && !access.equals("r") && !access.equals("rw")) {
+					throw new XMLStreamException("access is r or rw, not " + access, reader.getLocation());
+				}
+				return new NodeConfig(NodeConfig.Kind.VARIABLE, id != null ? id : path(parentId, name), name,
+						description, parentId, type.dataType, value, !"r".equals(access),
+						Boolean.parseBoolean(reader.getAttributeValue(null, "historizing")), null, null, line);
+			}
+
+			case METHOD:
+				if (parent == null) {
+					throw new XMLStreamException("<" + element + "> has to be in a folder", reader.getLocation());
+				}
+				return new NodeConfig(NodeConfig.Kind.METHOD, id != null ? id : path(parentId, name), name,
+						description, parentId, null, null, false, false, required(reader, "handler"), null, line);
+
+			case DATA_TYPE: {
+				if (parent != null) {
+					throw new XMLStreamException("<" + element + "> has to be at the top", reader.getLocation());
+				}
+				String supertype = reader.getAttributeValue(null, "supertype");
+				return new NodeConfig(NodeConfig.Kind.DATA_TYPE, id != null ? id : "DataType." + name, name,
+						description, null, null, null, false, false, null,
+						supertype != null ? dataTypeId(reader, supertype) : Identifiers.Structure, line);
+			}
+
+			default:
+				throw new XMLStreamException("unknown element <" + element + ">", reader.getLocation());
+		}
+	}
+
+	private static String path(String parentId, String name) {
+		return parentId != null ? parentId + "/" + name : name;
+	}
+
+	private static String required(XMLStreamReader reader, String attribute) throws XMLStreamException {
+		String value = reader.getAttributeValue(null, attribute);
+		if (value == null || value.isEmpty()) {
+			throw new XMLStreamException("<" + reader.getLocalName() + "> needs a " + attribute, reader.getLocation());
+		}
+		return value;
+	}
+
+	private static NodeId dataTypeId(XMLStreamReader reader, String text) throws XMLStreamException {
+		BuiltinType type = BuiltinType.byName(text);
+		if (type != null) {
+			return type.dataType;
+		}
+		if (text.equals("Structure")) {
+			return Identifiers.Structure;
+		}
+		try {
+			return NodeId.parse(text);
+		} catch (RuntimeException e) {
+			throw new XMLStreamException("not a DataType: " + text, reader.getLocation(), e);
+		}
+	}
+
+	// The scalar types a variable can be declared with, by their DataType's browse name
+	private enum BuiltinType {
+		BOOLEAN("Boolean", Identifiers.Boolean, "false") {
+			@Override
+			Object parse(String text) {
+				if (!text.equals("true") && !text.equals("false")) {
+					throw new IllegalArgumentException(text);
+				}
+				return Boolean.valueOf(text);
+			}
+		},
+		SBYTE("SByte", Identifiers.SByte, "0") {
+			@Override
+			Object parse(String text) {
+				return Byte.valueOf(text);
+			}
+		},
+		BYTE("Byte", Identifiers.Byte, "0") {
+			@Override
+			Object parse(String text) {
+				return ubyte(unsigned(text, 0xFFL));
+			}
+		},
+		INT16("Int16", Identifiers.Int16, "0") {
+			@Override
+			Object parse(String text) {
+				return Short.valueOf(text);
+			}
+		},
+		UINT16("UInt16", Identifiers.UInt16, "0") {
+			@Override
+			Object parse(String text) {
+				return ushort((int) unsigned(text, 0xFFFFL));
+			}
+		},
+		INT32("Int32", Identifiers.Int32, "0") {
+			@Override
+			Object parse(String text) {
+				return Integer.valueOf(text);
+			}
+		},
+		UINT32("UInt32", Identifiers.UInt32, "0") {
+			@Override
+			Object parse(String text) {
+				return uint(unsigned(text, 0xFFFFFFFFL));
+			}
+		},
+		INT64("Int64", Identifiers.Int64, "0") {
+			@Override
+			Object parse(String text) {
+				return Long.valueOf(text);
+			}
+		},
+		UINT64("UInt64", Identifiers.UInt64, "0") {
+			@Override
+			Object parse(String text) {
+				return ulong(Long.parseUnsignedLong(text));
+			}
+		},
+		FLOAT("Float", Identifiers.Float, "0") {
+			@Override
+			Object parse(String text) {
+				return Float.valueOf(text);
+			}
+		},
+		DOUBLE("Double", Identifiers.Double, "0") {
+			@Override
+			Object parse(String text) {
+				return Double.valueOf(text);
+			}
+		},
+		STRING("String", Identifiers.String, "") {
+			@Override
+			Object parse(String text) {
+				return text;
+			}
+		},
+		DATE_TIME("DateTime", Identifiers.DateTime, "1601-01-01T00:00:00Z") {
+			@Override
+			Object parse(String text) {
+				return new DateTime(Date.from(Instant.parse(text)));
+			}
+		};
+
+		private static final Map<String, BuiltinType> BY_NAME = new HashMap<String, BuiltinType>();
+
+		static {
+			for (BuiltinType type : values()) {
+				BY_NAME.put(type.typeName, type);
+			}
+		}
+
+		final String typeName;
+		final NodeId dataType;
+		final String zero;
+
+		BuiltinType(String typeName, NodeId dataType, String zero) {
+			this.typeName = typeName;
+			this.dataType = dataType;
+			this.zero = zero;
+		}
+
+		abstract Object parse(String text);
+
+		static BuiltinType byName(String name) {
+			return BY_NAME.get(name);
+		}
+
+		private static long unsigned(String text, long max) {
+			long value = Long.parseLong(text);
+			if (value < 0 || value > max) {
+				throw new NumberFormatException(text);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package opcuaTest.namespaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import javax.xml.stream.XMLStreamException;
+
+import opcuaTest.history.HistoryManager;
+import opcuaTest.history.HistoryValueType;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.api.MethodInvocationHandler;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaDataTypeNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaMethodNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.sdk.server.util.AnnotationBasedInvocationHandler;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+/**
+ * Loads a namespace configuration file into a node map, building the nodes in parallel
+ * while the file is still being read: the {@link NamespaceConfigReader} hands out chunks
+ * of nodes in document order, and each chunk is built on a pool of its own, its nodes put
+ * in the node map with their values bound and the reference to their parent. Once every
+ * node is in the map, the parents get their references to them, split by parent so a
+ * parent's references are only ever added by one thread, in document order; so a browse
+ * never reaches a node that isn't complete, like with the {@link NodeProvisioner}.
+ * <p>
+ * Scalar variables keep their values in the namespace's {@link ScalarValueStore}, the
+ * others in their node; historizing ones are registered with the {@link HistoryManager}.
+ * A node whose NodeId is already in the map is skipped, as is a method whose handler
+ * can't be created.
+ */
+public class NamespaceLoader {
+
+	/**
+	 * Creates the invocation handler of a method node, setting the arguments the method
+	 * declares on the node.
+	 */
+	@FunctionalInterface
+	public interface MethodFactory {
+		MethodInvocationHandler create(ServerNodeMap nodeMap, UaMethodNode node) throws Exception;
+	}
+
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	private static final UByte READ_ONLY = ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY));
+	private static final UByte READ_WRITE = ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE));
+	private static final UByte HISTORIZED_READ_ONLY =
+			ubyte(AccessLevel.getMask(EnumSet.of(AccessLevel.CurrentRead, AccessLevel.HistoryRead)));
+	private static final UByte HISTORIZED_READ_WRITE = ubyte(AccessLevel.getMask(EnumSet.of(AccessLevel.CurrentRead,
+			AccessLevel.CurrentWrite, AccessLevel.HistoryRead, AccessLevel.HistoryWrite)));
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ServerNodeMap nodeMap;
+	private final UShort namespaceIndex;
+	private final ScalarValueStore scalarValues;
+	private final HistoryManager historyManager;
+	private final Map<String, MethodFactory> methods;
+	private final int chunkSize;
+
+	/**
+	 * @param historyManager where historizing variables are registered, or null to ignore
+	 *                       {@code historizing}
+	 * @param methods        the handlers methods can name, by name
+	 */
+	public NamespaceLoader(ServerNodeMap nodeMap, UShort namespaceIndex, ScalarValueStore scalarValues,
+			HistoryManager historyManager, Map<String, MethodFactory> methods, int chunkSize) {
+
+		this.nodeMap = nodeMap;
+		this.namespaceIndex = namespaceIndex;
+		this.scalarValues = scalarValues;
+		this.historyManager = historyManager;
+		this.methods = methods;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * A factory for the methods of an object annotated like SqrtMethod, one per node.
+	 */
+	public static MethodFactory annotated(Supplier<?> methodObject) {
+		return (nodeMap, node) -> {
+			AnnotationBasedInvocationHandler handler =
+					AnnotationBasedInvocationHandler.fromAnnotatedObject(nodeMap, methodObject.get());
+
+			node.setProperty(UaMethodNode.InputArguments, handler.getInputArguments());
+			node.setProperty(UaMethodNode.OutputArguments, handler.getOutputArguments());
+			return handler;
+		};
+	}
+
+	/**
+	 * Loads a file, building on {@code parallelism} threads while the calling thread reads.
+	 *
+	 * @return the number of nodes added.
+	 * @throws XMLStreamException if the file isn't a valid configuration; the nodes of the
+	 *                            chunks built by then stay in the node map
+	 */
+	public int load(File config, int parallelism) throws IOException, XMLStreamException {
+		ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName("namespace-loader-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, false);
+
+		try {
+			Builder builder = new Builder(pool, parallelism);
+			NamespaceConfigReader.read(config, builder);
+			builder.submit();
+
+			List<Chunk> chunks = new ArrayList<Chunk>(builder.building.size());
+			for (ForkJoinTask<Chunk> task : builder.building) {
+				chunks.add(task.join());
+			}
+
+			// Each parent is linked by the one task its NodeId hashes to
+			List<ForkJoinTask<Integer>> linking = new ArrayList<ForkJoinTask<Integer>>(parallelism);
+			for (int p = 0; p < parallelism; p++) {
+				int partition = p;
+				linking.add(pool.submit(() -> link(chunks, partition, parallelism)));
+			}
+			int unlinked = 0;
+			for (ForkJoinTask<Integer> task : linking) {
+				unlinked += task.join();
+			}
+			if (unlinked > 0) {
+				logger.warn("{} nodes of {} have no parent in the node map", unlinked, config);
+			}
+
+			int added = 0;
+			for (Chunk chunk : chunks) {
+				added += chunk.size;
+			}
+			return added;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Cuts the nodes read into chunks and builds each on the pool
+	private class Builder implements NamespaceConfigReader.Visitor {
+		final List<ForkJoinTask<Chunk>> building = new ArrayList<ForkJoinTask<Chunk>>();
+
+		private final ForkJoinPool pool;
+
+		// Chunks read ahead of the builders at most, so a large file isn't held in memory
+		private final Semaphore ahead;
+
+		private List<NodeConfig> chunk = new ArrayList<NodeConfig>(chunkSize);
+
+		Builder(ForkJoinPool pool, int parallelism) {
+			this.pool = pool;
+			this.ahead = new Semaphore(parallelism * 2);
+		}
+
+		@Override
+		public void visit(NodeConfig node) {
+			if (node.getKind() == NodeConfig.Kind.METHOD && !hasHandler(node)) {
+				throw new IllegalArgumentException("no method handler named " + node.getHandler());
+			}
+			chunk.add(node);
+			if (chunk.size() == chunkSize) {
+				submit();
+			}
+		}
+
+		void submit() {
+			if (chunk.isEmpty()) {
+				return;
+			}
+			List<NodeConfig> nodes = chunk;
+			chunk = new ArrayList<NodeConfig>(chunkSize);
+
+			ahead.acquireUninterruptibly();
+			building.add(pool.submit(() -> {
+				try {
+					return build(nodes);
+				} finally {
+					ahead.release();
+				}
+			}));
+		}
+	}
+
+	private Chunk build(List<NodeConfig> configs) {
+		Chunk chunk = new Chunk(configs.size());
+
+		for (NodeConfig config : configs) {
+			NodeId nodeId = new NodeId(namespaceIndex, config.getId());
+			UaNode node = node(nodeId, config);
+
+			if (nodeMap.putIfAbsent(nodeId, node) != null) {
+				logger.error("{} (line {}) is already in the node map, skipped", nodeId, config.getLine());
+				continue;
+			}
+
+			NodeId parentId;
+
+			switch (config.getKind()) {
+				case VARIABLE:
+					bind((UaVariableNode) node, config);
+					parentId = new NodeId(namespaceIndex, config.getParentId());
+					break;
+
+				case METHOD:
+					try {
+						bindMethod((UaMethodNode) node, config);
+					} catch (Exception e) {
+						logger.error("Unable to create {} (line {}), skipped", nodeId, config.getLine(), e);
+						nodeMap.remove(nodeId);
+						continue;
+					}
+					parentId = new NodeId(namespaceIndex, config.getParentId());
+					break;
+
+				case DATA_TYPE:
+					parentId = config.getSupertype();
+					break;
+
+				default:
+					parentId = config.getParentId() != null
+							? new NodeId(namespaceIndex, config.getParentId()) : Identifiers.ObjectsFolder;
+					break;
+			}
+
+			NodeId referenceType = parentReferenceType(config.getKind());
+			node.addReference(new Reference(nodeId, referenceType, parentId.expanded(),
+					parentClass(config.getKind()), false));
+			chunk.add(node, parentId, referenceType);
+		}
+		return chunk;
+	}
+
+	// The node of a NodeConfig, without its value, handler or references
+	UaNode node(NodeId nodeId, NodeConfig config) {
+		QualifiedName browseName = new QualifiedName(namespaceIndex, config.getName());
+		LocalizedText displayName = LocalizedText.english(config.getName());
+		LocalizedText description = config.getDescription() != null
+				? LocalizedText.english(config.getDescription()) : null;
+
+		switch (config.getKind()) {
+			case VARIABLE: {
+				UByte accessLevel = config.isHistorizing() && historyManager != null
+						? (config.isWritable() ? HISTORIZED_READ_WRITE : HISTORIZED_READ_ONLY)
+						: (config.isWritable() ? READ_WRITE : READ_ONLY);
+
+				return new UaVariableNode.UaVariableNodeBuilder(nodeMap)
+						.setNodeId(nodeId)
+						.setAccessLevel(accessLevel)
+						.setUserAccessLevel(accessLevel)
+						.setBrowseName(browseName)
+						.setDisplayName(displayName)
+						.setDescription(description)
+						.setDataType(config.getDataType())
+						.setTypeDefinition(Identifiers.BaseDataVariableType)
+						.setHistorizing(config.isHistorizing() && historyManager != null)
+						.build();
+			}
+
+			case METHOD:
+				return UaMethodNode.builder(nodeMap)
+						.setNodeId(nodeId)
+						.setBrowseName(browseName)
+						.setDisplayName(displayName)
+						.setDescription(description)
+						.build();
+
+			case DATA_TYPE:
+				return new UaDataTypeNode(nodeMap, nodeId, browseName, displayName, description, uint(0), uint(0), false);
+
+			default: {
+				UaFolderNode folder = new UaFolderNode(nodeMap, nodeId, browseName, displayName);
+				if (description != null) {
+					folder.setDescription(description);
+				}
+				return folder;
+			}
+		}
+	}
+
+	private void bind(UaVariableNode node, NodeConfig config) {
+		if (register(node.getNodeId(), config)) {
+			node.setAttributeDelegate(scalarValues.getDelegate());
+		} else {
+			node.setValue(new DataValue(new Variant(config.getValue())));
+		}
+	}
+
+	/**
+	 * Registers a variable's value, if the store keeps values of its type, like
+	 * TestNamespace's TestSubfolder1 variables, and its history. Needs no node, so a
+	 * variable can be registered before it has one.
+	 *
+	 * @return whether the store keeps the value.
+	 */
+	boolean register(NodeId nodeId, NodeConfig config) {
+		boolean stored = HistoryValueType.of(config.getDataType()) != null;
+		if (stored) {
+			scalarValues.register(nodeId, config.getDataType(), new DataValue(new Variant(config.getValue())));
+		}
+
+		if (config.isHistorizing() && historyManager != null) {
+			historyManager.register(nodeId, config.getDataType());
+		}
+		return stored;
+	}
+
+	ScalarValueStore getScalarValues() {
+		return scalarValues;
+	}
+
+	/**
+	 * Gives a method node its handler.
+	 *
+	 * @throws Exception if the handler can't be created
+	 */
+	void bindMethod(UaMethodNode node, NodeConfig config) throws Exception {
+		node.setInvocationHandler(methods.get(config.getHandler()).create(nodeMap, node));
+	}
+
+	/**
+	 * @return whether a handler is registered under a method's {@code handler}.
+	 */
+	boolean hasHandler(NodeConfig config) {
+		return methods.containsKey(config.getHandler());
+	}
+
+	/**
+	 * @return the type of the references between a node of the kind and its parent, the
+	 * supertype of a data type.
+	 */
+	static NodeId parentReferenceType(NodeConfig.Kind kind) {
+		switch (kind) {
+			case METHOD:
+				return Identifiers.HasComponent;
+			case DATA_TYPE:
+				return Identifiers.HasSubtype;
+			default:
+				return Identifiers.Organizes;
+		}
+	}
+
+	/**
+	 * @return the NodeClass of the parent of a node of the kind: a data type's supertype is
+	 * a DataType, anything else is in a folder or the Objects folder.
+	 */
+	static NodeClass parentClass(NodeConfig.Kind kind) {
+		return kind == NodeConfig.Kind.DATA_TYPE ? NodeClass.DataType : NodeClass.Object;
+	}
+
+	private int link(List<Chunk> chunks, int partition, int partitions) {
+		int unlinked = 0;
+
+		// Siblings are usually next to each other, their parent is looked up once
+		NodeId parentId = null;
+		ServerNode parent = null;
+
+		for (Chunk chunk : chunks) {
+			for (int i = 0; i < chunk.size; i++) {
+				NodeId id = chunk.parentIds[i];
+				if (partitions > 1 && Math.floorMod(id.hashCode(), partitions) != partition) {
+					continue;
+				}
+				if (!id.equals(parentId)) {
+					parentId = id;
+					parent = nodeMap.get(id);
+				}
+				if (parent == null) {
+					unlinked++;
+					continue;
+				}
+
+				UaNode node = chunk.nodes[i];
+				parent.addReference(new Reference(id, chunk.referenceTypes[i], node.getNodeId().expanded(),
+						node.getNodeClass(), true));
+			}
+		}
+		return unlinked;
+	}
+
+	// The nodes a task built, with the reference each needs from its parent
+	private static final class Chunk {
+		final UaNode[] nodes;
+		final NodeId[] parentIds;
+		final NodeId[] referenceTypes;
+		int size = 0;
+
+		Chunk(int capacity) {
+			nodes = new UaNode[capacity];
+			parentIds = new NodeId[capacity];
+			referenceTypes = new NodeId[capacity];
+		}
+
+		void add(UaNode node, NodeId parentId, NodeId referenceType) {
+			nodes[size] = node;
+			parentIds[size] = parentId;
+			referenceTypes[size] = referenceType;
+			size++;
+		}
+	}
+}
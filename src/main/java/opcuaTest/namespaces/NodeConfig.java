@@ -0,0 +1,121 @@
+package opcuaTest.namespaces;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+/**
+ * A node of a namespace configuration file, as the {@link NamespaceConfigReader} read it.
+ * NodeIds are the string identifiers of the namespace's nodes, which the namespace index
+ * is only added to once the file is loaded into a namespace.
+ */
+public final class NodeConfig {
+
+	public enum Kind {
+		FOLDER, VARIABLE, METHOD, DATA_TYPE
+	}
+
+	private final Kind kind;
+	private final String id;
+	private final String name;
+	private final String description;
+	private final String parentId;
+	private final NodeId dataType;
+	private final Object value;
+	private final boolean writable;
+	private final boolean historizing;
+	private final String handler;
+	private final NodeId supertype;
+	private final int line;
+
+	NodeConfig(Kind kind, String id, String name, String description, String parentId, NodeId dataType,
+			Object value, boolean writable, boolean historizing, String handler, NodeId supertype, int line) {
+
+		this.kind = kind;
+		this.id = id;
+		this.name = name;
+		this.description = description;
+		this.parentId = parentId;
+		this.dataType = dataType;
+		this.value = value;
+		this.writable = writable;
+		this.historizing = historizing;
+		this.handler = handler;
+		this.supertype = supertype;
+		this.line = line;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the identifier of the node's NodeId.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the browse and display name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the description, or null if there is none.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return the identifier of the folder the node is in, or null for a node at the top of
+	 * the namespace: a folder in the server's Objects folder, or a data type.
+	 */
+	public String getParentId() {
+		return parentId;
+	}
+
+	/**
+	 * @return the DataType of a variable.
+	 */
+	public NodeId getDataType() {
+		return dataType;
+	}
+
+	/**
+	 * @return the initial value of a variable, of its DataType.
+	 */
+	public Object getValue() {
+		return value;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	public boolean isHistorizing() {
+		return historizing;
+	}
+
+	/**
+	 * @return the name a method's invocation handler is registered under.
+	 */
+	public String getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return the DataType a data type is a subtype of.
+	 */
+	public NodeId getSupertype() {
+		return supertype;
+	}
+
+	/**
+	 * @return the line of the file the node is declared on.
+	 */
+	public int getLine() {
+		return line;
+	}
+}
@@ -0,0 +1,494 @@
+package opcuaTest.namespaces;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaMethodNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The nodes of a namespace configuration file kept as compact descriptors, a row of
+ * columns per node, and only built into the node map when first reached, for address
+ * spaces too big to build whole. A row is the node's identifier and a few bytes: its
+ * kind, parent, first child and next sibling, DataType and flags, with the rare
+ * description, handler, explicit name or value a scalar store doesn't keep on the side.
+ * Scalar values are registered in the {@link ScalarValueStore} up front, so they outlive
+ * their node.
+ * <p>
+ * Built nodes get the references of their row: to their parent and children, whether
+ * those are built or not. Once {@code maxMaterialized} nodes are built, building another
+ * evicts a cold one with a clock sweep, an approximation of LRU: a node reached since
+ * the hand last passed is spared once. Folders and variables are evicted, unless they
+ * are pinned or monitored; methods and data types, and the parents of nodes added by
+ * AddNodes, stay. A node is pinned when something other than its store-kept value is
+ * written, since what is written lives in the node. When everything built is pinned or
+ * monitored, the limit is raised rather than a node dropped.
+ */
+public class NodeDescriptorTable {
+
+	private static final int WRITABLE = 0x1;
+	private static final int HISTORIZING = 0x2;
+	private static final int STORED = 0x4;
+	private static final int PINNED = 0x8;
+
+	private static final NodeConfig.Kind[] KINDS = NodeConfig.Kind.values();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ServerNodeMap nodeMap;
+	private final UShort namespaceIndex;
+	private final NamespaceLoader loader;
+	private final ReferenceIndex referenceIndex;
+
+	// One row per node, in document order
+	private String[] ids = new String[1024];
+	private byte[] kinds = new byte[1024];
+	private int[] parents = new int[1024];
+	private int[] firstChildren = new int[1024];
+	private int[] nextSiblings = new int[1024];
+	private int[] lastChildren;
+	private byte[] dataTypes = new byte[1024];
+	private byte[] flags = new byte[1024];
+	private int size = 0;
+
+	// Set when a node is reached, cleared by the clock hand; racy on purpose
+	private byte[] referenced = new byte[1024];
+
+	// Row + 1 by the identifier's hash, open addressing
+	private int[] index = new int[2048];
+
+	// The DataTypes rows refer to by number
+	private final List<NodeId> dataTypeIds = new ArrayList<NodeId>();
+
+	private final Map<Integer, Extra> extras = new HashMap<Integer, Extra>();
+
+	// Guarded by this
+	private final Map<Integer, Integer> monitored = new HashMap<Integer, Integer>();
+	private int[] clock;
+	private int clockSize = 0;
+	private int hand = 0;
+	private long materializations = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param loader           builds the nodes, binds their values and method handlers
+	 * @param referenceIndex   the namespace's, evicted nodes are dropped from it
+	 * @param maxMaterialized  nodes built at most before cold ones are evicted
+	 */
+	public NodeDescriptorTable(ServerNodeMap nodeMap, UShort namespaceIndex, NamespaceLoader loader,
+			ReferenceIndex referenceIndex, int maxMaterialized) {
+
+		if (maxMaterialized < 1) {
+			throw new IllegalArgumentException("maxMaterialized < 1: " + maxMaterialized);
+		}
+		this.nodeMap = nodeMap;
+		this.namespaceIndex = namespaceIndex;
+		this.loader = loader;
+		this.referenceIndex = referenceIndex;
+		this.clock = new int[maxMaterialized];
+	}
+
+	/**
+	 * Reads a file's nodes into descriptors, registering the values and history of its
+	 * variables. Of the references to them, only those of the server's nodes to the file's
+	 * top nodes are added, from the Objects folder and the supertypes of data types.
+	 *
+	 * @return the number of nodes read.
+	 */
+	public synchronized int load(File config) throws IOException, XMLStreamException {
+		int first = size;
+		lastChildren = new int[ids.length];
+
+		try {
+			NamespaceConfigReader.read(config, node -> {
+				if (node.getKind() == NodeConfig.Kind.METHOD && !loader.hasHandler(node)) {
+					throw new IllegalArgumentException("no method handler named " + node.getHandler());
+				}
+				if (indexOf(node.getId()) >= 0 || nodeMap.containsKey(new NodeId(namespaceIndex, node.getId()))) {
+					logger.error("{} (line {}) is already in the namespace, skipped", node.getId(), node.getLine());
+					return;
+				}
+				add(node);
+			});
+		} finally {
+			lastChildren = null;
+		}
+
+		for (int row = first; row < size; row++) {
+			if (parents[row] < 0) {
+				linkFromServer(row);
+			}
+		}
+		return size - first;
+	}
+
+	/**
+	 * Finds a node, building it from its descriptor if it isn't built. Only once the
+	 * files are loaded.
+	 *
+	 * @return the node, built if it isn't, or null if it is neither in the node map nor
+	 * a descriptor.
+	 */
+	public ServerNode get(NodeId nodeId) {
+		int row = indexOf(nodeId);
+		ServerNode node = nodeMap.get(nodeId);
+
+		if (row < 0) {
+			return node;
+		}
+		referenced[row] = 1;
+		return node != null ? node : materialize(row);
+	}
+
+	/**
+	 * @return whether the node is in the node map or a descriptor, without building it.
+	 */
+	public boolean contains(NodeId nodeId) {
+		return indexOf(nodeId) >= 0 || nodeMap.containsKey(nodeId);
+	}
+
+	/**
+	 * Keeps a node built from now on, e.g. before it's modified.
+	 *
+	 * @return the node, built if it isn't, or null if it is neither in the node map nor
+	 * a descriptor.
+	 */
+	public synchronized ServerNode pin(NodeId nodeId) {
+		int row = indexOf(nodeId);
+		if (row < 0) {
+			return nodeMap.get(nodeId);
+		}
+		flags[row] |= PINNED;
+		return get(nodeId);
+	}
+
+	/**
+	 * Counts a monitored item on a node, which isn't evicted while it has any.
+	 */
+	public synchronized void monitor(NodeId nodeId) {
+		int row = indexOf(nodeId);
+		if (row >= 0) {
+			monitored.merge(row, 1, Integer::sum);
+		}
+	}
+
+	public synchronized void unmonitor(NodeId nodeId) {
+		int row = indexOf(nodeId);
+		if (row >= 0) {
+			monitored.computeIfPresent(row, (r, count) -> count > 1 ? count - 1 : null);
+		}
+	}
+
+	/**
+	 * @return whether the store keeps the node's value, so writing it doesn't modify the node.
+	 */
+	public boolean isStored(NodeId nodeId) {
+		int row = indexOf(nodeId);
+		return row >= 0 && (flags[row] & STORED) != 0;
+	}
+
+	/**
+	 * @return the number of descriptors.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of descriptors built into nodes.
+	 */
+	public synchronized int getMaterializedCount() {
+		return clockSize;
+	}
+
+	public synchronized long getMaterializations() {
+		return materializations;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private synchronized ServerNode materialize(int row) {
+		NodeId nodeId = new NodeId(namespaceIndex, ids[row]);
+
+		// Built by another thread while this one waited
+		ServerNode built = nodeMap.get(nodeId);
+		if (built != null) {
+			return built;
+		}
+
+		NodeConfig config = config(row);
+		UaNode node = loader.node(nodeId, config);
+
+		if (config.getKind() == NodeConfig.Kind.VARIABLE) {
+			if ((flags[row] & STORED) != 0) {
+				node.setAttributeDelegate(loader.getScalarValues().getDelegate());
+			} else {
+				((UaVariableNode) node).setValue(new DataValue(new Variant(config.getValue())));
+			}
+		} else if (config.getKind() == NodeConfig.Kind.METHOD) {
+			try {
+				loader.bindMethod((UaMethodNode) node, config);
+			} catch (Exception e) {
+				logger.error("Unable to create the handler of {}", nodeId, e);
+			}
+		}
+
+		addReferences(row, node);
+
+		// Methods and data types are few and referenced from elsewhere, they stay
+		if (config.getKind() == NodeConfig.Kind.METHOD || config.getKind() == NodeConfig.Kind.DATA_TYPE) {
+			flags[row] |= PINNED;
+		}
+
+		tick(row);
+		nodeMap.put(nodeId, node);
+		materializations++;
+		return node;
+	}
+
+	private void addReferences(int row, UaNode node) {
+		NodeId nodeId = node.getNodeId();
+		NodeConfig.Kind kind = KINDS[kinds[row]];
+
+		// The same references as the loader gives a node it builds up front
+		NodeId parentId = kind == NodeConfig.Kind.DATA_TYPE ? supertype(row)
+				: parents[row] >= 0 ? new NodeId(namespaceIndex, ids[parents[row]]) : Identifiers.ObjectsFolder;
+		node.addReference(new Reference(nodeId, NamespaceLoader.parentReferenceType(kind), parentId.expanded(),
+				NamespaceLoader.parentClass(kind), false));
+
+		for (int child = firstChildren[row]; child >= 0; child = nextSiblings[child]) {
+			NodeConfig.Kind childKind = KINDS[kinds[child]];
+			node.addReference(new Reference(nodeId, NamespaceLoader.parentReferenceType(childKind),
+					new NodeId(namespaceIndex, ids[child]).expanded(), nodeClass(childKind), true));
+		}
+	}
+
+	// The server's nodes are always built, they get their references to the top nodes once
+	private void linkFromServer(int row) {
+		NodeConfig.Kind kind = KINDS[kinds[row]];
+		NodeId parentId = kind == NodeConfig.Kind.DATA_TYPE ? supertype(row) : Identifiers.ObjectsFolder;
+
+		ServerNode parent = nodeMap.get(parentId);
+		if (parent == null) {
+			logger.warn("{} has no parent {} in the node map", ids[row], parentId);
+			return;
+		}
+		parent.addReference(new Reference(parentId, NamespaceLoader.parentReferenceType(kind),
+				new NodeId(namespaceIndex, ids[row]).expanded(), nodeClass(kind), true));
+	}
+
+	// Makes room for a node, the clock hand evicting the first cold one it finds
+	private void tick(int row) {
+		if (clockSize < clock.length) {
+			clock[clockSize++] = row;
+			return;
+		}
+
+		for (int swept = 0; swept < 2 * clock.length; swept++) {
+			int candidate = clock[hand];
+
+			if (referenced[candidate] != 0) {
+				referenced[candidate] = 0;
+			} else if (evictable(candidate)) {
+				NodeId evicted = new NodeId(namespaceIndex, ids[candidate]);
+				nodeMap.remove(evicted);
+				referenceIndex.invalidate(evicted);
+				evictions++;
+				clock[hand] = row;
+				hand = (hand + 1) % clock.length;
+				return;
+			}
+			hand = (hand + 1) % clock.length;
+		}
+
+		// Nothing is cold, everything built is pinned or monitored
+		logger.warn("{} nodes built and none can be evicted, allowing {}", clock.length, clock.length * 2);
+		clock = Arrays.copyOf(clock, Math.max(1, clock.length * 2));
+		clock[clockSize++] = row;
+	}
+
+	private boolean evictable(int row) {
+		return (flags[row] & PINNED) == 0 && !monitored.containsKey(row);
+	}
+
+	private int add(NodeConfig node) {
+		if (size == ids.length) {
+			grow();
+		}
+		int row = size++;
+
+		ids[row] = node.getId();
+		kinds[row] = (byte) node.getKind().ordinal();
+		parents[row] = node.getParentId() != null ? indexOf(node.getParentId()) : -1;
+		firstChildren[row] = -1;
+		nextSiblings[row] = -1;
+		lastChildren[row] = -1;
+
+		int parent = parents[row];
+		if (parent >= 0) {
+			if (firstChildren[parent] < 0) {
+				firstChildren[parent] = row;
+			} else {
+				nextSiblings[lastChildren[parent]] = row;
+			}
+			lastChildren[parent] = row;
+		}
+
+		int flag = 0;
+		if (node.getKind() == NodeConfig.Kind.VARIABLE) {
+			dataTypes[row] = (byte) dataTypeNumber(node.getDataType());
+			flag |= node.isWritable() ? WRITABLE : 0;
+			flag |= node.isHistorizing() ? HISTORIZING : 0;
+			flag |= loader.register(new NodeId(namespaceIndex, node.getId()), node) ? STORED : 0;
+		}
+		flags[row] = (byte) flag;
+
+		String name = node.getId().substring(node.getId().lastIndexOf('/') + 1);
+		boolean valueKept = node.getKind() == NodeConfig.Kind.VARIABLE && (flag & STORED) == 0;
+		if (!name.equals(node.getName()) || node.getDescription() != null || node.getHandler() != null
+				|| node.getSupertype() != null || valueKept) {
+
+			extras.put(row, new Extra(name.equals(node.getName()) ? null : node.getName(), node.getDescription(),
+					node.getHandler(), node.getSupertype(), valueKept ? node.getValue() : null));
+		}
+
+		insert(row);
+		return row;
+	}
+
+	// The NodeConfig the node was read from, less what the store keeps
+	private NodeConfig config(int row) {
+		NodeConfig.Kind kind = KINDS[kinds[row]];
+		Extra extra = extras.get(row);
+		String id = ids[row];
+
+		String name = extra != null && extra.name != null ? extra.name : id.substring(id.lastIndexOf('/') + 1);
+
+		return new NodeConfig(kind, id, name, extra != null ? extra.description : null,
+				parents[row] >= 0 ? ids[parents[row]] : null,
+				kind == NodeConfig.Kind.VARIABLE ? dataTypeIds.get(dataTypes[row] & 0xFF) : null,
+				extra != null ? extra.value : null, (flags[row] & WRITABLE) != 0, (flags[row] & HISTORIZING) != 0,
+				extra != null ? extra.handler : null, extra != null ? extra.supertype : null, 0);
+	}
+
+	private NodeId supertype(int row) {
+		Extra extra = extras.get(row);
+		return extra != null && extra.supertype != null ? extra.supertype : Identifiers.Structure;
+	}
+
+	private int dataTypeNumber(NodeId dataType) {
+		int number = dataTypeIds.indexOf(dataType);
+		if (number < 0) {
+			if (dataTypeIds.size() == 256) {
+				throw new IllegalArgumentException("more than 256 DataTypes");
+			}
+			dataTypeIds.add(dataType);
+			number = dataTypeIds.size() - 1;
+		}
+		return number;
+	}
+
+	private static NodeClass nodeClass(NodeConfig.Kind kind) {
+		switch (kind) {
+			case VARIABLE:
+				return NodeClass.Variable;
+			case METHOD:
+				return NodeClass.Method;
+			case DATA_TYPE:
+				return NodeClass.DataType;
+			default:
+				return NodeClass.Object;
+		}
+	}
+
+	private int indexOf(NodeId nodeId) {
+		if (!namespaceIndex.equals(nodeId.getNamespaceIndex()) || !(nodeId.getIdentifier() instanceof String)) {
+			return -1;
+		}
+		return indexOf((String) nodeId.getIdentifier());
+	}
+
+	private int indexOf(String id) {
+		int[] table = index;
+		int mask = table.length - 1;
+
+		for (int slot = spread(id.hashCode()) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			int row = table[slot] - 1;
+			if (ids[row].equals(id)) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(int row) {
+		int mask = index.length - 1;
+		int slot = spread(ids[row].hashCode()) & mask;
+		while (index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		index[slot] = row + 1;
+	}
+
+	private static int spread(int hash) {
+		return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+
+		ids = Arrays.copyOf(ids, capacity);
+		kinds = Arrays.copyOf(kinds, capacity);
+		parents = Arrays.copyOf(parents, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		lastChildren = Arrays.copyOf(lastChildren, capacity);
+		dataTypes = Arrays.copyOf(dataTypes, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		referenced = Arrays.copyOf(referenced, capacity);
+
+		// Half full at most
+		index = new int[capacity * 2];
+		for (int row = 0; row < size; row++) {
+			insert(row);
+		}
+	}
+
+	// What few nodes have, kept on the side
+	private static final class Extra {
+		final String name;
+		final String description;
+		final String handler;
+		final NodeId supertype;
+		final Object value;
+
+		Extra(String name, String description, String handler, NodeId supertype, Object value) {
+			this.name = name;
+			this.description = description;
+			this.handler = handler;
+			this.supertype = supertype;
+			this.value = value;
+		}
+	}
+}
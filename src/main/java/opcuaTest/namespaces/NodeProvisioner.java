@@ -0,0 +1,318 @@
+package opcuaTest.namespaces;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.core.ValueRank;
+import org.eclipse.milo.opcua.sdk.server.api.ServerNodeMap;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaFolderNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaObjectNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.UaSerializationException;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExpandedNodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
+import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.ObjectAttributes;
+import org.eclipse.milo.opcua.stack.core.types.structured.VariableAttributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+
+/**
+ * Adds the nodes of an AddNodes request to a namespace as one batch: every item is
+ * checked and its node built first, then all the nodes built go into the node map with
+ * one putAll, and only then are they referenced from their parents, so a browse never
+ * reaches a node that isn't complete. The parent of an item may be a node added by an
+ * earlier item of the same request, e.g. a folder and the variables in it.
+ * <p>
+ * Objects, a folder for the FolderType, and variables can be added, with the attributes
+ * of their ObjectAttributes or VariableAttributes, under their parent by Organizes,
+ * HasComponent or HasProperty. A variable gets its initial value through the
+ * namespace's {@link Binder}, which decides where the value is kept. An item that
+ * doesn't request a NodeId gets one under its parent's, like the namespace's own nodes.
+ */
+public class NodeProvisioner {
+
+	/**
+	 * Gives a new variable its initial value, before the variable is in the node map.
+	 */
+	@FunctionalInterface
+	public interface Binder {
+		/**
+		 * @throws ClassCastException if the value isn't of the variable's DataType
+		 */
+		void bind(UaVariableNode node, DataValue value);
+	}
+
+	// AttributesMask bits of the attributes applied, OPC UA Part 4
+	private static final int ACCESS_LEVEL = 0x1;
+	private static final int DATA_TYPE = 0x10;
+	private static final int DESCRIPTION = 0x20;
+	private static final int DISPLAY_NAME = 0x40;
+	private static final int HISTORIZING = 0x200;
+	private static final int MINIMUM_SAMPLING_INTERVAL = 0x1000;
+	private static final int USER_ACCESS_LEVEL = 0x10000;
+	private static final int VALUE_RANK = 0x80000;
+	private static final int VALUE = 0x200000;
+
+	private static final UByte DEFAULT_ACCESS_LEVEL = ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE));
+
+	private static final VariableAttributes NO_VARIABLE_ATTRIBUTES =
+			new VariableAttributes(uint(0), null, null, null, null, null, null, null, null, null, null, null, null);
+
+	private static final ObjectAttributes NO_OBJECT_ATTRIBUTES =
+			new ObjectAttributes(uint(0), null, null, null, null, null);
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ServerNodeMap nodeMap;
+	private final UShort namespaceIndex;
+	private final ReferenceIndex referenceIndex;
+	private final Binder binder;
+
+	/**
+	 * @param referenceIndex the namespace's, the parents get their references through it
+	 */
+	public NodeProvisioner(ServerNodeMap nodeMap, UShort namespaceIndex, ReferenceIndex referenceIndex,
+			Binder binder) {
+
+		this.nodeMap = nodeMap;
+		this.namespaceIndex = namespaceIndex;
+		this.referenceIndex = referenceIndex;
+		this.binder = binder;
+	}
+
+	/**
+	 * Adds the nodes of the items that check out. One batch at a time, so two requests
+	 * can't both add the same NodeId.
+	 *
+	 * @return the result of each item, in the order of {@code nodesToAdd}.
+	 */
+	public synchronized List<AddNodesResult> addNodes(List<AddNodesItem> nodesToAdd) {
+		List<AddNodesResult> results = new ArrayList<AddNodesResult>(nodesToAdd.size());
+		Map<NodeId, ServerNode> batch = new LinkedHashMap<NodeId, ServerNode>(nodesToAdd.size() * 4 / 3 + 1);
+		List<Link> links = new ArrayList<Link>(nodesToAdd.size());
+
+		for (AddNodesItem item : nodesToAdd) {
+			NodeId nodeId = NodeId.NULL_VALUE;
+			try {
+				NodeId parentId = local(item.getParentNodeId());
+				ServerNode parent = parentId != null ? batch.get(parentId) : null;
+				if (parent == null && parentId != null) {
+					parent = nodeMap.get(parentId);
+				}
+				if (parent == null) {
+					throw new UaException(StatusCodes.Bad_ParentNodeIdInvalid);
+				}
+
+				NodeId referenceTypeId = item.getReferenceTypeId();
+				if (!Identifiers.Organizes.equals(referenceTypeId) && !Identifiers.HasComponent.equals(referenceTypeId)
+						&& !Identifiers.HasProperty.equals(referenceTypeId)) {
+					throw new UaException(StatusCodes.Bad_ReferenceTypeIdInvalid);
+				}
+
+				QualifiedName browseName = item.getBrowseName();
+				if (browseName == null || browseName.getName() == null || browseName.getName().isEmpty()) {
+					throw new UaException(StatusCodes.Bad_BrowseNameInvalid);
+				}
+
+				nodeId = nodeId(item, parentId);
+				if (batch.containsKey(nodeId) || nodeMap.containsKey(nodeId)) {
+					throw new UaException(StatusCodes.Bad_NodeIdExists);
+				}
+
+				UaNode node = build(item, nodeId);
+				node.addReference(new Reference(nodeId, referenceTypeId, parent.getNodeId().expanded(),
+						parent.getNodeClass(), false));
+
+				batch.put(nodeId, node);
+				links.add(new Link(parent, referenceTypeId, node));
+				results.add(new AddNodesResult(StatusCode.GOOD, nodeId));
+			} catch (UaException e) {
+				logger.debug("Unable to add node {}: {}", item.getBrowseName(), e.getStatusCode());
+				results.add(new AddNodesResult(e.getStatusCode(), NodeId.NULL_VALUE));
+			}
+		}
+
+		nodeMap.putAll(batch);
+
+		for (Link link : links) {
+			referenceIndex.addReference(link.parent, new Reference(link.parent.getNodeId(), link.referenceTypeId,
+					link.node.getNodeId().expanded(), link.node.getNodeClass(), true));
+		}
+
+		logger.debug("Added {} of {} nodes", batch.size(), nodesToAdd.size());
+		return results;
+	}
+
+	private NodeId nodeId(AddNodesItem item, NodeId parentId) throws UaException {
+		ExpandedNodeId requested = item.getRequestedNewNodeId();
+		NodeId nodeId = local(requested);
+
+		if (nodeId == null && requested != null && !requested.isNull()) {
+			// On another server
+			throw new UaException(StatusCodes.Bad_NodeIdRejected);
+		}
+		if (nodeId == null || nodeId.isNull()) {
+			String name = item.getBrowseName().getName();
+			Object parent = parentId.getIdentifier();
+			return new NodeId(namespaceIndex, namespaceIndex.equals(parentId.getNamespaceIndex())
+					&& parent instanceof String ? parent + "/" + name : name);
+		}
+		if (!namespaceIndex.equals(nodeId.getNamespaceIndex())) {
+			throw new UaException(StatusCodes.Bad_NodeIdRejected);
+		}
+		return nodeId;
+	}
+
+	private UaNode build(AddNodesItem item, NodeId nodeId) throws UaException {
+		NodeClass nodeClass = item.getNodeClass();
+
+		if (nodeClass == NodeClass.Object) {
+			return object(item, nodeId, attributes(item, ObjectAttributes.class, NO_OBJECT_ATTRIBUTES));
+		} else if (nodeClass == NodeClass.Variable) {
+			return variable(item, nodeId, attributes(item, VariableAttributes.class, NO_VARIABLE_ATTRIBUTES));
+		} else {
+			throw new UaException(StatusCodes.Bad_NodeClassInvalid);
+		}
+	}
+
+	private UaObjectNode object(AddNodesItem item, NodeId nodeId, ObjectAttributes attributes) {
+		UInteger mask = attributes.getSpecifiedAttributes();
+		NodeId typeDefinition = local(item.getTypeDefinition());
+		LocalizedText displayName = specified(mask, DISPLAY_NAME, attributes.getDisplayName(),
+				LocalizedText.english(item.getBrowseName().getName()));
+
+		UaObjectNode node;
+		if (typeDefinition == null || typeDefinition.isNull() || Identifiers.FolderType.equals(typeDefinition)) {
+			node = new UaFolderNode(nodeMap, nodeId, item.getBrowseName(), displayName);
+		} else {
+			node = UaObjectNode.builder(nodeMap)
+					.setNodeId(nodeId)
+					.setBrowseName(item.getBrowseName())
+					.setDisplayName(displayName)
+					.setTypeDefinition(typeDefinition)
+					.build();
+		}
+
+		LocalizedText description = specified(mask, DESCRIPTION, attributes.getDescription(), null);
+		if (description != null) {
+			node.setDescription(description);
+		}
+		return node;
+	}
+
+	private UaVariableNode variable(AddNodesItem item, NodeId nodeId, VariableAttributes attributes)
+			throws UaException {
+
+		UInteger mask = attributes.getSpecifiedAttributes();
+		NodeId typeDefinition = local(item.getTypeDefinition());
+		Variant value = specified(mask, VALUE, attributes.getValue(), Variant.NULL_VALUE);
+
+		NodeId dataType = specified(mask, DATA_TYPE, attributes.getDataType(), null);
+		if (dataType == null || dataType.isNull()) {
+			dataType = value != null && value.getValue() != null
+					? value.getDataType().flatMap(ExpandedNodeId::local).orElse(Identifiers.BaseDataType)
+					: Identifiers.BaseDataType;
+		}
+
+		UByte accessLevel = specified(mask, ACCESS_LEVEL, attributes.getAccessLevel(), DEFAULT_ACCESS_LEVEL);
+
+		UaVariableNode.UaVariableNodeBuilder builder = new UaVariableNode.UaVariableNodeBuilder(nodeMap)
+				.setNodeId(nodeId)
+				.setAccessLevel(accessLevel)
+				.setUserAccessLevel(specified(mask, USER_ACCESS_LEVEL, attributes.getUserAccessLevel(), accessLevel))
+				.setBrowseName(item.getBrowseName())
+				.setDisplayName(specified(mask, DISPLAY_NAME, attributes.getDisplayName(),
+						LocalizedText.english(item.getBrowseName().getName())))
+				.setDataType(dataType)
+				.setTypeDefinition(typeDefinition != null && !typeDefinition.isNull()
+						? typeDefinition : Identifiers.BaseDataVariableType)
+				.setValueRank(specified(mask, VALUE_RANK, attributes.getValueRank(), ValueRank.Scalar.getValue()))
+				.setHistorizing(specified(mask, HISTORIZING, attributes.getHistorizing(), false));
+
+		LocalizedText description = specified(mask, DESCRIPTION, attributes.getDescription(), null);
+		if (description != null) {
+			builder.setDescription(description);
+		}
+		Double minimumSamplingInterval = specified(mask, MINIMUM_SAMPLING_INTERVAL,
+				attributes.getMinimumSamplingInterval(), null);
+		if (minimumSamplingInterval != null) {
+			builder.setMinimumSamplingInterval(minimumSamplingInterval);
+		}
+
+		UaVariableNode node = builder.build();
+
+		DateTime now = DateTime.now();
+		try {
+			binder.bind(node, new DataValue(value, StatusCode.GOOD, now, now));
+		} catch (ClassCastException e) {
+			throw new UaException(StatusCodes.Bad_TypeMismatch, e);
+		}
+		return node;
+	}
+
+	// The item's attributes, or the defaults if it has none
+	private static <T> T attributes(AddNodesItem item, Class<T> type, T none) throws UaException {
+		ExtensionObject encoded = item.getNodeAttributes();
+		if (encoded == null || encoded.getEncoded() == null) {
+			return none;
+		}
+
+		Object decoded;
+		try {
+			decoded = encoded.decode();
+		} catch (UaSerializationException e) {
+			throw new UaException(StatusCodes.Bad_NodeAttributesInvalid, e);
+		}
+		if (!type.isInstance(decoded)) {
+			throw new UaException(StatusCodes.Bad_NodeAttributesInvalid);
+		}
+		return type.cast(decoded);
+	}
+
+	// With no mask every attribute that isn't null is taken, as most clients send them
+	private static <T> T specified(UInteger mask, int bit, T value, T defaultValue) {
+		boolean set = mask == null || mask.intValue() == 0 || (mask.intValue() & bit) != 0;
+		return set && value != null ? value : defaultValue;
+	}
+
+	private static NodeId local(ExpandedNodeId nodeId) {
+		return nodeId != null ? nodeId.local().orElse(null) : null;
+	}
+
+	private static final class Link {
+		final ServerNode parent;
+		final NodeId referenceTypeId;
+		final UaNode node;
+
+		Link(ServerNode parent, NodeId referenceTypeId, UaNode node) {
+			this.parent = parent;
+			this.referenceTypeId = referenceTypeId;
+			this.node = node;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package opcuaTest.namespaces;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.milo.opcua.sdk.core.Reference;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+
+/**
+ * The references of a namespace's nodes as a Browse asks for them. The first browse of a
+ * node copies its references once into an immutable array, and the browses after it get
+ * a view of that array rather than a copy of their own.
+ * <p>
+ * Milo hands a namespace no more of a Browse than the node browsed, so the server still
+ * filters the references by direction, reference type and node class: only the copy per
+ * browse is saved.
+ * <p>
+ * A node's array holds until a reference is added to or removed from it through the
+ * index, or until another node takes its NodeId in the node map. A namespace that
+ * removes a node {@link #invalidate}s it, so the index doesn't keep it.
+ */
+public class ReferenceIndex {
+
+	private final ConcurrentMap<NodeId, Entry> entries = new ConcurrentHashMap<NodeId, Entry>();
+
+	// Counts the changes, so arrays built from references read before one aren't kept
+	private final AtomicLong changes = new AtomicLong();
+
+	public void addReference(ServerNode node, Reference reference) {
+		node.addReference(reference);
+		invalidate(node.getNodeId());
+	}
+
+	public void removeReference(ServerNode node, Reference reference) {
+		node.removeReference(reference);
+		invalidate(node.getNodeId());
+	}
+
+	/**
+	 * Drops the array of a node, e.g. once it's out of the node map.
+	 */
+	public void invalidate(NodeId nodeId) {
+		changes.incrementAndGet();
+		entries.remove(nodeId);
+	}
+
+	/**
+	 * @return all the references of the node, an immutable list.
+	 */
+	public List<Reference> getReferences(ServerNode node) {
+		return new References(entry(node).references);
+	}
+
+	/**
+	 * @return the number of nodes whose references are indexed.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private Entry entry(ServerNode node) {
+		NodeId nodeId = node.getNodeId();
+		Entry entry = entries.get(nodeId);
+		if (entry != null && entry.node == node) {
+			return entry;
+		}
+
+		long seen = changes.get();
+		List<Reference> references = node.getReferences();
+		entry = new Entry(node, references.toArray(new Reference[references.size()]));
+		entries.put(nodeId, entry);
+
+		// A reference added meanwhile may not be in it, the next browse builds it again
+		if (changes.get() != seen) {
+			entries.remove(nodeId, entry);
+		}
+		return entry;
+	}
+
+	private static final class Entry {
+		final ServerNode node;
+		final Reference[] references;
+
+		Entry(ServerNode node, Reference[] references) {
+			this.node = node;
+			this.references = references;
+		}
+	}
+
+	// An immutable view of an array
+	private static final class References extends AbstractList<Reference> implements RandomAccess {
+		private final Reference[] references;
+
+		References(Reference[] references) {
+			this.references = references;
+		}
+
+		@Override
+		public Reference get(int index) {
+			return references[index];
+		}
+
+		@Override
+		public int size() {
+			return references.length;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package opcuaTest.namespaces;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+import opcuaTest.history.HistoryValueType;
+
+import org.eclipse.milo.opcua.sdk.server.api.nodes.VariableNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.AttributeContext;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.delegates.AttributeDelegate;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+
+/**
+ * Current values of scalar variables kept in primitive columns, one slot per variable,
+ * instead of a DataValue with its Variant, boxed value, StatusCode and DateTimes per node:
+ * the value's 64 bits as {@link HistoryValueType} encodes them, the status code and both
+ * timestamps, 33 bytes a variable with the reference to its snapshot, plus 11 to 21 for
+ * finding its slot by NodeId. A written DataValue is taken apart and dropped.
+ * <p>
+ * DataValues are only built when a value is read, and kept as the slot's snapshot, with
+ * the DataValue of each TimestampsToReturn, like the {@link VariableValueCache} keeps
+ * those of a node: reading a value again allocates nothing. A write drops the snapshot
+ * under the slot's write lock and a snapshot is only set under its read lock, so one
+ * built from a value that a racing write replaced is never returned.
+ * <p>
+ * The columns grow a chunk of slots at a time. Slots are spread over a fixed number of
+ * {@link StampedLock}s; a read takes the slot's snapshot under an optimistic stamp, like
+ * a seqlock, and only takes the read lock to build one or when a write to the same
+ * stripe raced it.
+ * <p>
+ * The variables get the store's {@link #getDelegate() delegate}, so reads and writes
+ * through the node, and the subscriptions sampling it, see the store. Picoseconds aren't
+ * kept, the namespaces never set them.
+ */
+public class ScalarValueStore {
+
+	public static final int DEFAULT_STRIPES = 64;
+
+	// Value bits, status, source and server time, type and snapshot
+	public static final int BYTES_PER_SLOT = 8 + 4 + 8 + 8 + 1 + 4;
+
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// Set in a slot's type when its value is null
+	private static final byte NULL_VALUE = (byte) 0x80;
+
+	private static final long GOOD = StatusCode.GOOD.getValue();
+
+	private static final int TIMESTAMPS = TimestampsToReturn.values().length;
+
+	private final StampedLock[] locks;
+	private final int stripeMask;
+
+	private final AttributeDelegate delegate = new StoreDelegate();
+
+	private volatile Chunk[] chunks = new Chunk[0];
+	private volatile SlotIndex index = new SlotIndex(16);
+	// Guarded by this
+	private int size = 0;
+
+	public ScalarValueStore() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param stripes number of locks, rounded up to a power of two.
+	 */
+	public ScalarValueStore(int stripes) {
+		int count = 1;
+		while (count < stripes) {
+			count <<= 1;
+		}
+		locks = new StampedLock[count];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new StampedLock();
+		}
+		stripeMask = locks.length - 1;
+	}
+
+	/**
+	 * Keeps the value of a variable from now on, starting with the given one. Registering
+	 * a variable again only writes the value.
+	 *
+	 * @return the variable's slot.
+	 * @throws IllegalArgumentException if the data type isn't a scalar type the store keeps
+	 * @throws ClassCastException if the value isn't of the data type
+	 */
+	public int register(NodeId nodeId, NodeId dataType, DataValue value) {
+		HistoryValueType type = HistoryValueType.of(dataType);
+		if (type == null) {
+			throw new IllegalArgumentException("Not a scalar type: " + dataType);
+		}
+
+		int existing = getSlot(nodeId);
+		if (existing >= 0) {
+			write(existing, value);
+			return existing;
+		}
+
+		Variant variant = value.getValue();
+		if (variant != null && variant.getValue() != null) {
+			type.toBits(variant.getValue());
+		}
+
+		synchronized (this) {
+			existing = getSlot(nodeId);
+			if (existing >= 0) {
+				write(existing, value);
+				return existing;
+			}
+
+			int slot = size;
+			Chunk[] current = chunks;
+			if ((slot >>> CHUNK_BITS) == current.length) {
+				Chunk[] grown = Arrays.copyOf(current, current.length + 1);
+				grown[current.length] = new Chunk();
+				chunks = grown;
+			}
+			chunk(slot).types[slot & CHUNK_MASK] = (byte) type.ordinal();
+			size++;
+
+			// Readers only find the slot once it holds the value
+			write(slot, value);
+			if (!index.put(nodeId, slot)) {
+				index = index.grow();
+				index.put(nodeId, slot);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Stops serving a variable's value. Its slot isn't reused.
+	 */
+	public synchronized void unregister(NodeId nodeId) {
+		index.remove(nodeId);
+	}
+
+	/**
+	 * @return the variable's slot, or -1 if the store doesn't keep its value.
+	 */
+	public int getSlot(NodeId nodeId) {
+		return index.get(nodeId);
+	}
+
+	public HistoryValueType getType(int slot) {
+		return HistoryValueType.fromOrdinal(chunk(slot).types[slot & CHUNK_MASK] & ~NULL_VALUE);
+	}
+
+	/**
+	 * @throws ClassCastException if the value isn't of the slot's type
+	 */
+	public void write(int slot, DataValue value) {
+		Variant variant = value.getValue();
+		Object object = variant != null ? variant.getValue() : null;
+		StatusCode status = value.getStatusCode();
+
+		// Encoded before taking the lock, a value of the wrong type leaves the slot as it was
+		long bits = object != null ? getType(slot).toBits(object) : 0L;
+
+		store(slot, object == null, bits, status != null ? status.getValue() : GOOD,
+				ticks(value.getSourceTime()), ticks(value.getServerTime()));
+	}
+
+	/**
+	 * Writes a value without building a DataValue, e.g. from a device driver.
+	 *
+	 * @param bits the value as {@link HistoryValueType#toBits} encodes it for the slot's type.
+	 * @param sourceTime UTC ticks, 0 for none.
+	 * @param serverTime UTC ticks, 0 for none.
+	 */
+	public void write(int slot, long bits, long status, long sourceTime, long serverTime) {
+		store(slot, false, bits, status, sourceTime, serverTime);
+	}
+
+	/**
+	 * @return the value with the timestamps asked for, the same DataValue until the slot is
+	 * written.
+	 */
+	public DataValue read(int slot, TimestampsToReturn timestamps) {
+		Chunk chunk = chunk(slot);
+		int i = slot & CHUNK_MASK;
+		StampedLock lock = locks[slot & stripeMask];
+
+		// No write since the stamp, so the snapshot found is the slot's
+		long stamp = lock.tryOptimisticRead();
+		Snapshot snapshot = chunk.snapshots[i];
+		if (snapshot != null && lock.validate(stamp)) {
+			return snapshot.get(timestamps);
+		}
+
+		// Built under the read lock, a write can't land between reading the slot and setting
+		// it; racing readers may both build one, the results are equal
+		stamp = lock.readLock();
+		try {
+			snapshot = chunk.snapshots[i];
+			if (snapshot == null) {
+				snapshot = new Snapshot(chunk.types[i], chunk.bits[i], chunk.statuses[i], chunk.sourceTimes[i],
+						chunk.serverTimes[i]);
+				chunk.snapshots[i] = snapshot;
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return snapshot.get(timestamps);
+	}
+
+	/**
+	 * Serves a plain Value read of a variable the store keeps, like {@link VariableValueCache#read}.
+	 *
+	 * @return the value read, or null if the read has to go through the node.
+	 */
+	public DataValue read(ServerNode node, ReadValueId readValueId, TimestampsToReturn timestamps) {
+		int slot = getSlot(node.getNodeId());
+		if (slot < 0 || timestamps == null || !(node instanceof VariableNode)
+				|| !VariableValueCache.isPlainValueRead(readValueId)
+				|| !VariableValueCache.isReadable(((VariableNode) node).getAccessLevel())
+				|| !VariableValueCache.isReadable(((VariableNode) node).getUserAccessLevel())) {
+			return null;
+		}
+		return read(slot, timestamps);
+	}
+
+	/**
+	 * @return the delegate that gives a registered variable's node the store's value.
+	 */
+	public AttributeDelegate getDelegate() {
+		return delegate;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public long getMemoryBytes() {
+		return (long) chunks.length * CHUNK_SIZE * BYTES_PER_SLOT + index.getMemoryBytes();
+	}
+
+	private void store(int slot, boolean isNull, long bits, long status, long sourceTime, long serverTime) {
+		Chunk chunk = chunk(slot);
+		int i = slot & CHUNK_MASK;
+		StampedLock lock = locks[slot & stripeMask];
+
+		long stamp = lock.writeLock();
+		try {
+			chunk.types[i] = (byte) (isNull ? chunk.types[i] | NULL_VALUE : chunk.types[i] & ~NULL_VALUE);
+			chunk.bits[i] = bits;
+			chunk.statuses[i] = (int) status;
+			chunk.sourceTimes[i] = sourceTime;
+			chunk.serverTimes[i] = serverTime;
+			chunk.snapshots[i] = null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private Chunk chunk(int slot) {
+		return chunks[slot >>> CHUNK_BITS];
+	}
+
+	private static long ticks(DateTime time) {
+		return time != null ? time.getUtcTime() : 0L;
+	}
+
+	private static DateTime dateTime(long ticks) {
+		return ticks != 0L ? new DateTime(ticks) : null;
+	}
+
+	private static final class Chunk {
+		final byte[] types = new byte[CHUNK_SIZE];
+		final long[] bits = new long[CHUNK_SIZE];
+		final int[] statuses = new int[CHUNK_SIZE];
+		final long[] sourceTimes = new long[CHUNK_SIZE];
+		final long[] serverTimes = new long[CHUNK_SIZE];
+		final Snapshot[] snapshots = new Snapshot[CHUNK_SIZE];
+	}
+
+	// A slot's value as it was when read and what a read with each TimestampsToReturn returns of it
+	private static final class Snapshot {
+		final byte type;
+		final long bits;
+		final int status;
+		final long sourceTime;
+		final long serverTime;
+		final DataValue[] derived = new DataValue[TIMESTAMPS];
+
+		Snapshot(byte type, long bits, int status, long sourceTime, long serverTime) {
+			this.type = type;
+			this.bits = bits;
+			this.status = status;
+			this.sourceTime = sourceTime;
+			this.serverTime = serverTime;
+		}
+
+		DataValue get(TimestampsToReturn timestamps) {
+			DataValue value = derived[timestamps.ordinal()];
+			if (value == null) {
+				boolean source = timestamps == TimestampsToReturn.Source || timestamps == TimestampsToReturn.Both;
+				boolean server = timestamps == TimestampsToReturn.Server || timestamps == TimestampsToReturn.Both;
+
+				Variant variant = (type & NULL_VALUE) != 0 ? Variant.NULL_VALUE
+						: new Variant(HistoryValueType.fromOrdinal(type).fromBits(bits));
+
+				value = new DataValue(variant,
+						status == GOOD ? StatusCode.GOOD : new StatusCode(status & 0xFFFFFFFFL),
+						source ? dateTime(sourceTime) : null,
+						server ? dateTime(serverTime) : null);
+				derived[timestamps.ordinal()] = value;
+			}
+			return value;
+		}
+	}
+
+	// Open addressing from NodeId to slot, without an entry and a boxed slot per variable.
+	// Readers don't lock: a slot is set before its key, and a grown index is filled before
+	// it is published. Removed variables keep their key, with no slot, until it grows.
+	private static final class SlotIndex {
+		final AtomicReferenceArray<NodeId> keys;
+		final AtomicIntegerArray slots;
+		final int mask;
+		// Guarded by the store
+		int used = 0;
+
+		SlotIndex(int capacity) {
+			keys = new AtomicReferenceArray<NodeId>(capacity);
+			slots = new AtomicIntegerArray(capacity);
+			mask = capacity - 1;
+		}
+
+		int get(NodeId nodeId) {
+			for (int i = hash(nodeId) & mask; ; i = (i + 1) & mask) {
+				NodeId key = keys.get(i);
+				if (key == null) {
+					return -1;
+				}
+				if (key.equals(nodeId)) {
+					return slots.get(i);
+				}
+			}
+		}
+
+		// False if the index is too full and has to grow first
+		boolean put(NodeId nodeId, int slot) {
+			for (int i = hash(nodeId) & mask; ; i = (i + 1) & mask) {
+				NodeId key = keys.get(i);
+				if (key == null) {
+					if ((used + 1) * 4 > keys.length() * 3) {
+						return false;
+					}
+					slots.set(i, slot);
+					keys.set(i, nodeId);
+					used++;
+					return true;
+				}
+				if (key.equals(nodeId)) {
+					slots.set(i, slot);
+					return true;
+				}
+			}
+		}
+
+		void remove(NodeId nodeId) {
+			for (int i = hash(nodeId) & mask; ; i = (i + 1) & mask) {
+				NodeId key = keys.get(i);
+				if (key == null) {
+					return;
+				}
+				if (key.equals(nodeId)) {
+					slots.set(i, -1);
+					return;
+				}
+			}
+		}
+
+		SlotIndex grow() {
+			SlotIndex grown = new SlotIndex(keys.length() * 2);
+			for (int i = 0; i < keys.length(); i++) {
+				NodeId key = keys.get(i);
+				if (key != null && slots.get(i) >= 0) {
+					grown.put(key, slots.get(i));
+				}
+			}
+			return grown;
+		}
+
+		// A compressed reference and a slot per entry
+		long getMemoryBytes() {
+			return keys.length() * 8L;
+		}
+
+		private static int hash(NodeId nodeId) {
+			int h = nodeId.hashCode() * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	private class StoreDelegate implements AttributeDelegate {
+
+		@Override
+		public DataValue getValue(AttributeContext context, VariableNode node) throws UaException {
+			int slot = getSlot(node.getNodeId());
+			return slot >= 0 ? read(slot, TimestampsToReturn.Both) : node.getValue();
+		}
+
+		@Override
+		public void setValue(AttributeContext context, VariableNode node, DataValue value) throws UaException {
+			int slot = getSlot(node.getNodeId());
+			if (slot < 0) {
+				node.setValue(value);
+				return;
+			}
+			try {
+				write(slot, value);
+			} catch (ClassCastException e) {
+				throw new UaException(StatusCodes.Bad_TypeMismatch, e);
+			}
+		}
+	}
+}
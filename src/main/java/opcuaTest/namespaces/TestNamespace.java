@@ -1,30 +1,24 @@
 package opcuaTest.namespaces;
 
 import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.EnumSet;
 import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
-import com.google.common.collect.Lists;
+import mqtt.client.LatencyHistogram;
+import mqtt.client.MqttPublisher;
+import opcuaTest.history.HistoryManager;
+import opcuaTest.history.HistoryStore;
+import opcuaTest.history.RetentionPolicy;
 
-import mqtt.client.SimpleMqttClient;
-
-import org.eclipse.milo.examples.server.ValueLoggingDelegate;
 import org.eclipse.milo.examples.server.methods.SqrtMethod;
 import org.eclipse.milo.examples.server.types.CustomDataType;
 import org.eclipse.milo.opcua.sdk.core.AccessLevel;
 import org.eclipse.milo.opcua.sdk.core.Reference;
-import org.eclipse.milo.opcua.sdk.core.ValueRank;
 import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
-import org.eclipse.milo.opcua.sdk.server.api.AccessContext;
-import org.eclipse.milo.opcua.sdk.server.api.AttributeHistoryManager.HistoryReadContext;
-import org.eclipse.milo.opcua.sdk.server.api.DataItem;
-import org.eclipse.milo.opcua.sdk.server.api.MethodInvocationHandler;
-import org.eclipse.milo.opcua.sdk.server.api.MonitoredItem;
-import org.eclipse.milo.opcua.sdk.server.api.Namespace;
 import org.eclipse.milo.opcua.sdk.server.api.nodes.VariableNode;
 import org.eclipse.milo.opcua.sdk.server.model.nodes.variables.AnalogItemNode;
 import org.eclipse.milo.opcua.sdk.server.nodes.AttributeContext;
@@ -39,8 +33,6 @@ import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
 import org.eclipse.milo.opcua.sdk.server.nodes.delegates.AttributeDelegate;
 import org.eclipse.milo.opcua.sdk.server.nodes.delegates.AttributeDelegateChain;
 import org.eclipse.milo.opcua.sdk.server.util.AnnotationBasedInvocationHandler;
-import org.eclipse.milo.opcua.sdk.server.util.SubscriptionModel;
-import org.eclipse.milo.opcua.stack.core.AttributeId;
 import org.eclipse.milo.opcua.stack.core.Identifiers;
 import org.eclipse.milo.opcua.stack.core.StatusCodes;
 import org.eclipse.milo.opcua.stack.core.UaException;
@@ -59,44 +51,35 @@ import org.eclipse.milo.opcua.stack.core.types.builtin.XmlElement;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
 import org.eclipse.milo.opcua.stack.core.types.enumerated.NodeClass;
-import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
-import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
-import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResult;
-import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
-import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
-import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
 import org.eclipse.milo.opcua.stack.core.types.structured.Range;
-import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
-import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
-import org.eclipse.milo.opcua.stack.core.util.FutureUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ubyte;
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ulong;
 import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.ushort;
 
-public class TestNamespace implements Namespace {
+public class TestNamespace extends AbstractNamespace {
 
 	public static final String NAMESPACE_URI = "urn:ca:uwo:test-module";
 
-	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private static final EnumSet<AccessLevel> HISTORIZED_ACCESS =
+			EnumSet.of(AccessLevel.CurrentRead, AccessLevel.CurrentWrite, AccessLevel.HistoryRead,
+					AccessLevel.HistoryWrite);
 
-	private final Random random = new Random();
+	// Raw samples for a week, then minute averages for six months, for the variables of TestSubfolder1
+	private static final RetentionPolicy TEST_SUBFOLDER1_RETENTION = RetentionPolicy.minuteAverages(7, 183);
 
-	private final SubscriptionModel subscriptionModel;
+	private final Random random = new Random();
 
 	private final NodeFactory nodeFactory;
 
-	private final OpcUaServer server;
-	private final UShort namespaceIndex;
+	private final MqttPublisher mqttPublisher;
 
-	public TestNamespace(OpcUaServer server, UShort namespaceIndex) {
-		this.server = server;
-		this.namespaceIndex = namespaceIndex;
+	public TestNamespace(OpcUaServer server, UShort namespaceIndex, MqttPublisher mqttPublisher,
+			HistoryManager historyManager, WriteDispatcher writeDispatcher) {
+		super(server, namespaceIndex, NAMESPACE_URI, historyManager, writeDispatcher);
 
-		subscriptionModel = new SubscriptionModel(server, this);
+		this.mqttPublisher = mqttPublisher;
 
 		nodeFactory = new NodeFactory(server.getNodeMap(), server.getObjectTypeManager(),
 				server.getVariableTypeManager());
@@ -122,6 +105,10 @@ public class TestNamespace implements Namespace {
 			addCustomDataTypeVariable(folderNode);
 			
 			// addCustomObjectTypeAndInstance(folderNode);
+
+			UaFolderNode diagnosticsFolder = addDiagnosticsFolder();
+			addMqttBridgeDiagnostics(diagnosticsFolder);
+			addHistoryDiagnostics(diagnosticsFolder);
 		} catch (UaException e) {
 			logger.error("Error adding nodes: {}", e.getMessage(), e);
 		}
@@ -197,6 +184,7 @@ public class TestNamespace implements Namespace {
 		ExtensionObject xo = ExtensionObject.encode(value, binaryEncodingId);
 		
 		customDataTypeVariable.setValue(new DataValue(new Variant(xo)));
+		valueCache.register(customDataTypeVariable);
 		
 		rootFolder.addOrganizes(customDataTypeVariable);
 		
@@ -260,12 +248,10 @@ public class TestNamespace implements Namespace {
 			NodeId typeId = Identifiers.Int32;
 			Object value = i;
 
-			Variant variant = new Variant(value);
-
 			UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
 					.setNodeId(new NodeId(namespaceIndex, "TestFolder/TestSubfolder1/" + name))
-					.setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
-					.setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
+					.setAccessLevel(ubyte(AccessLevel.getMask(HISTORIZED_ACCESS)))
+					.setUserAccessLevel(ubyte(AccessLevel.getMask(HISTORIZED_ACCESS)))
 					.setBrowseName(new QualifiedName(namespaceIndex, name))
 					.setDisplayName(LocalizedText.english(name))
 					.setDataType(typeId)
@@ -273,189 +259,142 @@ public class TestNamespace implements Namespace {
 					.setHistorizing(true)
 					.build();
 
-			node.setValue(new DataValue(variant));
-
-			node.setAttributeDelegate(new ValueLoggingDelegate());
+			// The value is kept in the store's columns, the node only reaches it through the delegate
+			scalarValues.register(node.getNodeId(), typeId, new DataValue(new Variant(value)));
+			node.setAttributeDelegate(scalarValues.getDelegate());
 
 			server.getNodeMap().addNode(node);
 			testSubFolder1.addOrganizes(node);
-		}
-	}
 
-	@Override
-	public UShort getNamespaceIndex() {
-		return namespaceIndex;
+			historyManager.register(node.getNodeId(), typeId);
+			historyManager.setRetentionPolicy(node.getNodeId(), TEST_SUBFOLDER1_RETENTION);
+		}
 	}
 
-	@Override
-	public String getNamespaceUri() {
-		return NAMESPACE_URI;
-	}
+	private UaFolderNode addDiagnosticsFolder() throws UaException {
+		NodeId diagnosticsNodeId = new NodeId(namespaceIndex, "Diagnostics");
 
-	@Override
-	public CompletableFuture<List<Reference>> browse(AccessContext context, NodeId nodeId) {
-		ServerNode node = server.getNodeMap().get(nodeId);
+		UaFolderNode diagnosticsFolder = new UaFolderNode(server.getNodeMap(), diagnosticsNodeId,
+				new QualifiedName(namespaceIndex, "Diagnostics"), LocalizedText.english("Diagnostics"));
 
-		if (node != null) {
-			return CompletableFuture.completedFuture(node.getReferences());
-		} else {
-			return FutureUtils.failedFuture(new UaException(StatusCodes.Bad_NodeIdUnknown));
-		}
-	}
+		server.getNodeMap().addNode(diagnosticsFolder);
 
-	@Override
-	public void read(ReadContext context, Double maxAge, TimestampsToReturn timestamps,
-			List<ReadValueId> readValueIds) {
+		server.getUaNamespace().addReference(Identifiers.ObjectsFolder, Identifiers.Organizes, true,
+				diagnosticsNodeId.expanded(), NodeClass.Object);
 
-		List<DataValue> results = Lists.newArrayListWithCapacity(readValueIds.size());
+		return diagnosticsFolder;
+	}
 
-		for (ReadValueId readValueId : readValueIds) {
-			ServerNode node = server.getNodeMap().get(readValueId.getNodeId());
+	// Read-only gauges and counters of the OPC UA -> MQTT bridge, computed on every read
+	private void addMqttBridgeDiagnostics(UaFolderNode diagnosticsFolder) {
+		UaFolderNode bridgeFolder = new UaFolderNode(server.getNodeMap(),
+				new NodeId(namespaceIndex, "Diagnostics/MqttBridge"),
+				new QualifiedName(namespaceIndex, "MqttBridge"), LocalizedText.english("MqttBridge"));
+
+		server.getNodeMap().addNode(bridgeFolder);
+		diagnosticsFolder.addOrganizes(bridgeFolder);
+
+		LatencyHistogram latency = mqttPublisher.getPublishLatency();
+
+		addGauge(bridgeFolder, "Shards", Identifiers.Int32, mqttPublisher::getShardCount);
+		addGauge(bridgeFolder, "ConnectedShards", Identifiers.Int32, mqttPublisher::getConnectedShardCount);
+		addGauge(bridgeFolder, "QueueDepth", Identifiers.Int32, mqttPublisher::getQueueSize);
+		addGauge(bridgeFolder, "ConflationPending", Identifiers.Int32, mqttPublisher::getConflationPendingCount);
+		addGauge(bridgeFolder, "StorePending", Identifiers.Int64, mqttPublisher::getStorePendingCount);
+
+		addGauge(bridgeFolder, "Published", Identifiers.Int64, mqttPublisher::getPublishedCount);
+		addGauge(bridgeFolder, "Conflated", Identifiers.Int64, mqttPublisher::getConflatedCount);
+		addGauge(bridgeFolder, "Dropped", Identifiers.Int64, mqttPublisher::getDroppedCount);
+		addGauge(bridgeFolder, "Rejected", Identifiers.Int64, mqttPublisher::getRejectedCount);
+		addGauge(bridgeFolder, "Stored", Identifiers.Int64, mqttPublisher::getStoredCount);
+		addGauge(bridgeFolder, "Replayed", Identifiers.Int64, mqttPublisher::getReplayedCount);
+		addGauge(bridgeFolder, "StoreEvicted", Identifiers.Int64, mqttPublisher::getStoreEvictedCount);
+		addGauge(bridgeFolder, "Reconnects", Identifiers.Int64, mqttPublisher::getReconnectCount);
+		addGauge(bridgeFolder, "ConnectionsLost", Identifiers.Int64, mqttPublisher::getConnectionLostCount);
+
+		addGauge(bridgeFolder, "PublishLatencyCount", Identifiers.Int64, latency::getCount);
+		addGauge(bridgeFolder, "PublishLatencyMeanMicros", Identifiers.Double,
+				() -> latency.getMeanNanos() / 1000.0);
+		addGauge(bridgeFolder, "PublishLatencyP50Micros", Identifiers.Double,
+				() -> latency.getValueAtPercentile(50.0, TimeUnit.MICROSECONDS));
+		addGauge(bridgeFolder, "PublishLatencyP99Micros", Identifiers.Double,
+				() -> latency.getValueAtPercentile(99.0, TimeUnit.MICROSECONDS));
+		addGauge(bridgeFolder, "PublishLatencyP999Micros", Identifiers.Double,
+				() -> latency.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS));
+		addGauge(bridgeFolder, "PublishLatencyMaxMicros", Identifiers.Double,
+				() -> latency.getMaxNanos() / 1000.0);
+	}
 
-			if (node != null) {
-				DataValue value = node.readAttribute(new AttributeContext(context), readValueId.getAttributeId(),
-						timestamps, readValueId.getIndexRange(), readValueId.getDataEncoding());
+	// Size of the history and what the compactor did to keep it in its retention
+	private void addHistoryDiagnostics(UaFolderNode diagnosticsFolder) {
+		UaFolderNode historyFolder = new UaFolderNode(server.getNodeMap(),
+				new NodeId(namespaceIndex, "Diagnostics/History"),
+				new QualifiedName(namespaceIndex, "History"), LocalizedText.english("History"));
 
-				results.add(value);
-			} else {
-				results.add(new DataValue(StatusCodes.Bad_NodeIdUnknown));
-			}
-		}
+		server.getNodeMap().addNode(historyFolder);
+		diagnosticsFolder.addOrganizes(historyFolder);
 
-		context.complete(results);
-	}
+		addGauge(historyFolder, "Historized", Identifiers.Int32, historyManager::getHistorizedCount);
+		addGauge(historyFolder, "MemoryBytes", Identifiers.Int64, historyManager::getMemoryBytes);
+		addGauge(historyFolder, "UpdatedValues", Identifiers.Int64, historyManager::getUpdatedValueCount);
 
-	@Override
-	public void write(WriteContext context, List<WriteValue> writeValues) {
-		List<StatusCode> results = Lists.newArrayListWithCapacity(writeValues.size());
-		
-		//Create a simple client to send values to MQTT server
-		SimpleMqttClient client = new SimpleMqttClient();
-		
-		for (WriteValue writeValue : writeValues) {
-			ServerNode node = server.getNodeMap().get(writeValue.getNodeId());
-
-			if (node != null) {
-				try {
-					node.writeAttribute(new AttributeContext(context), writeValue.getAttributeId(),
-							writeValue.getValue(), writeValue.getIndexRange());
-
-					results.add(StatusCode.GOOD);
-
-					logger.info("Wrote value {} to {} attribute of {}", writeValue.getValue().getValue(),
-							AttributeId.from(writeValue.getAttributeId()).map(Object::toString).orElse("unknown"),
-							node.getNodeId());
-					
-					// Whenever something is written, it is also published in the MQTT server
-					client.publish(node.getNodeId().getIdentifier().toString(), writeValue.getValue().getValue().getValue().toString()); 
-				} catch (UaException e) {
-					logger.error("Unable to write value={}", writeValue.getValue(), e);
-					results.add(e.getStatusCode());
-				}
-			} else {
-				results.add(new StatusCode(StatusCodes.Bad_NodeIdUnknown));
-			}
+		HistoryStore store = historyManager.getStore();
+		if (store == null) {
+			return;
 		}
-		client.close();
-		context.complete(results);
+		addGauge(historyFolder, "DiskBytes", Identifiers.Int64, store::getSizeBytes);
+		addGauge(historyFolder, "UsedBytes", Identifiers.Int64, store::getUsedBytes);
+		addGauge(historyFolder, "Segments", Identifiers.Int32, store::getSegmentCount);
+		addGauge(historyFolder, "Samples", Identifiers.Int64, store::getRecordCount);
+
+		addGauge(historyFolder, "CompactionReadBytes", Identifiers.Int64, store::getCompactionReadBytes);
+		addGauge(historyFolder, "CompactionWrittenBytes", Identifiers.Int64, store::getCompactionWrittenBytes);
+		addGauge(historyFolder, "CompactionBytesPerSecond", Identifiers.Double, store::getCompactionBytesPerSecond);
+		addGauge(historyFolder, "LastCompactionMillis", Identifiers.Int64, store::getLastCompactionMillis);
+		addGauge(historyFolder, "DownsampledSamples", Identifiers.Int64, store::getDownsampledCount);
+		addGauge(historyFolder, "ExpiredBlocks", Identifiers.Int64, store::getExpiredBlockCount);
+		addGauge(historyFolder, "DeletedSegments", Identifiers.Int64, store::getDeletedSegmentCount);
 	}
 
-	@Override
-	public void onDataItemsCreated(List<DataItem> dataItems) {
-		subscriptionModel.onDataItemsCreated(dataItems);
-	}
+	private void addGauge(UaFolderNode folder, String name, NodeId typeId, Supplier<?> supplier) {
+		UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
+				.setNodeId(new NodeId(namespaceIndex, folder.getNodeId().getIdentifier() + "/" + name))
+				.setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY)))
+				.setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_ONLY)))
+				.setBrowseName(new QualifiedName(namespaceIndex, name))
+				.setDisplayName(LocalizedText.english(name))
+				.setDataType(typeId)
+				.setTypeDefinition(Identifiers.BaseDataVariableType)
+				.build();
 
-	@Override
-	public void onDataItemsModified(List<DataItem> dataItems) {
-		subscriptionModel.onDataItemsModified(dataItems);
-	}
+		node.setAttributeDelegate(new GaugeDelegate(supplier));
 
-	@Override
-	public void onDataItemsDeleted(List<DataItem> dataItems) {
-		subscriptionModel.onDataItemsDeleted(dataItems);
+		server.getNodeMap().addNode(node);
+		folder.addOrganizes(node);
 	}
 
-	@Override
-	public void onMonitoringModeChanged(List<MonitoredItem> monitoredItems) {
-		subscriptionModel.onMonitoringModeChanged(monitoredItems);
-	}
+	private static class GaugeDelegate implements AttributeDelegate {
+		private final Supplier<?> supplier;
 
-	@Override
-	public Optional<MethodInvocationHandler> getInvocationHandler(NodeId methodId) {
-		Optional<ServerNode> node = server.getNodeMap().getNode(methodId);
-
-		return node.flatMap(n -> {
-			if (n instanceof UaMethodNode) {
-				return ((UaMethodNode) n).getInvocationHandler();
-			} else {
-				return Optional.empty();
-			}
-		});
-	}
+		GaugeDelegate(Supplier<?> supplier) {
+			this.supplier = supplier;
+		}
 
-	@Override
-	//Need to override from NodeManager to get functionality in Namespace
-	public void addNode(AddNodesContext context, List<AddNodesItem> nodesToAdd) {
-		List<AddNodesResult> results = new ArrayList<AddNodesResult>();
-
-		for (AddNodesItem nodeToAdd : nodesToAdd) {
-			NodeId nodeId = new NodeId(
-					nodeToAdd.getRequestedNewNodeId().getNamespaceIndex(),
-					(String) nodeToAdd.getRequestedNewNodeId().getIdentifier()
-			);
-			System.out.println("Trying to add node:"+ nodeId.getIdentifier());
-			try {
-				
-				UaFolderNode node = new UaFolderNode(
-						server.getNodeMap(), 
-						nodeId, 
-						nodeToAdd.getBrowseName(),
-						LocalizedText.english(nodeToAdd.getBrowseName().getName())
-				);
-				server.getNodeMap().addNode(node);
-
-				NodeId parentNodeId = new NodeId(
-						nodeToAdd.getParentNodeId().getNamespaceIndex(),
-						(String) nodeToAdd.getParentNodeId().getIdentifier()
-				);
-
-				server.getUaNamespace().addReference(
-						parentNodeId, 
-						Identifiers.Organizes, 
-						true, 
-						nodeId.expanded(),
-						NodeClass.Object
-				);
-
-				results.add(new AddNodesResult(new StatusCode(StatusCodes.Good_EntryInserted), nodeId));
-			} catch (UaException e) {
-				logger.error("Error adding nodes: {}", e.getMessage(), e);
-				results.add(new AddNodesResult(new StatusCode(StatusCodes.Bad_UnexpectedError), nodeId));
-			}
+		@Override
+		public DataValue getValue(AttributeContext context, VariableNode node) {
+			return new DataValue(new Variant(supplier.get()), StatusCode.GOOD, DateTime.now());
 		}
-		context.complete(results);
 	}
-	
+
+	// Whenever something is written, it is also queued for the MQTT server.
+	// The node keeps the new value even if the bridge queue refuses it.
 	@Override
-	public void historyRead(HistoryReadContext context, HistoryReadDetails details, TimestampsToReturn timestamps,
-			List<HistoryReadValueId> valuesToRead) {
-		
-		List<HistoryReadResult> results = new ArrayList<HistoryReadResult>();
-		
-		for (HistoryReadValueId valueToRead : valuesToRead) {
-			NodeId nodeId = valueToRead.getNodeId();
-			
-			UaVariableNode node = new UaVariableNode.UaVariableNodeBuilder(server.getNodeMap())
-					.setNodeId(nodeId)
-					.setAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
-					.setUserAccessLevel(ubyte(AccessLevel.getMask(AccessLevel.READ_WRITE)))
-					.setTypeDefinition(Identifiers.BaseDataVariableType)
-					.setHistorizing(true)
-					.build();
-			
-			//Implement History Read
+	protected StatusCode written(ServerNode node, DataValue value) {
+		if (mqttPublisher.enqueue(node.getNodeId().getIdentifier().toString(), value)) {
+			return StatusCode.GOOD;
+		} else {
+			return new StatusCode(StatusCodes.Bad_ResourceUnavailable);
 		}
-		
 	}
 
 }
@@ -0,0 +1,113 @@
+package opcuaTest.namespaces;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.milo.opcua.sdk.core.AccessLevel;
+import org.eclipse.milo.opcua.sdk.server.nodes.ServerNode;
+import org.eclipse.milo.opcua.sdk.server.nodes.UaVariableNode;
+import org.eclipse.milo.opcua.stack.core.AttributeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.QualifiedName;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UByte;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UInteger;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadValueId;
+
+/**
+ * Serves plain Value reads of variables that hold their own value, with no attribute
+ * delegate, without going through {@link ServerNode#readAttribute}: a read returns the
+ * DataValue the node holds, reduced to the timestamps asked for, and the reduced
+ * DataValues are kept until the node's value changes, so reading an unchanged value
+ * allocates nothing.
+ * <p>
+ * Reads of other attributes, with an index range or a data encoding, or of a variable
+ * that isn't readable are left to the node.
+ */
+public class VariableValueCache {
+
+	private static final int TIMESTAMPS = TimestampsToReturn.values().length;
+	private static final int CURRENT_READ = AccessLevel.CurrentRead.getValue();
+
+	private final ConcurrentMap<NodeId, Entry> entries = new ConcurrentHashMap<NodeId, Entry>();
+
+	/**
+	 * Serves the Value reads of a variable from now on. Its value must be the one
+	 * {@link UaVariableNode#getValue} returns, i.e. it must not get an attribute delegate.
+	 */
+	public void register(UaVariableNode node) {
+		entries.put(node.getNodeId(), new Entry(node));
+	}
+
+	public void unregister(NodeId nodeId) {
+		entries.remove(nodeId);
+	}
+
+	/**
+	 * @return the value read, or null if the read has to go through the node.
+	 */
+	public DataValue read(ServerNode node, ReadValueId readValueId, TimestampsToReturn timestamps) {
+		Entry entry = entries.get(node.getNodeId());
+		if (entry == null || entry.node != node || timestamps == null || !isPlainValueRead(readValueId)
+				|| !isReadable(entry.node.getAccessLevel()) || !isReadable(entry.node.getUserAccessLevel())) {
+			return null;
+		}
+
+		DataValue value = entry.node.getValue();
+		if (value == null) {
+			return null;
+		}
+
+		Snapshot snapshot = entry.snapshot;
+		if (snapshot == null || snapshot.value != value) {
+			snapshot = new Snapshot(value);
+			entry.snapshot = snapshot;
+		}
+
+		// Racing readers may both derive it, the results are equal
+		DataValue derived = snapshot.derived[timestamps.ordinal()];
+		if (derived == null) {
+			derived = DataValue.derivedValue(value, timestamps);
+			snapshot.derived[timestamps.ordinal()] = derived;
+		}
+		return derived;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	static boolean isPlainValueRead(ReadValueId readValueId) {
+		UInteger attributeId = readValueId.getAttributeId();
+		String indexRange = readValueId.getIndexRange();
+		QualifiedName dataEncoding = readValueId.getDataEncoding();
+
+		return attributeId != null && attributeId.intValue() == AttributeId.Value.id()
+				&& (indexRange == null || indexRange.isEmpty())
+				&& (dataEncoding == null || dataEncoding.getName() == null);
+	}
+
+	static boolean isReadable(UByte accessLevel) {
+		return accessLevel != null && (accessLevel.intValue() & CURRENT_READ) != 0;
+	}
+
+	private static final class Entry {
+		final UaVariableNode node;
+		volatile Snapshot snapshot;
+
+		Entry(UaVariableNode node) {
+			this.node = node;
+		}
+	}
+
+	// The node's DataValue and what a read with each TimestampsToReturn returns of it
+	private static final class Snapshot {
+		final DataValue value;
+		final DataValue[] derived = new DataValue[TIMESTAMPS];
+
+		Snapshot(DataValue value) {
+			this.value = value;
+		}
+	}
+}
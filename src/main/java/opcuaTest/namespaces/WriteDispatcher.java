@@ -0,0 +1,168 @@
+package opcuaTest.namespaces;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import opcuaTest.journal.WriteJournal;
+
+import org.eclipse.milo.opcua.sdk.server.Session;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeManager.WriteContext;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.structured.WriteValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the writes of a large Write request in parallel: the values are split into parts
+ * by NodeId, so all the values of a node are in the same part and are written in request
+ * order, each part is written as a task of a work-stealing pool, and the context is
+ * completed with the results in request order once all parts are written.
+ * <p>
+ * Requests of at most {@code chunkSize} values are written on the calling thread, handing
+ * them to the pool would cost more than it saves.
+ * <p>
+ * With a {@link WriteJournal}, the values of a request and their results are journaled
+ * once they are all written, and the request is answered once they are in the journal.
+ */
+public class WriteDispatcher {
+
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	// Parts per worker, so that the workers done first can steal the parts left
+	private static final int PARTS_PER_WORKER = 4;
+
+	/**
+	 * Writes one value, e.g. a namespace's write of a value to its node.
+	 */
+	@FunctionalInterface
+	public interface Writer {
+		StatusCode write(WriteValue writeValue);
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+	private final WriteJournal journal;
+
+	public WriteDispatcher(ForkJoinPool pool, int chunkSize) {
+		this(pool, chunkSize, null);
+	}
+
+	/**
+	 * @param journal where the writes are journaled, or null not to journal them
+	 */
+	public WriteDispatcher(ForkJoinPool pool, int chunkSize, WriteJournal journal) {
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+		this.journal = journal;
+	}
+
+	/**
+	 * A pool with one daemon worker per core, taking tasks first in, first out.
+	 */
+	public static ForkJoinPool newPool(int parallelism) {
+		return new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("write-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, true);
+	}
+
+	/**
+	 * Writes the values and completes the context with their results.
+	 */
+	public void write(WriteContext context, List<WriteValue> writeValues, Writer writer) {
+		CompletableFuture<List<StatusCode>> written = dispatch(writeValues, writer);
+
+		if (journal == null) {
+			written.thenAccept(context::complete);
+			return;
+		}
+
+		written.thenAccept(results -> {
+			NodeId sessionId = context.getSession().map(Session::getSessionId).orElse(null);
+
+			// The values are written either way, a journal failure doesn't fail the request
+			journal.append(sessionId, writeValues, results).whenComplete((v, ex) -> {
+				if (ex != null) {
+					logger.error("Unable to journal {} writes", writeValues.size(), ex);
+				}
+				context.complete(results);
+			});
+		});
+	}
+
+	/**
+	 * @return the results, in the order of {@code writeValues}.
+	 */
+	public CompletableFuture<List<StatusCode>> dispatch(List<WriteValue> writeValues, Writer writer) {
+		int count = writeValues.size();
+		StatusCode[] results = new StatusCode[count];
+
+		int parts = Math.min((count + chunkSize - 1) / chunkSize, pool.getParallelism() * PARTS_PER_WORKER);
+		if (parts <= 1) {
+			for (int i = 0; i < count; i++) {
+				results[i] = write(writer, writeValues.get(i));
+			}
+			return CompletableFuture.completedFuture(Arrays.asList(results));
+		}
+
+		// Positions of the values of each part, in request order: a counting sort by part
+		int[] partOf = new int[count];
+		int[] offsets = new int[parts + 1];
+		for (int i = 0; i < count; i++) {
+			partOf[i] = Math.floorMod(hash(writeValues.get(i)), parts);
+			offsets[partOf[i] + 1]++;
+		}
+		for (int part = 0; part < parts; part++) {
+			offsets[part + 1] += offsets[part];
+		}
+		int[] positions = new int[count];
+		int[] next = Arrays.copyOf(offsets, parts);
+		for (int i = 0; i < count; i++) {
+			positions[next[partOf[i]]++] = i;
+		}
+
+		CompletableFuture<List<StatusCode>> future = new CompletableFuture<>();
+		// The last part written sees the results of all the others
+		AtomicInteger remaining = new AtomicInteger(parts);
+
+		for (int part = 0; part < parts; part++) {
+			int from = offsets[part];
+			int to = offsets[part + 1];
+
+			pool.execute(() -> {
+				for (int i = from; i < to; i++) {
+					results[positions[i]] = write(writer, writeValues.get(positions[i]));
+				}
+				if (remaining.decrementAndGet() == 0) {
+					future.complete(Arrays.asList(results));
+				}
+			});
+		}
+
+		return future;
+	}
+
+	private StatusCode write(Writer writer, WriteValue writeValue) {
+		try {
+			return writer.write(writeValue);
+		} catch (RuntimeException e) {
+			logger.error("Unable to write value={}", writeValue.getValue(), e);
+			return new StatusCode(StatusCodes.Bad_InternalError);
+		}
+	}
+
+	private static int hash(WriteValue writeValue) {
+		int h = writeValue.getNodeId() != null ? writeValue.getNodeId().hashCode() * 0x9E3779B9 : 0;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,179 @@
+package opcuaTest.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+
+import org.eclipse.milo.opcua.sdk.server.DiagnosticsContext;
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.Session;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeHistoryManager.HistoryReadContext;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadProcessedDetails;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the reads of a HistoryRead request in parallel: the nodes of each namespace are
+ * cut into chunks of at most {@code chunkSize}, each chunk is read by its namespace as a
+ * task of a work-stealing pool, and the results are put back in request order.
+ */
+public class HistoryReadDispatcher {
+
+	public static final int DEFAULT_CHUNK_SIZE = 16;
+
+	/**
+	 * Reads the history of some nodes of one namespace, completing the context with one
+	 * result per node, e.g. {@code Namespace::historyRead}.
+	 */
+	@FunctionalInterface
+	public interface Reader {
+		void historyRead(HistoryReadContext context, HistoryReadDetails details, TimestampsToReturn timestamps,
+				List<HistoryReadValueId> nodesToRead);
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final OpcUaServer server;
+	private final Function<UShort, Reader> readers;
+	private final ForkJoinPool pool;
+	private final int chunkSize;
+
+	/**
+	 * @param server  passed on to the namespaces in the read contexts, may be null
+	 * @param readers the reader of each namespace index, null for an unknown namespace
+	 */
+	public HistoryReadDispatcher(OpcUaServer server, Function<UShort, Reader> readers, ForkJoinPool pool,
+			int chunkSize) {
+
+		this.server = server;
+		this.readers = readers;
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * A pool with one daemon worker per core, taking tasks first in, first out.
+	 */
+	public static ForkJoinPool newPool(int parallelism) {
+		return new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("history-read-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}, null, true);
+	}
+
+	/**
+	 * @param session the session of the request, given to every chunk's context
+	 * @param details the decoded details of the request, shared by all chunks
+	 * @return the results, in the order of {@code nodesToRead}.
+	 */
+	public CompletableFuture<List<HistoryReadResult>> dispatch(Session session, HistoryReadDetails details,
+			TimestampsToReturn timestamps, List<HistoryReadValueId> nodesToRead,
+			DiagnosticsContext<HistoryReadValueId> diagnosticsContext) {
+
+		// Positions in the request of the nodes of each namespace, in order
+		Map<UShort, List<Integer>> byNamespace = new LinkedHashMap<UShort, List<Integer>>();
+		for (int i = 0; i < nodesToRead.size(); i++) {
+			UShort index = nodesToRead.get(i).getNodeId().getNamespaceIndex();
+			byNamespace.computeIfAbsent(index, k -> new ArrayList<Integer>()).add(i);
+		}
+
+		HistoryReadResult[] results = new HistoryReadResult[nodesToRead.size()];
+		List<CompletableFuture<Void>> chunks = new ArrayList<CompletableFuture<Void>>();
+
+		byNamespace.forEach((index, positions) -> {
+			Reader reader = readers.apply(index);
+			if (reader == null) {
+				for (int position : positions) {
+					results[position] = new HistoryReadResult(new StatusCode(StatusCodes.Bad_NodeIdUnknown), null, null);
+				}
+				return;
+			}
+
+			for (int from = 0; from < positions.size(); from += chunkSize) {
+				List<Integer> chunk = positions.subList(from, Math.min(from + chunkSize, positions.size()));
+				chunks.add(read(reader, session, details, timestamps, nodesToRead, chunk, diagnosticsContext, results));
+			}
+		});
+
+		return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()]))
+				.thenApply(v -> Arrays.asList(results));
+	}
+
+	private CompletableFuture<Void> read(Reader reader, Session session, HistoryReadDetails details,
+			TimestampsToReturn timestamps, List<HistoryReadValueId> nodesToRead, List<Integer> positions,
+			DiagnosticsContext<HistoryReadValueId> diagnosticsContext, HistoryReadResult[] results) {
+
+		List<HistoryReadValueId> chunk = new ArrayList<HistoryReadValueId>(positions.size());
+		for (int position : positions) {
+			chunk.add(nodesToRead.get(position));
+		}
+
+		CompletableFuture<List<HistoryReadResult>> future = new CompletableFuture<>();
+		HistoryReadContext context = new HistoryReadContext(server, session, future, diagnosticsContext);
+
+		pool.execute(() -> {
+			try {
+				reader.historyRead(context, detailsFor(details, positions), timestamps, chunk);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+
+		// Each chunk fills its own positions, allOf orders these writes before the response
+		return future.handle((values, ex) -> {
+			for (int i = 0; i < positions.size(); i++) {
+				if (ex == null && i < values.size()) {
+					results[positions.get(i)] = values.get(i);
+				} else {
+					results[positions.get(i)] = new HistoryReadResult(
+							new StatusCode(StatusCodes.Bad_InternalError), null, null);
+				}
+			}
+			if (ex != null) {
+				logger.error("HistoryRead of {} nodes failed", positions.size(), ex);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * ReadProcessedDetails carry one aggregate per node of the whole request; a chunk
+	 * only reads the nodes at the given positions, so it gets their aggregates only.
+	 */
+	static HistoryReadDetails detailsFor(HistoryReadDetails details, List<Integer> positions) {
+		if (!(details instanceof ReadProcessedDetails)) {
+			return details;
+		}
+		ReadProcessedDetails processed = (ReadProcessedDetails) details;
+		NodeId[] aggregateTypes = processed.getAggregateType() != null ? processed.getAggregateType() : new NodeId[0];
+
+		NodeId[] selected = new NodeId[positions.size()];
+		for (int i = 0; i < selected.length; i++) {
+			int position = positions.get(i);
+			selected[i] = position < aggregateTypes.length ? aggregateTypes[position] : NodeId.NULL_VALUE;
+		}
+
+		return new ReadProcessedDetails(
+				processed.getStartTime(),
+				processed.getEndTime(),
+				processed.getProcessingInterval(),
+				selected,
+				processed.getAggregateConfiguration());
+	}
+}
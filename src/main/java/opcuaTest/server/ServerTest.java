@@ -1,23 +1,41 @@
 package opcuaTest.server;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
 import java.security.Security;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 import com.google.common.collect.ImmutableList;
 
+import mqtt.client.MqttInboundBridge;
+import mqtt.client.MqttInboundConfig;
+import mqtt.client.MqttPublisher;
+import mqtt.client.MqttPublisherConfig;
+import opcuaTest.history.HistoryManager;
+import opcuaTest.history.HistoryStore;
+import opcuaTest.journal.WriteJournal;
+import opcuaTest.methods.SqrtMethod;
 import opcuaTest.namespaces.AnotherNamespace;
+import opcuaTest.namespaces.ConfiguredNamespace;
+import opcuaTest.namespaces.NamespaceConfigReader;
+import opcuaTest.namespaces.NamespaceLoader;
 import opcuaTest.namespaces.TestNamespace;
+import opcuaTest.namespaces.WriteDispatcher;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.eclipse.milo.opcua.sdk.server.DiagnosticsContext;
 import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
-import org.eclipse.milo.opcua.sdk.server.api.AttributeHistoryManager.HistoryReadContext;
+import org.eclipse.milo.opcua.sdk.server.Session;
+import org.eclipse.milo.opcua.sdk.server.api.AttributeHistoryManager.HistoryUpdateContext;
 import org.eclipse.milo.opcua.sdk.server.api.Namespace;
 import org.eclipse.milo.opcua.sdk.server.api.NodeManager.AddNodesContext;
 import org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig;
@@ -28,7 +46,6 @@ import org.eclipse.milo.opcua.sdk.server.services.AttributeHistoryServices;
 import org.eclipse.milo.opcua.sdk.server.services.AttributeServices;
 import org.eclipse.milo.opcua.sdk.server.services.ServiceAttributes;
 import org.eclipse.milo.opcua.sdk.server.util.HostnameUtil;
-import org.eclipse.milo.opcua.sdk.server.util.PendingHistoryRead;
 import org.eclipse.milo.opcua.stack.core.StatusCodes;
 import org.eclipse.milo.opcua.stack.core.UaException;
 import org.eclipse.milo.opcua.stack.core.application.DefaultCertificateManager;
@@ -39,28 +56,32 @@ import org.eclipse.milo.opcua.stack.core.application.services.ServiceRequest;
 import org.eclipse.milo.opcua.stack.core.security.SecurityPolicy;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
 import org.eclipse.milo.opcua.stack.core.types.builtin.DiagnosticInfo;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExpandedNodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ExtensionObject;
 import org.eclipse.milo.opcua.stack.core.types.builtin.LocalizedText;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
 import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
 import org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.UShort;
 import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesItem;
 import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesRequest;
 import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.AddNodesResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.BuildInfo;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadDetails;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadRequest;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResponse;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateDetails;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateRequest;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateResponse;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryUpdateResult;
 import org.eclipse.milo.opcua.stack.core.types.structured.ResponseHeader;
 import org.eclipse.milo.opcua.stack.core.util.CertificateUtil;
 import org.eclipse.milo.opcua.stack.core.util.CryptoRestrictions;
-import org.eclipse.milo.opcua.stack.core.util.FutureUtils;
 import org.slf4j.LoggerFactory;
 
 import static com.google.common.collect.Lists.newArrayList;
-import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.toList;
-import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.a;
 import static org.eclipse.milo.opcua.stack.core.util.ConversionUtil.l;
 import static org.eclipse.milo.opcua.sdk.server.api.config.OpcUaServerConfig.USER_TOKEN_POLICY_ANONYMOUS;
@@ -77,6 +98,13 @@ public class ServerTest {
     }
 	
 	private final OpcUaServer server;
+	private final MqttPublisher mqttPublisher;
+	private final MqttInboundBridge mqttInbound;
+	private final Map<UShort, HistoryManager> historyManagers = new HashMap<>();
+	private final ForkJoinPool historyReadPool;
+	private final HistoryReadDispatcher historyReadDispatcher;
+	private final ForkJoinPool writePool;
+	private final WriteJournal writeJournal;
 
 	public static void main(String[] args) throws Exception {
 		ServerTest server = new ServerTest();
@@ -92,6 +120,15 @@ public class ServerTest {
 	}
 
 	public ServerTest() throws Exception{
+		// The TestVariable_1_* tags only need their latest value on the broker
+		this(MqttPublisherConfig.builder()
+				.addConflatedTopic("TestFolder/TestSubfolder1/+")
+				.setStoreDirectory(new File(System.getProperty("java.io.tmpdir"), "opc-ua-linker-store"))
+				.build(),
+				MqttInboundConfig.builder().build());
+	}
+
+	public ServerTest(MqttPublisherConfig mqttConfig, MqttInboundConfig inboundConfig) throws Exception{
 		File securityTempDir = new File(System.getProperty("java.io.tmpdir"), "security");
         if (!securityTempDir.exists() && !securityTempDir.mkdirs()) {
             throw new Exception("unable to create security temp dir: " + securityTempDir);
@@ -175,15 +212,76 @@ public class ServerTest {
 
         server = new OpcUaServer(serverConfig);
 
-        server.getNamespaceManager().registerAndAdd(
+        // Shared by the namespaces, connections live as long as the server does
+        mqttPublisher = new MqttPublisher(mqttConfig);
+
+        // Audit trail of every value written to both namespaces, read back with WriteJournalReader
+        writeJournal = WriteJournal.open(
+            new File(System.getProperty("java.io.tmpdir"), "opc-ua-linker-journal"),
+            WriteJournal.DEFAULT_SEGMENT_BYTES,
+            true,
+            WriteJournal.DEFAULT_QUEUE_CAPACITY);
+
+        // Write requests of thousands of values are split by node over a pool shared by the namespaces
+        writePool = WriteDispatcher.newPool(Runtime.getRuntime().availableProcessors());
+        WriteDispatcher writeDispatcher = new WriteDispatcher(writePool, WriteDispatcher.DEFAULT_CHUNK_SIZE,
+            writeJournal);
+
+        HistoryManager testHistory = openHistory(TestNamespace.NAMESPACE_URI);
+        TestNamespace testNamespace = server.getNamespaceManager().registerAndAdd(
             TestNamespace.NAMESPACE_URI,
-            idx -> new TestNamespace(server, idx));
+            idx -> new TestNamespace(server, idx, mqttPublisher, testHistory, writeDispatcher));
+        historyManagers.put(testNamespace.getNamespaceIndex(), testHistory);
         
-        server.getNamespaceManager().registerAndAdd(
+        AnotherNamespace anotherNamespace = server.getNamespaceManager().registerAndAdd(
         		AnotherNamespace.NAMESPACE_URI, 
-        		idx -> new AnotherNamespace(server, idx));
+        		idx -> new AnotherNamespace(server, idx, writeDispatcher));
+
+        // Namespaces declared in configuration files, e.g. -Dopcua.namespaces=plant.xml,line1.xml,
+        // and the method handlers they can name. With -Dopcua.namespaces.materialized=100000 their
+        // nodes are only built when reached, 100,000 at most per namespace.
+        Map<String, NamespaceLoader.MethodFactory> methods = new HashMap<>();
+        methods.put("sqrt", NamespaceLoader.annotated(SqrtMethod::new));
+        int maxMaterialized = Integer.getInteger("opcua.namespaces.materialized", 0);
+
+        for (String path : System.getProperty("opcua.namespaces", "").split(",")) {
+            if (path.trim().isEmpty()) {
+                continue;
+            }
+            File config = new File(path.trim());
+            String namespaceUri = NamespaceConfigReader.readNamespaceUri(config);
+
+            HistoryManager history = openHistory(namespaceUri);
+            ConfiguredNamespace namespace = server.getNamespaceManager().registerAndAdd(
+                namespaceUri,
+                idx -> new ConfiguredNamespace(server, idx, namespaceUri, history, writeDispatcher, methods,
+                    maxMaterialized));
+            historyManagers.put(namespace.getNamespaceIndex(), history);
+            namespace.load(config);
+        }
+
+        // HistoryReads are cut into chunks read in parallel, off the server's executor
+        historyReadPool = HistoryReadDispatcher.newPool(Runtime.getRuntime().availableProcessors());
+        historyReadDispatcher = new HistoryReadDispatcher(
+            server,
+            index -> {
+                Namespace namespace = server.getNamespaceManager().getNamespace(index);
+                return namespace != null ? namespace::historyRead : null;
+            },
+            historyReadPool,
+            HistoryReadDispatcher.DEFAULT_CHUNK_SIZE);
+
+        // Values published under the inbound prefix are written to the variables of both namespaces
+        mqttInbound = new MqttInboundBridge(
+        		server,
+        		inboundConfig,
+        		testNamespace.getNamespaceIndex(),
+        		anotherNamespace.getNamespaceIndex());
         
         
+        // The service sets below bypass the SessionManager, which would check the session
+        SessionResolver sessionResolver = new SessionResolver(server);
+
         //Adds ServiceSet to manage attribute history
         server.getServer().addServiceSet(new AttributeHistoryServiceSet() {
 
@@ -193,6 +291,8 @@ public class ServerTest {
 
 		        HistoryReadRequest request = service.getRequest();
 
+		        Session session = sessionResolver.resolve(service, request.getRequestHeader());
+
 		        DiagnosticsContext<HistoryReadValueId> diagnosticsContext = new DiagnosticsContext<>();
 
 		        List<HistoryReadValueId> nodesToRead = l(request.getNodesToRead());
@@ -212,64 +312,124 @@ public class ServerTest {
 		            return;
 		        }
 
+		        if (Boolean.TRUE.equals(request.getReleaseContinuationPoints())) {
+		            // Only frees the cursors, no history is read
+		            HistoryReadResult[] results = new HistoryReadResult[nodesToRead.size()];
+		            for (int i = 0; i < results.length; i++) {
+		                HistoryManager historyManager = historyManagers.get(
+		                    nodesToRead.get(i).getNodeId().getNamespaceIndex());
+		                if (historyManager != null) {
+		                    historyManager.releaseContinuationPoint(nodesToRead.get(i).getContinuationPoint());
+		                }
+		                results[i] = new HistoryReadResult(StatusCode.GOOD, null, null);
+		            }
+		            service.setResponse(new HistoryReadResponse(
+		                service.createResponseHeader(), results, new DiagnosticInfo[0]));
+		            return;
+		        }
+
+		        // Decoded once, every chunk of every namespace reads with the same details
+		        HistoryReadDetails details = (HistoryReadDetails) request.getHistoryReadDetails().decode();
+
+		        historyReadDispatcher.dispatch(
+		            session, details, request.getTimestampsToReturn(), nodesToRead, diagnosticsContext
+		        ).thenAccept(values -> {
+		            ResponseHeader header = service.createResponseHeader();
+
+		            DiagnosticInfo[] diagnosticInfos =
+		                diagnosticsContext.getDiagnosticInfos(nodesToRead);
+
+		            HistoryReadResponse response = new HistoryReadResponse(
+		                header, a(values, HistoryReadResult.class), diagnosticInfos);
+
+		            service.setResponse(response);
+		        });
+			}
+
+			@Override
+			public void onHistoryUpdate(ServiceRequest<HistoryUpdateRequest, HistoryUpdateResponse> service)
+					throws UaException {
+
+		        HistoryUpdateRequest request = service.getRequest();
 
-		        List<PendingHistoryRead> pendingReads = newArrayListWithCapacity(nodesToRead.size());
-		        List<CompletableFuture<HistoryReadResult>> futures = newArrayListWithCapacity(nodesToRead.size());
+		        Session session = sessionResolver.resolve(service, request.getRequestHeader());
 
-		        for (HistoryReadValueId id : nodesToRead) {
-		            PendingHistoryRead pending = new PendingHistoryRead(id);
+		        DiagnosticsContext<HistoryUpdateDetails> diagnosticsContext = new DiagnosticsContext<>();
 
-		            pendingReads.add(pending);
-		            futures.add(pending.getFuture());
+		        ExtensionObject[] encodedDetails = request.getHistoryUpdateDetails();
+
+		        if (encodedDetails == null || encodedDetails.length == 0) {
+		            service.setServiceFault(StatusCodes.Bad_NothingToDo);
+		            return;
 		        }
 
-		        // Group PendingReads by namespace and call read for each.
+		        if (encodedDetails.length > server.getConfig().getLimits().getMaxNodesPerWrite().longValue()) {
+		            service.setServiceFault(StatusCodes.Bad_TooManyOperations);
+		            return;
+		        }
 
-		        Map<UShort, List<PendingHistoryRead>> byNamespace = pendingReads.stream()
-		            .collect(groupingBy(pending -> pending.getInput().getNodeId().getNamespaceIndex()));
+		        List<HistoryUpdateDetails> updateDetails = new ArrayList<>(encodedDetails.length);
+		        for (ExtensionObject details : encodedDetails) {
+		            updateDetails.add((HistoryUpdateDetails) details.decode());
+		        }
 
-		        byNamespace.keySet().forEach(index -> {
-		            List<PendingHistoryRead> pending = byNamespace.get(index);
+		        // Positions in the request of the operations of each namespace, in order
+		        Map<UShort, List<Integer>> byNamespace = new LinkedHashMap<>();
+		        for (int i = 0; i < updateDetails.size(); i++) {
+		            UShort index = updateDetails.get(i).getNodeId().getNamespaceIndex();
+		            byNamespace.computeIfAbsent(index, k -> new ArrayList<>()).add(i);
+		        }
 
-		            CompletableFuture<List<HistoryReadResult>> future = new CompletableFuture<>();
+		        HistoryUpdateResult[] results = new HistoryUpdateResult[updateDetails.size()];
+		        List<CompletableFuture<Void>> updates = new ArrayList<>();
 
-		            HistoryReadContext context = new HistoryReadContext(
-		                server, null, future, diagnosticsContext);
+		        byNamespace.forEach((index, positions) -> {
+		            Namespace namespace = server.getNamespaceManager().getNamespace(index);
+		            if (namespace == null) {
+		                for (int position : positions) {
+		                    results[position] = new HistoryUpdateResult(
+		                        new StatusCode(StatusCodes.Bad_NodeIdUnknown), null, null);
+		                }
+		                return;
+		            }
 
-		            server.getExecutorService().execute(() -> {
-		                Namespace namespace = server.getNamespaceManager().getNamespace(index);
+		            List<HistoryUpdateDetails> details = new ArrayList<>(positions.size());
+		            for (int position : positions) {
+		                details.add(updateDetails.get(position));
+		            }
 
-		                List<HistoryReadValueId> readValueIds = pending.stream()
-		                    .map(PendingHistoryRead::getInput)
-		                    .collect(toList());
+		            CompletableFuture<List<HistoryUpdateResult>> future = new CompletableFuture<>();
+		            HistoryUpdateContext context = new HistoryUpdateContext(server, session, future, diagnosticsContext);
 
-		                namespace.historyRead(
-		                    context,
-		                    (HistoryReadDetails) request.getHistoryReadDetails().decode(),
-		                    request.getTimestampsToReturn(),
-		                    readValueIds);
+		            // A backfill batch is written to the history before it completes, off the stack's threads
+		            server.getExecutorService().execute(() -> {
+		                try {
+		                    namespace.historyUpdate(context, details);
+		                } catch (RuntimeException e) {
+		                    future.completeExceptionally(e);
+		                }
 		            });
 
-		            future.thenAccept(values -> {
-		                for (int i = 0; i < values.size(); i++) {
-		                    pending.get(i).getFuture().complete(values.get(i));
+		            updates.add(future.handle((values, ex) -> {
+		                for (int i = 0; i < positions.size(); i++) {
+		                    results[positions.get(i)] = ex == null && i < values.size() ? values.get(i)
+		                        : new HistoryUpdateResult(new StatusCode(StatusCodes.Bad_InternalError), null, null);
 		                }
-		            });
+		                if (ex != null) {
+		                    LoggerFactory.getLogger(getClass()).error("HistoryUpdate of namespace {} failed", index, ex);
+		                }
+		                return null;
+		            }));
 		        });
 
-		        // When all PendingReads have been completed send a HistoryReadResponse with the values.
-
-		        FutureUtils.sequence(futures).thenAcceptAsync(values -> {
+		        CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[updates.size()])).thenAccept(v -> {
 		            ResponseHeader header = service.createResponseHeader();
 
 		            DiagnosticInfo[] diagnosticInfos =
-		                diagnosticsContext.getDiagnosticInfos(nodesToRead);
+		                diagnosticsContext.getDiagnosticInfos(updateDetails);
 
-		            HistoryReadResponse response = new HistoryReadResponse(
-		                header, a(values, HistoryReadResult.class), diagnosticInfos);
-
-		            service.setResponse(response);
-		        }, server.getExecutorService());
+		            service.setResponse(new HistoryUpdateResponse(header, results, diagnosticInfos));
+		        });
 			}
         	
 		});
@@ -279,40 +439,142 @@ public class ServerTest {
 
 			@Override
 			//Need to override from NodeManagementServiceSet to get this service
-			public void onAddNodes(ServiceRequest<AddNodesRequest, AddNodesResponse> serviceRequest)
+			public void onAddNodes(ServiceRequest<AddNodesRequest, AddNodesResponse> service)
 					throws UaException {
-				List<AddNodesItem> nodesToAdd = Arrays.asList(serviceRequest.getRequest().getNodesToAdd());
-				AddNodesContext context = new AddNodesContext(server, null, null);
-				
-				// Group by Namespace
-				Map<UShort, List<AddNodesItem>> byNamespace = nodesToAdd.stream()
-			            .collect(groupingBy(node -> node.getRequestedNewNodeId().getNamespaceIndex()));
-				
-				byNamespace.keySet().forEach(index -> 
-					server.getNamespaceManager().getNamespace(index).addNode(context, byNamespace.get(index))
-				);
-				//UShort id = server.getNamespaceManager().getNamespaceTable().getIndex(TestNamespace.NAMESPACE_URI);
-				
-				//server.getNamespaceManager().getNamespace(id).addNode(context, nodesToAdd);
-				
+
+				Session session = sessionResolver.resolve(service, service.getRequest().getRequestHeader());
+
+				DiagnosticsContext<AddNodesItem> diagnosticsContext = new DiagnosticsContext<>();
+
+				List<AddNodesItem> nodesToAdd = l(service.getRequest().getNodesToAdd());
+
+				if (nodesToAdd.isEmpty()) {
+					service.setServiceFault(StatusCodes.Bad_NothingToDo);
+					return;
+				}
+
+				// Positions in the request of the items of each namespace, in order. An item
+				// without a requested NodeId goes to the namespace of its parent.
+				Map<UShort, List<Integer>> byNamespace = new LinkedHashMap<>();
+				for (int i = 0; i < nodesToAdd.size(); i++) {
+					AddNodesItem item = nodesToAdd.get(i);
+					ExpandedNodeId nodeId = item.getRequestedNewNodeId() != null && !item.getRequestedNewNodeId().isNull()
+						? item.getRequestedNewNodeId() : item.getParentNodeId();
+					UShort index = nodeId != null ? nodeId.getNamespaceIndex() : null;
+					byNamespace.computeIfAbsent(index, k -> new ArrayList<>()).add(i);
+				}
+
+				AddNodesResult[] results = new AddNodesResult[nodesToAdd.size()];
+				List<CompletableFuture<Void>> adds = new ArrayList<>();
+
+				byNamespace.forEach((index, positions) -> {
+					Namespace namespace = index != null ? server.getNamespaceManager().getNamespace(index) : null;
+					if (namespace == null) {
+						for (int position : positions) {
+							results[position] = new AddNodesResult(
+								new StatusCode(StatusCodes.Bad_NodeIdRejected), NodeId.NULL_VALUE);
+						}
+						return;
+					}
+
+					List<AddNodesItem> items = new ArrayList<>(positions.size());
+					for (int position : positions) {
+						items.add(nodesToAdd.get(position));
+					}
+
+					AddNodesContext context = new AddNodesContext(server, session, diagnosticsContext);
+
+					// Tens of thousands of nodes at commissioning are added off the stack's threads
+					server.getExecutorService().execute(() -> {
+						try {
+							namespace.addNode(context, items);
+						} catch (RuntimeException e) {
+							context.getFuture().completeExceptionally(e);
+						}
+					});
+
+					adds.add(context.getFuture().handle((values, ex) -> {
+						for (int i = 0; i < positions.size(); i++) {
+							results[positions.get(i)] = ex == null && i < values.size() ? values.get(i)
+								: new AddNodesResult(new StatusCode(StatusCodes.Bad_InternalError), NodeId.NULL_VALUE);
+						}
+						if (ex != null) {
+							LoggerFactory.getLogger(getClass()).error("AddNodes of namespace {} failed", index, ex);
+						}
+						return null;
+					}));
+				});
+
+				CompletableFuture.allOf(adds.toArray(new CompletableFuture<?>[adds.size()])).thenAccept(v -> {
+					ResponseHeader header = service.createResponseHeader();
+
+					DiagnosticInfo[] diagnosticInfos =
+						diagnosticsContext.getDiagnosticInfos(nodesToAdd);
+
+					service.setResponse(new AddNodesResponse(header, results, diagnosticInfos));
+				});
 			}
         	
 		});
         
         
         
+	}
+
+	// History of the historizing variables of a namespace, fed by its write path and persisted
+	// in a directory named after its URI: series are kept by NodeId, whose namespace index
+	// depends on the order the namespaces are registered in
+	private static HistoryManager openHistory(String namespaceUri) throws IOException {
+		HistoryStore historyStore = HistoryStore.open(
+			new File(new File(System.getProperty("java.io.tmpdir"), "opc-ua-linker-history"),
+				URLEncoder.encode(namespaceUri, "UTF-8")),
+			HistoryStore.DEFAULT_SEGMENT_BYTES,
+			HistoryStore.DEFAULT_FLUSH_INTERVAL_MILLIS);
+
+		// Trims the history to the retention policies the namespace sets on its variables
+		historyStore.startCompaction(
+			HistoryStore.DEFAULT_COMPACTION_INTERVAL_MILLIS,
+			HistoryStore.DEFAULT_COMPACTION_BYTES_PER_SECOND);
+
+		return new HistoryManager(HistoryManager.DEFAULT_SAMPLES_PER_NODE, historyStore);
 	}
 	
 	public OpcUaServer getServer() {
         return server;
     }
 
+    public MqttPublisher getMqttPublisher() {
+        return mqttPublisher;
+    }
+
+    public MqttInboundBridge getMqttInbound() {
+        return mqttInbound;
+    }
+
+    /**
+     * @return the history of a namespace's variables, null if it keeps none.
+     */
+    public HistoryManager getHistoryManager(UShort namespaceIndex) {
+        return historyManagers.get(namespaceIndex);
+    }
+
     public CompletableFuture<OpcUaServer> startup() {
+        mqttPublisher.startup();
+        mqttInbound.startup();
+
         return server.startup();
     }
 
     public CompletableFuture<OpcUaServer> shutdown() {
-        return server.shutdown();
+        mqttInbound.shutdown();
+
+        return server.shutdown().whenComplete((s, ex) -> {
+            mqttPublisher.shutdown();
+            historyReadPool.shutdown();
+            writePool.shutdown();
+            writeJournal.close();
+            historyManagers.values().forEach(HistoryManager::close);
+        });
     }
 
 }
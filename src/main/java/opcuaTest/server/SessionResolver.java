@@ -0,0 +1,83 @@
+package opcuaTest.server;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import org.eclipse.milo.opcua.sdk.server.OpcUaServer;
+import org.eclipse.milo.opcua.sdk.server.Session;
+import org.eclipse.milo.opcua.sdk.server.SessionManager;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.UaException;
+import org.eclipse.milo.opcua.stack.core.application.services.ServiceRequest;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.structured.RequestHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the session of a request to a service the server answers itself rather than
+ * through the {@link SessionManager}, i.e. HistoryRead, HistoryUpdate and AddNodes, and
+ * checks it the way the SessionManager does: the request's authentication token must be
+ * that of an activated session, on the secure channel the request came in on.
+ * <p>
+ * The SessionManager of this Milo version doesn't expose its sessions, so they're looked
+ * up in its map of activated sessions. Without that map, e.g. with another Milo version,
+ * every request is rejected.
+ */
+public class SessionResolver {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	// Null if the SessionManager has no such map
+	private final Map<?, ?> activeSessions;
+	private final Map<?, ?> createdSessions;
+
+	public SessionResolver(OpcUaServer server) {
+		SessionManager sessionManager = server.getSessionManager();
+
+		this.activeSessions = sessions(sessionManager, "activeSessions");
+		this.createdSessions = sessions(sessionManager, "createdSessions");
+
+		if (activeSessions == null) {
+			logger.error("The sessions of {} can't be found, HistoryRead, HistoryUpdate and AddNodes are rejected",
+					sessionManager);
+		}
+	}
+
+	/**
+	 * @return the activated session the request was sent in.
+	 * @throws UaException Bad_SessionIdInvalid, Bad_SessionNotActivated or
+	 *                     Bad_SecureChannelIdInvalid, for the service fault of the request.
+	 */
+	public Session resolve(ServiceRequest<?, ?> service, RequestHeader header) throws UaException {
+		NodeId authenticationToken = header != null ? header.getAuthenticationToken() : null;
+
+		Object session = authenticationToken != null && activeSessions != null
+				? activeSessions.get(authenticationToken) : null;
+
+		if (!(session instanceof Session)) {
+			if (authenticationToken != null && createdSessions != null
+					&& createdSessions.get(authenticationToken) != null) {
+				throw new UaException(StatusCodes.Bad_SessionNotActivated);
+			}
+			throw new UaException(StatusCodes.Bad_SessionIdInvalid);
+		}
+
+		if (((Session) session).getSecureChannelId() != service.getSecureChannelId()) {
+			throw new UaException(StatusCodes.Bad_SecureChannelIdInvalid);
+		}
+		return (Session) session;
+	}
+
+	private Map<?, ?> sessions(SessionManager sessionManager, String name) {
+		try {
+			Field field = SessionManager.class.getDeclaredField(name);
+			field.setAccessible(true);
+			Object sessions = field.get(sessionManager);
+			return sessions instanceof Map ? (Map<?, ?>) sessions : null;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.debug("No {} in {}", name, sessionManager, e);
+			return null;
+		}
+	}
+}
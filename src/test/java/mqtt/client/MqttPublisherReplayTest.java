@@ -0,0 +1,232 @@
+package mqtt.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import opcuaTest.benchmark.LocalMqttBroker;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Store-and-forward across a reconnect, at the default replay rate: values written while
+ * the broker is down are stored, and the writes that go on once it is back, while the
+ * stored values are still being replayed, must reach the broker after them, in write
+ * order per topic. Topics without stored values must not wait for the replay.
+ */
+public class MqttPublisherReplayTest {
+
+	private static final String[] TOPICS = {"Test/a", "Test/b", "Test/c", "Test/d"};
+
+	private static final int STORED = 200;
+	private static final int LIVE = 400;
+
+	// Live topics without stored values, written as fast as they're accepted
+	private static final int LIVE_TOPICS = 16;
+	private static final int UNCAPPED = 20000;
+
+	private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private File storeDirectory;
+	private MqttPublisher publisher;
+	private LocalMqttBroker broker;
+
+	private final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+
+	@Before
+	public void setUp() throws Exception {
+		storeDirectory = Files.createTempDirectory("mqtt-store").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (publisher != null) {
+			publisher.shutdown();
+		}
+		if (broker != null) {
+			broker.close();
+		}
+		delete(storeDirectory);
+	}
+
+	@Test
+	public void liveWritesDontOvertakeReplayedValues() throws Exception {
+		startStored();
+
+		// Written while the shards reconnect and replay what they stored
+		for (int i = STORED; i < STORED + LIVE; i++) {
+			write(i);
+			Thread.sleep(1);
+		}
+		await(() -> count() == (STORED + LIVE) * TOPICS.length, "values published");
+
+		assertTrue(publisher.getReplayedCount() >= STORED * TOPICS.length);
+		assertInOrder(STORED + LIVE);
+	}
+
+	@Test
+	public void liveTopicsArentCappedByTheReplayRate() throws Exception {
+		startStored();
+		await(() -> publisher.getConnectedShardCount() == publisher.getShardCount(), "shards connected");
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < UNCAPPED; i++) {
+			assertTrue(publisher.enqueue("Live/" + (i % LIVE_TOPICS), new DataValue(new Variant(i))));
+		}
+		await(() -> count() - countOf(TOPICS) == UNCAPPED, "live values published");
+		double seconds = (System.nanoTime() - t0) / 1e9;
+
+		// The replay takes STORED * TOPICS.length / 500 seconds, the live values must get past it
+		double rate = UNCAPPED / seconds;
+		double replayRate = publisher.getConfig().getReplayRatePerSecond();
+		assertTrue("live values published at " + rate + "/s", rate > 4 * replayRate);
+
+		await(() -> countOf(TOPICS) == STORED * TOPICS.length, "stored values replayed");
+		assertInOrder(STORED);
+	}
+
+	@Test
+	public void storedValuesFollowTheirTopicsToAnotherNumberOfShards() throws Exception {
+		int port = freePort();
+
+		publisher = newPublisher(port, 2);
+		publisher.startup();
+		for (int i = 0; i < STORED; i++) {
+			write(i);
+		}
+		await(() -> publisher.getStoredCount() == STORED * TOPICS.length, "values stored");
+		publisher.shutdown();
+
+		// The topics go to other shards now, their stored values must still come first
+		publisher = newPublisher(port, 3);
+		publisher.startup();
+		assertEquals(STORED * TOPICS.length, publisher.getStorePendingCount());
+
+		startBroker(port);
+		for (int i = STORED; i < STORED + LIVE; i++) {
+			write(i);
+		}
+		await(() -> count() == (STORED + LIVE) * TOPICS.length, "values published");
+
+		assertInOrder(STORED + LIVE);
+		assertEquals(0, publisher.getStorePendingCount());
+	}
+
+	// Stores STORED values of every topic while the broker is down, then starts it
+	private void startStored() throws Exception {
+		int port = freePort();
+
+		publisher = newPublisher(port, 2);
+		publisher.startup();
+
+		for (int i = 0; i < STORED; i++) {
+			write(i);
+		}
+		await(() -> publisher.getStoredCount() == STORED * TOPICS.length, "values stored");
+
+		startBroker(port);
+	}
+
+	// Nothing listens on it until the broker is started
+	private static int freePort() throws Exception {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private MqttPublisher newPublisher(int port, int shards) {
+		return new MqttPublisher(MqttPublisherConfig.builder()
+				.setBroker("tcp://127.0.0.1:" + port)
+				.setClientIdPrefix("replay-test")
+				.setShards(shards)
+				.setQos(1)
+				.setPayloadFormat(PayloadFormat.TEXT)
+				.setStoreDirectory(storeDirectory)
+				.setInitialBackoffMillis(50)
+				.setMaxBackoffMillis(100)
+				.build());
+	}
+
+	private void startBroker(int port) throws Exception {
+		broker = new LocalMqttBroker(port);
+		broker.setPublishListener((topic, payload) -> {
+			synchronized (received) {
+				received.computeIfAbsent(topic, t -> new ArrayList<Integer>())
+						.add(Integer.valueOf(new String(payload, StandardCharsets.UTF_8)));
+			}
+		});
+	}
+
+	private void assertInOrder(int values) {
+		synchronized (received) {
+			for (String topic : TOPICS) {
+				List<Integer> published = received.get(topic);
+				for (int i = 0; i < values; i++) {
+					assertEquals(topic + " value " + i, Integer.valueOf(i), published.get(i));
+				}
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void write(int value) {
+		for (String topic : TOPICS) {
+			assertTrue(publisher.enqueue(topic, new DataValue(new Variant(value))));
+		}
+	}
+
+	private int count() {
+		int count = 0;
+		synchronized (received) {
+			for (List<Integer> values : received.values()) {
+				count += values.size();
+			}
+		}
+		return count;
+	}
+
+	private int countOf(String[] topics) {
+		int count = 0;
+		synchronized (received) {
+			for (String topic : topics) {
+				List<Integer> values = received.get(topic);
+				count += values != null ? values.size() : 0;
+			}
+		}
+		return count;
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	private static void await(Condition condition, String what) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.holds()) {
+			assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}
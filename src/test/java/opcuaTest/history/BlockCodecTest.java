@@ -0,0 +1,234 @@
+package opcuaTest.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Samples encoded by a {@link BlockEncoder} and decoded back by a {@link BlockDecoder}
+ * bit for bit: floating point values whose XOR is a single bit or a NaN payload, integer
+ * deltas that overflow or sit on the edges of the buckets, timestamps that repeat, go back
+ * and jump, a block filled up to the sample it has no room for and one resumed after a
+ * crash.
+ */
+public class BlockCodecTest {
+
+	// An odd offset into the buffer, and room for a few hundred samples
+	private static final int OFFSET = 7;
+	private static final int CAPACITY = 1024;
+	private static final byte PADDING = 0x5A;
+
+	@Test
+	public void floatingPointValuesAreDecodedBitForBit() {
+		long[] values = {
+				bits(0.0), bits(-0.0), bits(0.0), bits(-0.0), bits(-0.0),
+				bits(Double.NaN), Double.doubleToRawLongBits(Double.NaN) | 1, 0xFFF8_0000_0000_0001L, bits(Double.NaN),
+				bits(Double.POSITIVE_INFINITY), bits(Double.NEGATIVE_INFINITY),
+				bits(Double.MIN_VALUE), bits(-Double.MIN_VALUE), bits(Double.MAX_VALUE), bits(-Double.MAX_VALUE),
+				bits(1.0), bits(1.0), bits(1.0000000000000002), bits(-1.0), bits(0.1), bits(0.0)};
+		long[] times = new long[values.length];
+		int[] statuses = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			times[i] = 1_000_000 + i * 10_000;
+		}
+
+		assertRoundTrip(true, times, values, statuses);
+	}
+
+	@Test
+	public void floatValuesAreDecodedBitForBit() {
+		long[] values = {
+				Float.floatToRawIntBits(0.0f), Float.floatToRawIntBits(-0.0f), Float.floatToRawIntBits(Float.NaN),
+				Float.floatToRawIntBits(Float.NaN) | 1, Float.floatToRawIntBits(Float.MAX_VALUE),
+				Float.floatToRawIntBits(-Float.MIN_VALUE), Float.floatToRawIntBits(2.5f)};
+		long[] times = new long[values.length];
+		int[] statuses = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			times[i] = i;
+		}
+
+		assertRoundTrip(true, times, values, statuses);
+	}
+
+	@Test
+	public void integerExtremesAreDecoded() {
+		long[] values = {
+				Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, 0, Integer.MAX_VALUE,
+				-1, Integer.MIN_VALUE,
+				// Deltas that overflow a long
+				Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+		long[] times = new long[values.length];
+		int[] statuses = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			times[i] = 5_000 + i;
+		}
+
+		assertRoundTrip(false, times, values, statuses);
+	}
+
+	@Test
+	public void deltasOnTheEdgesOfEachBucketAreDecoded() {
+		// The largest and smallest of each bucket and the first values past them
+		long[] edges = new long[BlockEncoder.BUCKET_BITS.length * 4];
+		for (int i = 0; i < BlockEncoder.BUCKET_BITS.length; i++) {
+			long half = 1L << (BlockEncoder.BUCKET_BITS[i] - 1);
+			edges[i * 4] = half - 1;
+			edges[i * 4 + 1] = half;
+			edges[i * 4 + 2] = -half;
+			edges[i * 4 + 3] = -half - 1;
+		}
+
+		// Values apart by the edges, timestamps whose deltas change by them
+		long[] times = new long[edges.length + 1];
+		long[] values = new long[times.length];
+		int[] statuses = new int[times.length];
+		long delta = 0;
+		for (int i = 1; i < times.length; i++) {
+			values[i] = values[i - 1] + edges[i - 1];
+			delta += edges[i - 1];
+			times[i] = times[i - 1] + delta;
+		}
+
+		assertRoundTrip(false, times, values, statuses);
+	}
+
+	@Test
+	public void repeatedLateAndDistantTimestampsAreDecoded() {
+		long[] times = {
+				1_000_000, 1_000_000, 1_000_000, 1_000_010, 1_000_020, 1_000_020, 999_000, 1_000_030,
+				// Each delta bucket, then deltas of deltas that overflow a long
+				1_000_030 + 63, 1_000_030 + 64 + 2047, 1_000_030 + 4096 + 524_287, 1L << 40, 1L << 41,
+				Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 0, 0};
+		long[] values = new long[times.length];
+		int[] statuses = new int[times.length];
+		for (int i = 0; i < times.length; i++) {
+			values[i] = i;
+			// Good, Bad, Uncertain and back, a few kept for the unchanged status bit
+			statuses[i] = i % 5 == 0 ? 0x80000000 : i % 7 == 0 ? 0x40000000 : i % 3 == 0 ? 0x0401 : 0;
+		}
+
+		assertRoundTrip(false, times, values, statuses);
+		assertRoundTrip(true, times, values, statuses);
+	}
+
+	@Test
+	public void aFullBlockRejectsTheSampleItHasNoRoomFor() {
+		for (boolean floatingPoint : new boolean[] {false, true}) {
+			Random random = new Random(floatingPoint ? 1 : 2);
+			ByteBuffer buffer = paddedBuffer();
+			BlockEncoder encoder = new BlockEncoder(buffer, OFFSET, CAPACITY, floatingPoint);
+
+			// Random bits, so most samples take their widest encoding
+			long[] times = new long[CAPACITY * 8];
+			long[] values = new long[times.length];
+			int[] statuses = new int[times.length];
+			int count = 0;
+			while (true) {
+				times[count] = random.nextLong();
+				values[count] = random.nextLong();
+				statuses[count] = random.nextInt();
+				if (!encoder.append(times[count], values[count], statuses[count])) {
+					break;
+				}
+				count++;
+			}
+
+			assertTrue(count > 0);
+			assertEquals(count, encoder.getCount());
+			assertTrue(encoder.getSizeBytes() <= CAPACITY);
+			// Still full, and nothing was written past the capacity
+			assertEquals(false, encoder.append(0, 0, 0));
+			assertEquals(count, encoder.getCount());
+			assertPadding(buffer);
+
+			assertDecoded(buffer, floatingPoint, times, values, statuses, count);
+		}
+	}
+
+	@Test
+	public void aResumedBlockOverwritesWhatFollowsItsSamples() {
+		Random random = new Random(3);
+		long[] times = new long[100];
+		long[] values = new long[times.length];
+		int[] statuses = new int[times.length];
+		long time = 1_000_000;
+		for (int i = 0; i < times.length; i++) {
+			time += random.nextInt(3) * 10_000;
+			times[i] = time;
+			values[i] = Double.doubleToRawLongBits(random.nextInt(10) / 4.0);
+			statuses[i] = random.nextInt(10) == 0 ? 0x40000000 : 0;
+		}
+
+		ByteBuffer buffer = paddedBuffer();
+		BlockEncoder encoder = new BlockEncoder(buffer, OFFSET, CAPACITY, true);
+		for (int i = 0; i < times.length; i++) {
+			assertTrue("room for sample " + i, encoder.append(times[i], values[i], statuses[i]));
+		}
+
+		// Committed at 60 samples, the other 40 left in the block as after a crash
+		int committed = 60;
+		BlockEncoder resumed = BlockEncoder.resume(buffer, OFFSET, CAPACITY, true, committed);
+		assertEquals(committed, resumed.getCount());
+		for (int i = committed; i < times.length; i++) {
+			times[i] += 5;
+			values[i] = Double.doubleToRawLongBits(-i);
+			assertTrue("room for sample " + i, resumed.append(times[i], values[i], statuses[i]));
+		}
+
+		assertDecoded(buffer, true, times, values, statuses, times.length);
+	}
+
+	private static void assertRoundTrip(boolean floatingPoint, long[] times, long[] values, int[] statuses) {
+		ByteBuffer buffer = paddedBuffer();
+		BlockEncoder encoder = new BlockEncoder(buffer, OFFSET, CAPACITY, floatingPoint);
+		for (int i = 0; i < times.length; i++) {
+			assertTrue("room for sample " + i, encoder.append(times[i], values[i], statuses[i]));
+		}
+		assertEquals(times.length, encoder.getCount());
+		assertPadding(buffer);
+
+		assertDecoded(buffer, floatingPoint, times, values, statuses, times.length);
+
+		// Decoding fewer samples, as a reader of a block still being appended to does
+		assertDecoded(buffer, floatingPoint, times, values, statuses, times.length / 2);
+	}
+
+	private static void assertDecoded(ByteBuffer buffer, boolean floatingPoint, long[] times, long[] values,
+			int[] statuses, int count) {
+
+		BlockDecoder decoder = new BlockDecoder(buffer, OFFSET, floatingPoint, count);
+		for (int i = 0; i < count; i++) {
+			assertTrue("sample " + i, decoder.next());
+			assertEquals("time of sample " + i, times[i], decoder.getTime());
+			assertEquals("value of sample " + i, values[i], decoder.getBits());
+			assertEquals("status of sample " + i, statuses[i], decoder.getStatus());
+		}
+		assertEquals(false, decoder.next());
+	}
+
+	// Padding around the block, which the encoder must leave as it is
+	private static ByteBuffer paddedBuffer() {
+		ByteBuffer buffer = ByteBuffer.allocate(OFFSET + CAPACITY + 64);
+		for (int i = 0; i < buffer.capacity(); i++) {
+			buffer.put(i, PADDING);
+		}
+		return buffer;
+	}
+
+	private static void assertPadding(ByteBuffer buffer) {
+		for (int i = 0; i < OFFSET; i++) {
+			assertEquals("byte " + i, PADDING, buffer.get(i));
+		}
+		for (int i = OFFSET + CAPACITY; i < buffer.capacity(); i++) {
+			assertEquals("byte " + i, PADDING, buffer.get(i));
+		}
+	}
+
+	private static long bits(double value) {
+		return Double.doubleToRawLongBits(value);
+	}
+}
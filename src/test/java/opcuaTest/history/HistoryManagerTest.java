@@ -0,0 +1,172 @@
+package opcuaTest.history;
+
+import static org.eclipse.milo.opcua.stack.core.types.builtin.unsigned.Unsigned.uint;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.milo.opcua.stack.core.Identifiers;
+import org.eclipse.milo.opcua.stack.core.StatusCodes;
+import org.eclipse.milo.opcua.stack.core.types.builtin.ByteString;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DataValue;
+import org.eclipse.milo.opcua.stack.core.types.builtin.DateTime;
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.eclipse.milo.opcua.stack.core.types.builtin.StatusCode;
+import org.eclipse.milo.opcua.stack.core.types.builtin.Variant;
+import org.eclipse.milo.opcua.stack.core.types.enumerated.TimestampsToReturn;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryData;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadResult;
+import org.eclipse.milo.opcua.stack.core.types.structured.HistoryReadValueId;
+import org.eclipse.milo.opcua.stack.core.types.structured.ReadRawModifiedDetails;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Raw HistoryReads of ten values, one a second, held in memory: which values each
+ * combination of start time, end time and number of values returns, and in what order.
+ * And the pages of a persisted history recorded partly late, one continuation point after
+ * the other.
+ */
+public class HistoryManagerTest {
+
+	private static final NodeId NODE_ID = new NodeId(2, "TestFolder/TestSubfolder1/TestVariable_1_0");
+
+	private static final long BASE = DateTime.now().getUtcTime();
+	private static final long SECOND = 10_000_000L;
+
+	private HistoryManager historyManager;
+
+	@Before
+	public void setUp() {
+		historyManager = new HistoryManager();
+		historyManager.register(NODE_ID, Identifiers.Int32);
+
+		// Value i at second i
+		for (int i = 0; i < 10; i++) {
+			historyManager.record(NODE_ID, new DataValue(new Variant(i), StatusCode.GOOD, time(i), time(i)));
+		}
+	}
+
+	@Test
+	public void endAndNumValuesReadBackwardsFromEnd() {
+		HistoryReadResult result = read(DateTime.MIN_VALUE, time(6), 3);
+
+		assertValues(result, 6, 5, 4);
+	}
+
+	@Test
+	public void startAfterEndReadsBackwards() {
+		HistoryReadResult result = read(time(7), time(2), 0);
+
+		assertValues(result, 7, 6, 5, 4, 3);
+	}
+
+	@Test
+	public void startAfterEndStopsAtNumValues() {
+		HistoryReadResult result = read(time(7), time(2), 2);
+
+		assertValues(result, 7, 6);
+	}
+
+	@Test
+	public void endAloneReadsEverythingBeforeIt() {
+		// What ClientTest.getHistory asks for
+		HistoryReadResult result = read(DateTime.MIN_VALUE, time(4), 0);
+
+		assertValues(result, 0, 1, 2, 3);
+	}
+
+	@Test
+	public void startAndEndReadForwards() {
+		HistoryReadResult result = read(time(2), time(5), 0);
+
+		assertValues(result, 2, 3, 4);
+	}
+
+	@Test
+	public void startAloneIsRejected() {
+		HistoryReadResult result = read(time(2), null, 0);
+
+		assertEquals(StatusCodes.Bad_InvalidTimestampArgument, result.getStatusCode().getValue());
+	}
+
+	@Test
+	public void pagesOfAPersistedHistoryWithLateValuesFollowEachOther() throws IOException {
+		File directory = Files.createTempDirectory("history").toFile();
+		HistoryStore store = HistoryStore.open(directory, 16 + 256 * HistoryStore.BLOCK_SIZE, 60_000);
+		try {
+			HistoryManager persisted = new HistoryManager(16, store);
+			persisted.register(NODE_ID, Identifiers.Int32);
+
+			// Value i at second i, every tenth one recorded after the nine following it
+			for (int i = 0; i < 2000; i += 10) {
+				for (int j = i + 1; j < i + 10; j++) {
+					persisted.record(NODE_ID, new DataValue(new Variant(j), StatusCode.GOOD, time(j), time(j)));
+				}
+				persisted.record(NODE_ID, new DataValue(new Variant(i), StatusCode.GOOD, time(i), time(i)));
+			}
+
+			List<Object> forward = readPaged(persisted, time(0), time(2000), 7);
+			List<Object> reverse = readPaged(persisted, time(1999), time(0), 7);
+
+			assertEquals(2000, forward.size());
+			assertEquals(1999, reverse.size());
+			for (int i = 0; i < forward.size(); i++) {
+				assertEquals(i, forward.get(i));
+			}
+			for (int i = 0; i < reverse.size(); i++) {
+				assertEquals(1999 - i, reverse.get(i));
+			}
+		} finally {
+			store.close();
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	// Values of every page, following the continuation points
+	private static List<Object> readPaged(HistoryManager historyManager, DateTime start, DateTime end, long numValues) {
+		ReadRawModifiedDetails details = new ReadRawModifiedDetails(false, start, end, uint(numValues), false);
+		List<Object> values = new ArrayList<Object>();
+		ByteString continuationPoint = null;
+
+		do {
+			HistoryReadResult result = historyManager.historyRead(details, TimestampsToReturn.Source,
+					new HistoryReadValueId(NODE_ID, null, null, continuationPoint));
+			for (DataValue value : ((HistoryData) result.getHistoryData().decode()).getDataValues()) {
+				values.add(value.getValue().getValue());
+			}
+			continuationPoint = result.getContinuationPoint();
+		} while (continuationPoint != null);
+
+		return values;
+	}
+
+	private HistoryReadResult read(DateTime start, DateTime end, long numValues) {
+		ReadRawModifiedDetails details = new ReadRawModifiedDetails(false, start, end, uint(numValues), false);
+
+		return historyManager.historyRead(details, TimestampsToReturn.Source,
+				new HistoryReadValueId(NODE_ID, null, null, null));
+	}
+
+	private static void assertValues(HistoryReadResult result, int... expected) {
+		assertEquals(StatusCode.GOOD, result.getStatusCode());
+
+		DataValue[] values = ((HistoryData) result.getHistoryData().decode()).getDataValues();
+		assertEquals(expected.length, values.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], values[i].getValue().getValue());
+			assertEquals(time(expected[i]).getUtcTime(), values[i].getSourceTime().getUtcTime());
+		}
+	}
+
+	private static DateTime time(int second) {
+		return new DateTime(BASE + second * SECOND);
+	}
+}
@@ -0,0 +1,395 @@
+package opcuaTest.history;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.eclipse.milo.opcua.stack.core.types.builtin.NodeId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A store of small segments, read back against the samples appended to it: forward and
+ * backwards, with and without bounds, a page at a time like a continuation point, while
+ * late samples make blocks overlap. Then compacted, edited, reopened and opened again
+ * without being closed, as after a crash, against a model of what each of these makes of
+ * the samples.
+ */
+public class HistoryStoreTest {
+
+	private static final NodeId NODE_ID = new NodeId(2, "TestFolder/TestSubfolder1/TestVariable_1_0");
+
+	// Sixteen blocks a segment
+	private static final int SEGMENT_BYTES = 16 + 16 * HistoryStore.BLOCK_SIZE;
+
+	// Raw samples are kept for 100 ms, averaged by the millisecond, in 100 ns ticks
+	private static final RetentionPolicy RETENTION = new RetentionPolicy(100, 1, 1_000_000);
+	private static final long INTERVAL = 10_000;
+
+	private File directory;
+	private HistoryStore store;
+	private int series;
+
+	// Appended so far, {time, value, status}, in append order
+	private final List<long[]> appended = new ArrayList<long[]>();
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("history").toFile();
+		store = HistoryStore.open(directory, SEGMENT_BYTES, 60_000);
+		series = store.register(NODE_ID, HistoryValueType.INT64);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+		delete(directory);
+	}
+
+	@Test
+	public void samplesInTimeOrderAreReadBack() throws IOException {
+		Random random = new Random(1);
+		long time = 1_000_000;
+		for (int i = 0; i < 20_000; i++) {
+			time += random.nextInt(20);
+			append(time, i);
+		}
+
+		assertReads(random, 200);
+	}
+
+	@Test
+	public void lateSamplesAreReadInTimeOrder() throws IOException {
+		Random random = new Random(2);
+		appendLate(random, 30_000, 1_000_000);
+
+		assertReads(random, 500);
+	}
+
+	@Test
+	public void pagesOfALateSeriesFollowEachOther() throws IOException {
+		Random random = new Random(3);
+		appendLate(random, 30_000, 1_000_000);
+
+		for (boolean reverse : new boolean[] {false, true}) {
+			for (boolean returnBounds : new boolean[] {false, true}) {
+				long low = expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false).get(1000)[0];
+				long high = expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false).get(25_000)[0];
+
+				assertSamples(expected(low, high, reverse, returnBounds), readPaged(low, high, reverse, returnBounds, 97));
+			}
+		}
+	}
+
+	@Test
+	public void lateSamplesAreAveragedWithTheirInterval() throws IOException {
+		Random random = new Random(4);
+		appendLate(random, 30_000, 1_000_000);
+		seal();
+		store.setRetentionPolicy(series, RETENTION);
+
+		compact(5_000_000);
+		assertReads(random, 200);
+		assertRecovered(random);
+
+		// Its interval has its average already
+		store.append(series, appended.get(0)[0], 42, 0);
+		assertReads(random, 20);
+
+		// Added to the averages of the first run, the samples in order after the cut stay raw
+		appendLate(random, 10_000, 5_000_000);
+		seal();
+		for (int i = 0; i < 3_000; i++) {
+			append(10_000_000 + i * 7, i);
+		}
+		compact(7_000_000);
+		assertReads(random, 200);
+		assertRecovered(random);
+
+		reopen();
+		assertReads(random, 200);
+	}
+
+	@Test
+	public void editsOfALateSeriesAreReadBack() throws IOException {
+		Random random = new Random(5);
+		appendLate(random, 30_000, 1_000_000);
+		List<long[]> sorted = expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false);
+
+		long low = sorted.get(5_000)[0];
+		long high = sorted.get(6_000)[0];
+		assertEquals(true, store.rewrite(series, low, high - 1, new SampleDelete(low, high)));
+		appended.removeIf(sample -> sample[0] >= low && sample[0] < high);
+
+		// Existing times and new ones, a few of them more than once
+		int count = 500;
+		long[] times = new long[count];
+		long[] values = new long[count];
+		int[] statuses = new int[count];
+		for (int i = 0; i < count; i++) {
+			times[i] = random.nextBoolean() ? sorted.get(10_000 + random.nextInt(10_000))[0]
+					: sorted.get(10_000)[0] + random.nextInt(100_000);
+			values[i] = 1_000_000 + i;
+		}
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (long time : times) {
+			first = Math.min(first, time);
+			last = Math.max(last, time);
+		}
+		assertEquals(true, store.rewrite(series, first, last,
+				new SampleUpdate(SampleUpdate.Mode.UPDATE, times, values, statuses, count)));
+		for (int i = 0; i < count; i++) {
+			long time = times[i];
+			appended.removeIf(sample -> sample[0] == time);
+			appended.add(new long[] {time, values[i], statuses[i]});
+		}
+
+		assertReads(random, 200);
+		store.flush();
+		assertRecovered(random);
+
+		reopen();
+		assertReads(random, 200);
+	}
+
+	@Test
+	public void onlyFlushedSamplesAreRecovered() throws IOException {
+		Random random = new Random(6);
+		appendLate(random, 20_000, 1_000_000);
+		store.flush();
+		int flushed = appended.size();
+
+		appendLate(random, 5_000, expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false).get(flushed - 1)[0]);
+		List<long[]> all = new ArrayList<long[]>(appended);
+		appended.subList(flushed, appended.size()).clear();
+		assertRecovered(random);
+
+		appended.clear();
+		appended.addAll(all);
+		assertReads(random, 200);
+	}
+
+	// Mostly in time order, with repeated times, samples a few blocks late and a few far behind
+	private void appendLate(Random random, int count, long from) throws IOException {
+		long time = from;
+		for (int i = 0; i < count; i++) {
+			time += random.nextInt(20);
+			int late = random.nextInt(1000);
+			if (late < 50) {
+				append(time - random.nextInt(5000), i);
+			} else if (late < 51) {
+				append(time - random.nextInt(200_000), i);
+			} else {
+				append(time, i);
+			}
+		}
+	}
+
+	private void append(long time, long value) throws IOException {
+		store.append(series, time, value, 0);
+		appended.add(new long[] {time, value, 0});
+	}
+
+	// Deletes the latest sample, which seals the open block: what is appended next starts a new one
+	private void seal() throws IOException {
+		List<long[]> sorted = expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false);
+		long last = sorted.get(sorted.size() - 1)[0];
+		assertEquals(true, store.rewrite(series, last, last, new SampleDelete(last, last + 1)));
+		appended.removeIf(sample -> sample[0] == last);
+	}
+
+	/**
+	 * Compacts the store with its raw retention ending at {@code cut}, and the model with
+	 * it: the raw samples before the cut become the average of each interval, with the
+	 * time of its start, unless the interval was averaged by an earlier run.
+	 */
+	private void compact(long cut) throws IOException {
+		store.flush();
+		store.compact(cut + RETENTION.getRawRetentionMillis() * 10_000);
+
+		Map<Long, long[]> averages = new TreeMap<Long, long[]>();
+		Map<Long, double[]> intervals = new TreeMap<Long, double[]>();
+		List<long[]> kept = new ArrayList<long[]>();
+		for (long[] sample : appended) {
+			if (sample[2] == HistoryStore.CALCULATED) {
+				averages.put(sample[0], sample);
+			} else if (sample[0] < cut) {
+				double[] sum = intervals.computeIfAbsent(Math.floorDiv(sample[0], INTERVAL) * INTERVAL,
+						start -> new double[2]);
+				sum[0] += sample[1];
+				sum[1]++;
+			} else {
+				kept.add(sample);
+			}
+		}
+		for (Map.Entry<Long, double[]> interval : intervals.entrySet()) {
+			long start = interval.getKey();
+			long average = HistoryValueType.INT64.fromDouble(interval.getValue()[0] / interval.getValue()[1]);
+			averages.putIfAbsent(start, new long[] {start, average, HistoryStore.CALCULATED});
+		}
+
+		appended.clear();
+		appended.addAll(averages.values());
+		appended.addAll(kept);
+	}
+
+	private void reopen() throws IOException {
+		store.close();
+		store = HistoryStore.open(directory, SEGMENT_BYTES, 60_000);
+		series = store.register(NODE_ID, HistoryValueType.INT64);
+	}
+
+	// Opens the directory again while the store is still open, as after a crash
+	private void assertRecovered(Random random) throws IOException {
+		HistoryStore crashed = store;
+		store = HistoryStore.open(directory, SEGMENT_BYTES, 60_000);
+		try {
+			series = store.register(NODE_ID, HistoryValueType.INT64);
+			assertReads(random, 200);
+		} finally {
+			store.close();
+			store = crashed;
+		}
+	}
+
+	private void assertReads(Random random, int reads) {
+		long first = appended.get(0)[0] - 10_000;
+		long span = expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false).get(appended.size() - 1)[0] + 20_000 - first;
+
+		assertSamples(expected(Long.MIN_VALUE, Long.MAX_VALUE, false, false),
+				read(Long.MIN_VALUE, Long.MAX_VALUE, false, false));
+
+		for (int i = 0; i < reads; i++) {
+			long low = first + (long) (random.nextDouble() * span);
+			long high = low + 1 + (long) (random.nextDouble() * span / 10);
+			boolean reverse = random.nextBoolean();
+			boolean returnBounds = random.nextBoolean();
+
+			assertSamples(expected(low, high, reverse, returnBounds), read(low, high, reverse, returnBounds));
+		}
+	}
+
+	private List<long[]> read(long low, long high, boolean reverse, boolean returnBounds) {
+		List<long[]> samples = new ArrayList<long[]>();
+		store.read(series, low, high, reverse, returnBounds,
+				(time, bits, status) -> samples.add(new long[] {time, bits, status}));
+		return samples;
+	}
+
+	// Each page reads again from the time of the last sample returned, like a HistoryCursor
+	private List<long[]> readPaged(long low, long high, boolean reverse, boolean returnBounds, int pageSize) {
+		List<long[]> samples = new ArrayList<long[]>();
+		long from = low;
+		long to = high;
+		boolean resumed = false;
+		boolean more = true;
+
+		while (more) {
+			List<long[]> page = new ArrayList<long[]>();
+			long last = resumed ? samples.get(samples.size() - 1)[0] : 0;
+			int returnedAtLast = 0;
+			for (int i = samples.size() - 1; resumed && i >= 0 && samples.get(i)[0] == last; i--) {
+				returnedAtLast++;
+			}
+			int[] toSkip = {returnedAtLast};
+			boolean[] full = {false};
+			boolean behind = resumed;
+
+			store.read(series, from, to, reverse, returnBounds, (time, bits, status) -> {
+				if (behind && (reverse ? time > last || time >= high : time < last || time < low)) {
+					return true;
+				}
+				if (behind && time == last && toSkip[0] > 0) {
+					toSkip[0]--;
+					return true;
+				}
+				if (page.size() == pageSize) {
+					full[0] = true;
+					return false;
+				}
+				page.add(new long[] {time, bits, status});
+				return true;
+			});
+
+			samples.addAll(page);
+			more = full[0];
+			resumed = true;
+			if (reverse) {
+				to = samples.get(samples.size() - 1)[0] + 1;
+			} else {
+				from = samples.get(samples.size() - 1)[0];
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * What {@link HistoryStore#read} returns, from the samples appended sorted by time,
+	 * those with the same time in append order.
+	 */
+	private List<long[]> expected(long low, long high, boolean reverse, boolean returnBounds) {
+		List<long[]> sorted = new ArrayList<long[]>(appended);
+		sorted.sort((a, b) -> Long.compare(a[0], b[0]));
+
+		int from = 0;
+		while (from < sorted.size() && sorted.get(from)[0] < low) {
+			from++;
+		}
+		int to = from;
+		while (to < sorted.size() && sorted.get(to)[0] < high) {
+			to++;
+		}
+
+		List<long[]> samples = new ArrayList<long[]>();
+		boolean onLow = from < to && sorted.get(from)[0] == low;
+		if (reverse) {
+			if (returnBounds && to < sorted.size()) {
+				samples.add(sorted.get(to));
+			}
+			for (int i = to - 1; i >= from; i--) {
+				samples.add(sorted.get(i));
+			}
+			if (returnBounds && from > 0 && !onLow) {
+				samples.add(sorted.get(from - 1));
+			}
+		} else {
+			boolean atLow = from < sorted.size() && sorted.get(from)[0] == low;
+			if (returnBounds && from > 0 && !atLow) {
+				samples.add(sorted.get(from - 1));
+			}
+			samples.addAll(sorted.subList(from, to));
+			if (returnBounds && to < sorted.size()) {
+				samples.add(sorted.get(to));
+			}
+		}
+		return samples;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void assertSamples(List<long[]> expected, List<long[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("time of sample " + i, expected.get(i)[0], actual.get(i)[0]);
+			assertEquals("value of sample " + i, expected.get(i)[1], actual.get(i)[1]);
+			assertEquals("status of sample " + i, expected.get(i)[2], actual.get(i)[2]);
+		}
+	}
+}